@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp.benchmarks;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar.
+ * <p/>
+ * Without arguments, runs {@link BorrowBenchmark} and {@link StripedBorrowBenchmark} with 1, 2, 4... threads up to twice the number of processors, then
+ * the other benchmarks. With arguments, behaves exactly like the JMH command line, e.g.
+ * <code>java -jar benchmarks.jar BorrowBenchmark -t 8</code>.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public final class BenchmarkRunner {
+
+    /**
+     * Not instantiable.
+     */
+    private BenchmarkRunner() {
+    }
+
+    /**
+     * Run the benchmarks.
+     *
+     * @param args the JMH command line arguments, if any.
+     * @throws Exception if a benchmark could not be run.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            Main.main(args);
+            return;
+        }
+        final int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            new Runner(new OptionsBuilder()
+                               .include(BorrowBenchmark.class.getName())
+                               .include(StripedBorrowBenchmark.class.getName())
+                               .threads(threads)
+                               .build()).run();
+        }
+        new Runner(new OptionsBuilder()
+                           .include(JmxReadBenchmark.class.getName())
+                           .include(LeakDetectionBenchmark.class.getName())
+                           .include(StartupBenchmark.class.getName())
+                           .build()).run();
+    }
+}
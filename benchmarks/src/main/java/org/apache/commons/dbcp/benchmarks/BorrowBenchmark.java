@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp.benchmarks;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of a <code>getConnection()</code>/<code>close()</code> cycle, on a
+ * {@link org.apache.commons.dbcp.ManagedBasicDataSource} compared to a plain {@link BasicDataSource}.
+ * <p/>
+ * The pool is sized above the thread count so the numbers reflect the cost of the pool and its instrumentation, not
+ * waiting for a free connection. Run with <code>-t</code> to choose the number of threads, or through
+ * {@link BenchmarkRunner} to sweep from 1 to N threads.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BorrowBenchmark {
+
+    /**
+     * The datasource implementation under benchmark.
+     */
+    @Param({DataSources.BASIC, DataSources.MANAGED})
+    public String dataSource;
+
+    /**
+     * The maximum number of active connections of the pool.
+     */
+    @Param({"256"})
+    public int maxActive;
+
+    /**
+     * The datasource under benchmark.
+     */
+    private BasicDataSource pool;
+
+    /**
+     * Create the datasource and its pool.
+     *
+     * @throws Exception if the datasource could not be created.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("maxActive", String.valueOf(maxActive));
+        properties.setProperty("maxIdle", String.valueOf(maxActive));
+        pool = DataSources.create(dataSource, properties);
+        pool.getConnection().close();
+    }
+
+    /**
+     * Close the datasource.
+     *
+     * @throws Exception if the datasource could not be closed.
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        DataSources.dispose(pool);
+    }
+
+    /**
+     * Borrow a connection and give it back.
+     *
+     * @throws Exception if the connection could not be borrowed.
+     */
+    @Benchmark
+    public void borrowAndReturn() throws Exception {
+        final Connection connection = pool.getConnection();
+        connection.close();
+    }
+}
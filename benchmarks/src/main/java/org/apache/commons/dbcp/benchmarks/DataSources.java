@@ -0,0 +1,122 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp.benchmarks;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbcp.BasicDataSourceFactory;
+import org.apache.commons.dbcp.ManagedBasicDataSource;
+import org.apache.commons.dbcp.ManagedBasicDataSourceFactory;
+import org.apache.commons.dbcp.ManagedStripedDataSource;
+import org.apache.commons.dbcp.ManagedStripedDataSourceFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+/**
+ * Creation and disposal of the datasources under benchmark.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+final class DataSources {
+
+    /**
+     * Value of the <code>dataSource</code> benchmark parameter for a plain {@link BasicDataSource}.
+     */
+    static final String BASIC = "basic";
+
+    /**
+     * Value of the <code>dataSource</code> benchmark parameter for a {@link ManagedBasicDataSource}.
+     */
+    static final String MANAGED = "managed";
+
+    /**
+     * Not instantiable.
+     */
+    private DataSources() {
+    }
+
+    /**
+     * Create a datasource backed by the {@link StubDriver}.
+     *
+     * @param type       {@link #BASIC} or {@link #MANAGED}.
+     * @param properties additional factory properties, may be empty.
+     * @return the datasource.
+     * @throws Exception if the datasource could not be created.
+     */
+    static BasicDataSource create(String type, Properties properties) throws Exception {
+        final Properties all = StubDriver.properties();
+        all.putAll(properties);
+        if (BASIC.equals(type)) {
+            return (BasicDataSource) BasicDataSourceFactory.createDataSource(all);
+        } else if (MANAGED.equals(type)) {
+            return (BasicDataSource) ManagedBasicDataSourceFactory.createDataSource(all);
+        }
+        throw new IllegalArgumentException("Unknown datasource type: " + type);
+    }
+
+    /**
+     * Create a striped datasource backed by the {@link StubDriver}.
+     *
+     * @param properties additional factory properties, may be empty.
+     * @return the datasource.
+     * @throws Exception if the datasource could not be created.
+     */
+    static ManagedStripedDataSource createStriped(Properties properties) throws Exception {
+        final Properties all = StubDriver.properties();
+        all.putAll(properties);
+        return (ManagedStripedDataSource) ManagedStripedDataSourceFactory.createDataSource(all);
+    }
+
+    /**
+     * Close a datasource and unregister its MBean if it has one, so iterations do not accumulate MBeans.
+     *
+     * @param dataSource the datasource, may be <code>null</code>.
+     * @throws Exception if the datasource could not be closed.
+     */
+    static void dispose(BasicDataSource dataSource) throws Exception {
+        if (dataSource == null) {
+            return;
+        }
+        dataSource.close();
+        if (dataSource instanceof ManagedBasicDataSource) {
+            final ObjectName name = new ObjectName(((ManagedBasicDataSource) dataSource).getMBeanName());
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+        }
+    }
+
+    /**
+     * Close a striped datasource and unregister its MBean and the MBeans of its stripes.
+     *
+     * @param dataSource the datasource, may be <code>null</code>.
+     * @throws Exception if the datasource could not be closed.
+     */
+    static void dispose(ManagedStripedDataSource dataSource) throws Exception {
+        if (dataSource == null) {
+            return;
+        }
+        for (int i = 0; i < dataSource.getStripes(); i++) {
+            dispose(dataSource.getStripe(i));
+        }
+        final ObjectName name = new ObjectName(dataSource.getMBeanName());
+        if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp.benchmarks;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbcp.ManagedBasicDataSource;
+import org.openjdk.jmh.annotations.*;
+
+import javax.management.AttributeList;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading the MBean attributes of a {@link ManagedBasicDataSource} while it is under load, and impact of
+ * those reads on the borrowing threads.
+ * <p/>
+ * Compare the <code>borrow</code> results of the <code>borrowOnly</code> and <code>borrowWhileReading</code> groups to
+ * see what a monitoring agent polling the MBean costs the application, and the <code>read</code> result for the
+ * latency seen by the agent.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JmxReadBenchmark {
+
+    /**
+     * The attributes read by a monitoring agent poll.
+     */
+    static final String[] ATTRIBUTES = {
+            "NumActive", "NumIdle", "MaxActive", "MaxIdle", "MinIdle", "MaxWait", "Url", "Username",
+            "BorrowedCount", "FailedBorrowCount", "BorrowWait.Count", "BorrowWait.P50", "BorrowWait.P99",
+            "BorrowWait.Max", "ReturnedCount", "HoldTime.Count", "HoldTime.P99", "LongHoldCount"
+    };
+
+    /**
+     * The datasource under benchmark.
+     */
+    private BasicDataSource pool;
+
+    /**
+     * The MBean server the datasource is registered in.
+     */
+    private MBeanServer mBeanServer;
+
+    /**
+     * The name of the datasource MBean.
+     */
+    private ObjectName objectName;
+
+    /**
+     * Create the datasource and its pool.
+     *
+     * @throws Exception if the datasource could not be created.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("maxActive", "256");
+        properties.setProperty("maxIdle", "256");
+        pool = DataSources.create(DataSources.MANAGED, properties);
+        pool.getConnection().close();
+        mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName(((ManagedBasicDataSource) pool).getMBeanName());
+    }
+
+    /**
+     * Close the datasource.
+     *
+     * @throws Exception if the datasource could not be closed.
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        DataSources.dispose(pool);
+    }
+
+    /**
+     * Borrow a connection and give it back, without concurrent MBean reads.
+     *
+     * @throws Exception if the connection could not be borrowed.
+     */
+    @Benchmark
+    @Group("borrowOnly")
+    @GroupThreads(4)
+    public void borrow() throws Exception {
+        final Connection connection = pool.getConnection();
+        connection.close();
+    }
+
+    /**
+     * Borrow a connection and give it back, while another thread reads the MBean attributes.
+     *
+     * @throws Exception if the connection could not be borrowed.
+     */
+    @Benchmark
+    @Group("borrowWhileReading")
+    @GroupThreads(3)
+    public void borrowWhileReading() throws Exception {
+        final Connection connection = pool.getConnection();
+        connection.close();
+    }
+
+    /**
+     * Read the attributes of a monitoring agent poll, while other threads borrow connections.
+     *
+     * @return the attribute values.
+     * @throws Exception if the attributes could not be read.
+     */
+    @Benchmark
+    @Group("borrowWhileReading")
+    @GroupThreads(1)
+    public AttributeList read() throws Exception {
+        return mBeanServer.getAttributes(objectName, ATTRIBUTES);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp.benchmarks;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbcp.ManagedBasicDataSourceFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of abandoned connection tracking on a <code>getConnection()</code>/<code>close()</code> cycle that never leaks,
+ * with <code>logAbandoned</code> compared to the {@link org.apache.commons.dbcp.LeakDetector} modes.
+ * <p/>
+ * <code>removeAbandoned</code> is enabled in every mode, so <code>none</code> is the baseline: <code>sampled</code>
+ * (one borrow in 1000 captures a stack) and <code>deferred</code> should stay close to it, while
+ * <code>logAbandoned</code> pays for a stack trace on every borrow.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeakDetectionBenchmark {
+
+    /**
+     * The abandoned connection tracking mode.
+     */
+    @Param({"none", "logAbandoned", "sampled", "deferred"})
+    public String tracking;
+
+    /**
+     * The datasource under benchmark.
+     */
+    private BasicDataSource pool;
+
+    /**
+     * Create the datasource and its pool.
+     *
+     * @throws Exception if the datasource could not be created.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "256");
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXIDLE, "256");
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_REMOVEABANDONED, "true");
+        if ("logAbandoned".equals(tracking)) {
+            properties.setProperty(ManagedBasicDataSourceFactory.PROP_LOGABANDONED, "true");
+        } else if ("sampled".equals(tracking)) {
+            properties.setProperty(ManagedBasicDataSourceFactory.PROP_LEAKSAMPLERATE, "1000");
+        } else if ("deferred".equals(tracking)) {
+            properties.setProperty(ManagedBasicDataSourceFactory.PROP_LEAKDEFERREDCAPTURE, "true");
+        }
+        pool = DataSources.create(DataSources.MANAGED, properties);
+        pool.getConnection().close();
+    }
+
+    /**
+     * Close the datasource.
+     *
+     * @throws Exception if the datasource could not be closed.
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        DataSources.dispose(pool);
+    }
+
+    /**
+     * Borrow a connection and give it back.
+     *
+     * @throws Exception if the connection could not be borrowed.
+     */
+    @Benchmark
+    public void borrowAndReturn() throws Exception {
+        final Connection connection = pool.getConnection();
+        connection.close();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp.benchmarks;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken by the datasource factories to create a datasource, including its MBean registration and, when
+ * <code>initialSize</code> is set, the initial connections, opened one after the other or by the parallel warm-up of
+ * {@link org.apache.commons.dbcp.ManagedBasicDataSource}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartupBenchmark {
+
+    /**
+     * The datasource implementation under benchmark.
+     */
+    @Param({DataSources.BASIC, DataSources.MANAGED})
+    public String dataSource;
+
+    /**
+     * The number of connections created when the datasource is created.
+     */
+    @Param({"0", "10"})
+    public int initialSize;
+
+    /**
+     * The maximum number of initial connections opened at the same time, ignored by {@link DataSources#BASIC}.
+     */
+    @Param({"1", "4"})
+    public int warmUpConcurrency;
+
+    /**
+     * The number of milliseconds opening a connection takes.
+     */
+    @Param({"0", "2"})
+    public long connectDelay;
+
+    /**
+     * The factory properties.
+     */
+    private Properties properties;
+
+    /**
+     * The datasource created by the last invocation.
+     */
+    private BasicDataSource created;
+
+    /**
+     * Build the factory properties.
+     */
+    @Setup
+    public void setUp() {
+        properties = new Properties();
+        properties.setProperty("initialSize", String.valueOf(initialSize));
+        properties.setProperty("warmUpConcurrency", String.valueOf(warmUpConcurrency));
+        properties.setProperty("connectionProperties", StubDriver.CONNECT_DELAY + "=" + connectDelay);
+    }
+
+    /**
+     * Close the datasource created by the last invocation, outside of the measured time.
+     *
+     * @throws Exception if the datasource could not be closed.
+     */
+    @TearDown(Level.Invocation)
+    public void dispose() throws Exception {
+        DataSources.dispose(created);
+        created = null;
+    }
+
+    /**
+     * Create a datasource through its factory.
+     *
+     * @return the datasource.
+     * @throws Exception if the datasource could not be created.
+     */
+    @Benchmark
+    public BasicDataSource createDataSource() throws Exception {
+        created = DataSources.create(dataSource, properties);
+        return created;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp.benchmarks;
+
+import org.apache.commons.dbcp.ManagedStripedDataSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a <code>getConnection()</code>/<code>close()</code> cycle on a {@link ManagedStripedDataSource},
+ * depending on the number of stripes.
+ * <p/>
+ * With a single stripe, all the threads contend on the same pool monitor, like with
+ * {@link org.apache.commons.dbcp.ManagedBasicDataSource}. Compare the throughput of each stripe count as the number of
+ * threads grows, by running with <code>-t</code> or through {@link BenchmarkRunner}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StripedBorrowBenchmark {
+
+    /**
+     * The number of stripes.
+     */
+    @Param({"1", "4", "16"})
+    public int stripes;
+
+    /**
+     * The maximum number of active connections, across all the stripes.
+     */
+    @Param({"256"})
+    public int maxActive;
+
+    /**
+     * The datasource under benchmark.
+     */
+    private ManagedStripedDataSource pool;
+
+    /**
+     * Create the datasource and open a connection in every stripe.
+     *
+     * @throws Exception if the datasource could not be created.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("stripes", String.valueOf(stripes));
+        properties.setProperty("maxActive", String.valueOf(maxActive));
+        properties.setProperty("maxIdle", String.valueOf(maxActive));
+        properties.setProperty("initialSize", String.valueOf(stripes));
+        pool = DataSources.createStriped(properties);
+    }
+
+    /**
+     * Close the datasource.
+     *
+     * @throws Exception if the datasource could not be closed.
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        DataSources.dispose(pool);
+    }
+
+    /**
+     * Borrow a connection and give it back.
+     *
+     * @throws Exception if the connection could not be borrowed.
+     */
+    @Benchmark
+    public void borrowAndReturn() throws Exception {
+        final Connection connection = pool.getConnection();
+        connection.close();
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp.benchmarks;
+
+import org.apache.commons.dbcp.ManagedBasicDataSourceFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * In-process JDBC driver the benchmarks run against, so they measure the pool and not a database.
+ * <p/>
+ * Accepts any URL starting with {@link #URL_PREFIX}. Connections, statements and result sets are dynamic proxies that
+ * return neutral values and do no I/O; result sets contain a single row.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class StubDriver implements Driver {
+
+    /**
+     * The prefix of the URLs accepted by this driver.
+     */
+    public static final String URL_PREFIX = "jdbc:stub:";
+
+    /**
+     * The connection property holding the number of milliseconds opening a connection takes, to simulate a remote
+     * database.
+     */
+    public static final String CONNECT_DELAY = "connectDelay";
+
+    static {
+        try {
+            DriverManager.registerDriver(new StubDriver());
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Build {@link ManagedBasicDataSourceFactory} properties for a datasource backed by this driver.
+     *
+     * @return a new set of properties.
+     */
+    public static Properties properties() {
+        final Properties properties = new Properties();
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_DRIVERCLASSNAME, StubDriver.class.getName());
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_URL, URL_PREFIX + "benchmark");
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_USERNAME, "sa");
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_PASSWORD, "");
+        return properties;
+    }
+
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        final String delay = info == null ? null : info.getProperty(CONNECT_DELAY);
+        if (delay != null) {
+            try {
+                Thread.sleep(Long.parseLong(delay));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while connecting");
+            }
+        }
+        return (Connection) newProxy(Connection.class, new ConnectionHandler());
+    }
+
+    public boolean acceptsURL(String url) throws SQLException {
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+        return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    public Logger getParentLogger() {
+        return Logger.getLogger(StubDriver.class.getName());
+    }
+
+    /**
+     * Create a proxy for a JDBC interface.
+     *
+     * @param type    the interface.
+     * @param handler the proxy handler.
+     * @return the proxy.
+     */
+    static Object newProxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    /**
+     * Get the neutral value for a return type.
+     *
+     * @param type the return type.
+     * @return <code>null</code>, <code>false</code> or zero.
+     */
+    static Object defaultValue(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        } else if (type == Integer.TYPE) {
+            return 0;
+        } else if (type == Long.TYPE) {
+            return 0L;
+        } else if (type == Short.TYPE) {
+            return (short) 0;
+        } else if (type == Byte.TYPE) {
+            return (byte) 0;
+        } else if (type == Double.TYPE) {
+            return 0d;
+        } else if (type == Float.TYPE) {
+            return 0f;
+        }
+        return null;
+    }
+
+    /**
+     * Handle {@link Object} methods on a proxy.
+     *
+     * @param proxy  the proxy.
+     * @param method the invoked method.
+     * @param args   the arguments.
+     * @return the result, or <code>null</code> if the method is not an {@link Object} method.
+     */
+    static Object objectMethod(Object proxy, Method method, Object[] args) {
+        final String name = method.getName();
+        if ("equals".equals(name) && args != null && args.length == 1) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(name) && args == null) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(name) && args == null) {
+            return method.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+        return null;
+    }
+
+    /**
+     * Handler for stub {@link Connection}s.
+     */
+    static class ConnectionHandler implements InvocationHandler {
+
+        private boolean closed;
+
+        private boolean autoCommit = true;
+
+        private boolean readOnly;
+
+        private int transactionIsolation = Connection.TRANSACTION_READ_COMMITTED;
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final Object objectResult = objectMethod(proxy, method, args);
+            if (objectResult != null) {
+                return objectResult;
+            }
+            final String name = method.getName();
+            if ("close".equals(name)) {
+                closed = true;
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return closed;
+            } else if ("isValid".equals(name)) {
+                return !closed;
+            }
+            if (closed) {
+                throw new SQLException("Connection is closed.");
+            }
+            if ("getAutoCommit".equals(name)) {
+                return autoCommit;
+            } else if ("setAutoCommit".equals(name)) {
+                autoCommit = (Boolean) args[0];
+                return null;
+            } else if ("isReadOnly".equals(name)) {
+                return readOnly;
+            } else if ("setReadOnly".equals(name)) {
+                readOnly = (Boolean) args[0];
+                return null;
+            } else if ("getTransactionIsolation".equals(name)) {
+                return transactionIsolation;
+            } else if ("setTransactionIsolation".equals(name)) {
+                transactionIsolation = (Integer) args[0];
+                return null;
+            } else if (Statement.class.isAssignableFrom(method.getReturnType())) {
+                return newProxy(method.getReturnType(), new StatementHandler((Connection) proxy));
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * Handler for stub {@link Statement}s, {@link PreparedStatement}s and {@link CallableStatement}s.
+     */
+    static class StatementHandler implements InvocationHandler {
+
+        private final Connection connection;
+
+        private boolean closed;
+
+        StatementHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final Object objectResult = objectMethod(proxy, method, args);
+            if (objectResult != null) {
+                return objectResult;
+            }
+            final String name = method.getName();
+            if ("close".equals(name)) {
+                closed = true;
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return closed;
+            } else if ("getConnection".equals(name)) {
+                return connection;
+            } else if ("executeBatch".equals(name)) {
+                return new int[0];
+            } else if (method.getReturnType() == ResultSet.class) {
+                return newProxy(ResultSet.class, new ResultSetHandler((Statement) proxy));
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * Handler for stub {@link ResultSet}s, which contain a single row.
+     */
+    static class ResultSetHandler implements InvocationHandler {
+
+        private final Statement statement;
+
+        private int row;
+
+        ResultSetHandler(Statement statement) {
+            this.statement = statement;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final Object objectResult = objectMethod(proxy, method, args);
+            if (objectResult != null) {
+                return objectResult;
+            }
+            final String name = method.getName();
+            if ("next".equals(name)) {
+                return ++row == 1;
+            } else if ("getStatement".equals(name)) {
+                return statement;
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+}
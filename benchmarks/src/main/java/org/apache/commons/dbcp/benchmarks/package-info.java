@@ -0,0 +1,24 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * JMH benchmarks for Apache Commons Database Connection Pools MBean extensions.
+ * <p/>
+ * Build with <code>mvn package</code> and run with <code>java -jar benchmarks/target/benchmarks.jar</code>.
+ *
+ * @since 0.2.5
+ */
+package org.apache.commons.dbcp.benchmarks;
@@ -0,0 +1,619 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.weakref.jmx.Managed;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background controller that sizes the pool of a {@link ManagedBasicDataSource} to keep the borrow wait time under a
+ * target.
+ * <p/>
+ * <p>Every {@link #getInterval() interval}, it computes the 99th percentile of the borrow wait time over the last
+ * interval and the pool utilization (active connections over maxActive), then takes at most one decision:</p>
+ * <ul>
+ * <li>if the waits are above {@link #getTargetWait() target} and the pool is saturated, grow maxActive by a quarter, up
+ * to {@link #getMaxActiveCeiling() the ceiling};</li>
+ * <li>if the waits are above target but the pool is not saturated, the borrowers are waiting for new connections to be
+ * opened: grow minIdle (and maxIdle if needed) by a quarter and open the missing idle connections in the
+ * background;</li>
+ * <li>if the waits are well under target and the pool is mostly idle, shrink minIdle, maxIdle then maxActive by one,
+ * never below the values they had when the controller was enabled. Idle connections are kept when opening a connection
+ * takes longer than the target wait.</li>
+ * </ul>
+ * <p/>
+ * <p>With the {@link #isOverride() manual override} switched on, the controller keeps observing but leaves the
+ * settings alone.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class AdaptiveSizingController implements Runnable {
+
+    /**
+     * The default target for the 99th percentile of the borrow wait time, in milliseconds.
+     */
+    public static final long DEFAULT_TARGET_WAIT = 50L;
+
+    /**
+     * The default number of milliseconds between two decisions.
+     */
+    public static final long DEFAULT_INTERVAL = 5000L;
+
+    /**
+     * The utilization above which the pool is considered saturated.
+     */
+    static final double SATURATION = 0.9d;
+
+    /**
+     * The utilization under which the pool is considered mostly idle.
+     */
+    static final double IDLENESS = 0.5d;
+
+    /**
+     * The thread running the controllers of all the datasources, created on first use.
+     */
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * The threads opening idle connections for the controllers, created on first use. Each controller opens
+     * connections on at most one of them at a time, so a slow database only holds back its own datasource.
+     */
+    private static ExecutorService filler;
+
+    /**
+     * The controlled datasource.
+     */
+    private final ManagedBasicDataSource dataSource;
+
+    /**
+     * The bucket counts of the borrow wait histogram at the previous decision.
+     */
+    private long[] previousCounts = new long[LatencyHistogram.BUCKETS];
+
+    /**
+     * The bucket counts of the borrow wait histogram at the current decision.
+     */
+    private long[] currentCounts = new long[LatencyHistogram.BUCKETS];
+
+    /**
+     * The number of decisions that changed a setting.
+     */
+    private final AtomicLong adjustmentCount = new AtomicLong();
+
+    /**
+     * The number of idle connections still to be opened in the background for this controller.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * The scheduled runs, <code>null</code> if disabled.
+     */
+    private ScheduledFuture<?> task;
+
+    /**
+     * Whether the controller only observes.
+     */
+    private volatile boolean override;
+
+    /**
+     * The target for the 99th percentile of the borrow wait time, in milliseconds.
+     */
+    private volatile long targetWait = DEFAULT_TARGET_WAIT;
+
+    /**
+     * The value maxActive is never grown above, 0 or less to never grow it.
+     */
+    private volatile int maxActiveCeiling;
+
+    /**
+     * The number of milliseconds between two decisions.
+     */
+    private volatile long interval = DEFAULT_INTERVAL;
+
+    /**
+     * The minIdle value when the controller was enabled.
+     */
+    private int minIdleFloor;
+
+    /**
+     * The maxIdle value when the controller was enabled.
+     */
+    private int maxIdleFloor;
+
+    /**
+     * The maxActive value when the controller was enabled.
+     */
+    private int maxActiveFloor;
+
+    /**
+     * The 99th percentile of the borrow wait time over the last interval, in milliseconds.
+     */
+    private volatile double windowWaitP99;
+
+    /**
+     * The utilization at the last decision.
+     */
+    private volatile double utilization;
+
+    /**
+     * The last decision taken.
+     */
+    private volatile String lastDecision = "disabled";
+
+    /**
+     * Build a new {@link AdaptiveSizingController}.
+     *
+     * @param dataSource the controlled datasource.
+     */
+    AdaptiveSizingController(ManagedBasicDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Get the thread running the controllers, creating it if needed.
+     *
+     * @return the scheduler.
+     */
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("commons-dbcp-jmx-sizing"));
+        }
+        return scheduler;
+    }
+
+    /**
+     * Get the threads opening idle connections, creating them if needed.
+     *
+     * @return the executor.
+     */
+    private static synchronized ExecutorService getFiller() {
+        if (filler == null) {
+            filler = Executors.newCachedThreadPool(new DaemonThreadFactory("commons-dbcp-jmx-sizing-fill"));
+        }
+        return filler;
+    }
+
+    /**
+     * Whether the controller is running.
+     *
+     * @return true if enabled.
+     */
+    @Managed(description = "Whether the adaptive sizing controller is running.")
+    public synchronized boolean isEnabled() {
+        return task != null;
+    }
+
+    /**
+     * Start or stop the controller.
+     * <p/>
+     * <p>When started, the current minIdle, maxIdle and maxActive become the values the controller never shrinks the
+     * pool below.</p>
+     *
+     * @param enabled whether the controller should run.
+     */
+    @Managed(description = "Start or stop the adaptive sizing controller.")
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled && task == null) {
+            final PoolStatistics statistics = dataSource.statistics;
+            minIdleFloor = statistics.getMinIdle();
+            maxIdleFloor = statistics.getMaxIdle();
+            maxActiveFloor = statistics.getMaxActive();
+            statistics.getBorrowWait().copyCounts(previousCounts);
+            lastDecision = "enabled";
+            task = getScheduler().scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+        } else if (!enabled && task != null) {
+            task.cancel(false);
+            task = null;
+            lastDecision = "disabled";
+        }
+    }
+
+    /**
+     * Whether the manual override is on, in which case the controller observes but does not change the settings.
+     *
+     * @return true if the settings are left to the operator.
+     */
+    @Managed(description = "Whether the manual override is on, in which case the controller observes but does not change the settings.")
+    public boolean isOverride() {
+        return override;
+    }
+
+    /**
+     * Switch the manual override on or off.
+     *
+     * @param override true to leave the settings to the operator.
+     */
+    @Managed(description = "Switch the manual override on or off.")
+    public void setOverride(boolean override) {
+        this.override = override;
+    }
+
+    /**
+     * Get the target for the 99th percentile of the borrow wait time.
+     *
+     * @return the target wait, in milliseconds.
+     */
+    @Managed(description = "The target for the 99th percentile of the borrow wait time, in milliseconds.")
+    public long getTargetWait() {
+        return targetWait;
+    }
+
+    /**
+     * Set the target for the 99th percentile of the borrow wait time.
+     *
+     * @param targetWait the target wait, in milliseconds.
+     */
+    @Managed(description = "Set the target for the 99th percentile of the borrow wait time, in milliseconds.")
+    public void setTargetWait(long targetWait) {
+        if (targetWait <= 0) {
+            throw new IllegalArgumentException("targetWait must be positive: " + targetWait);
+        }
+        this.targetWait = targetWait;
+    }
+
+    /**
+     * Get the value maxActive is never grown above.
+     *
+     * @return the maxActive ceiling, 0 or less if maxActive is never grown.
+     */
+    @Managed(description = "The value maxActive is never grown above, 0 to never grow it.")
+    public int getMaxActiveCeiling() {
+        return maxActiveCeiling;
+    }
+
+    /**
+     * Set the value maxActive is never grown above.
+     *
+     * @param maxActiveCeiling the maxActive ceiling, 0 or less to never grow maxActive.
+     */
+    @Managed(description = "Set the value maxActive is never grown above, 0 to never grow it.")
+    public void setMaxActiveCeiling(int maxActiveCeiling) {
+        this.maxActiveCeiling = maxActiveCeiling;
+    }
+
+    /**
+     * Get the number of milliseconds between two decisions.
+     *
+     * @return the control interval.
+     */
+    @Managed(description = "The number of milliseconds between two decisions of the adaptive sizing controller.")
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Set the number of milliseconds between two decisions, restarting the controller if it is running.
+     *
+     * @param interval the control interval.
+     */
+    @Managed(description = "Set the number of milliseconds between two decisions of the adaptive sizing controller.")
+    public synchronized void setInterval(long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        this.interval = interval;
+        if (task != null) {
+            task.cancel(false);
+            task = getScheduler().scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get the 99th percentile of the borrow wait time over the last interval.
+     *
+     * @return the windowed wait time, in milliseconds.
+     */
+    @Managed(description = "The 99th percentile of the borrow wait time over the last interval, in milliseconds.")
+    public double getWindowWaitP99() {
+        return windowWaitP99;
+    }
+
+    /**
+     * Get the pool utilization at the last decision.
+     *
+     * @return the number of active connections over maxActive, between 0 and 1.
+     */
+    @Managed(description = "The number of active connections over maxActive at the last decision.")
+    public double getUtilization() {
+        return utilization;
+    }
+
+    /**
+     * Get the last decision taken.
+     *
+     * @return a human readable description of the last decision.
+     */
+    @Managed(description = "The last decision taken by the adaptive sizing controller.")
+    public String getLastDecision() {
+        return lastDecision;
+    }
+
+    /**
+     * Get the number of decisions that changed a setting.
+     *
+     * @return the number of adjustments.
+     */
+    @Managed(description = "The number of decisions that changed a setting.")
+    public long getAdjustmentCount() {
+        return adjustmentCount.get();
+    }
+
+    /**
+     * Get the growth step for a setting.
+     *
+     * @param value the current value of the setting.
+     * @return a quarter of the value, at least 1.
+     */
+    private static int step(int value) {
+        return Math.max(1, value / 4);
+    }
+
+    /**
+     * Observe the pool and take a decision.
+     * <p/>
+     * <p>The decision is taken in the controller monitor, but the settings are changed once it is released: they take
+     * the datasource monitor, which is held while {@link ManagedBasicDataSource#close() closing} the datasource
+     * disables the controller.</p>
+     */
+    public void run() {
+        final Resize resize = observe();
+        if (resize != null) {
+            try {
+                resize.apply();
+            } catch (RuntimeException e) {
+                lastDecision = "failed: " + e;
+            }
+        }
+    }
+
+    /**
+     * Observe the pool and decide how to resize it.
+     *
+     * @return the settings to change, <code>null</code> if none.
+     */
+    private synchronized Resize observe() {
+        if (task == null) {
+            return null;
+        }
+        final PoolStatistics statistics = dataSource.statistics;
+        statistics.getBorrowWait().copyCounts(currentCounts);
+        final double waitP99 = LatencyHistogram.getPercentileMicros(currentCounts, previousCounts, 99d) / 1000d;
+        final long[] swap = previousCounts;
+        previousCounts = currentCounts;
+        currentCounts = swap;
+
+        final GenericObjectPool pool = dataSource.connectionPool;
+        final PoolStatisticsSnapshot snapshot = statistics.snapshot();
+        final int maxActive = snapshot.getMaxActive();
+        windowWaitP99 = waitP99;
+        utilization = maxActive > 0 ? (double) snapshot.getNumActive() / maxActive : 0d;
+
+        if (pool == null) {
+            lastDecision = "waiting for the pool to be created";
+        } else if (override) {
+            lastDecision = "manual override, observing only";
+        } else {
+            return decide(pool, snapshot, waitP99, statistics.getConnectionCreateTime().getMean());
+        }
+        return null;
+    }
+
+    /**
+     * Take a decision.
+     *
+     * @param pool       the pool.
+     * @param snapshot   the current statistics.
+     * @param waitP99    the 99th percentile of the borrow wait time over the last interval, in milliseconds.
+     * @param createTime the mean time taken to open a connection, in milliseconds.
+     * @return the settings to change, <code>null</code> if none.
+     */
+    private Resize decide(GenericObjectPool pool, PoolStatisticsSnapshot snapshot, double waitP99, double createTime) {
+        final long target = targetWait;
+        final int maxActive = snapshot.getMaxActive();
+        final int maxIdle = snapshot.getMaxIdle();
+        final int minIdle = snapshot.getMinIdle();
+        final String observed = String.format("p99 wait %.1f ms, target %d ms, utilization %.0f%%",
+                                              waitP99, target, utilization * 100);
+
+        if (waitP99 > target) {
+            if (utilization >= SATURATION) {
+                final int ceiling = maxActiveCeiling;
+                if (maxActive > 0 && ceiling > maxActive) {
+                    final int newMaxActive = Math.min(ceiling, maxActive + step(maxActive));
+                    final Resize resize = new Resize(pool, "grew maxActive from " + maxActive + " to " + newMaxActive,
+                                                     observed);
+                    resize.maxActive = newMaxActive;
+                    return resize;
+                } else {
+                    lastDecision = "saturated at the maxActive ceiling: " + observed;
+                }
+            } else {
+                final int limit = maxActive > 0 ? maxActive : Integer.MAX_VALUE;
+                final int newMinIdle = Math.min(limit, Math.max(0, minIdle) + step(Math.max(minIdle, maxIdle)));
+                if (newMinIdle > minIdle) {
+                    final Resize resize = new Resize(pool, "grew minIdle from " + minIdle + " to " + newMinIdle,
+                                                     observed);
+                    if (maxIdle >= 0 && maxIdle < newMinIdle) {
+                        resize.maxIdle = newMinIdle;
+                    }
+                    resize.minIdle = newMinIdle;
+                    resize.limit = limit;
+                    return resize;
+                } else {
+                    lastDecision = "waits are above target but minIdle is at maxActive: " + observed;
+                }
+            }
+        } else if (waitP99 <= target / 2d && utilization < IDLENESS) {
+            final boolean keepIdle = createTime > target;
+            if (!keepIdle && minIdle > minIdleFloor) {
+                final Resize resize = new Resize(pool, "shrank minIdle from " + minIdle + " to " + (minIdle - 1),
+                                                 observed);
+                resize.minIdle = minIdle - 1;
+                return resize;
+            } else if (!keepIdle && maxIdle > maxIdleFloor && maxIdle > minIdle) {
+                final Resize resize = new Resize(pool, "shrank maxIdle from " + maxIdle + " to " + (maxIdle - 1),
+                                                 observed);
+                resize.maxIdle = maxIdle - 1;
+                return resize;
+            } else if (maxActive > maxActiveFloor && maxActive - 1 > snapshot.getNumActive()) {
+                final Resize resize = new Resize(pool, "shrank maxActive from " + maxActive + " to " + (maxActive - 1),
+                                                 observed);
+                resize.maxActive = maxActive - 1;
+                return resize;
+            } else {
+                lastDecision = "steady" + (keepIdle ? ", keeping idle connections as opening one takes " +
+                                                      String.format("%.1f ms", createTime) : "") + ": " + observed;
+            }
+        } else {
+            lastDecision = "steady: " + observed;
+        }
+        return null;
+    }
+
+    /**
+     * Record a decision that changed a setting.
+     *
+     * @param decision the description of the decision.
+     */
+    private void adjusted(String decision) {
+        adjustmentCount.incrementAndGet();
+        lastDecision = decision;
+    }
+
+    /**
+     * Open idle connections in the background until there are <code>minIdle</code> of them, so the borrowers do not pay
+     * for it.
+     * <p/>
+     * <p>The number of connections to open is decided up front from the lock-free gauges, minus those still being
+     * opened. They are opened one at a time by a single task per controller, which also takes over the connections
+     * requested meanwhile.</p>
+     *
+     * @param pool    the pool.
+     * @param minIdle the number of idle connections to reach.
+     * @param limit   the maximum number of connections.
+     * @return the number of connections being opened.
+     */
+    private int fill(final GenericObjectPool pool, int minIdle, int limit) {
+        final PoolStatistics statistics = dataSource.statistics;
+        final int numIdle = statistics.getNumIdle() + pending.get();
+        final int missing = Math.min(minIdle - numIdle, limit - numIdle - statistics.getNumActive());
+        if (missing <= 0 || pending.getAndAdd(missing) > 0) {
+            return Math.max(0, missing);
+        }
+        try {
+            getFiller().execute(new Runnable() {
+                public void run() {
+                    try {
+                        do {
+                            pool.addObject();
+                        } while (pending.decrementAndGet() > 0);
+                    } catch (Exception e) {
+                        pending.set(0);
+                        lastDecision = "failed to open idle connections: " + e;
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            pending.set(0);
+            throw e;
+        }
+        return missing;
+    }
+
+    /**
+     * Settings of the pool decided by a tick, changed once the controller monitor is released.
+     */
+    private final class Resize {
+
+        /**
+         * The pool.
+         */
+        private final GenericObjectPool pool;
+
+        /**
+         * The description of the change.
+         */
+        private final String change;
+
+        /**
+         * The observations that led to the change.
+         */
+        private final String observed;
+
+        /**
+         * The new maxActive, <code>null</code> to leave it unchanged.
+         */
+        Integer maxActive;
+
+        /**
+         * The new maxIdle, <code>null</code> to leave it unchanged.
+         */
+        Integer maxIdle;
+
+        /**
+         * The new minIdle, <code>null</code> to leave it unchanged.
+         */
+        Integer minIdle;
+
+        /**
+         * The maximum number of connections when idle connections are opened up to a grown minIdle, 0 not to open any.
+         */
+        int limit;
+
+        /**
+         * Build a new {@link Resize}.
+         *
+         * @param pool     the pool.
+         * @param change   the description of the change.
+         * @param observed the observations that led to the change.
+         */
+        Resize(GenericObjectPool pool, String change, String observed) {
+            this.pool = pool;
+            this.change = change;
+            this.observed = observed;
+        }
+
+        /**
+         * Change the settings of the datasource, and open idle connections if minIdle was grown.
+         */
+        void apply() {
+            if (maxIdle != null) {
+                dataSource.setMaxIdle(maxIdle);
+            }
+            if (minIdle != null) {
+                dataSource.setMinIdle(minIdle);
+            }
+            if (maxActive != null) {
+                dataSource.setMaxActive(maxActive);
+            }
+            if (limit > 0) {
+                final int opening = fill(pool, minIdle, limit);
+                adjusted(change + " and started opening " + opening + " connections: " + observed);
+            } else {
+                adjusted(change + ": " + observed);
+            }
+        }
+    }
+}
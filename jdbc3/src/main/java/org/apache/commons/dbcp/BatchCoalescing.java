@@ -0,0 +1,310 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.weakref.jmx.Managed;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Settings and statistics of the coalescing of repeated <code>executeUpdate()</code> calls into JDBC batches, shared by
+ * the connections of a {@link ManagedBasicDataSource}.
+ * <p/>
+ * <p>When enabled with a {@link #getBatchSize() batch size} above 1, consecutive <code>executeUpdate()</code> calls on
+ * the same prepared statement within a transaction are turned into <code>addBatch()</code> calls, and sent to the
+ * database in a single <code>executeBatch()</code> when the batch is full, when another statement is executed, when
+ * the transaction is committed, or before anything else is done with the connection, see {@link CoalescingStatement}.
+ * In auto-commit mode, statements are executed as usual.</p>
+ * <p/>
+ * <p>Buffered executions return an update count of {@link #PROVISIONAL_UPDATE_COUNT}, as expected from single-row
+ * updates. The actual counts are checked when the batch is executed: with {@link #isStrictUpdateCounts() strict update
+ * counts}, a count that differs fails the flushing call with a {@link java.sql.BatchUpdateException} holding the actual
+ * counts, so the transaction is not committed on a wrong assumption. Drivers that only report
+ * {@link java.sql.Statement#SUCCESS_NO_INFO} cannot be checked. Errors raised by buffered executions are also only
+ * thrown by the flushing call.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class BatchCoalescing {
+
+    /**
+     * The update count returned by buffered executions.
+     */
+    public static final int PROVISIONAL_UPDATE_COUNT = 1;
+
+    /**
+     * Why a batch was executed.
+     */
+    enum Flush {
+
+        /**
+         * The batch reached the batch size.
+         */
+        SIZE,
+
+        /**
+         * Another statement was executed.
+         */
+        SQL,
+
+        /**
+         * The transaction was committed, or auto-commit was enabled.
+         */
+        COMMIT,
+
+        /**
+         * A query was executed, or results were read.
+         */
+        READ,
+
+        /**
+         * Anything else was done with the statement or the connection, e.g. closing it.
+         */
+        OTHER
+    }
+
+    /**
+     * The maximum number of executions buffered into a batch, 1 or less if disabled.
+     */
+    private volatile int batchSize;
+
+    /**
+     * Whether update counts that differ from {@link #PROVISIONAL_UPDATE_COUNT} fail the flushing call.
+     */
+    private volatile boolean strictUpdateCounts = true;
+
+    /**
+     * The number of executions buffered into batches.
+     */
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * The number of batches executed, by {@link Flush} reason.
+     */
+    private final AtomicLongArray batches = new AtomicLongArray(Flush.values().length);
+
+    /**
+     * The number of buffered executions whose actual update count differed from {@link #PROVISIONAL_UPDATE_COUNT}.
+     */
+    private final AtomicLong mismatchCount = new AtomicLong();
+
+    /**
+     * The number of buffered executions dropped because the transaction was rolled back.
+     */
+    private final AtomicLong discardedCount = new AtomicLong();
+
+    /**
+     * Whether executions are coalesced.
+     *
+     * @return true if the batch size is above 1.
+     */
+    public boolean isEnabled() {
+        return batchSize > 1;
+    }
+
+    /**
+     * Get the maximum number of executions buffered into a batch.
+     *
+     * @return the batch size, 1 or less if coalescing is disabled.
+     */
+    @Managed(description = "The maximum number of executeUpdate() calls buffered into a JDBC batch, 0 if disabled.")
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the maximum number of executions buffered into a batch.
+     * <p/>
+     * <p>Enabling or disabling coalescing applies to the connections borrowed afterwards.</p>
+     *
+     * @param batchSize the new batch size, 1 or less to disable coalescing.
+     */
+    @Managed(description = "Set the maximum number of executeUpdate() calls buffered into a JDBC batch, 0 to disable.")
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Whether update counts that differ from {@link #PROVISIONAL_UPDATE_COUNT} fail the flushing call.
+     *
+     * @return true if update counts are strictly checked.
+     */
+    @Managed(description = "Whether update counts other than 1 fail the call that executes the batch.")
+    public boolean isStrictUpdateCounts() {
+        return strictUpdateCounts;
+    }
+
+    /**
+     * Set whether update counts that differ from {@link #PROVISIONAL_UPDATE_COUNT} fail the flushing call, or are only
+     * counted in {@link #getMismatchCount()}.
+     *
+     * @param strictUpdateCounts true to fail on unexpected update counts.
+     */
+    @Managed(description = "Set whether update counts other than 1 fail the call that executes the batch.")
+    public void setStrictUpdateCounts(boolean strictUpdateCounts) {
+        this.strictUpdateCounts = strictUpdateCounts;
+    }
+
+    /**
+     * Get the number of <code>executeUpdate()</code> calls buffered into batches.
+     *
+     * @return the number of coalesced executions.
+     */
+    @Managed(description = "The number of executeUpdate() calls buffered into JDBC batches.")
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Get the number of batches executed.
+     *
+     * @return the number of batches.
+     */
+    @Managed(description = "The number of JDBC batches executed from coalesced executeUpdate() calls.")
+    public long getBatchCount() {
+        long total = 0;
+        for (int i = 0; i < batches.length(); i++) {
+            total += batches.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Get the mean number of executions per batch.
+     *
+     * @return the coalesced executions over the batches, 0 if no batch was executed.
+     */
+    @Managed(description = "The mean number of executeUpdate() calls per JDBC batch.")
+    public double getCoalescingRatio() {
+        final long batchCount = getBatchCount();
+        return batchCount == 0 ? 0d : (double) coalescedCount.get() / batchCount;
+    }
+
+    /**
+     * Get the number of batches executed because they were full.
+     *
+     * @return the number of batches flushed on the batch size.
+     */
+    @Managed(description = "The number of JDBC batches executed because they reached the batch size.")
+    public long getSizeFlushCount() {
+        return batches.get(Flush.SIZE.ordinal());
+    }
+
+    /**
+     * Get the number of batches executed because another statement was executed.
+     *
+     * @return the number of batches flushed on a different SQL.
+     */
+    @Managed(description = "The number of JDBC batches executed because another statement was executed.")
+    public long getSqlFlushCount() {
+        return batches.get(Flush.SQL.ordinal());
+    }
+
+    /**
+     * Get the number of batches executed because the transaction was committed.
+     *
+     * @return the number of batches flushed on commit.
+     */
+    @Managed(description = "The number of JDBC batches executed because the transaction was committed.")
+    public long getCommitFlushCount() {
+        return batches.get(Flush.COMMIT.ordinal());
+    }
+
+    /**
+     * Get the number of batches executed because a query was executed or results were read.
+     *
+     * @return the number of batches flushed on a read.
+     */
+    @Managed(description = "The number of JDBC batches executed because a query was executed or results were read.")
+    public long getReadFlushCount() {
+        return batches.get(Flush.READ.ordinal());
+    }
+
+    /**
+     * Get the number of batches executed for any other reason, e.g. because the connection was closed.
+     *
+     * @return the number of batches flushed for another reason.
+     */
+    @Managed(description = "The number of JDBC batches executed for another reason, e.g. because the connection was closed.")
+    public long getOtherFlushCount() {
+        return batches.get(Flush.OTHER.ordinal());
+    }
+
+    /**
+     * Get the number of buffered executions whose actual update count differed from
+     * {@link #PROVISIONAL_UPDATE_COUNT}.
+     *
+     * @return the number of mismatched update counts.
+     */
+    @Managed(description = "The number of coalesced executeUpdate() calls whose actual update count was not 1.")
+    public long getMismatchCount() {
+        return mismatchCount.get();
+    }
+
+    /**
+     * Get the number of buffered executions dropped because the transaction was rolled back.
+     *
+     * @return the number of discarded executions.
+     */
+    @Managed(description = "The number of coalesced executeUpdate() calls dropped because the transaction was rolled back.")
+    public long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    /**
+     * Reset the counters.
+     */
+    @Managed(description = "Reset the batch coalescing counters.")
+    public void reset() {
+        coalescedCount.set(0);
+        for (int i = 0; i < batches.length(); i++) {
+            batches.set(i, 0);
+        }
+        mismatchCount.set(0);
+        discardedCount.set(0);
+    }
+
+    /**
+     * Record an execution buffered into a batch.
+     */
+    void coalesced() {
+        coalescedCount.incrementAndGet();
+    }
+
+    /**
+     * Record a batch executed.
+     *
+     * @param reason     why the batch was executed.
+     * @param mismatches the number of update counts that differed from {@link #PROVISIONAL_UPDATE_COUNT}.
+     */
+    void flushed(Flush reason, int mismatches) {
+        batches.incrementAndGet(reason.ordinal());
+        if (mismatches > 0) {
+            mismatchCount.addAndGet(mismatches);
+        }
+    }
+
+    /**
+     * Record buffered executions dropped on rollback.
+     *
+     * @param count the number of dropped executions.
+     */
+    void discarded(int count) {
+        discardedCount.addAndGet(count);
+    }
+}
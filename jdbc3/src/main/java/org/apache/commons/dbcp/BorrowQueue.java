@@ -0,0 +1,469 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Waits for a connection with <code>java.util.concurrent</code> locks instead of the pool monitor.
+ * <p/>
+ * <p>Used by {@link ManagedBasicDataSource} when {@link ManagedBasicDataSource#isConcurrentBorrow() concurrent borrow}
+ * is enabled. The pool is then configured to fail when exhausted rather than block: threads that find it exhausted
+ * park on a {@link Condition} until a connection is given back or <code>maxWait</code> expires, so no thread ever
+ * waits in {@link Object#wait()} while holding a monitor. The pool monitor is still taken, but only for the short
+ * time it takes to hand out or take back a connection.</p>
+ * <p/>
+ * <p>It also holds the bounded FIFO queue of the {@link ConnectionFuture}s of
+ * {@link ManagedBasicDataSource#getConnectionAsync(long, TimeUnit)}. When a connection is given back, the thread giving
+ * it back hands it to the oldest future, before waking up a parked thread.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+final class BorrowQueue {
+
+    /**
+     * The default maximum number of queued futures.
+     */
+    static final int DEFAULT_ASYNC_CAPACITY = 1000;
+
+    /**
+     * The maximum time a thread stays parked before checking the pool again, in case a connection came back without
+     * being signaled (e.g. when an abandoned connection is removed).
+     */
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The message of the {@link NoSuchElementException} thrown by a pool that fails when exhausted.
+     */
+    static final String EXHAUSTED_MESSAGE = "Pool exhausted";
+
+    /**
+     * Fails the futures that timed out, created on first use.
+     */
+    private static ScheduledExecutorService expirer;
+
+    /**
+     * The datasource the connections are borrowed for.
+     */
+    private final ManagedBasicDataSource owner;
+
+    /**
+     * Guards {@link #returned} and {@link #futures}.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signaled when a connection is given back.
+     */
+    private final Condition returned = lock.newCondition();
+
+    /**
+     * The number of connections given back, so that a thread does not park if one came back since it last tried.
+     */
+    private final AtomicLong returns = new AtomicLong();
+
+    /**
+     * The number of parked threads, only updated under {@link #lock}.
+     */
+    private volatile int waiting;
+
+    /**
+     * The futures waiting for a connection, oldest first.
+     */
+    private final LinkedList<ConnectionFuture> futures = new LinkedList<ConnectionFuture>();
+
+    /**
+     * The number of queued futures, only updated under {@link #lock}.
+     */
+    private volatile int queued;
+
+    /**
+     * The maximum number of queued futures.
+     */
+    private volatile int asyncCapacity = DEFAULT_ASYNC_CAPACITY;
+
+    /**
+     * The number of futures failed because the queue was full.
+     */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * The number of futures failed because they waited too long.
+     */
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    /**
+     * Build a new {@link BorrowQueue}.
+     *
+     * @param owner the datasource the connections are borrowed for.
+     */
+    BorrowQueue(ManagedBasicDataSource owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Get the thread failing the futures that timed out, creating it if needed.
+     *
+     * @return the expirer.
+     */
+    private static synchronized ScheduledExecutorService getExpirer() {
+        if (expirer == null) {
+            expirer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("commons-dbcp-jmx-async"));
+        }
+        return expirer;
+    }
+
+    /**
+     * Whether a pool failure means it is exhausted.
+     * <p/>
+     * <p>The pool also reports connections that could not be validated with a {@link NoSuchElementException}, so only
+     * its exhaustion message, or all the connections being in use, count.</p>
+     *
+     * @param e the failure.
+     * @return true if the pool had no connection to hand out.
+     */
+    private boolean isExhausted(SQLException e) {
+        if (!(e.getCause() instanceof NoSuchElementException)) {
+            return false;
+        }
+        if (EXHAUSTED_MESSAGE.equals(e.getCause().getMessage())) {
+            return true;
+        }
+        final int maxActive = owner.getMaxActive();
+        return maxActive >= 0 && owner.getNumActive() >= maxActive;
+    }
+
+    /**
+     * Get a connection from a pool that fails when exhausted, waiting for one to be given back if needed.
+     *
+     * @param pool    the pool.
+     * @param maxWait the maximum number of milliseconds to wait, 0 or less to wait indefinitely.
+     * @return a connection.
+     * @throws SQLException if the pool failed for another reason than being exhausted, or no connection was given
+     *                      back in time.
+     */
+    Connection borrow(DataSource pool, long maxWait) throws SQLException {
+        final long deadline = maxWait > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait) : 0;
+        for (; ; ) {
+            final long generation = returns.get();
+            try {
+                return pool.getConnection();
+            } catch (SQLException e) {
+                if (!isExhausted(e)) {
+                    throw e;
+                }
+            }
+            final long remaining = maxWait > 0 ? deadline - System.nanoTime() : MAX_PARK_NANOS;
+            if (remaining <= 0) {
+                throw (SQLException) new SQLException("Cannot get a connection, pool error " + PoolNotifier.TIMEOUT_MESSAGE)
+                        .initCause(new NoSuchElementException(PoolNotifier.TIMEOUT_MESSAGE));
+            }
+            await(generation, Math.min(remaining, MAX_PARK_NANOS));
+        }
+    }
+
+    /**
+     * Park until a connection is given back, unless one was since a given generation.
+     *
+     * @param generation the number of connections given back when the caller last tried the pool.
+     * @param nanos      the maximum time to park.
+     * @throws SQLException if the thread was interrupted.
+     */
+    private void await(long generation, long nanos) throws SQLException {
+        lock.lock();
+        try {
+            waiting++;
+            try {
+                long remaining = nanos;
+                while (returns.get() == generation && remaining > 0) {
+                    remaining = returned.awaitNanos(remaining);
+                }
+            } finally {
+                waiting--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (SQLException) new SQLException("Interrupted while waiting for a connection").initCause(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get a connection from a pool that fails when exhausted, without blocking.
+     * <p/>
+     * <p>The future is completed on the calling thread if a connection is available and no other future is queued.
+     * Otherwise it is queued, or failed if the queue is full.</p>
+     *
+     * @param pool    the pool.
+     * @param future  the future to complete.
+     * @param timeout the maximum number of nanoseconds to wait, 0 or less to wait indefinitely.
+     */
+    void borrowAsync(DataSource pool, final ConnectionFuture future, long timeout) {
+        if (queued == 0) {
+            try {
+                complete(future, pool.getConnection());
+                return;
+            } catch (SQLException e) {
+                if (!isExhausted(e)) {
+                    future.fail(e);
+                    return;
+                }
+            }
+        }
+        final boolean full;
+        lock.lock();
+        try {
+            full = futures.size() >= asyncCapacity;
+            if (!full) {
+                futures.addLast(future);
+                queued = futures.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (full) {
+            rejectedCount.incrementAndGet();
+            future.fail(new SQLException("Cannot get a connection, the queue of " + asyncCapacity +
+                                         " asynchronous requests is full"));
+            return;
+        }
+        if (timeout > 0) {
+            future.timeout = getExpirer().schedule(new Runnable() {
+                public void run() {
+                    expire(future);
+                }
+            }, timeout, TimeUnit.NANOSECONDS);
+        }
+        // A connection may have been given back since the pool was tried
+        serve(pool);
+    }
+
+    /**
+     * Hand the available connections to the queued futures, oldest first.
+     *
+     * @param pool the pool.
+     */
+    private void serve(DataSource pool) {
+        for (; ; ) {
+            final ConnectionFuture future;
+            lock.lock();
+            try {
+                future = futures.poll();
+                queued = futures.size();
+            } finally {
+                lock.unlock();
+            }
+            if (future == null) {
+                return;
+            }
+            if (future.isDone()) {
+                continue;
+            }
+            try {
+                complete(future, pool.getConnection());
+            } catch (SQLException e) {
+                if (!isExhausted(e)) {
+                    future.fail(e);
+                    continue;
+                }
+                lock.lock();
+                try {
+                    futures.addFirst(future);
+                    queued = futures.size();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Complete a future with a pooled connection, giving it back if the future is already done.
+     * <p/>
+     * <p>The future is claimed first, so the borrow is only recorded for a connection actually handed out.</p>
+     *
+     * @param future     the future.
+     * @param connection the pooled connection.
+     * @throws SQLException if the connection could not be given back.
+     */
+    private void complete(ConnectionFuture future, Connection connection) throws SQLException {
+        if (!future.claim()) {
+            connection.close();
+            released();
+            return;
+        }
+        final Connection tracked;
+        try {
+            tracked = owner.borrowed(connection, future.requestedAt, future.origin);
+        } catch (RuntimeException e) {
+            future.failClaimed((SQLException) new SQLException("Cannot get a connection").initCause(e));
+            connection.close();
+            released();
+            return;
+        }
+        future.complete(tracked);
+    }
+
+    /**
+     * Record the failure of a future, before the threads waiting for it are released.
+     *
+     * @param future  the future.
+     * @param failure the failure, caused by a {@link NoSuchElementException} if the future timed out.
+     */
+    void failed(ConnectionFuture future, SQLException failure) {
+        if (PoolNotifier.isTimeout(failure)) {
+            timeoutCount.incrementAndGet();
+        }
+        owner.borrowFailed(failure, future.requestedAt);
+    }
+
+    /**
+     * Fail a future that waited too long.
+     *
+     * @param future the future.
+     */
+    private void expire(ConnectionFuture future) {
+        remove(future);
+        if (!future.isDone()) {
+            future.fail((SQLException) new SQLException("Cannot get a connection, pool error " + PoolNotifier.TIMEOUT_MESSAGE)
+                    .initCause(new NoSuchElementException(PoolNotifier.TIMEOUT_MESSAGE)));
+        }
+    }
+
+    /**
+     * Remove a future from the queue.
+     *
+     * @param future the future.
+     */
+    void remove(ConnectionFuture future) {
+        lock.lock();
+        try {
+            futures.remove(future);
+            queued = futures.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fail all the queued futures, when the datasource is closed.
+     */
+    void close() {
+        final List<ConnectionFuture> closed;
+        lock.lock();
+        try {
+            closed = new ArrayList<ConnectionFuture>(futures);
+            futures.clear();
+            queued = 0;
+        } finally {
+            lock.unlock();
+        }
+        for (ConnectionFuture future : closed) {
+            future.fail(new SQLException("Data source is closed"));
+        }
+    }
+
+    /**
+     * Record a connection was given back to the pool, handing it to the oldest queued future or waking up a parked
+     * thread.
+     */
+    void released() {
+        returns.incrementAndGet();
+        if (queued > 0) {
+            final DataSource pool = owner.dataSource;
+            if (pool != null) {
+                serve(pool);
+            }
+        }
+        if (waiting > 0) {
+            lock.lock();
+            try {
+                returned.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Get the number of threads parked waiting for a connection.
+     *
+     * @return the number of waiting threads.
+     */
+    int getWaiting() {
+        return waiting;
+    }
+
+    /**
+     * Get the number of futures waiting for a connection.
+     *
+     * @return the queue depth.
+     */
+    int getQueued() {
+        return queued;
+    }
+
+    /**
+     * Get the maximum number of queued futures.
+     *
+     * @return the queue capacity.
+     */
+    int getAsyncCapacity() {
+        return asyncCapacity;
+    }
+
+    /**
+     * Set the maximum number of queued futures.
+     *
+     * @param asyncCapacity the queue capacity, futures above it fail immediately.
+     */
+    void setAsyncCapacity(int asyncCapacity) {
+        this.asyncCapacity = asyncCapacity;
+    }
+
+    /**
+     * Get the number of futures failed because the queue was full.
+     *
+     * @return the number of rejected requests.
+     */
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Get the number of futures failed because they waited too long.
+     *
+     * @return the number of timed out requests.
+     */
+    long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.weakref.jmx.Managed;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The share of a {@link ManagedBasicDataSource} in a {@link ConnectionBudget}.
+ * <p/>
+ * <p>The datasource draws on the budget named by {@link #getName()}, if any, from the time its pool is created until
+ * it is closed. The physical connections it opens are then counted against the budget, within the
+ * {@link #getMinConnections() minimum} reserved for it and its {@link #getMaxConnections() maximum}.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @see ConnectionBudget
+ * @since 0.2.5
+ */
+public class BudgetShare {
+
+    /**
+     * Set on the threads closing idle connections for a budget: {@link Boolean#TRUE} until the connection to close is
+     * {@link #claim() claimed}, then {@link Boolean#FALSE}.
+     */
+    private static final ThreadLocal<Boolean> reclaiming = new ThreadLocal<Boolean>();
+
+    /**
+     * The datasource drawing on the budget.
+     */
+    private final ManagedBasicDataSource dataSource;
+
+    /**
+     * The name of the budget to draw on when the pool is created, <code>null</code> for none.
+     */
+    private volatile String name;
+
+    /**
+     * The budget drawn on, <code>null</code> until the pool is created or if there is none.
+     */
+    private volatile ConnectionBudget budget;
+
+    /**
+     * The number of connections reserved for the datasource.
+     */
+    private volatile int minConnections;
+
+    /**
+     * The maximum number of connections of the datasource, negative for no limit.
+     */
+    private volatile int maxConnections = -1;
+
+    /**
+     * The number of connections open by the datasource, only updated in the budget monitor.
+     */
+    volatile int connections;
+
+    /**
+     * The number of idle connections closed to make room for other datasources.
+     */
+    private final AtomicLong reclaimedCount = new AtomicLong();
+
+    /**
+     * The number of connections that could not be opened because the budget was exhausted.
+     */
+    private final AtomicLong deniedCount = new AtomicLong();
+
+    /**
+     * Build a new {@link BudgetShare}.
+     *
+     * @param dataSource the datasource drawing on the budget.
+     */
+    BudgetShare(ManagedBasicDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Whether the current thread is closing idle connections for a budget.
+     *
+     * @return true if the connections examined must be left untouched, unless {@link #claim() claimed}.
+     */
+    static boolean isReclaiming() {
+        return reclaiming.get() != null;
+    }
+
+    /**
+     * Claim the idle connection being examined to close it, if the current thread did not close one yet.
+     *
+     * @return true if the connection must be closed.
+     */
+    static boolean claim() {
+        if (reclaiming.get() == Boolean.TRUE) {
+            reclaiming.set(Boolean.FALSE);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the name of the budget the datasource draws on.
+     *
+     * @return the budget name, <code>null</code> for none.
+     */
+    @Managed(description = "The name of the connection budget the data source draws on.")
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Set the name of the budget the datasource draws on. Only applies when the pool is created.
+     *
+     * @param name the budget name, <code>null</code> or empty for none.
+     * @see ConnectionBudget#get(String)
+     */
+    @Managed(description = "Set the name of the connection budget the data source draws on. Only applies when the pool is created.")
+    public void setName(String name) {
+        this.name = name == null || name.length() == 0 ? null : name;
+    }
+
+    /**
+     * Get the budget the datasource draws on.
+     *
+     * @return the budget, <code>null</code> until the pool is created or if there is none.
+     */
+    public ConnectionBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Get the name of the MBean of the datasource.
+     *
+     * @return the datasource MBean name.
+     */
+    String getDataSourceName() {
+        return dataSource.getMBeanName();
+    }
+
+    /**
+     * Get the number of connections reserved for the datasource in the budget.
+     *
+     * @return the minimum number of connections.
+     */
+    @Managed(description = "The number of connections reserved for the data source in the connection budget.")
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    /**
+     * Set the number of connections reserved for the datasource in the budget.
+     *
+     * @param minConnections the new minimum number of connections, 0 for none.
+     * @see #getMinConnections()
+     */
+    @Managed(description = "Set the number of connections reserved for the data source in the connection budget.")
+    public void setMinConnections(int minConnections) {
+        if (minConnections < 0) {
+            throw new IllegalArgumentException("minConnections must be positive: " + minConnections);
+        }
+        this.minConnections = minConnections;
+    }
+
+    /**
+     * Get the maximum number of connections the datasource can take from the budget.
+     *
+     * @return the maximum number of connections, negative for no limit but <code>maxActive</code>.
+     */
+    @Managed(description = "The maximum number of connections the data source can take from the connection budget, -1 for no limit.")
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Set the maximum number of connections the datasource can take from the budget.
+     *
+     * @param maxConnections the new maximum number of connections, negative for no limit.
+     * @see #getMaxConnections()
+     */
+    @Managed(description = "Set the maximum number of connections the data source can take from the connection budget, -1 for no limit.")
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Get the number of connections the datasource took from the budget.
+     *
+     * @return the number of open connections counted against the budget.
+     */
+    @Managed(description = "The number of connections the data source took from the connection budget.")
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Get the number of idle connections of the datasource closed to make room for other datasources.
+     *
+     * @return the number of reclaimed connections.
+     */
+    @Managed(description = "The number of idle connections of the data source closed to make room for other data sources.")
+    public long getReclaimedCount() {
+        return reclaimedCount.get();
+    }
+
+    /**
+     * Get the number of connections the datasource could not open within <code>maxWait</code> because the budget was
+     * exhausted.
+     *
+     * @return the number of denied connections.
+     */
+    @Managed(description = "The number of connections the data source could not open within maxWait because the connection budget was exhausted.")
+    public long getDeniedCount() {
+        return deniedCount.get();
+    }
+
+    /**
+     * Start drawing on the configured budget, called when the pool is created.
+     */
+    void join() {
+        final String budgetName = name;
+        if (budget == null && budgetName != null) {
+            budget = ConnectionBudget.get(budgetName);
+        }
+        if (budget != null) {
+            budget.join(this);
+        }
+    }
+
+    /**
+     * Stop drawing on the budget, called when the datasource is closed.
+     */
+    void leave() {
+        final ConnectionBudget joined = budget;
+        if (joined != null) {
+            joined.leave(this);
+        }
+    }
+
+    /**
+     * Take one unit of the budget before opening a connection, waiting for up to <code>maxWait</code>.
+     *
+     * @throws SQLException if the budget is still exhausted after <code>maxWait</code>.
+     */
+    void acquire() throws SQLException {
+        final ConnectionBudget joined = budget;
+        if (joined != null && !joined.acquire(this, dataSource.getMaxWait())) {
+            deniedCount.incrementAndGet();
+            throw new SQLException("Connection budget " + joined.getName() + " exhausted: " + joined.getConnections() +
+                                   " connections open, " + connections + " by this data source");
+        }
+    }
+
+    /**
+     * Give back the unit of the budget taken by a connection that was closed, or could not be opened.
+     */
+    void release() {
+        final ConnectionBudget joined = budget;
+        if (joined != null) {
+            joined.release(this);
+        }
+    }
+
+    /**
+     * Close an idle connection of the datasource to make room in the budget.
+     * <p/>
+     * <p>The connection is not borrowed: this runs a pass of {@link GenericObjectPool#evict()}, in which the connection
+     * factory fails the activation of the first connection examined so the pool destroys it, and leaves the others
+     * untouched, without validating them. Nothing is opened, activated or validated on the calling thread, and it never
+     * waits for the pool. Nothing is done if the pool has no idle connection, or another thread took the ones the pass
+     * examined.</p>
+     *
+     * @return true if a connection was closed.
+     */
+    boolean reclaimIdle() {
+        final GenericObjectPool pool = dataSource.connectionPool;
+        if (pool == null || pool.getNumIdle() == 0) {
+            return false;
+        }
+        reclaiming.set(Boolean.TRUE);
+        try {
+            pool.evict();
+            if (reclaiming.get() == Boolean.TRUE) {
+                return false;
+            }
+        } catch (Exception e) {
+            // The pool is closed
+            return false;
+        } finally {
+            reclaiming.remove();
+        }
+        reclaimedCount.incrementAndGet();
+        return true;
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Handler for the {@link ResultSet} proxies served by {@link CachingStatement} from a {@link ResultCache}.
+ * <p/>
+ * <p>The rows are read-only and held in memory, so the result set is scrollable. Values are read with the usual
+ * getters by column index or label, and converted between strings, numbers and dates as most drivers do. Updates,
+ * LOBs and the getters taking a {@link java.util.Calendar} or a type map are not supported.</p>
+ * <p/>
+ * <p>A result too large to be cached is served from the rows read so far, then from the actual result set, which is
+ * still open on the last of them: the result set is then forward-only, and every call past the rows read goes to the
+ * actual one.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+class CachedResultSet implements InvocationHandler {
+
+    /**
+     * The methods moving the cursor other than <code>next()</code>, not supported when the result set is forward-only.
+     */
+    private static final Set<String> SCROLLING_METHODS = new HashSet<String>(Arrays.asList(
+            "previous", "first", "last", "beforeFirst", "afterLast", "absolute", "relative"));
+
+    /**
+     * The cached result.
+     */
+    private final ResultCache.Entry entry;
+
+    /**
+     * The actual result set the rows after the cached ones are read from, <code>null</code> if all of them are cached.
+     */
+    private final ResultSet rest;
+
+    /**
+     * The statement proxy the result set was served by.
+     */
+    private final Statement statement;
+
+    /**
+     * The current row, 0 before the first one and the number of rows plus one after the last one, or once on the rows
+     * of the actual result set.
+     */
+    private int row;
+
+    /**
+     * Whether the last value read was SQL <code>NULL</code>.
+     */
+    private boolean wasNull;
+
+    /**
+     * Whether the result set was closed.
+     */
+    private boolean closed;
+
+    /**
+     * Build a new {@link CachedResultSet}.
+     *
+     * @param entry     the cached result.
+     * @param rest      the actual result set the rows after the cached ones are read from, <code>null</code> if all of
+     *                  them are cached.
+     * @param statement the statement proxy the result set was served by.
+     */
+    private CachedResultSet(ResultCache.Entry entry, ResultSet rest, Statement statement) {
+        this.entry = entry;
+        this.rest = rest;
+        this.statement = statement;
+    }
+
+    /**
+     * Serve a cached result.
+     *
+     * @param entry     the cached result.
+     * @param statement the statement proxy the result set is served by.
+     * @return a proxy for the result set.
+     */
+    static ResultSet wrap(ResultCache.Entry entry, Statement statement) {
+        return wrap(entry, null, statement);
+    }
+
+    /**
+     * Serve a result that was only partly read, then the rows left in the actual result set.
+     *
+     * @param entry     the rows read.
+     * @param rest      the actual result set, on the last row read.
+     * @param statement the statement proxy the result set is served by.
+     * @return a proxy for the result set, that closes the actual one.
+     */
+    static ResultSet wrap(ResultCache.Entry entry, ResultSet rest, Statement statement) {
+        return (ResultSet) Proxy.newProxyInstance(CachedResultSet.class.getClassLoader(),
+                                                  new Class<?>[]{ResultSet.class},
+                                                  new CachedResultSet(entry, rest, statement));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final String name = method.getName();
+        final int size = entry.rows.size();
+        if (args == null) {
+            if ("close".equals(name)) {
+                closed = true;
+                if (rest != null) {
+                    rest.close();
+                }
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return closed;
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name)) {
+                return "CachedResultSet@" + Integer.toHexString(System.identityHashCode(proxy));
+            }
+        } else if (args.length == 1 && "equals".equals(name)) {
+            return proxy == args[0];
+        }
+        if (closed) {
+            throw new SQLException("ResultSet is closed");
+        }
+        if (rest != null) {
+            if (SCROLLING_METHODS.contains(name)) {
+                throw new SQLException(name + " is not supported by forward-only result sets");
+            } else if (args == null && "getType".equals(name)) {
+                return ResultSet.TYPE_FORWARD_ONLY;
+            } else if (row > size) {
+                return "getStatement".equals(name) ? statement : invokeRest(method, args);
+            } else if (args == null && "next".equals(name) && row == size) {
+                row = size + 1;
+                return rest.next();
+            } else if (args == null && "isLast".equals(name) && row == size && size > 0) {
+                return rest.isLast();
+            }
+        }
+        if (args == null) {
+            if ("next".equals(name)) {
+                return move(row + 1);
+            } else if ("previous".equals(name)) {
+                return move(row - 1);
+            } else if ("first".equals(name)) {
+                return move(1);
+            } else if ("last".equals(name)) {
+                return move(size);
+            } else if ("beforeFirst".equals(name)) {
+                move(0);
+                return null;
+            } else if ("afterLast".equals(name)) {
+                move(size + 1);
+                return null;
+            } else if ("getRow".equals(name)) {
+                return row >= 1 && row <= size ? row : 0;
+            } else if ("isBeforeFirst".equals(name)) {
+                return size > 0 && row == 0;
+            } else if ("isAfterLast".equals(name)) {
+                return size > 0 && row > size;
+            } else if ("isFirst".equals(name)) {
+                return size > 0 && row == 1;
+            } else if ("isLast".equals(name)) {
+                return size > 0 && row == size;
+            } else if ("wasNull".equals(name)) {
+                return wasNull;
+            } else if ("getMetaData".equals(name)) {
+                return MetaData.wrap(entry.columns);
+            } else if ("getStatement".equals(name)) {
+                return statement;
+            } else if ("getType".equals(name)) {
+                return ResultSet.TYPE_SCROLL_INSENSITIVE;
+            } else if ("getConcurrency".equals(name)) {
+                return ResultSet.CONCUR_READ_ONLY;
+            } else if ("getHoldability".equals(name)) {
+                return ResultSet.HOLD_CURSORS_OVER_COMMIT;
+            } else if ("getFetchDirection".equals(name)) {
+                return ResultSet.FETCH_FORWARD;
+            } else if ("getFetchSize".equals(name)) {
+                return 0;
+            } else if ("getWarnings".equals(name) || "clearWarnings".equals(name)) {
+                return null;
+            }
+        } else if (args.length == 1) {
+            if ("absolute".equals(name)) {
+                final int position = (Integer) args[0];
+                return move(position >= 0 ? position : size + 1 + position);
+            } else if ("relative".equals(name)) {
+                return move(row + (Integer) args[0]);
+            } else if ("findColumn".equals(name)) {
+                return findColumn((String) args[0]);
+            } else if ("setFetchSize".equals(name) || "setFetchDirection".equals(name)) {
+                return null;
+            } else if ("isWrapperFor".equals(name)) {
+                return false;
+            } else if (name.startsWith("get")) {
+                return get(args[0], method.getReturnType());
+            }
+        }
+        throw new SQLException(name + " is not supported by cached result sets");
+    }
+
+    /**
+     * Invoke a method on the actual result set, once the cursor is past the cached rows.
+     *
+     * @param method the method.
+     * @param args   the arguments.
+     * @return the result of the method.
+     * @throws Throwable the exception thrown by the method.
+     */
+    private Object invokeRest(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(rest, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Move the cursor.
+     *
+     * @param position the new row, clamped between before the first row and after the last one.
+     * @return true if the cursor is on a row.
+     */
+    private boolean move(int position) {
+        final int size = entry.rows.size();
+        row = Math.max(0, Math.min(size + 1, position));
+        return row >= 1 && row <= size;
+    }
+
+    /**
+     * Get the index of a column.
+     *
+     * @param label the column label, or name.
+     * @return the column index, starting at 1.
+     * @throws SQLException if there is no such column.
+     */
+    private int findColumn(String label) throws SQLException {
+        final ResultCache.Column[] columns = entry.columns;
+        for (int i = 0; i < columns.length; i++) {
+            if (label.equalsIgnoreCase(columns[i].label)) {
+                return i + 1;
+            }
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (label.equalsIgnoreCase(columns[i].name)) {
+                return i + 1;
+            }
+        }
+        throw new SQLException("No column " + label);
+    }
+
+    /**
+     * Get a value of the current row.
+     *
+     * @param column the column index or label.
+     * @param type   the return type of the getter.
+     * @return the value converted to the return type.
+     * @throws SQLException if the cursor is not on a row, or the value cannot be converted.
+     */
+    private Object get(Object column, Class<?> type) throws SQLException {
+        if (row < 1 || row > entry.rows.size()) {
+            throw new SQLException("The cursor is not on a row");
+        }
+        final int index = column instanceof String ? findColumn((String) column) : (Integer) column;
+        if (index < 1 || index > entry.columns.length) {
+            throw new SQLException("Invalid column index " + index);
+        }
+        final Object value = entry.rows.get(row - 1)[index - 1];
+        wasNull = value == null;
+        return wasNull ? nullValue(type) : convert(value, type);
+    }
+
+    /**
+     * Get the value a getter returns for SQL <code>NULL</code>.
+     *
+     * @param type the return type of the getter.
+     * @return <code>false</code> or zero for primitive types, <code>null</code> otherwise.
+     */
+    private static Object nullValue(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        } else if (type == Integer.TYPE) {
+            return 0;
+        } else if (type == Long.TYPE) {
+            return 0L;
+        } else if (type == Short.TYPE) {
+            return (short) 0;
+        } else if (type == Byte.TYPE) {
+            return (byte) 0;
+        } else if (type == Double.TYPE) {
+            return 0d;
+        } else if (type == Float.TYPE) {
+            return 0f;
+        }
+        return null;
+    }
+
+    /**
+     * Convert a cached value to the return type of a getter.
+     *
+     * @param value the value, not <code>null</code>.
+     * @param type  the return type of the getter.
+     * @return the converted value, a copy if it is mutable.
+     * @throws SQLException if the value cannot be converted.
+     */
+    private static Object convert(Object value, Class<?> type) throws SQLException {
+        if (type.isInstance(value)) {
+            return ResultCache.copy(value);
+        } else if (type == String.class) {
+            return value.toString();
+        } else if (type == Boolean.TYPE) {
+            if (value instanceof Number) {
+                return ((Number) value).intValue() != 0;
+            }
+            final String string = value.toString().trim();
+            return "1".equals(string) || "true".equalsIgnoreCase(string);
+        } else if (type == BigDecimal.class) {
+            return new BigDecimal(value.toString().trim());
+        } else if (type.isPrimitive()) {
+            final Number number = value instanceof Number ? (Number) value : new BigDecimal(value.toString().trim());
+            if (type == Integer.TYPE) {
+                return number.intValue();
+            } else if (type == Long.TYPE) {
+                return number.longValue();
+            } else if (type == Double.TYPE) {
+                return number.doubleValue();
+            } else if (type == Float.TYPE) {
+                return number.floatValue();
+            } else if (type == Short.TYPE) {
+                return number.shortValue();
+            } else if (type == Byte.TYPE) {
+                return number.byteValue();
+            }
+        } else if (value instanceof java.util.Date) {
+            final long time = ((java.util.Date) value).getTime();
+            if (type == java.sql.Timestamp.class) {
+                return new java.sql.Timestamp(time);
+            } else if (type == java.sql.Date.class) {
+                return new java.sql.Date(time);
+            } else if (type == java.sql.Time.class) {
+                return new java.sql.Time(time);
+            }
+        } else if (type == InputStream.class && value instanceof byte[]) {
+            return new ByteArrayInputStream((byte[]) value);
+        } else if (type == Reader.class && value instanceof String) {
+            return new StringReader((String) value);
+        }
+        throw new SQLException("Cannot convert a cached " + value.getClass().getName() + " to " + type.getName());
+    }
+
+    /**
+     * Handler for the {@link ResultSetMetaData} proxies of cached result sets.
+     */
+    static class MetaData implements InvocationHandler {
+
+        /**
+         * The columns of the cached result.
+         */
+        private final ResultCache.Column[] columns;
+
+        /**
+         * Build a new {@link MetaData}.
+         *
+         * @param columns the columns of the cached result.
+         */
+        private MetaData(ResultCache.Column[] columns) {
+            this.columns = columns;
+        }
+
+        /**
+         * Describe the columns of a cached result.
+         *
+         * @param columns the columns of the cached result.
+         * @return a proxy for the metadata.
+         */
+        static ResultSetMetaData wrap(ResultCache.Column[] columns) {
+            return (ResultSetMetaData) Proxy.newProxyInstance(MetaData.class.getClassLoader(),
+                                                              new Class<?>[]{ResultSetMetaData.class},
+                                                              new MetaData(columns));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if (args == null) {
+                if ("getColumnCount".equals(name)) {
+                    return columns.length;
+                } else if ("hashCode".equals(name)) {
+                    return System.identityHashCode(proxy);
+                } else if ("toString".equals(name)) {
+                    return "CachedResultSetMetaData@" + Integer.toHexString(System.identityHashCode(proxy));
+                }
+            } else if (args.length == 1 && args[0] instanceof Integer) {
+                final int index = (Integer) args[0];
+                if (index < 1 || index > columns.length) {
+                    throw new SQLException("Invalid column index " + index);
+                }
+                final ResultCache.Column column = columns[index - 1];
+                if ("getColumnLabel".equals(name)) {
+                    return column.label;
+                } else if ("getColumnName".equals(name)) {
+                    return column.name;
+                } else if ("getColumnType".equals(name)) {
+                    return column.type;
+                } else if ("getColumnTypeName".equals(name)) {
+                    return column.typeName;
+                } else if ("getColumnClassName".equals(name)) {
+                    return column.className;
+                } else if ("getPrecision".equals(name)) {
+                    return column.precision;
+                } else if ("getScale".equals(name)) {
+                    return column.scale;
+                } else if ("isNullable".equals(name)) {
+                    return column.nullable;
+                } else if ("getColumnDisplaySize".equals(name)) {
+                    return column.displaySize;
+                } else if ("isSigned".equals(name)) {
+                    return column.signed;
+                } else if ("getTableName".equals(name)) {
+                    return column.tableName;
+                } else if ("getSchemaName".equals(name)) {
+                    return column.schemaName;
+                } else if ("getCatalogName".equals(name)) {
+                    return column.catalogName;
+                } else if ("isReadOnly".equals(name)) {
+                    return true;
+                } else if ("isWritable".equals(name) || "isDefinitelyWritable".equals(name)
+                           || "isAutoIncrement".equals(name) || "isCurrency".equals(name)) {
+                    return false;
+                } else if ("isCaseSensitive".equals(name) || "isSearchable".equals(name)) {
+                    return true;
+                }
+            } else if (args.length == 1 && "equals".equals(name)) {
+                return proxy == args[0];
+            } else if (args.length == 1 && "isWrapperFor".equals(name)) {
+                return false;
+            }
+            throw new SQLException(name + " is not supported by cached result sets");
+        }
+    }
+}
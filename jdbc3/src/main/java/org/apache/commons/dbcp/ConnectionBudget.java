@@ -0,0 +1,514 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.weakref.jmx.Managed;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.openmbean.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A number of physical connections shared by several {@link ManagedBasicDataSource}s, e.g. one per tenant.
+ * <p/>
+ * <p>Budgets are JVM-wide and looked up by name with {@link #get(String)}. A datasource draws on a budget through its
+ * {@link BudgetShare}: each physical connection it opens takes one unit of the budget, given back when the connection
+ * is closed. Borrowing an idle connection from the pool does not touch the budget, so the <code>maxActive</code> of the
+ * datasources can add up to more than the {@link #getCapacity() capacity} of the budget, which only bounds the
+ * connections open at the same time.</p>
+ * <p/>
+ * <p>Each share can be guaranteed a {@link BudgetShare#getMinConnections() minimum} number of connections, reserved
+ * for it as long as it opened fewer, and capped to a {@link BudgetShare#getMaxConnections() maximum}. The guarantees
+ * hold as long as the minimums add up to no more than the capacity.</p>
+ * <p/>
+ * <p>When the budget is exhausted, the datasource opening a connection waits for up to its <code>maxWait</code>.
+ * Meanwhile, the idle connections of the datasources holding more than their minimum are closed, largest consumer
+ * first, so capacity left idle by a tenant goes to the ones that need it.</p>
+ * <p/>
+ * <p>Each budget is exposed as a MBean named {@link #MBEAN_NAME_PREFIX} followed by its name.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @see BudgetShare
+ * @since 0.2.5
+ */
+public class ConnectionBudget {
+
+    /**
+     * The prefix of the names of the budget MBeans, followed by the budget name.
+     */
+    public static final String MBEAN_NAME_PREFIX = "org.apache.commons.dbcp:ConnectionBudget=";
+
+    /**
+     * The number of shares reported by {@link #getTopConsumers()}.
+     */
+    public static final int TOP_SIZE = 10;
+
+    /**
+     * The maximum number of milliseconds between two attempts to reclaim idle connections while waiting.
+     */
+    static final long RECLAIM_INTERVAL = 100;
+
+    /**
+     * The names of the items of {@link #ROW_TYPE}.
+     */
+    private static final String[] ITEM_NAMES = {
+            "dataSource", "connections", "minConnections", "maxConnections", "reclaimedCount", "deniedCount"
+    };
+
+    /**
+     * The open type of a row of {@link #getTopConsumers()}.
+     */
+    private static final CompositeType ROW_TYPE;
+
+    /**
+     * The open type of {@link #getTopConsumers()}.
+     */
+    private static final TabularType TABLE_TYPE;
+
+    static {
+        try {
+            ROW_TYPE = new CompositeType("BudgetShare",
+                                         "The share of a datasource in a connection budget",
+                                         ITEM_NAMES,
+                                         new String[]{
+                                                 "The name of the MBean of the datasource",
+                                                 "The number of open connections of the datasource",
+                                                 "The number of connections reserved for the datasource",
+                                                 "The maximum number of connections of the datasource, -1 for no limit",
+                                                 "The number of idle connections of the datasource closed for others",
+                                                 "The number of connections the datasource could not open"
+                                         },
+                                         new OpenType<?>[]{
+                                                 SimpleType.STRING, SimpleType.INTEGER, SimpleType.INTEGER,
+                                                 SimpleType.INTEGER, SimpleType.LONG, SimpleType.LONG
+                                         });
+            TABLE_TYPE = new TabularType("BudgetShareTable",
+                                         "Datasources by descending number of open connections",
+                                         ROW_TYPE,
+                                         new String[]{"dataSource"});
+        } catch (OpenDataException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Orders shares by descending number of connections above their minimum.
+     */
+    private static final Comparator<BudgetShare> BY_SURPLUS = new Comparator<BudgetShare>() {
+        public int compare(BudgetShare share1, BudgetShare share2) {
+            final int surplus1 = share1.connections - share1.getMinConnections();
+            final int surplus2 = share2.connections - share2.getMinConnections();
+            return surplus1 < surplus2 ? 1 : (surplus1 == surplus2 ? 0 : -1);
+        }
+    };
+
+    /**
+     * Orders shares by descending number of connections.
+     */
+    private static final Comparator<BudgetShare> BY_CONNECTIONS = new Comparator<BudgetShare>() {
+        public int compare(BudgetShare share1, BudgetShare share2) {
+            return share1.connections < share2.connections ? 1 : (share1.connections == share2.connections ? 0 : -1);
+        }
+    };
+
+    /**
+     * The budgets created so far, by name.
+     */
+    private static final Map<String, ConnectionBudget> budgets = new HashMap<String, ConnectionBudget>();
+
+    /**
+     * The name of this budget.
+     */
+    private final String name;
+
+    /**
+     * The shares drawing on this budget.
+     */
+    private final List<BudgetShare> shares = new ArrayList<BudgetShare>();
+
+    /**
+     * The maximum number of open connections, negative for no limit.
+     */
+    private int capacity = -1;
+
+    /**
+     * The number of open connections.
+     */
+    private int connections;
+
+    /**
+     * The highest number of open connections.
+     */
+    private int peakConnections;
+
+    /**
+     * The number of connections that had to wait for the budget.
+     */
+    private long waitCount;
+
+    /**
+     * The number of connections that could not be opened within <code>maxWait</code>.
+     */
+    private long deniedCount;
+
+    /**
+     * The number of idle connections closed to make room for others.
+     */
+    private long reclaimedCount;
+
+    /**
+     * Build a new {@link ConnectionBudget}.
+     *
+     * @param name the name of the budget.
+     */
+    private ConnectionBudget(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get a budget, creating it and registering its MBean in the platform MBean server on first use.
+     *
+     * @param name the name of the budget.
+     * @return the budget.
+     */
+    public static synchronized ConnectionBudget get(String name) {
+        ConnectionBudget budget = budgets.get(name);
+        if (budget == null) {
+            budget = new ConnectionBudget(name);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new AnnotatedMBean(budget),
+                                                                         new ObjectName(budget.getMBeanName()));
+            } catch (JMException e) {
+                throw new IllegalStateException("Could not register MBean " + budget.getMBeanName() + ": " + e.getMessage(), e);
+            }
+            budgets.put(name, budget);
+        }
+        return budget;
+    }
+
+    /**
+     * Get the name of this budget.
+     *
+     * @return the name.
+     */
+    @Managed(description = "The name of this connection budget.")
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the name under which this budget is exposed to the MBean server.
+     *
+     * @return {@link #MBEAN_NAME_PREFIX} followed by the name of the budget.
+     */
+    public String getMBeanName() {
+        return MBEAN_NAME_PREFIX + name;
+    }
+
+    /**
+     * Get the maximum number of connections open at the same time by all the datasources drawing on this budget.
+     *
+     * @return the capacity, negative for no limit.
+     */
+    @Managed(description = "The maximum number of connections open at the same time by all the data sources drawing on this budget, -1 for no limit.")
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the maximum number of connections open at the same time by all the datasources drawing on this budget.
+     * <p/>
+     * <p>Lowering it does not close connections, it only prevents new ones from being opened until enough are
+     * closed.</p>
+     *
+     * @param capacity the new capacity, negative for no limit.
+     */
+    @Managed(description = "Set the maximum number of connections open at the same time by all the data sources drawing on this budget, -1 for no limit.")
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+        notifyAll();
+    }
+
+    /**
+     * Get the number of connections open by the datasources drawing on this budget.
+     *
+     * @return the number of open connections.
+     */
+    @Managed(description = "The number of connections open by the data sources drawing on this budget.")
+    public synchronized int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Get the highest number of connections open at the same time.
+     *
+     * @return the peak number of open connections.
+     */
+    @Managed(description = "The highest number of connections open at the same time.")
+    public synchronized int getPeakConnections() {
+        return peakConnections;
+    }
+
+    /**
+     * Get the number of connections reserved for the datasources that opened fewer than their minimum.
+     *
+     * @return the number of reserved connections.
+     */
+    @Managed(description = "The number of connections reserved for the data sources that opened fewer than their minimum.")
+    public synchronized int getReserved() {
+        int reserved = 0;
+        for (BudgetShare share : shares) {
+            reserved += Math.max(0, share.getMinConnections() - share.connections);
+        }
+        return reserved;
+    }
+
+    /**
+     * Get the number of connections that can still be opened by any datasource.
+     *
+     * @return the capacity minus the open and reserved connections, -1 if there is no limit.
+     */
+    @Managed(description = "The number of connections that can still be opened by any data source, -1 if there is no limit.")
+    public synchronized int getAvailable() {
+        return capacity < 0 ? -1 : Math.max(0, capacity - connections - getReserved());
+    }
+
+    /**
+     * Get the number of datasources drawing on this budget.
+     *
+     * @return the number of shares.
+     */
+    @Managed(description = "The number of data sources drawing on this budget.")
+    public synchronized int getDataSources() {
+        return shares.size();
+    }
+
+    /**
+     * Get the number of connections that had to wait for the budget before being opened, or failed.
+     *
+     * @return the number of waits.
+     */
+    @Managed(description = "The number of connections that had to wait for the budget.")
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * Get the number of connections that could not be opened within <code>maxWait</code> because the budget was
+     * exhausted.
+     *
+     * @return the number of denied connections.
+     */
+    @Managed(description = "The number of connections that could not be opened within maxWait because the budget was exhausted.")
+    public synchronized long getDeniedCount() {
+        return deniedCount;
+    }
+
+    /**
+     * Get the number of idle connections closed to make room for other datasources.
+     *
+     * @return the number of reclaimed connections.
+     */
+    @Managed(description = "The number of idle connections closed to make room for other data sources.")
+    public synchronized long getReclaimedCount() {
+        return reclaimedCount;
+    }
+
+    /**
+     * Get the datasources with the most open connections.
+     *
+     * @return the {@link #TOP_SIZE} largest shares.
+     */
+    @Managed(description = "The data sources with the most open connections.")
+    public TabularData getTopConsumers() {
+        final List<BudgetShare> top;
+        synchronized (this) {
+            top = new ArrayList<BudgetShare>(shares);
+            Collections.sort(top, BY_CONNECTIONS);
+        }
+        final TabularDataSupport table = new TabularDataSupport(TABLE_TYPE);
+        for (BudgetShare share : top.subList(0, Math.min(TOP_SIZE, top.size()))) {
+            try {
+                table.put(new CompositeDataSupport(ROW_TYPE, ITEM_NAMES, new Object[]{
+                        share.getDataSourceName(),
+                        share.getConnections(),
+                        share.getMinConnections(),
+                        share.getMaxConnections(),
+                        share.getReclaimedCount(),
+                        share.getDeniedCount()
+                }));
+            } catch (OpenDataException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Start drawing on this budget.
+     *
+     * @param share the share of the datasource.
+     */
+    synchronized void join(BudgetShare share) {
+        if (!shares.contains(share)) {
+            shares.add(share);
+        }
+    }
+
+    /**
+     * Stop drawing on this budget: the minimum of the share is no longer reserved. Its connections still take their
+     * unit of the budget until they are closed.
+     *
+     * @param share the share of the datasource.
+     */
+    synchronized void leave(BudgetShare share) {
+        shares.remove(share);
+        notifyAll();
+    }
+
+    /**
+     * Take one unit of the budget to open a connection, waiting and reclaiming idle connections from other
+     * datasources if it is exhausted.
+     *
+     * @param share   the share of the datasource opening the connection.
+     * @param maxWait the maximum number of milliseconds to wait, 0 or less to wait indefinitely.
+     * @return false if the budget was still exhausted after <code>maxWait</code>, or the thread was interrupted.
+     */
+    boolean acquire(BudgetShare share, long maxWait) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+        boolean waited = false;
+        while (true) {
+            final List<BudgetShare> donors;
+            synchronized (this) {
+                if (tryAcquire(share)) {
+                    return true;
+                }
+                if (!waited) {
+                    waited = true;
+                    waitCount++;
+                }
+                donors = getDonors(share);
+            }
+            // Outside the budget monitor, as closing a connection takes the pool monitor
+            if (reclaim(donors)) {
+                continue;
+            }
+            synchronized (this) {
+                if (tryAcquire(share)) {
+                    return true;
+                }
+                long timeout = RECLAIM_INTERVAL;
+                if (maxWait > 0) {
+                    final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        deniedCount++;
+                        return false;
+                    }
+                    timeout = Math.min(timeout, remaining);
+                }
+                try {
+                    wait(timeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    deniedCount++;
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Take one unit of the budget if possible.
+     *
+     * @param share the share of the datasource opening the connection.
+     * @return true if a connection can be opened.
+     */
+    private boolean tryAcquire(BudgetShare share) {
+        final int max = share.getMaxConnections();
+        if (max >= 0 && share.connections >= max) {
+            return false;
+        }
+        if (capacity >= 0) {
+            // Below its minimum, the share uses its own reservation
+            final int reserved = share.connections < share.getMinConnections() ? 0 : getReserved();
+            if (connections + reserved >= capacity) {
+                return false;
+            }
+        }
+        share.connections++;
+        connections++;
+        peakConnections = Math.max(peakConnections, connections);
+        return true;
+    }
+
+    /**
+     * Get the shares that can give idle connections back to another one.
+     *
+     * @param share the share of the datasource opening the connection.
+     * @return the shares above their minimum by descending surplus, empty if the share is at its own maximum.
+     */
+    private List<BudgetShare> getDonors(BudgetShare share) {
+        final int max = share.getMaxConnections();
+        if (max >= 0 && share.connections >= max) {
+            return Collections.emptyList();
+        }
+        final List<BudgetShare> donors = new ArrayList<BudgetShare>();
+        for (BudgetShare donor : shares) {
+            if (donor != share && donor.connections > donor.getMinConnections()) {
+                donors.add(donor);
+            }
+        }
+        Collections.sort(donors, BY_SURPLUS);
+        return donors;
+    }
+
+    /**
+     * Close an idle connection of the first donor that has one.
+     *
+     * @param donors the candidate shares.
+     * @return true if a connection was closed.
+     */
+    private boolean reclaim(List<BudgetShare> donors) {
+        for (BudgetShare donor : donors) {
+            if (donor.reclaimIdle()) {
+                synchronized (this) {
+                    reclaimedCount++;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Give back the unit of the budget taken by a connection that was closed, or could not be opened.
+     *
+     * @param share the share of the datasource that opened the connection.
+     */
+    synchronized void release(BudgetShare share) {
+        share.connections--;
+        connections--;
+        notifyAll();
+    }
+}
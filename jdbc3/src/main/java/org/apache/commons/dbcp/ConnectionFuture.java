@@ -0,0 +1,289 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pending result of {@link ManagedBasicDataSource#getConnectionAsync(long, TimeUnit)}.
+ * <p/>
+ * <p>It completes with a connection once one is available, or fails with a {@link SQLException} if the waiter queue
+ * is full, the wait timed out or the datasource was closed. Callers that must not block register a listener with
+ * {@link #addListener(Runnable)} and call {@link #get()} from it.</p>
+ * <p/>
+ * <p>Cancelling a pending future removes it from the waiter queue. A connection handed out to a cancelled future is
+ * given back to the pool.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class ConnectionFuture implements Future<Connection> {
+
+    /**
+     * State of a future still waiting for a connection.
+     */
+    private static final int PENDING = 0;
+
+    /**
+     * State of a future completed with a connection.
+     */
+    private static final int COMPLETED = 1;
+
+    /**
+     * State of a future that failed.
+     */
+    private static final int FAILED = 2;
+
+    /**
+     * State of a cancelled future.
+     */
+    private static final int CANCELLED = 3;
+
+    /**
+     * State of a future a connection is being handed to.
+     */
+    private static final int CLAIMED = 4;
+
+    /**
+     * The queue the future waits in.
+     */
+    private final BorrowQueue queue;
+
+    /**
+     * The time at which the connection was requested, from {@link System#nanoTime()}.
+     */
+    final long requestedAt;
+
+    /**
+     * The code that requested the connection, <code>null</code> if leak detection does not track it.
+     */
+    final LeakDetector.Origin origin;
+
+    /**
+     * The state of the future.
+     */
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    /**
+     * Released when the future is done.
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * The listeners not run yet.
+     */
+    private final Queue<Runnable> listeners = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * The connection, once completed.
+     */
+    private volatile Connection connection;
+
+    /**
+     * The failure, once failed.
+     */
+    private volatile SQLException failure;
+
+    /**
+     * The task failing the future when it times out, <code>null</code> if none.
+     */
+    volatile Future<?> timeout;
+
+    /**
+     * Build a new {@link ConnectionFuture}.
+     *
+     * @param queue  the queue the future waits in.
+     * @param origin the code that requested the connection, <code>null</code> if leak detection does not track it.
+     */
+    ConnectionFuture(BorrowQueue queue, LeakDetector.Origin origin) {
+        this.queue = queue;
+        this.requestedAt = System.nanoTime();
+        this.origin = origin;
+    }
+
+    /**
+     * Reserve the future for a connection, so it can no longer time out, be cancelled or fail for another reason.
+     *
+     * @return false if the future was already done, in which case the caller still owns the connection.
+     * @see #complete(Connection)
+     */
+    boolean claim() {
+        return state.compareAndSet(PENDING, CLAIMED);
+    }
+
+    /**
+     * Complete a {@link #claim() claimed} future with a connection.
+     *
+     * @param connection the connection.
+     */
+    void complete(Connection connection) {
+        this.connection = connection;
+        state.set(COMPLETED);
+        finish();
+    }
+
+    /**
+     * Fail the future, recording the failed borrow before the waiting threads see it.
+     *
+     * @param failure the failure.
+     * @return false if the future was already done.
+     */
+    boolean fail(SQLException failure) {
+        if (!state.compareAndSet(PENDING, FAILED)) {
+            return false;
+        }
+        failed(failure);
+        return true;
+    }
+
+    /**
+     * Fail a {@link #claim() claimed} future, when the connection could not be handed to it after all.
+     *
+     * @param failure the failure.
+     */
+    void failClaimed(SQLException failure) {
+        state.set(FAILED);
+        failed(failure);
+    }
+
+    /**
+     * Record the failure and release the threads waiting for it.
+     *
+     * @param failure the failure.
+     */
+    private void failed(SQLException failure) {
+        this.failure = failure;
+        queue.failed(this, failure);
+        finish();
+    }
+
+    /**
+     * Release the threads waiting for the result and run the listeners.
+     * <p/>
+     * <p>The result is only read after {@link #done} is released, which publishes it. A listener throwing an exception
+     * does not prevent the others from running, nor reaches the thread completing the future.</p>
+     */
+    private void finish() {
+        final Future<?> task = timeout;
+        if (task != null) {
+            task.cancel(false);
+        }
+        done.countDown();
+        Runnable listener;
+        while ((listener = listeners.poll()) != null) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                // Isolated from the other listeners and the completing thread
+            }
+        }
+    }
+
+    /**
+     * Run a listener once the future is done.
+     * <p/>
+     * <p>The listener runs on the thread that completes the future, usually a thread giving a connection back, or
+     * immediately on the calling thread if the future is already done. It should be short and must not block. The
+     * exceptions it throws are ignored when it runs on the completing thread.</p>
+     *
+     * @param listener the listener.
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+        if (isDone() && listeners.remove(listener)) {
+            listener.run();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>A pending future leaves the waiter queue.</p>
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!state.compareAndSet(PENDING, CANCELLED)) {
+            return false;
+        }
+        queue.remove(this);
+        finish();
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>A {@link #claim() claimed} future is not done until its result is published.</p>
+     */
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws ExecutionException with a {@link SQLException} cause if no connection could be obtained.
+     */
+    public Connection get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws ExecutionException with a {@link SQLException} cause if no connection could be obtained.
+     */
+    public Connection get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    /**
+     * Get the result of a done future.
+     *
+     * @return the connection.
+     * @throws ExecutionException if the future failed.
+     */
+    private Connection getResult() throws ExecutionException {
+        switch (state.get()) {
+            case COMPLETED:
+                return connection;
+            case FAILED:
+                throw new ExecutionException(failure);
+            default:
+                throw new CancellationException();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import javax.management.*;
+import javax.management.openmbean.CompositeData;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The MBean registered for a {@link ManagedBasicDataSource}.
+ * <p/>
+ * <p>Attributes and operations are dispatched through the {@link MBeanModel} of the datasource, which reuses the
+ * metadata jmxutils built for the first datasource of the same class, so registering a datasource does not introspect
+ * it again. {@link #getAttributes(String[])} serves all the gauges and counters requested in one call from a
+ * single {@link PoolStatisticsSnapshot}, which is cheaper and consistent.</p>
+ * <p/>
+ * <p>Notification listeners are handled by the {@link PoolNotifier} of the datasource.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+class DataSourceMBean implements DynamicMBean, NotificationEmitter {
+
+    /**
+     * The names of the attributes served from a {@link PoolStatisticsSnapshot}.
+     */
+    private static final Set<String> SNAPSHOT_ATTRIBUTES = new HashSet<String>(
+            Arrays.asList(PoolStatisticsSnapshot.ITEM_NAMES).subList(1, PoolStatisticsSnapshot.ITEM_NAMES.length));
+
+    /**
+     * The datasource.
+     */
+    private final ManagedBasicDataSource dataSource;
+
+    /**
+     * The MBean model of the datasource.
+     */
+    private final MBeanModel model;
+
+    /**
+     * Build a new {@link DataSourceMBean}.
+     *
+     * @param dataSource the datasource.
+     */
+    DataSourceMBean(ManagedBasicDataSource dataSource) {
+        this.dataSource = dataSource;
+        this.model = MBeanModel.of(dataSource, dataSource.notifier.getNotificationInfo());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MBeanInfo getMBeanInfo() {
+        return model.getInfo();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException, ReflectionException {
+        return model.getAttribute(attribute);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Gauges and counters are read from one {@link ManagedBasicDataSource#getPoolStatistics() snapshot}. Like for
+     * any MBean, the attributes that cannot be read are left out of the result.</p>
+     */
+    public AttributeList getAttributes(String[] attributes) {
+        final AttributeList result = new AttributeList();
+        CompositeData snapshot = null;
+        for (String attribute : attributes) {
+            if (SNAPSHOT_ATTRIBUTES.contains(attribute)) {
+                if (snapshot == null) {
+                    snapshot = dataSource.getPoolStats();
+                }
+                result.add(new Attribute(attribute, snapshot.get(attribute)));
+            } else if (model.hasAttribute(attribute)) {
+                try {
+                    result.add(new Attribute(attribute, model.getAttribute(attribute)));
+                } catch (JMException e) {
+                    // Left out
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException {
+        model.setAttribute(attribute);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public AttributeList setAttributes(AttributeList attributes) {
+        final AttributeList result = new AttributeList();
+        for (Object attribute : attributes) {
+            try {
+                model.setAttribute((Attribute) attribute);
+                result.add((Attribute) attribute);
+            } catch (JMException e) {
+                // Left out
+            } catch (RuntimeException e) {
+                // Left out
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+        return model.invoke(actionName, params, signature);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addNotificationListener(NotificationListener listener, NotificationFilter filter, Object handback) {
+        dataSource.notifier.addNotificationListener(listener, filter, handback);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeNotificationListener(NotificationListener listener) throws ListenerNotFoundException {
+        dataSource.notifier.removeNotificationListener(listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeNotificationListener(NotificationListener listener, NotificationFilter filter, Object handback) throws ListenerNotFoundException {
+        dataSource.notifier.removeNotificationListener(listener, filter, handback);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MBeanNotificationInfo[] getNotificationInfo() {
+        return dataSource.notifier.getNotificationInfo();
+    }
+}
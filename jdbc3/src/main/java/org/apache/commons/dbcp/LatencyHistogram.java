@@ -0,0 +1,360 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.weakref.jmx.Managed;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory, lock-free latency histogram.
+ * <p/>
+ * <p>Values are recorded in microseconds into log-linear buckets, as in HdrHistogram: values below
+ * {@link #LINEAR_BUCKETS} get a bucket each, then each power of two is split into {@link #SUB_BUCKETS} buckets, which
+ * bounds the relative error of the reported percentiles to about 3%. All the buckets are allocated up front, so
+ * {@link #recordNanos(long)} never allocates and never blocks.</p>
+ * <p/>
+ * <p>When exported as a nested MBean attribute, durations are reported in milliseconds.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits of precision kept for each recorded value.
+     */
+    private static final int PRECISION_BITS = 6;
+
+    /**
+     * The number of values below which each value has its own bucket.
+     */
+    static final int LINEAR_BUCKETS = 1 << PRECISION_BITS;
+
+    /**
+     * The number of buckets each power of two above {@link #LINEAR_BUCKETS} is split into.
+     */
+    static final int SUB_BUCKETS = LINEAR_BUCKETS >> 1;
+
+    /**
+     * The highest power of two that can be recorded, values above are clamped (2^40 microseconds is about 12 days).
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    /**
+     * The highest value that can be recorded, in microseconds.
+     */
+    static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    /**
+     * The total number of buckets.
+     */
+    static final int BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - PRECISION_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * The bucket counts.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * The number of recorded values.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * The sum of the recorded values, in microseconds.
+     */
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * The highest recorded value, in microseconds.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos the duration, in nanoseconds.
+     */
+    public void recordNanos(long nanos) {
+        record(nanos / 1000L);
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param millis the duration, in milliseconds.
+     */
+    public void recordMillis(long millis) {
+        record(millis * 1000L);
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param micros the value, in microseconds.
+     */
+    private void record(long micros) {
+        final long value = micros < 0 ? 0 : Math.min(micros, MAX_VALUE);
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Get the bucket a value falls into.
+     *
+     * @param value the value, between 0 and {@link #MAX_VALUE}.
+     * @return the bucket index.
+     */
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - PRECISION_BITS + 1;
+        return LINEAR_BUCKETS + (exponent - PRECISION_BITS) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Get the highest value that falls into a bucket.
+     *
+     * @param bucket the bucket index.
+     * @return the highest value of the bucket.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        final int offset = bucket - LINEAR_BUCKETS;
+        final int shift = offset / SUB_BUCKETS + 1;
+        final long mantissa = SUB_BUCKETS + offset % SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Get the value under which a given percentage of the recorded values fall.
+     *
+     * @param percentile the percentage, between 0 and 100.
+     * @return the percentile value in microseconds, or 0 if nothing was recorded.
+     */
+    public long getPercentileMicros(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        // Values recorded between the two passes can only make the walk stop earlier, never overflow it
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100d * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Copy the bucket counts, e.g. to later compute percentiles over a time window with
+     * {@link #getPercentileMicros(long[], long[], double)}.
+     *
+     * @param into the array to copy the counts into, of length {@link #BUCKETS}.
+     */
+    void copyCounts(long[] into) {
+        for (int i = 0; i < BUCKETS; i++) {
+            into[i] = counts.get(i);
+        }
+    }
+
+    /**
+     * Get the value under which a given percentage of the values recorded between two copies of the bucket counts fall.
+     *
+     * @param counts     the later copy of the bucket counts.
+     * @param previous   the earlier copy of the bucket counts.
+     * @param percentile the percentage, between 0 and 100.
+     * @return the percentile value in microseconds, or 0 if nothing was recorded in between.
+     * @see #copyCounts(long[])
+     */
+    static long getPercentileMicros(long[] counts, long[] previous, double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            // Counts go down when the histogram is reset, only count what was recorded since
+            total += Math.max(0, counts[i] - previous[i]);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100d * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += Math.max(0, counts[i] - previous[i]);
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+        return highestValueOf(BUCKETS - 1);
+    }
+
+    /**
+     * Count the recorded values at most equal to each of several bounds, e.g. to export the histogram with fixed
+     * buckets.
+     * <p/>
+     * <p>Values are counted per bucket: a value is counted under a bound if the highest value of its bucket is.</p>
+     *
+     * @param boundsMicros the bounds in microseconds, in ascending order.
+     * @param into         the array to store the cumulative counts into, of length <code>boundsMicros.length + 1</code>,
+     *                     the last one being the total number of recorded values.
+     */
+    void copyCumulativeCounts(long[] boundsMicros, long[] into) {
+        int bound = 0;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            final long highest = highestValueOf(i);
+            while (bound < boundsMicros.length && highest > boundsMicros[bound]) {
+                into[bound++] = seen;
+            }
+            seen += counts.get(i);
+        }
+        while (bound <= boundsMicros.length) {
+            into[bound++] = seen;
+        }
+    }
+
+    /**
+     * Get the sum of the recorded values.
+     *
+     * @return the sum in microseconds.
+     */
+    public long getSumMicros() {
+        return sum.get();
+    }
+
+    /**
+     * Get the highest recorded value.
+     *
+     * @return the highest value in microseconds, or 0 if nothing was recorded.
+     */
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Convert microseconds to milliseconds.
+     *
+     * @param micros the value in microseconds.
+     * @return the value in milliseconds.
+     */
+    private static double toMillis(long micros) {
+        return micros / 1000d;
+    }
+
+    /**
+     * Get the number of recorded values.
+     *
+     * @return the number of recorded values since creation or the last reset.
+     */
+    @Managed(description = "The number of recorded values.")
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the mean of the recorded values.
+     *
+     * @return the mean in milliseconds, or 0 if nothing was recorded.
+     */
+    @Managed(description = "The mean of the recorded values, in milliseconds.")
+    public double getMean() {
+        final long n = count.get();
+        return n == 0 ? 0d : toMillis(sum.get()) / n;
+    }
+
+    /**
+     * Get the median of the recorded values.
+     *
+     * @return the median in milliseconds.
+     */
+    @Managed(description = "The median of the recorded values, in milliseconds.")
+    public double getP50() {
+        return toMillis(getPercentileMicros(50d));
+    }
+
+    /**
+     * Get the 90th percentile of the recorded values.
+     *
+     * @return the 90th percentile in milliseconds.
+     */
+    @Managed(description = "The 90th percentile of the recorded values, in milliseconds.")
+    public double getP90() {
+        return toMillis(getPercentileMicros(90d));
+    }
+
+    /**
+     * Get the 99th percentile of the recorded values.
+     *
+     * @return the 99th percentile in milliseconds.
+     */
+    @Managed(description = "The 99th percentile of the recorded values, in milliseconds.")
+    public double getP99() {
+        return toMillis(getPercentileMicros(99d));
+    }
+
+    /**
+     * Get the 99.9th percentile of the recorded values.
+     *
+     * @return the 99.9th percentile in milliseconds.
+     */
+    @Managed(description = "The 99.9th percentile of the recorded values, in milliseconds.")
+    public double getP999() {
+        return toMillis(getPercentileMicros(99.9d));
+    }
+
+    /**
+     * Get the highest recorded value.
+     *
+     * @return the highest value in milliseconds.
+     */
+    @Managed(description = "The highest recorded value, in milliseconds.")
+    public double getMax() {
+        return toMillis(max.get());
+    }
+
+    /**
+     * Forget all the recorded values.
+     * <p/>
+     * <p>Values recorded concurrently with a reset may or may not be kept.</p>
+     */
+    @Managed(description = "Forget all the recorded values.")
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
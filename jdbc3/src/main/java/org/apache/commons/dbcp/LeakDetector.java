@@ -0,0 +1,459 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.weakref.jmx.Managed;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Low overhead detection of the connections of a {@link ManagedBasicDataSource} that are never given back.
+ * <p/>
+ * <p><code>logAbandoned</code> captures a stack trace on every borrow, which is too expensive to leave enabled in
+ * production. This detector only tracks some of the connections:</p>
+ * <ul>
+ * <li>with a {@link #getSampleRate() sample rate} of N, one borrow in N captures the stack of the code that borrowed
+ * the connection;</li>
+ * <li>with {@link #isDeferredCapture() deferred capture}, every borrow only records the borrowing thread, and the stack
+ * of that thread is captured if the connection is still held after the timeout.</li>
+ * </ul>
+ * <p/>
+ * <p>The borrowing code is the one that requested the connection, even if it is handed out later by another thread
+ * through {@link ManagedBasicDataSource#getConnectionAsync(long, TimeUnit)}. The connections are only weakly
+ * referenced, so those dropped without being closed do not pile up here.</p>
+ * <p/>
+ * <p>The timeout is the <code>removeAbandonedTimeout</code> of the datasource. Connections held longer are aggregated
+ * by call site in the {@link #getReport() leak report}, and the first one from each call site is printed to the log
+ * writer of the datasource with the captured stack. If <code>removeAbandoned</code> is enabled, they are also removed
+ * by the pool as before, so <code>logAbandoned</code> can be turned off.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class LeakDetector implements Runnable {
+
+    /**
+     * The thread checking the tracked connections of all the datasources, created on first use.
+     */
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * The datasource whose connections are tracked.
+     */
+    private final ManagedBasicDataSource dataSource;
+
+    /**
+     * The connections currently tracked.
+     */
+    private final ConcurrentMap<Trace, Boolean> traces = new ConcurrentHashMap<Trace, Boolean>();
+
+    /**
+     * The leaked connections, by call site.
+     */
+    private final LeakReport report = new LeakReport();
+
+    /**
+     * The number of borrows that captured a stack.
+     */
+    private final AtomicLong sampledCount = new AtomicLong();
+
+    /**
+     * The number of connections reported as leaked.
+     */
+    private final AtomicLong leakCount = new AtomicLong();
+
+    /**
+     * One borrow in how many captures a stack, 0 to disable sampling.
+     */
+    private volatile int sampleRate;
+
+    /**
+     * Whether the stack of the borrowing thread is captured when a connection is held longer than the timeout.
+     */
+    private volatile boolean deferredCapture;
+
+    /**
+     * The number of borrows, to pick the sampled ones. Updated without synchronization: lost updates only change which
+     * borrows are sampled, and keep the borrow path free of contended writes.
+     */
+    private int borrowCount;
+
+    /**
+     * The scheduled checks, <code>null</code> if disabled.
+     */
+    private ScheduledFuture<?> task;
+
+    /**
+     * Build a new {@link LeakDetector}.
+     *
+     * @param dataSource the datasource whose connections are tracked.
+     */
+    LeakDetector(ManagedBasicDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Get the thread checking the tracked connections, creating it if needed.
+     *
+     * @return the scheduler.
+     */
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("commons-dbcp-jmx-leak-detector"));
+        }
+        return scheduler;
+    }
+
+    /**
+     * Get one borrow in how many captures the stack of the code that borrowed the connection.
+     *
+     * @return the sample rate, 0 if sampling is disabled.
+     */
+    @Managed(description = "One borrow in how many captures the stack of the code that borrowed the connection, 0 to disable sampling.")
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Set one borrow in how many captures the stack of the code that borrowed the connection.
+     *
+     * @param sampleRate the sample rate, 1 to capture every borrow, 0 to disable sampling.
+     * @throws IllegalArgumentException if the sample rate is negative.
+     */
+    @Managed(description = "Set one borrow in how many captures the stack of the code that borrowed the connection, 0 to disable sampling.")
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 0) {
+            throw new IllegalArgumentException("sampleRate must not be negative: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+        reschedule();
+    }
+
+    /**
+     * Whether the stack of the borrowing thread is captured when a connection is held longer than the timeout.
+     *
+     * @return true if deferred capture is enabled.
+     */
+    @Managed(description = "Whether the stack of the borrowing thread is captured when a connection is held longer than removeAbandonedTimeout.")
+    public boolean isDeferredCapture() {
+        return deferredCapture;
+    }
+
+    /**
+     * Set whether the stack of the borrowing thread is captured when a connection is held longer than the timeout.
+     * <p/>
+     * <p>The captured stack shows where the thread is at the time, not where it borrowed the connection, but costs
+     * nothing for the connections given back in time.</p>
+     *
+     * @param deferredCapture true to enable deferred capture.
+     */
+    @Managed(description = "Set whether the stack of the borrowing thread is captured when a connection is held longer than removeAbandonedTimeout.")
+    public void setDeferredCapture(boolean deferredCapture) {
+        this.deferredCapture = deferredCapture;
+        reschedule();
+    }
+
+    /**
+     * Get the number of connections currently tracked.
+     *
+     * @return the number of tracked connections.
+     */
+    @Managed(description = "The number of borrowed connections currently tracked for leaks.")
+    public int getTrackedCount() {
+        return traces.size();
+    }
+
+    /**
+     * Get the number of borrows that captured the stack of the code that borrowed the connection.
+     *
+     * @return the number of sampled borrows.
+     */
+    @Managed(description = "The number of borrows that captured the stack of the code that borrowed the connection.")
+    public long getSampledCount() {
+        return sampledCount.get();
+    }
+
+    /**
+     * Get the number of connections reported as held longer than the timeout.
+     *
+     * @return the number of leaks.
+     */
+    @Managed(description = "The number of tracked connections held longer than removeAbandonedTimeout.")
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
+    /**
+     * Get the maximum number of call sites in the leak report.
+     *
+     * @return the capacity of the report.
+     */
+    @Managed(description = "The maximum number of call sites in the leak report.")
+    public int getReportCapacity() {
+        return report.getCapacity();
+    }
+
+    /**
+     * Set the maximum number of call sites in the leak report.
+     *
+     * @param reportCapacity the capacity of the report, at least 1.
+     * @see LeakReport#setCapacity(int)
+     */
+    @Managed(description = "Set the maximum number of call sites in the leak report.")
+    public void setReportCapacity(int reportCapacity) {
+        report.setCapacity(reportCapacity);
+    }
+
+    /**
+     * Get the leaked connections, aggregated by call site.
+     *
+     * @return the leak report.
+     */
+    public LeakReport getReport() {
+        return report;
+    }
+
+    /**
+     * Reset the counters.
+     */
+    @Managed(description = "Reset the leak detection counters.")
+    public void reset() {
+        sampledCount.set(0);
+        leakCount.set(0);
+    }
+
+    /**
+     * Decide whether a borrow is tracked, on the thread requesting the connection, capturing its stack if it is
+     * sampled.
+     * <p/>
+     * <p>Called when the connection is requested, as it may be handed out later by another thread.</p>
+     *
+     * @return the origin of the borrow, <code>null</code> if it is not tracked.
+     */
+    Origin requested() {
+        final int rate = sampleRate;
+        if (rate > 0 && (++borrowCount & Integer.MAX_VALUE) % rate == 0) {
+            sampledCount.incrementAndGet();
+            return new Origin(new Throwable());
+        }
+        return deferredCapture ? new Origin(null) : null;
+    }
+
+    /**
+     * Start tracking a borrowed connection.
+     *
+     * @param connection the pooled connection.
+     * @param origin     the origin of the borrow, <code>null</code> if it is not tracked.
+     * @return the trace to {@link Trace#release() release} when the connection is given back, <code>null</code> if the
+     *         connection is not tracked.
+     */
+    Trace borrowed(Connection connection, Origin origin) {
+        if (origin == null) {
+            return null;
+        }
+        final Trace trace = new Trace(connection, origin);
+        traces.put(trace, Boolean.TRUE);
+        return trace;
+    }
+
+    /**
+     * Start or stop the checks, according to the settings and the datasource timeout.
+     * <p/>
+     * <p>Called again whenever the pool is created or the timeout changes.</p>
+     */
+    synchronized void reschedule() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        if (dataSource.connectionPool == null || (sampleRate == 0 && !deferredCapture)) {
+            return;
+        }
+        final long period = Math.max(1L, TimeUnit.SECONDS.toMillis(dataSource.getRemoveAbandonedTimeout()) / 4);
+        task = getScheduler().scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the checks, when the datasource is closed.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        traces.clear();
+    }
+
+    /**
+     * Report the tracked connections held longer than the timeout, and forget those the pool removed.
+     */
+    public synchronized void run() {
+        final long timeout = TimeUnit.SECONDS.toNanos(dataSource.getRemoveAbandonedTimeout());
+        final long now = System.nanoTime();
+        for (Iterator<Trace> iterator = traces.keySet().iterator(); iterator.hasNext(); ) {
+            final Trace trace = iterator.next();
+            final long held = now - trace.borrowedAt;
+            if (held < timeout) {
+                continue;
+            }
+            final LeakReport.Site site = trace.site;
+            if (site == null) {
+                leakCount.incrementAndGet();
+                report(trace, held);
+            } else if (isClosed(trace.connection.get())) {
+                // Removed by the pool as abandoned, or dropped by the application
+                iterator.remove();
+                report.abandoned(site, held);
+            } else {
+                report.held(site, held);
+            }
+        }
+    }
+
+    /**
+     * Add a leaked connection to the report, and print it to the log writer of the datasource if its call site is new.
+     *
+     * @param trace the leaked connection.
+     * @param held  how long the connection has been held, in nanoseconds.
+     */
+    private void report(Trace trace, long held) {
+        final Origin origin = trace.origin;
+        final StackTraceElement[] frames = origin.stack != null
+                                           ? origin.stack.getStackTrace()
+                                           : origin.thread.getStackTrace();
+        final LeakReport.Site site = report.leaked(frames, held);
+        trace.site = site;
+        final PrintWriter logWriter = dataSource.logWriter;
+        if (logWriter == null || site.getLeakedCount() > 1) {
+            return;
+        }
+        final Throwable stack = new Throwable(
+                "Connection held for " + TimeUnit.NANOSECONDS.toMillis(held) + " ms, "
+                + (origin.stack != null
+                   ? "borrowed by the following code"
+                   : "borrowed by thread \"" + origin.thread.getName() + "\" which is currently at")
+                + " (call site " + site.getFingerprint() + ", further leaks from it are only counted in the leak report):");
+        stack.setStackTrace(frames);
+        synchronized (logWriter) {
+            stack.printStackTrace(logWriter);
+            logWriter.flush();
+        }
+    }
+
+    /**
+     * Whether a pooled connection is closed.
+     *
+     * @param connection the pooled connection, <code>null</code> if it was garbage collected.
+     * @return true if it is closed, collected or its state cannot be read.
+     */
+    private static boolean isClosed(Connection connection) {
+        if (connection == null) {
+            return true;
+        }
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    /**
+     * The code that requested a tracked connection.
+     */
+    static final class Origin {
+
+        /**
+         * The stack of the code that requested the connection, <code>null</code> if not sampled.
+         */
+        private final Throwable stack;
+
+        /**
+         * The thread that requested the connection.
+         */
+        private final Thread thread;
+
+        /**
+         * Build a new {@link Origin} for the calling thread.
+         *
+         * @param stack the stack of the code that requested the connection, <code>null</code> if not sampled.
+         */
+        Origin(Throwable stack) {
+            this.stack = stack;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    /**
+     * A tracked connection.
+     */
+    final class Trace {
+
+        /**
+         * The pooled connection, weakly referenced so a connection the application dropped without closing it is not
+         * kept alive by the detector.
+         */
+        private final WeakReference<Connection> connection;
+
+        /**
+         * The code that requested the connection.
+         */
+        private final Origin origin;
+
+        /**
+         * The time at which the connection was borrowed, from {@link System#nanoTime()}.
+         */
+        private final long borrowedAt;
+
+        /**
+         * The call site the connection was reported under, <code>null</code> until it is held longer than the timeout.
+         */
+        private volatile LeakReport.Site site;
+
+        /**
+         * Build a new {@link Trace}.
+         *
+         * @param connection the pooled connection.
+         * @param origin     the code that requested the connection.
+         */
+        Trace(Connection connection, Origin origin) {
+            this.connection = new WeakReference<Connection>(connection);
+            this.origin = origin;
+            this.borrowedAt = System.nanoTime();
+        }
+
+        /**
+         * Stop tracking the connection, when it is given back.
+         */
+        void release() {
+            traces.remove(this);
+            final LeakReport.Site reported = site;
+            if (reported != null) {
+                report.returned(reported, System.nanoTime() - borrowedAt);
+            }
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import javax.management.openmbean.*;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leaked connections reported by a {@link LeakDetector}, aggregated by call site.
+ * <p/>
+ * <p>Call sites are identified by a fingerprint, a hash of the top {@link #MAX_FRAMES} frames of the captured stack
+ * below the datasource code. At most {@link #getCapacity()} call sites are kept: when a new one comes in and the report
+ * is full, the call site with the fewest leaks is dropped for it.</p>
+ * <p/>
+ * <p>Updates only happen when a leak is detected or a leaked connection is given back, so they are synchronized.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class LeakReport {
+
+    /**
+     * The default maximum number of call sites.
+     */
+    public static final int DEFAULT_CAPACITY = 50;
+
+    /**
+     * The number of frames identifying a call site.
+     */
+    static final int MAX_FRAMES = 16;
+
+    /**
+     * The classes whose frames, and those of their nested classes, are skipped at the top of the captured stacks.
+     */
+    private static final Set<String> SKIPPED_CLASSES = new HashSet<String>(Arrays.asList(
+            Thread.class.getName(),
+            Proxy.class.getName(),
+            LeakDetector.class.getName(),
+            TrackedConnection.class.getName(),
+            RoutingConnection.class.getName(),
+            ManagedBasicDataSource.class.getName(),
+            ManagedStripedDataSource.class.getName(),
+            ManagedRoutingDataSource.class.getName(),
+            BorrowQueue.class.getName(),
+            ConnectionFuture.class.getName()
+    ));
+
+    /**
+     * The prefix of the simple names of the {@link Proxy} classes.
+     */
+    private static final String PROXY_PREFIX = "$Proxy";
+
+    /**
+     * The names of the items of {@link #ROW_TYPE}.
+     */
+    private static final String[] ITEM_NAMES = {
+            "fingerprint", "site", "leakedCount", "returnedCount", "abandonedCount", "oldestAge", "stack"
+    };
+
+    /**
+     * The open type of a row of {@link #toTabularData()}.
+     */
+    private static final CompositeType ROW_TYPE;
+
+    /**
+     * The open type of {@link #toTabularData()}.
+     */
+    private static final TabularType TABLE_TYPE;
+
+    static {
+        try {
+            ROW_TYPE = new CompositeType("LeakReport",
+                                         "Connections held longer than removeAbandonedTimeout from a call site",
+                                         ITEM_NAMES,
+                                         new String[]{
+                                                 "The hash of the top frames of the call site stack",
+                                                 "The top frame of the call site stack",
+                                                 "The number of connections held longer than removeAbandonedTimeout",
+                                                 "The number of those connections eventually given back",
+                                                 "The number of those connections removed by the pool as abandoned",
+                                                 "The longest time one of those connections was seen held, in milliseconds",
+                                                 "The top frames of the call site stack"
+                                         },
+                                         new OpenType<?>[]{
+                                                 SimpleType.STRING, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG,
+                                                 SimpleType.LONG, SimpleType.LONG, SimpleType.STRING
+                                         });
+            TABLE_TYPE = new TabularType("LeakReportTable",
+                                         "Call sites by descending number of leaked connections",
+                                         ROW_TYPE,
+                                         new String[]{"fingerprint"});
+        } catch (OpenDataException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Orders call sites by descending number of leaks.
+     */
+    private static final Comparator<Site> BY_LEAKS = new Comparator<Site>() {
+        public int compare(Site site1, Site site2) {
+            return site1.leakedCount < site2.leakedCount ? 1 : (site1.leakedCount == site2.leakedCount ? 0 : -1);
+        }
+    };
+
+    /**
+     * The call sites, by fingerprint.
+     */
+    private final Map<String, Site> sites = new HashMap<String, Site>();
+
+    /**
+     * The maximum number of call sites.
+     */
+    private volatile int capacity = DEFAULT_CAPACITY;
+
+    /**
+     * Get the maximum number of call sites.
+     *
+     * @return the capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the maximum number of call sites. Lowering it takes effect when the next call site is added.
+     *
+     * @param capacity the new capacity, at least 1.
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get the number of call sites.
+     *
+     * @return the number of call sites.
+     */
+    public synchronized int size() {
+        return sites.size();
+    }
+
+    /**
+     * Whether the frames of a class belong to the datasource rather than to the code that borrowed the connection.
+     *
+     * @param className the class name of the frame.
+     * @return true for the {@link #SKIPPED_CLASSES} and their nested classes, and the proxy classes.
+     */
+    private static boolean isSkipped(String className) {
+        if (className.startsWith(PROXY_PREFIX, className.lastIndexOf('.') + 1)) {
+            return true;
+        }
+        final int nested = className.indexOf('$');
+        return SKIPPED_CLASSES.contains(nested < 0 ? className : className.substring(0, nested));
+    }
+
+    /**
+     * Record a connection held longer than the timeout.
+     *
+     * @param stack the captured stack.
+     * @param nanos how long the connection has been held, in nanoseconds.
+     * @return the call site, whose {@link Site#getLeakedCount()} is 1 if it was not in the report.
+     */
+    synchronized Site leaked(StackTraceElement[] stack, long nanos) {
+        int start = 0;
+        while (start < stack.length - 1 && isSkipped(stack[start].getClassName())) {
+            start++;
+        }
+        final int end = Math.min(stack.length, start + MAX_FRAMES);
+        final String fingerprint = fingerprint(stack, start, end);
+        Site site = sites.get(fingerprint);
+        if (site == null) {
+            while (sites.size() >= capacity) {
+                // The comparator orders by descending leaks, so its maximum has the fewest
+                sites.remove(Collections.max(sites.values(), BY_LEAKS).fingerprint);
+            }
+            final StringBuilder frames = new StringBuilder();
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    frames.append('\n');
+                }
+                frames.append(stack[i]);
+            }
+            site = new Site(fingerprint, start < end ? stack[start].toString() : "", frames.toString());
+            sites.put(fingerprint, site);
+        }
+        site.leakedCount++;
+        site.held(nanos);
+        return site;
+    }
+
+    /**
+     * Record how long a leaked connection has been held so far.
+     *
+     * @param site  the call site.
+     * @param nanos how long the connection has been held, in nanoseconds.
+     */
+    synchronized void held(Site site, long nanos) {
+        site.held(nanos);
+    }
+
+    /**
+     * Record a leaked connection given back by the application.
+     *
+     * @param site  the call site.
+     * @param nanos how long the connection was held, in nanoseconds.
+     */
+    synchronized void returned(Site site, long nanos) {
+        site.returnedCount++;
+        site.held(nanos);
+    }
+
+    /**
+     * Record a leaked connection removed by the pool as abandoned.
+     *
+     * @param site  the call site.
+     * @param nanos how long the connection was held, in nanoseconds.
+     */
+    synchronized void abandoned(Site site, long nanos) {
+        site.abandonedCount++;
+        site.held(nanos);
+    }
+
+    /**
+     * Forget all the call sites.
+     */
+    public synchronized void reset() {
+        sites.clear();
+    }
+
+    /**
+     * Get the call sites.
+     *
+     * @return copies of the call sites, by descending number of leaks.
+     */
+    public synchronized List<Site> sites() {
+        final List<Site> sorted = new ArrayList<Site>(sites.size());
+        for (Site site : sites.values()) {
+            sorted.add(site.copy());
+        }
+        Collections.sort(sorted, BY_LEAKS);
+        return sorted;
+    }
+
+    /**
+     * Get the call sites as open data.
+     *
+     * @return a table of {@link #sites()}.
+     */
+    public TabularData toTabularData() {
+        final TabularDataSupport table = new TabularDataSupport(TABLE_TYPE);
+        for (Site site : sites()) {
+            try {
+                table.put(new CompositeDataSupport(ROW_TYPE, ITEM_NAMES, new Object[]{
+                        site.fingerprint,
+                        site.frame,
+                        site.leakedCount,
+                        site.returnedCount,
+                        site.abandonedCount,
+                        site.getOldestAge(),
+                        site.stack
+                }));
+            } catch (OpenDataException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Compute the fingerprint of a call site, a 64-bit FNV-1a hash of its frames.
+     *
+     * @param stack the captured stack.
+     * @param start the index of the first frame of the call site.
+     * @param end   the index after the last frame of the call site.
+     * @return the hash, as 16 hexadecimal digits.
+     */
+    static String fingerprint(StackTraceElement[] stack, int start, int end) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            final String frame = stack[i].toString();
+            for (int j = 0; j < frame.length(); j++) {
+                hash = (hash ^ frame.charAt(j)) * 0x100000001b3L;
+            }
+            hash = (hash ^ '\n') * 0x100000001b3L;
+        }
+        final String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Leaked connections from a call site.
+     */
+    public static final class Site {
+
+        /**
+         * The hash of the frames.
+         */
+        private final String fingerprint;
+
+        /**
+         * The top frame.
+         */
+        private final String frame;
+
+        /**
+         * The frames, one per line.
+         */
+        private final String stack;
+
+        /**
+         * The number of connections held longer than the timeout.
+         */
+        private long leakedCount;
+
+        /**
+         * The number of those connections given back by the application.
+         */
+        private long returnedCount;
+
+        /**
+         * The number of those connections removed by the pool as abandoned.
+         */
+        private long abandonedCount;
+
+        /**
+         * The longest time one of those connections was seen held, in nanoseconds.
+         */
+        private long oldestNanos;
+
+        /**
+         * Build a new {@link Site}.
+         *
+         * @param fingerprint the hash of the frames.
+         * @param frame       the top frame.
+         * @param stack       the frames, one per line.
+         */
+        private Site(String fingerprint, String frame, String stack) {
+            this.fingerprint = fingerprint;
+            this.frame = frame;
+            this.stack = stack;
+        }
+
+        /**
+         * Record how long a connection was seen held.
+         *
+         * @param nanos the hold time, in nanoseconds.
+         */
+        private void held(long nanos) {
+            oldestNanos = Math.max(oldestNanos, nanos);
+        }
+
+        /**
+         * Copy the call site, so it can be read without holding the report lock.
+         *
+         * @return a copy.
+         */
+        private Site copy() {
+            final Site copy = new Site(fingerprint, frame, stack);
+            copy.leakedCount = leakedCount;
+            copy.returnedCount = returnedCount;
+            copy.abandonedCount = abandonedCount;
+            copy.oldestNanos = oldestNanos;
+            return copy;
+        }
+
+        /**
+         * Get the hash of the frames.
+         *
+         * @return the fingerprint, as 16 hexadecimal digits.
+         */
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * Get the top frame.
+         *
+         * @return the frame.
+         */
+        public String getFrame() {
+            return frame;
+        }
+
+        /**
+         * Get the frames.
+         *
+         * @return the frames, one per line.
+         */
+        public String getStack() {
+            return stack;
+        }
+
+        /**
+         * Get the number of connections held longer than the timeout.
+         *
+         * @return the number of leaks.
+         */
+        public long getLeakedCount() {
+            return leakedCount;
+        }
+
+        /**
+         * Get the number of leaked connections eventually given back by the application.
+         *
+         * @return the number of returned connections.
+         */
+        public long getReturnedCount() {
+            return returnedCount;
+        }
+
+        /**
+         * Get the number of leaked connections removed by the pool as abandoned.
+         *
+         * @return the number of abandoned connections.
+         */
+        public long getAbandonedCount() {
+            return abandonedCount;
+        }
+
+        /**
+         * Get the longest time a leaked connection was seen held.
+         *
+         * @return the age, in milliseconds.
+         */
+        public long getOldestAge() {
+            return TimeUnit.NANOSECONDS.toMillis(oldestNanos);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The datasources built with {@link ManagedBasicDataSource.MBeanExport#BATCH} whose MBean is not registered yet.
+ * <p/>
+ * <p>They are registered together on a shared daemon thread, so building many datasources at startup does not pay for
+ * the registrations on the building thread.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+final class MBeanExportBatch {
+
+    /**
+     * The datasources whose MBean is not registered yet.
+     */
+    private static final List<ManagedBasicDataSource> PENDING = new ArrayList<ManagedBasicDataSource>();
+
+    /**
+     * Registers the pending MBeans.
+     */
+    private static final Runnable FLUSH = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * The thread registering the MBeans, created on first use.
+     */
+    private static ExecutorService exporter;
+
+    /**
+     * Not instantiable.
+     */
+    private MBeanExportBatch() {
+    }
+
+    /**
+     * Queue a datasource for registration.
+     *
+     * @param dataSource the datasource.
+     */
+    static synchronized void add(ManagedBasicDataSource dataSource) {
+        PENDING.add(dataSource);
+        if (PENDING.size() == 1) {
+            if (exporter == null) {
+                exporter = Executors.newSingleThreadExecutor(new DaemonThreadFactory("commons-dbcp-jmx-export"));
+            }
+            exporter.execute(FLUSH);
+        }
+    }
+
+    /**
+     * Take the queued datasources.
+     *
+     * @return the datasources queued since the last call.
+     */
+    private static synchronized List<ManagedBasicDataSource> drain() {
+        final List<ManagedBasicDataSource> drained = new ArrayList<ManagedBasicDataSource>(PENDING);
+        PENDING.clear();
+        return drained;
+    }
+
+    /**
+     * Register the MBeans of the queued datasources on the calling thread.
+     * <p/>
+     * <p>A datasource whose MBean cannot be registered is skipped, it is retried when the datasource is first used.</p>
+     */
+    static void flush() {
+        for (ManagedBasicDataSource dataSource : drain()) {
+            try {
+                dataSource.registerMBean();
+            } catch (RuntimeException e) {
+                // Retried on first use
+            }
+        }
+    }
+}
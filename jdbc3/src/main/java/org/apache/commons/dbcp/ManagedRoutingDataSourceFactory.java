@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.spi.ObjectFactory;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Factory for {@link ManagedRoutingDataSource}.
+ * <p/>
+ * Accepts the same properties as {@link ManagedBasicDataSourceFactory} for the primary, plus
+ * {@link #PROP_REPLICAURLS}. Each replica is created by {@link ManagedBasicDataSourceFactory} with the same properties
+ * but its own <code>url</code>, and the properties prefixed with {@link #REPLICA_PREFIX} override the others for the
+ * replicas, e.g. <code>replica.maxActive</code>.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @see ManagedRoutingDataSource
+ * @since 0.2.5
+ */
+public class ManagedRoutingDataSourceFactory implements ObjectFactory {
+
+    /**
+     * The key for the property where one can specify the comma separated URLs of the read replicas, none by default.
+     */
+    public final static String PROP_REPLICAURLS = "replicaUrls";
+
+    /**
+     * The prefix of the properties that only apply to the replicas.
+     */
+    public final static String REPLICA_PREFIX = "replica.";
+
+    /**
+     * Create and return a new {@link ManagedRoutingDataSource} instance.  If no instance can be created, return
+     * <code>null</code> instead.
+     *
+     * @param obj         The possibly null object containing location or reference information that can be used in creating an object.
+     * @param name        The name of this object relative to <code>nameCtx</code>.
+     * @param nameCtx     The context relative to which the <code>name</code> parameter is specified, or <code>null</code> if <code>name</code> is
+     *                    relative to the default initial context.
+     * @param environment The possibly null environment that is used in creating this object.
+     * @throws Exception if an exception occurs creating the instance.
+     */
+    public Object getObjectInstance(Object obj, Name name, Context nameCtx, Hashtable<?, ?> environment) throws Exception {
+
+        // We only know how to deal with <code>javax.naming.Reference</code>s
+        // that specify a class name of "javax.sql.DataSource"
+        if ((obj == null) || !(obj instanceof Reference)) {
+            return null;
+        }
+        Reference ref = (Reference) obj;
+        if (!"javax.sql.DataSource".equals(ref.getClassName())) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        for (String propertyName : ManagedBasicDataSourceFactory.ALL_PROPERTIES) {
+            RefAddr ra = ref.get(propertyName);
+            if (ra != null) {
+                properties.setProperty(propertyName, ra.getContent().toString());
+            }
+        }
+        for (Enumeration<RefAddr> addresses = ref.getAll(); addresses.hasMoreElements(); ) {
+            RefAddr ra = addresses.nextElement();
+            if (ra.getType().startsWith(REPLICA_PREFIX) || PROP_REPLICAURLS.equals(ra.getType())) {
+                properties.setProperty(ra.getType(), ra.getContent().toString());
+            }
+        }
+
+        return createDataSource(properties);
+    }
+
+    /**
+     * Create and configures a {@link ManagedRoutingDataSource} instance based on the given properties.
+     *
+     * @param properties the datasource configuration properties.
+     * @throws Exception if an error occurs creating the data source.
+     */
+    public static DataSource createDataSource(Properties properties) throws Exception {
+
+        String value = properties.getProperty(ManagedBasicDataSourceFactory.PROP_MBEANNAME);
+        final String mBeanName = (value != null) ? value : ManagedRoutingDataSource.newMBeanName();
+
+        final List<String> replicaUrls = new ArrayList<String>();
+        value = properties.getProperty(PROP_REPLICAURLS);
+        if (value != null) {
+            for (String url : value.split(",")) {
+                if (url.trim().length() > 0) {
+                    replicaUrls.add(url.trim());
+                }
+            }
+        }
+
+        final Properties common = new Properties();
+        final Properties overrides = new Properties();
+        for (String property : properties.stringPropertyNames()) {
+            if (property.startsWith(REPLICA_PREFIX)) {
+                overrides.setProperty(property.substring(REPLICA_PREFIX.length()), properties.getProperty(property));
+            } else if (!PROP_REPLICAURLS.equals(property)) {
+                common.setProperty(property, properties.getProperty(property));
+            }
+        }
+
+        ManagedBasicDataSource primary = null;
+        final ManagedBasicDataSource[] replicas = new ManagedBasicDataSource[replicaUrls.size()];
+        try {
+            final Properties target = new Properties();
+            target.putAll(common);
+            target.setProperty(ManagedBasicDataSourceFactory.PROP_MBEANNAME,
+                               ManagedRoutingDataSource.getTargetMBeanName(mBeanName, ManagedRoutingDataSource.PRIMARY));
+            primary = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(target);
+            for (int i = 0; i < replicas.length; i++) {
+                final Properties replica = new Properties();
+                replica.putAll(common);
+                replica.putAll(overrides);
+                replica.setProperty(ManagedBasicDataSourceFactory.PROP_URL, replicaUrls.get(i));
+                replica.setProperty(ManagedBasicDataSourceFactory.PROP_MBEANNAME,
+                                    ManagedRoutingDataSource.getTargetMBeanName(mBeanName, ManagedRoutingDataSource.REPLICA + i));
+                replicas[i] = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(replica);
+            }
+            return new ManagedRoutingDataSource(ManagementFactory.getPlatformMBeanServer(), mBeanName, primary, replicas);
+        } catch (Exception e) {
+            if (primary != null) {
+                primary.close();
+            }
+            for (ManagedBasicDataSource replica : replicas) {
+                if (replica != null) {
+                    replica.close();
+                }
+            }
+            throw e;
+        }
+    }
+}
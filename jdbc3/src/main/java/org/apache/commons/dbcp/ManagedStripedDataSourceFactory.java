@@ -0,0 +1,146 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.spi.ObjectFactory;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.Properties;
+
+/**
+ * Factory for {@link ManagedStripedDataSource}.
+ * <p/>
+ * Accepts the same properties as {@link ManagedBasicDataSourceFactory}, plus {@link #PROP_STRIPES}. Each stripe is
+ * created by {@link ManagedBasicDataSourceFactory} with <code>maxActive</code>, <code>maxIdle</code>,
+ * <code>minIdle</code> and <code>initialSize</code> split across the stripes.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @see ManagedStripedDataSource
+ * @since 0.2.5
+ */
+public class ManagedStripedDataSourceFactory implements ObjectFactory {
+
+    /**
+     * The key for the property where one can specify the number of stripes, the number of available processors by
+     * default. It is lowered to <code>maxActive</code> if that is smaller.
+     */
+    public final static String PROP_STRIPES = "stripes";
+
+    /**
+     * The pool size properties split across the stripes.
+     */
+    private final static String[] SPLIT_PROPERTIES = {
+            ManagedBasicDataSourceFactory.PROP_MAXACTIVE,
+            ManagedBasicDataSourceFactory.PROP_MAXIDLE,
+            ManagedBasicDataSourceFactory.PROP_MINIDLE,
+            ManagedBasicDataSourceFactory.PROP_INITIALSIZE
+    };
+
+    /**
+     * Create and return a new {@link ManagedStripedDataSource} instance.  If no instance can be created, return
+     * <code>null</code> instead.
+     *
+     * @param obj         The possibly null object containing location or reference information that can be used in creating an object.
+     * @param name        The name of this object relative to <code>nameCtx</code>.
+     * @param nameCtx     The context relative to which the <code>name</code> parameter is specified, or <code>null</code> if <code>name</code> is
+     *                    relative to the default initial context.
+     * @param environment The possibly null environment that is used in creating this object.
+     * @throws Exception if an exception occurs creating the instance.
+     */
+    public Object getObjectInstance(Object obj, Name name, Context nameCtx, Hashtable<?, ?> environment) throws Exception {
+
+        // We only know how to deal with <code>javax.naming.Reference</code>s
+        // that specify a class name of "javax.sql.DataSource"
+        if ((obj == null) || !(obj instanceof Reference)) {
+            return null;
+        }
+        Reference ref = (Reference) obj;
+        if (!"javax.sql.DataSource".equals(ref.getClassName())) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        for (String propertyName : ManagedBasicDataSourceFactory.ALL_PROPERTIES) {
+            RefAddr ra = ref.get(propertyName);
+            if (ra != null) {
+                properties.setProperty(propertyName, ra.getContent().toString());
+            }
+        }
+        RefAddr ra = ref.get(PROP_STRIPES);
+        if (ra != null) {
+            properties.setProperty(PROP_STRIPES, ra.getContent().toString());
+        }
+
+        return createDataSource(properties);
+    }
+
+    /**
+     * Create and configures a {@link ManagedStripedDataSource} instance based on the given properties.
+     *
+     * @param properties the datasource configuration properties.
+     * @throws Exception if an error occurs creating the data source.
+     */
+    public static DataSource createDataSource(Properties properties) throws Exception {
+
+        String value = properties.getProperty(PROP_STRIPES);
+        int stripes = (value != null) ? Integer.parseInt(value) : Runtime.getRuntime().availableProcessors();
+        value = properties.getProperty(ManagedBasicDataSourceFactory.PROP_MAXACTIVE);
+        final int maxActive = (value != null) ? Integer.parseInt(value) : GenericObjectPool.DEFAULT_MAX_ACTIVE;
+        if (maxActive > 0) {
+            stripes = Math.min(stripes, maxActive);
+        }
+        stripes = Math.max(1, stripes);
+
+        value = properties.getProperty(ManagedBasicDataSourceFactory.PROP_MBEANNAME);
+        final String mBeanName = (value != null) ? value : ManagedStripedDataSource.newMBeanName();
+
+        final Properties defaults = new Properties();
+        defaults.setProperty(ManagedBasicDataSourceFactory.PROP_MAXACTIVE, String.valueOf(GenericObjectPool.DEFAULT_MAX_ACTIVE));
+        defaults.setProperty(ManagedBasicDataSourceFactory.PROP_MAXIDLE, String.valueOf(GenericObjectPool.DEFAULT_MAX_IDLE));
+
+        final ManagedBasicDataSource[] dataSources = new ManagedBasicDataSource[stripes];
+        try {
+            for (int i = 0; i < stripes; i++) {
+                final Properties stripe = new Properties();
+                stripe.putAll(properties);
+                stripe.remove(PROP_STRIPES);
+                stripe.setProperty(ManagedBasicDataSourceFactory.PROP_MBEANNAME, ManagedStripedDataSource.getStripeMBeanName(mBeanName, i));
+                for (String property : SPLIT_PROPERTIES) {
+                    value = properties.getProperty(property, defaults.getProperty(property));
+                    if (value != null) {
+                        stripe.setProperty(property, String.valueOf(ManagedStripedDataSource.split(Integer.parseInt(value), stripes, i)));
+                    }
+                }
+                dataSources[i] = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(stripe);
+            }
+            return new ManagedStripedDataSource(ManagementFactory.getPlatformMBeanServer(), mBeanName, dataSources);
+        } catch (Exception e) {
+            for (ManagedBasicDataSource dataSource : dataSources) {
+                if (dataSource != null) {
+                    dataSource.close();
+                }
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.weakref.jmx.Managed;
+
+import javax.management.openmbean.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolling history of the pool metrics of a {@link ManagedBasicDataSource}, one sample per second.
+ * <p/>
+ * <p>The last {@link #getCapacity()} samples are kept in a ring buffer of primitive arrays allocated when the capacity
+ * is set, so sampling never allocates. Each sample holds the active and idle connections, the threads waiting for a
+ * connection, the borrows and timeouts during the second and the 99th percentile of the borrow wait time during the
+ * second. After a latency spike, a single read of {@link #toTabularData()} shows what the pool did, without an external
+ * time-series database.</p>
+ * <p/>
+ * <p>The pool does not count the threads waiting in its own monitor, so waiters are only reported when
+ * <code>concurrentBorrow</code> is enabled.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class PoolHistory implements Runnable {
+
+    /**
+     * The time between two samples, in milliseconds.
+     */
+    public static final long INTERVAL = 1000L;
+
+    /**
+     * The names of the items of {@link #ROW_TYPE}.
+     */
+    private static final String[] ITEM_NAMES = {
+            "timestamp", "active", "idle", "waiters", "borrows", "timeouts", "waitP99"
+    };
+
+    /**
+     * The open type of a row of {@link #toTabularData()}.
+     */
+    private static final CompositeType ROW_TYPE;
+
+    /**
+     * The open type of {@link #toTabularData()}.
+     */
+    private static final TabularType TABLE_TYPE;
+
+    static {
+        try {
+            ROW_TYPE = new CompositeType("PoolHistory",
+                                         "A sample of the pool metrics, times in milliseconds",
+                                         ITEM_NAMES,
+                                         new String[]{
+                                                 "The time of the sample, in milliseconds since the epoch",
+                                                 "The number of active connections",
+                                                 "The number of idle connections",
+                                                 "The number of threads and asynchronous requests waiting for a connection",
+                                                 "The number of connections handed out since the previous sample",
+                                                 "The number of borrows that timed out since the previous sample",
+                                                 "The 99th percentile of the borrow wait time since the previous sample"
+                                         },
+                                         new OpenType<?>[]{
+                                                 SimpleType.LONG, SimpleType.INTEGER, SimpleType.INTEGER,
+                                                 SimpleType.INTEGER, SimpleType.LONG, SimpleType.LONG, SimpleType.DOUBLE
+                                         });
+            TABLE_TYPE = new TabularType("PoolHistoryTable",
+                                         "Samples of the pool metrics, by timestamp",
+                                         ROW_TYPE,
+                                         new String[]{"timestamp"});
+        } catch (OpenDataException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The thread sampling the pools of all the datasources, created on first use.
+     */
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * The datasource whose pool is sampled.
+     */
+    private final ManagedBasicDataSource dataSource;
+
+    /**
+     * The maximum number of samples kept, 0 if disabled.
+     */
+    private int capacity;
+
+    /**
+     * The time of each sample, in milliseconds since the epoch.
+     */
+    private long[] timestamps = new long[0];
+
+    /**
+     * The number of active connections of each sample.
+     */
+    private int[] active = new int[0];
+
+    /**
+     * The number of idle connections of each sample.
+     */
+    private int[] idle = new int[0];
+
+    /**
+     * The number of waiters of each sample.
+     */
+    private int[] waiters = new int[0];
+
+    /**
+     * The number of borrows during each sample.
+     */
+    private long[] borrows = new long[0];
+
+    /**
+     * The number of timeouts during each sample.
+     */
+    private long[] timeouts = new long[0];
+
+    /**
+     * The 99th percentile of the borrow wait time during each sample, in milliseconds.
+     */
+    private double[] waitP99 = new double[0];
+
+    /**
+     * The index of the next sample in the arrays.
+     */
+    private int next;
+
+    /**
+     * The number of samples in the arrays.
+     */
+    private int size;
+
+    /**
+     * The number of borrows at the previous sample.
+     */
+    private long previousBorrowed;
+
+    /**
+     * The number of timeouts at the previous sample.
+     */
+    private long previousTimeouts;
+
+    /**
+     * The borrow wait bucket counts at the previous sample.
+     */
+    private long[] previousCounts = new long[LatencyHistogram.BUCKETS];
+
+    /**
+     * The borrow wait bucket counts at the current sample.
+     */
+    private long[] currentCounts = new long[LatencyHistogram.BUCKETS];
+
+    /**
+     * The scheduled sampling, <code>null</code> if disabled.
+     */
+    private ScheduledFuture<?> task;
+
+    /**
+     * Build a new {@link PoolHistory}.
+     *
+     * @param dataSource the datasource whose pool is sampled.
+     */
+    PoolHistory(ManagedBasicDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Get the thread sampling the pools, creating it if needed.
+     *
+     * @return the scheduler.
+     */
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("commons-dbcp-jmx-history"));
+        }
+        return scheduler;
+    }
+
+    /**
+     * Get the maximum number of samples kept, i.e. the number of seconds of history.
+     *
+     * @return the capacity, 0 if the history is disabled.
+     */
+    @Managed(description = "The maximum number of per-second samples of the pool metrics kept, 0 if disabled.")
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the maximum number of samples kept, i.e. the number of seconds of history.
+     * <p/>
+     * <p>The buffers are allocated here, and the samples already taken are forgotten.</p>
+     *
+     * @param capacity the new capacity, 0 to disable the history.
+     * @throws IllegalArgumentException if the capacity is negative.
+     */
+    @Managed(description = "Set the maximum number of per-second samples of the pool metrics kept, 0 to disable.")
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+        timestamps = new long[capacity];
+        active = new int[capacity];
+        idle = new int[capacity];
+        waiters = new int[capacity];
+        borrows = new long[capacity];
+        timeouts = new long[capacity];
+        waitP99 = new double[capacity];
+        next = 0;
+        size = 0;
+        reschedule();
+    }
+
+    /**
+     * Get the number of samples currently kept.
+     *
+     * @return the number of samples, at most {@link #getCapacity()}.
+     */
+    @Managed(description = "The number of samples of the pool metrics currently kept.")
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Start or stop the sampling, according to the capacity.
+     * <p/>
+     * <p>Called again whenever the pool is created or the capacity changes.</p>
+     */
+    synchronized void reschedule() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        if (dataSource.connectionPool == null || capacity == 0) {
+            return;
+        }
+        final PoolStatistics statistics = dataSource.statistics;
+        previousBorrowed = statistics.getBorrowedCount();
+        previousTimeouts = statistics.getBorrowTimeoutCount();
+        statistics.getBorrowWait().copyCounts(previousCounts);
+        task = getScheduler().scheduleAtFixedRate(this, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the sampling, when the datasource is closed. The samples are kept.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Take a sample of the pool metrics, overwriting the oldest one if the buffer is full.
+     */
+    public synchronized void run() {
+        if (capacity == 0) {
+            return;
+        }
+        final PoolStatistics statistics = dataSource.statistics;
+        final long borrowed = statistics.getBorrowedCount();
+        final long timedOut = statistics.getBorrowTimeoutCount();
+        statistics.getBorrowWait().copyCounts(currentCounts);
+        final double p99 = LatencyHistogram.getPercentileMicros(currentCounts, previousCounts, 99d) / 1000d;
+        final long[] swap = previousCounts;
+        previousCounts = currentCounts;
+        currentCounts = swap;
+
+        timestamps[next] = System.currentTimeMillis();
+        active[next] = statistics.getNumActive();
+        idle[next] = statistics.getNumIdle();
+        waiters[next] = dataSource.getBorrowWaiting() + dataSource.getAsyncQueueDepth();
+        borrows[next] = borrowed - previousBorrowed;
+        timeouts[next] = timedOut - previousTimeouts;
+        waitP99[next] = p99;
+        previousBorrowed = borrowed;
+        previousTimeouts = timedOut;
+        next = (next + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    /**
+     * Forget all the samples.
+     */
+    @Managed(description = "Forget all the samples of the pool metrics.")
+    public synchronized void reset() {
+        next = 0;
+        size = 0;
+    }
+
+    /**
+     * Get the samples as open data.
+     *
+     * @return the samples, indexed by timestamp, times in milliseconds.
+     */
+    public synchronized TabularData toTabularData() {
+        final TabularDataSupport table = new TabularDataSupport(TABLE_TYPE);
+        for (int i = 0; i < size; i++) {
+            final int index = (next - size + i + capacity) % capacity;
+            if (table.containsKey(new Object[]{timestamps[index]})) {
+                // Two samples in the same millisecond, e.g. if the clock was set back
+                continue;
+            }
+            try {
+                table.put(new CompositeDataSupport(ROW_TYPE, ITEM_NAMES, new Object[]{
+                        timestamps[index],
+                        active[index],
+                        idle[index],
+                        waiters[index],
+                        borrows[index],
+                        timeouts[index],
+                        waitP99[index]
+                }));
+            } catch (OpenDataException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+        return table;
+    }
+}
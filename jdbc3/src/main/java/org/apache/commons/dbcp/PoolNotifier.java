@@ -0,0 +1,315 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+
+import javax.management.MBeanNotificationInfo;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emits the JMX notifications of a {@link ManagedBasicDataSource}.
+ * <p/>
+ * <p>The borrowing threads only count events in atomic counters. Delivery happens on a shared daemon thread, at most
+ * once per {@link #getNotificationInterval() interval} for each notification type: the events that occur in between
+ * are coalesced into the next notification, whose user data is the number of occurrences it stands for.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @see ManagedBasicDataSource#NOTIFICATION_POOL_EXHAUSTED
+ * @see ManagedBasicDataSource#NOTIFICATION_SLOW_BORROW
+ * @see ManagedBasicDataSource#NOTIFICATION_BORROW_TIMEOUT
+ * @since 0.2.5
+ */
+class PoolNotifier extends NotificationBroadcasterSupport {
+
+    /**
+     * The default minimum number of milliseconds between two notifications of the same type.
+     */
+    static final long DEFAULT_NOTIFICATION_INTERVAL = 1000L;
+
+    /**
+     * The message of the {@link NoSuchElementException} thrown when no connection became idle within
+     * <code>maxWait</code>, by the pool and the {@link BorrowQueue}.
+     */
+    static final String TIMEOUT_MESSAGE = "Timeout waiting for idle object";
+
+    /**
+     * The thread delivering the notifications of all the datasources, created on first use.
+     */
+    private static ScheduledExecutorService dispatcher;
+
+    /**
+     * The statistics of the datasource.
+     */
+    private final PoolStatistics statistics;
+
+    /**
+     * The pool exhaustion notifications.
+     */
+    private final Channel exhausted = new Channel(ManagedBasicDataSource.NOTIFICATION_POOL_EXHAUSTED,
+                                                  "All the connections of the pool are in use");
+
+    /**
+     * The slow borrow notifications.
+     */
+    private final Channel slowBorrow = new Channel(ManagedBasicDataSource.NOTIFICATION_SLOW_BORROW,
+                                                   "Getting a connection took longer than the borrow wait threshold");
+
+    /**
+     * The borrow timeout notifications.
+     */
+    private final Channel borrowTimeout = new Channel(ManagedBasicDataSource.NOTIFICATION_BORROW_TIMEOUT,
+                                                      "Timed out waiting for a connection");
+
+    /**
+     * The sequence number of the last notification.
+     */
+    private final AtomicLong sequenceNumber = new AtomicLong();
+
+    /**
+     * The source of the notifications.
+     */
+    private volatile Object source = this;
+
+    /**
+     * The number of milliseconds above which a borrow is notified as slow, 0 or less to disable.
+     */
+    private volatile long borrowWaitThreshold;
+
+    /**
+     * The minimum number of milliseconds between two notifications of the same type.
+     */
+    private volatile long notificationInterval = DEFAULT_NOTIFICATION_INTERVAL;
+
+    /**
+     * Build a new {@link PoolNotifier}.
+     *
+     * @param statistics the statistics of the datasource.
+     */
+    PoolNotifier(PoolStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Get the thread delivering the notifications, creating it if needed.
+     *
+     * @return the dispatcher.
+     */
+    private static synchronized ScheduledExecutorService getDispatcher() {
+        if (dispatcher == null) {
+            dispatcher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("commons-dbcp-jmx-notifications"));
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Set the source of the notifications, usually the MBean name.
+     *
+     * @param source the notification source.
+     */
+    void setSource(Object source) {
+        this.source = source;
+    }
+
+    /**
+     * Get the number of milliseconds above which a borrow is notified as slow.
+     *
+     * @return the borrow wait threshold, 0 or less if disabled.
+     */
+    long getBorrowWaitThreshold() {
+        return borrowWaitThreshold;
+    }
+
+    /**
+     * Set the number of milliseconds above which a borrow is notified as slow.
+     *
+     * @param borrowWaitThreshold the new threshold, 0 or less to disable.
+     */
+    void setBorrowWaitThreshold(long borrowWaitThreshold) {
+        this.borrowWaitThreshold = borrowWaitThreshold;
+    }
+
+    /**
+     * Get the minimum number of milliseconds between two notifications of the same type.
+     *
+     * @return the notification interval.
+     */
+    long getNotificationInterval() {
+        return notificationInterval;
+    }
+
+    /**
+     * Set the minimum number of milliseconds between two notifications of the same type.
+     *
+     * @param notificationInterval the new interval, 0 to deliver every event.
+     */
+    void setNotificationInterval(long notificationInterval) {
+        if (notificationInterval < 0) {
+            throw new IllegalArgumentException("notificationInterval must not be negative: " + notificationInterval);
+        }
+        this.notificationInterval = notificationInterval;
+    }
+
+    /**
+     * Record a successful borrow.
+     * <p/>
+     * <p>Exhaustion is first estimated from the borrow and return counters, then confirmed with the active gauge.</p>
+     *
+     * @param waitNanos the time spent in {@link ManagedBasicDataSource#getConnection()}, in nanoseconds.
+     */
+    void borrowed(long waitNanos) {
+        final long threshold = borrowWaitThreshold;
+        if (threshold > 0 && waitNanos > threshold * 1000000L) {
+            slowBorrow.fire();
+        }
+        final int maxActive = statistics.getMaxActive();
+        if (maxActive > 0
+            && statistics.getBorrowedCount() - statistics.getReturnedCount() >= maxActive
+            && statistics.getNumActive() >= maxActive) {
+            exhausted.fire();
+        }
+    }
+
+    /**
+     * Whether a borrow failure is a timeout waiting for an idle connection.
+     *
+     * @param failure the exception thrown by the pool.
+     * @return true if it was caused by a {@link NoSuchElementException} with the {@link #TIMEOUT_MESSAGE}.
+     */
+    static boolean isTimeout(Exception failure) {
+        final Throwable cause = failure.getCause();
+        return cause instanceof NoSuchElementException && TIMEOUT_MESSAGE.equals(cause.getMessage());
+    }
+
+    /**
+     * Record a failed borrow.
+     * <p/>
+     * <p>The pool reports both timeouts and validation failures with a {@link NoSuchElementException}, only the
+     * failures with the {@link #TIMEOUT_MESSAGE timeout message} are counted and notified as timeouts. The time waited
+     * is not checked: the pool measures <code>maxWait</code> with {@link System#currentTimeMillis()}, whose coarse
+     * ticks can end the wait slightly before it has elapsed on {@link System#nanoTime()}.</p>
+     *
+     * @param cause the exception thrown by the pool.
+     */
+    void borrowFailed(Exception cause) {
+        if (isTimeout(cause)) {
+            statistics.borrowTimedOut();
+            borrowTimeout.fire();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MBeanNotificationInfo[] getNotificationInfo() {
+        return new MBeanNotificationInfo[]{
+                new MBeanNotificationInfo(new String[]{
+                        ManagedBasicDataSource.NOTIFICATION_POOL_EXHAUSTED,
+                        ManagedBasicDataSource.NOTIFICATION_SLOW_BORROW,
+                        ManagedBasicDataSource.NOTIFICATION_BORROW_TIMEOUT
+                }, Notification.class.getName(), "Pool exhaustion and slow or timed out borrows, rate-limited. " +
+                                                 "The user data is the number of coalesced occurrences.")
+        };
+    }
+
+    /**
+     * The coalescing state of a notification type.
+     */
+    private final class Channel implements Runnable {
+
+        /**
+         * The notification type.
+         */
+        private final String type;
+
+        /**
+         * The notification message.
+         */
+        private final String message;
+
+        /**
+         * The number of events not notified yet.
+         */
+        private final AtomicLong pending = new AtomicLong();
+
+        /**
+         * Whether a delivery is scheduled.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * The time of the last delivery, from {@link System#currentTimeMillis()}.
+         */
+        private volatile long lastSent;
+
+        /**
+         * Build a new {@link Channel}.
+         *
+         * @param type    the notification type.
+         * @param message the notification message.
+         */
+        Channel(String type, String message) {
+            this.type = type;
+            this.message = message;
+        }
+
+        /**
+         * Count an event, and schedule its delivery unless one is already scheduled.
+         */
+        void fire() {
+            pending.incrementAndGet();
+            schedule();
+        }
+
+        /**
+         * Schedule a delivery unless one is already scheduled, no sooner than the notification interval after the
+         * last one.
+         */
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                final long delay = lastSent + notificationInterval - System.currentTimeMillis();
+                getDispatcher().schedule(this, Math.max(0, delay), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Deliver the pending events as a single notification.
+         */
+        public void run() {
+            final long count = pending.getAndSet(0);
+            if (count > 0) {
+                lastSent = System.currentTimeMillis();
+                final Notification notification = new Notification(type, source, sequenceNumber.incrementAndGet(), lastSent,
+                                                                   message + " (" + count + " occurrence" +
+                                                                   (count > 1 ? "s" : "") + ")");
+                notification.setUserData(count);
+                sendNotification(notification);
+            }
+            scheduled.set(false);
+            // Events counted while delivering found a delivery scheduled and left it to us
+            if (pending.get() > 0) {
+                schedule();
+            }
+        }
+    }
+}
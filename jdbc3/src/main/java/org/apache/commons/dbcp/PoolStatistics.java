@@ -0,0 +1,396 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free statistics of a {@link ManagedBasicDataSource}.
+ * <p/>
+ * All the state is kept in volatile or atomic fields, so it can be updated from the borrow path and read from JMX
+ * without ever taking the datasource monitor nor the pool one. The active and idle gauges are mirrored by the
+ * {@link CountingObjectPool}. Use {@link #snapshot()} to get an immutable view.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @see PoolStatisticsSnapshot
+ * @since 0.2.5
+ */
+public class PoolStatistics {
+
+    /**
+     * The number of successful {@link ManagedBasicDataSource#getConnection()} calls.
+     */
+    private final AtomicLong borrowedCount = new AtomicLong();
+
+    /**
+     * The number of {@link ManagedBasicDataSource#getConnection()} calls that threw an exception.
+     */
+    private final AtomicLong failedBorrowCount = new AtomicLong();
+
+    /**
+     * The number of {@link ManagedBasicDataSource#getConnection()} calls that timed out after <code>maxWait</code>.
+     */
+    private final AtomicLong borrowTimeoutCount = new AtomicLong();
+
+    /**
+     * The time spent waiting in {@link ManagedBasicDataSource#getConnection()}, successful or not.
+     */
+    private final LatencyHistogram borrowWait = new LatencyHistogram();
+
+    /**
+     * The number of connections given back by the application.
+     */
+    private final AtomicLong returnedCount = new AtomicLong();
+
+    /**
+     * The time connections were held by the application, between borrow and close.
+     */
+    private final LatencyHistogram holdTime = new LatencyHistogram();
+
+    /**
+     * The time taken to open new physical connections.
+     */
+    private final LatencyHistogram connectionCreateTime = new LatencyHistogram();
+
+    /**
+     * The number of connections held longer than {@link #longHoldThreshold}.
+     */
+    private final AtomicLong longHoldCount = new AtomicLong();
+
+    /**
+     * The hold time above which a connection is counted in {@link #longHoldCount}, in milliseconds. Disabled if not
+     * positive.
+     */
+    private volatile long longHoldThreshold = 0;
+
+    /**
+     * The number of connections borrowed from the pool and not given back yet.
+     */
+    private final AtomicInteger numActive = new AtomicInteger();
+
+    /**
+     * The number of connections opened by the pool and not destroyed yet, active or idle.
+     */
+    private final AtomicInteger numOpen = new AtomicInteger();
+
+    /**
+     * Mirror of the datasource maxActive setting.
+     */
+    private volatile int maxActive = GenericObjectPool.DEFAULT_MAX_ACTIVE;
+
+    /**
+     * Mirror of the datasource maxIdle setting.
+     */
+    private volatile int maxIdle = GenericObjectPool.DEFAULT_MAX_IDLE;
+
+    /**
+     * Mirror of the datasource minIdle setting.
+     */
+    private volatile int minIdle = GenericObjectPool.DEFAULT_MIN_IDLE;
+
+    /**
+     * Mirror of the datasource maxWait setting.
+     */
+    private volatile long maxWait = GenericObjectPool.DEFAULT_MAX_WAIT;
+
+    /**
+     * Record a successful borrow.
+     *
+     * @param waitNanos the time spent getting the connection, in nanoseconds.
+     */
+    public void borrowed(long waitNanos) {
+        borrowWait.recordNanos(waitNanos);
+        borrowedCount.incrementAndGet();
+    }
+
+    /**
+     * Record a failed borrow.
+     *
+     * @param waitNanos the time spent before failing, in nanoseconds.
+     */
+    public void borrowFailed(long waitNanos) {
+        borrowWait.recordNanos(waitNanos);
+        failedBorrowCount.incrementAndGet();
+    }
+
+    /**
+     * Record a failed borrow that timed out, in addition to {@link #borrowFailed(long)}.
+     */
+    public void borrowTimedOut() {
+        borrowTimeoutCount.incrementAndGet();
+    }
+
+    /**
+     * Record a connection given back by the application.
+     *
+     * @param holdNanos the time the connection was held, in nanoseconds.
+     */
+    public void returned(long holdNanos) {
+        holdTime.recordNanos(holdNanos);
+        returnedCount.incrementAndGet();
+        final long threshold = longHoldThreshold;
+        if (threshold > 0 && holdNanos > threshold * 1000000L) {
+            longHoldCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record a new physical connection.
+     *
+     * @param createNanos the time taken to open the connection, in nanoseconds.
+     */
+    public void connectionCreated(long createNanos) {
+        connectionCreateTime.recordNanos(createNanos);
+    }
+
+    /**
+     * Record a connection opened by the pool.
+     */
+    public void connectionOpened() {
+        numOpen.incrementAndGet();
+    }
+
+    /**
+     * Record a connection destroyed by the pool.
+     */
+    public void connectionDestroyed() {
+        numOpen.decrementAndGet();
+    }
+
+    /**
+     * Record a connection borrowed from the pool.
+     */
+    public void connectionActivated() {
+        numActive.incrementAndGet();
+    }
+
+    /**
+     * Record a connection given back to the pool, returned or invalidated.
+     */
+    public void connectionReleased() {
+        numActive.decrementAndGet();
+    }
+
+    /**
+     * Get the number of successful borrows.
+     *
+     * @return the number of connections handed out so far.
+     */
+    public long getBorrowedCount() {
+        return borrowedCount.get();
+    }
+
+    /**
+     * Get the number of failed borrows.
+     *
+     * @return the number of borrow attempts that threw an exception so far.
+     */
+    public long getFailedBorrowCount() {
+        return failedBorrowCount.get();
+    }
+
+    /**
+     * Get the number of failed borrows that timed out.
+     *
+     * @return the number of borrow attempts that timed out so far.
+     */
+    public long getBorrowTimeoutCount() {
+        return borrowTimeoutCount.get();
+    }
+
+    /**
+     * Get the number of connections given back by the application.
+     *
+     * @return the number of connections closed by the application so far.
+     */
+    public long getReturnedCount() {
+        return returnedCount.get();
+    }
+
+    /**
+     * Get the histogram of the time connections were held by the application.
+     *
+     * @return the hold time histogram.
+     */
+    public LatencyHistogram getHoldTime() {
+        return holdTime;
+    }
+
+    /**
+     * Get the histogram of the time taken to open new physical connections.
+     *
+     * @return the connection creation time histogram.
+     */
+    public LatencyHistogram getConnectionCreateTime() {
+        return connectionCreateTime;
+    }
+
+    /**
+     * Get the number of connections held longer than the long hold threshold.
+     *
+     * @return the number of long holds so far.
+     */
+    public long getLongHoldCount() {
+        return longHoldCount.get();
+    }
+
+    /**
+     * Get the hold time above which a connection is counted as a long hold.
+     *
+     * @return the threshold in milliseconds, not positive if disabled.
+     */
+    public long getLongHoldThreshold() {
+        return longHoldThreshold;
+    }
+
+    /**
+     * Set the hold time above which a connection is counted as a long hold.
+     *
+     * @param longHoldThreshold the threshold in milliseconds, zero or negative to disable.
+     */
+    public void setLongHoldThreshold(long longHoldThreshold) {
+        this.longHoldThreshold = longHoldThreshold;
+    }
+
+    /**
+     * Get the histogram of the time spent getting connections.
+     *
+     * @return the borrow wait time histogram.
+     */
+    public LatencyHistogram getBorrowWait() {
+        return borrowWait;
+    }
+
+    /**
+     * Get the mirrored maxActive setting.
+     *
+     * @return the last value passed to {@link #setMaxActive(int)}.
+     */
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    /**
+     * Mirror the maxActive setting, so it can be read without the datasource monitor.
+     *
+     * @param maxActive the new value for maxActive.
+     */
+    public void setMaxActive(int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    /**
+     * Get the mirrored maxIdle setting.
+     *
+     * @return the last value passed to {@link #setMaxIdle(int)}.
+     */
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Mirror the maxIdle setting, so it can be read without the datasource monitor.
+     *
+     * @param maxIdle the new value for maxIdle.
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Get the mirrored minIdle setting.
+     *
+     * @return the last value passed to {@link #setMinIdle(int)}.
+     */
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * Mirror the minIdle setting, so it can be read without the datasource monitor.
+     *
+     * @param minIdle the new value for minIdle.
+     */
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * Get the mirrored maxWait setting.
+     *
+     * @return the last value passed to {@link #setMaxWait(long)}.
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Mirror the maxWait setting, so it can be read without the datasource monitor.
+     *
+     * @param maxWait the new value for maxWait.
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Get the current number of active connections.
+     *
+     * @return the number of connections borrowed from the pool and not given back yet.
+     */
+    public int getNumActive() {
+        return Math.max(0, numActive.get());
+    }
+
+    /**
+     * Get the current number of idle connections.
+     * <p/>
+     * <p>Derived from the open and active counters, which are updated one after the other: it may briefly be off by
+     * the connections being created, borrowed or given back at the time.</p>
+     *
+     * @return the number of connections opened by the pool that are not active.
+     */
+    public int getNumIdle() {
+        return Math.max(0, numOpen.get() - numActive.get());
+    }
+
+    /**
+     * Capture an immutable view of these statistics.
+     * <p/>
+     * <p>The gauges and counters are read one after the other, without any lock. The active counter is read once, so
+     * the active and idle gauges of a snapshot never add up to more than the open connections.</p>
+     *
+     * @return a new snapshot.
+     */
+    public PoolStatisticsSnapshot snapshot() {
+        final int active = Math.max(0, numActive.get());
+        final int open = numOpen.get();
+        return new PoolStatisticsSnapshot(System.currentTimeMillis(),
+                                          active,
+                                          Math.max(0, open - active),
+                                          maxActive,
+                                          maxIdle,
+                                          minIdle,
+                                          maxWait,
+                                          borrowedCount.get(),
+                                          failedBorrowCount.get(),
+                                          returnedCount.get(),
+                                          longHoldCount.get());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Handler for the {@link Connection} proxies handed out by {@link ManagedRoutingDataSource#getConnection()}.
+ * <p/>
+ * <p>Only borrows a connection on its first use, so that {@link Connection#setReadOnly(boolean)} can be called before
+ * to route it to a replica. Everything is then delegated to the borrowed connection, except making a connection routed
+ * to a replica writable, which is rejected so that writes never reach a replica.</p>
+ * <p/>
+ * <p>Like connections, instances are not meant to be used by several threads at once.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+class RoutingConnection implements InvocationHandler {
+
+    /**
+     * The datasource that routes the connection.
+     */
+    private final ManagedRoutingDataSource dataSource;
+
+    /**
+     * The borrowed connection, <code>null</code> until the first use.
+     */
+    private Connection delegate;
+
+    /**
+     * Whether the connection was marked read-only before it was borrowed.
+     */
+    private boolean readOnly;
+
+    /**
+     * Whether the borrowed connection comes from a replica.
+     */
+    private boolean replica;
+
+    /**
+     * Whether the connection was closed before it was borrowed.
+     */
+    private boolean closed;
+
+    /**
+     * Build a new {@link RoutingConnection}.
+     *
+     * @param dataSource the datasource that routes the connection.
+     */
+    RoutingConnection(ManagedRoutingDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Get the borrowed connection, borrowing it from the target matching the read-only flag if needed.
+     *
+     * @return the connection.
+     * @throws SQLException if the connection is closed or could not be borrowed.
+     */
+    private Connection getDelegate() throws SQLException {
+        if (delegate == null) {
+            if (closed) {
+                throw new SQLException("Connection is closed.");
+            }
+            if (readOnly) {
+                final Connection connection = dataSource.getReadConnection();
+                try {
+                    connection.setReadOnly(true);
+                } catch (SQLException e) {
+                    connection.close();
+                    throw e;
+                }
+                delegate = connection;
+                replica = dataSource.getReplicas() > 0;
+            } else {
+                delegate = dataSource.getWriteConnection();
+            }
+        }
+        return delegate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final String name = method.getName();
+        if (args == null) {
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name)) {
+                return delegate == null ? "Unused routing connection, read-only: " + readOnly : delegate.toString();
+            }
+        } else if ("equals".equals(name) && args.length == 1) {
+            return proxy == args[0];
+        }
+        if (delegate == null) {
+            if ("setReadOnly".equals(name)) {
+                if (closed) {
+                    throw new SQLException("Connection is closed.");
+                }
+                readOnly = (Boolean) args[0];
+                return null;
+            } else if ("isReadOnly".equals(name)) {
+                return readOnly;
+            } else if ("isClosed".equals(name)) {
+                return closed;
+            } else if ("close".equals(name)) {
+                closed = true;
+                return null;
+            }
+        } else if (replica && "setReadOnly".equals(name) && !(Boolean) args[0]) {
+            throw new SQLException("Connection is routed to a replica and cannot be made writable, " +
+                                   "get another connection to write.");
+        }
+        try {
+            return method.invoke(getDelegate(), args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import javax.management.openmbean.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded per-SQL execution statistics.
+ * <p/>
+ * <p>Statements are grouped by fingerprint, i.e. their SQL with literals replaced by <code>?</code> (see
+ * {@link #fingerprint(String)}). At most {@link #getCapacity()} fingerprints are tracked, using the space-saving
+ * algorithm: when a new fingerprint comes in and the table is full, the entry with the lowest total time is evicted,
+ * and the new entry inherits the evicted total as its error bound. Heavy statements therefore always stay in the
+ * table, whatever the number of distinct SQL strings the application generates.</p>
+ * <p/>
+ * <p>Recording into an already tracked fingerprint is lock-free, only admitting a new fingerprint is synchronized.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class SqlStatistics {
+
+    /**
+     * The default maximum number of tracked fingerprints.
+     */
+    public static final int DEFAULT_CAPACITY = 100;
+
+    /**
+     * The number of statements reported by {@link #toTabularData(int)} when used as an MBean attribute.
+     */
+    public static final int TOP_SIZE = 20;
+
+    /**
+     * Fingerprints longer than this are truncated.
+     */
+    static final int MAX_FINGERPRINT_LENGTH = 2048;
+
+    /**
+     * The names of the items of {@link #ROW_TYPE}.
+     */
+    private static final String[] ITEM_NAMES = {
+            "fingerprint", "count", "totalTime", "totalTimeError", "meanTime", "maxTime", "p50", "p99"
+    };
+
+    /**
+     * The open type of a row of {@link #toTabularData(int)}.
+     */
+    private static final CompositeType ROW_TYPE;
+
+    /**
+     * The open type of {@link #toTabularData(int)}.
+     */
+    private static final TabularType TABLE_TYPE;
+
+    static {
+        try {
+            ROW_TYPE = new CompositeType("SqlStatistics",
+                                         "Execution statistics of a SQL fingerprint, times in milliseconds",
+                                         ITEM_NAMES,
+                                         new String[]{
+                                                 "The SQL with literals replaced by ?",
+                                                 "The number of executions",
+                                                 "The total execution time",
+                                                 "The maximum overestimation of totalTime, inherited from evicted fingerprints",
+                                                 "The mean execution time",
+                                                 "The maximum execution time",
+                                                 "The median execution time",
+                                                 "The 99th percentile of the execution time"
+                                         },
+                                         new OpenType<?>[]{
+                                                 SimpleType.STRING, SimpleType.LONG, SimpleType.DOUBLE, SimpleType.DOUBLE,
+                                                 SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE
+                                         });
+            TABLE_TYPE = new TabularType("SqlStatisticsTable",
+                                         "SQL fingerprints by descending total execution time",
+                                         ROW_TYPE,
+                                         new String[]{"fingerprint"});
+        } catch (OpenDataException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Orders entries by descending weight.
+     */
+    private static final Comparator<Entry> BY_WEIGHT = new Comparator<Entry>() {
+        public int compare(Entry entry1, Entry entry2) {
+            final long weight1 = entry1.getWeight();
+            final long weight2 = entry2.getWeight();
+            return weight1 < weight2 ? 1 : (weight1 == weight2 ? 0 : -1);
+        }
+    };
+
+    /**
+     * The tracked entries, by fingerprint.
+     */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The maximum number of tracked fingerprints.
+     */
+    private volatile int capacity = DEFAULT_CAPACITY;
+
+    /**
+     * Get the maximum number of tracked fingerprints.
+     *
+     * @return the capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the maximum number of tracked fingerprints. Lowering it takes effect when the next fingerprint is admitted.
+     *
+     * @param capacity the new capacity, at least 1.
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get the number of tracked fingerprints.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Record an execution.
+     *
+     * @param fingerprint the fingerprint of the executed SQL, see {@link #fingerprint(String)}.
+     * @param nanos       the execution time, in nanoseconds.
+     */
+    public void record(String fingerprint, long nanos) {
+        Entry entry = entries.get(fingerprint);
+        if (entry == null) {
+            entry = admit(fingerprint);
+        }
+        entry.times.recordNanos(nanos);
+    }
+
+    /**
+     * Get or create the entry for a fingerprint, evicting the lightest entries if needed.
+     * <p/>
+     * <p>Evicted entries are never reused: a thread that looked an entry up just before it was evicted records into
+     * the detached entry, never under another fingerprint.</p>
+     *
+     * @param fingerprint the fingerprint.
+     * @return the entry.
+     */
+    private synchronized Entry admit(String fingerprint) {
+        Entry entry = entries.get(fingerprint);
+        if (entry != null) {
+            return entry;
+        }
+        Entry evicted = null;
+        while (entries.size() >= capacity) {
+            Entry lightest = null;
+            for (Entry candidate : entries.values()) {
+                if (lightest == null || candidate.getWeight() < lightest.getWeight()) {
+                    lightest = candidate;
+                }
+            }
+            entries.remove(lightest.fingerprint);
+            evicted = lightest;
+        }
+        entry = new Entry(fingerprint, evicted == null ? 0L : evicted.getWeight());
+        entries.put(fingerprint, entry);
+        return entry;
+    }
+
+    /**
+     * Forget all the tracked fingerprints.
+     */
+    public synchronized void reset() {
+        entries.clear();
+    }
+
+    /**
+     * Get the heaviest tracked entries.
+     *
+     * @param count the maximum number of entries to return.
+     * @return the entries with the highest total time, by descending total time.
+     */
+    public List<Entry> top(int count) {
+        final List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        Collections.sort(sorted, BY_WEIGHT);
+        return sorted.size() > count ? sorted.subList(0, count) : sorted;
+    }
+
+    /**
+     * Get the heaviest tracked entries as open data.
+     *
+     * @param count the maximum number of entries to return.
+     * @return a table of {@link #top(int)}, times in milliseconds.
+     */
+    public TabularData toTabularData(int count) {
+        final TabularDataSupport table = new TabularDataSupport(TABLE_TYPE);
+        for (Entry entry : top(count)) {
+            try {
+                table.put(new CompositeDataSupport(ROW_TYPE, ITEM_NAMES, new Object[]{
+                        entry.fingerprint,
+                        entry.times.getCount(),
+                        entry.getWeight() / 1000d,
+                        entry.error / 1000d,
+                        entry.times.getMean(),
+                        entry.times.getMax(),
+                        entry.times.getP50(),
+                        entry.times.getP99()
+                }));
+            } catch (OpenDataException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Compute the fingerprint of a SQL statement.
+     * <p/>
+     * <p>String and numeric literals are replaced by <code>?</code>, lists of literals or placeholders such as
+     * <code>IN (1, 2, 3)</code> are collapsed into <code>IN (?)</code>, comments are dropped, whitespace is collapsed and
+     * everything but quoted identifiers is lower-cased.</p>
+     *
+     * @param sql the SQL statement.
+     * @return the fingerprint.
+     */
+    public static String fingerprint(String sql) {
+        if (sql == null) {
+            return "";
+        }
+        final int length = sql.length();
+        final StringBuilder fingerprint = new StringBuilder(Math.min(length, MAX_FINGERPRINT_LENGTH));
+        int i = 0;
+        while (i < length && fingerprint.length() < MAX_FINGERPRINT_LENGTH) {
+            final char c = sql.charAt(i);
+            if (c == '\'') {
+                // String literal, '' is an escaped quote
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                appendPlaceholder(fingerprint);
+            } else if (c == '"' || c == '`') {
+                // Quoted identifier, kept as is
+                final int end = sql.indexOf(c, i + 1);
+                final int next = end < 0 ? length : end + 1;
+                fingerprint.append(sql, i, next);
+                i = next;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                final int end = sql.indexOf('\n', i);
+                i = end < 0 ? length : end;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                final int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+                appendSpace(fingerprint);
+            } else if (c == '?') {
+                appendPlaceholder(fingerprint);
+                i++;
+            } else if (Character.isWhitespace(c)) {
+                appendSpace(fingerprint);
+                i++;
+            } else if (Character.isDigit(c) && !endsWithIdentifier(fingerprint)) {
+                // Numeric literal, including decimals, exponents and hexadecimal
+                i++;
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                appendPlaceholder(fingerprint);
+            } else {
+                fingerprint.append(Character.toLowerCase(c));
+                i++;
+            }
+        }
+        int end = fingerprint.length();
+        while (end > 0 && fingerprint.charAt(end - 1) == ' ') {
+            end--;
+        }
+        fingerprint.setLength(end);
+        return fingerprint.toString();
+    }
+
+    /**
+     * Append a space to a fingerprint, unless it is empty or already ends with one.
+     *
+     * @param fingerprint the fingerprint being built.
+     */
+    private static void appendSpace(StringBuilder fingerprint) {
+        final int length = fingerprint.length();
+        if (length > 0 && fingerprint.charAt(length - 1) != ' ') {
+            fingerprint.append(' ');
+        }
+    }
+
+    /**
+     * Whether a fingerprint ends with an identifier character, in which case a digit is part of the identifier.
+     *
+     * @param fingerprint the fingerprint being built.
+     * @return true if the last character is a letter, a digit, <code>_</code> or <code>$</code>.
+     */
+    private static boolean endsWithIdentifier(StringBuilder fingerprint) {
+        final int length = fingerprint.length();
+        if (length == 0) {
+            return false;
+        }
+        final char last = fingerprint.charAt(length - 1);
+        return Character.isLetterOrDigit(last) || last == '_' || last == '$';
+    }
+
+    /**
+     * Append a <code>?</code> placeholder to a fingerprint, collapsing it into the previous one if they are only
+     * separated by a comma.
+     *
+     * @param fingerprint the fingerprint being built.
+     */
+    private static void appendPlaceholder(StringBuilder fingerprint) {
+        int i = fingerprint.length() - 1;
+        while (i >= 0 && fingerprint.charAt(i) == ' ') {
+            i--;
+        }
+        if (i >= 0 && fingerprint.charAt(i) == ',') {
+            int j = i - 1;
+            while (j >= 0 && fingerprint.charAt(j) == ' ') {
+                j--;
+            }
+            if (j >= 0 && fingerprint.charAt(j) == '?') {
+                fingerprint.setLength(j + 1);
+                return;
+            }
+        }
+        fingerprint.append('?');
+    }
+
+    /**
+     * Statistics of a SQL fingerprint.
+     */
+    public static final class Entry {
+
+        /**
+         * The fingerprint.
+         */
+        private final String fingerprint;
+
+        /**
+         * The total time inherited from the entry evicted to admit this one, in microseconds.
+         */
+        private final long error;
+
+        /**
+         * The execution times.
+         */
+        private final LatencyHistogram times = new LatencyHistogram();
+
+        /**
+         * Build a new {@link Entry}.
+         *
+         * @param fingerprint the fingerprint.
+         * @param error       the total time inherited from the evicted entry, in microseconds.
+         */
+        private Entry(String fingerprint, long error) {
+            this.fingerprint = fingerprint;
+            this.error = error;
+        }
+
+        /**
+         * Get the fingerprint.
+         *
+         * @return the SQL fingerprint.
+         */
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * Get the execution times.
+         *
+         * @return the execution time histogram.
+         */
+        public LatencyHistogram getTimes() {
+            return times;
+        }
+
+        /**
+         * Get the maximum overestimation of {@link #getWeight()}.
+         *
+         * @return the inherited total time, in microseconds.
+         */
+        public long getError() {
+            return error;
+        }
+
+        /**
+         * Get the total execution time, as counted by the space-saving algorithm.
+         *
+         * @return the total time including {@link #getError()}, in microseconds.
+         */
+        public long getWeight() {
+            return error + times.getSumMicros();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.apache.commons.pool.BaseKeyedObjectPool;
+import org.apache.commons.pool.KeyedPoolableObjectFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The prepared statement pool of a connection, replacing the {@link org.apache.commons.pool.impl.GenericKeyedObjectPool}
+ * {@link BasicDataSource} uses.
+ * <p/>
+ * <p>Like it, it keeps at most one idle statement per SQL and limits the statements open on the connection to
+ * <code>maxOpenPreparedStatements</code>. It additionally limits the idle statements to the
+ * {@link StatementCacheStatistics#getCapacity() capacity}, closing the least recently used ones, and records hits,
+ * misses and evictions.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+class StatementCache extends BaseKeyedObjectPool {
+
+    /**
+     * The statistics shared by the caches of the datasource.
+     */
+    private final StatementCacheStatistics statistics;
+
+    /**
+     * The maximum number of statements open on the connection, 0 or less for no limit.
+     */
+    private final int maxOpen;
+
+    /**
+     * The idle statements by key, least recently used first.
+     */
+    private final LinkedHashMap<Object, Object> idle = new LinkedHashMap<Object, Object>();
+
+    /**
+     * The connection, which creates the statements.
+     */
+    private KeyedPoolableObjectFactory factory;
+
+    /**
+     * The number of statements in use.
+     */
+    private int active;
+
+    /**
+     * Build a new {@link StatementCache}.
+     *
+     * @param statistics the statistics shared by the caches of the datasource.
+     * @param maxOpen    the maximum number of statements open on the connection, 0 or less for no limit.
+     */
+    StatementCache(StatementCacheStatistics statistics, int maxOpen) {
+        this.statistics = statistics;
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setFactory(KeyedPoolableObjectFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>When <code>maxOpenPreparedStatements</code> is reached, the least recently used idle statement is closed to
+     * make room. If none is idle, a {@link NoSuchElementException} is thrown, like {@link BasicDataSource} does.</p>
+     */
+    @Override
+    public Object borrowObject(Object key) throws Exception {
+        Object statement;
+        Map.Entry<Object, Object> evicted = null;
+        synchronized (this) {
+            assertOpen();
+            statement = idle.remove(key);
+            if (statement != null) {
+                statistics.hit();
+            } else {
+                if (maxOpen > 0 && active + idle.size() >= maxOpen) {
+                    if (idle.isEmpty()) {
+                        throw new NoSuchElementException("MaxOpenPreparedStatements limit reached");
+                    }
+                    evicted = removeEldest();
+                }
+                statistics.miss();
+            }
+            active++;
+        }
+        if (evicted != null) {
+            destroy(evicted.getKey(), evicted.getValue());
+        }
+        try {
+            if (statement == null) {
+                statement = factory.makeObject(key);
+            }
+            factory.activateObject(key, statement);
+            return statement;
+        } catch (Exception e) {
+            synchronized (this) {
+                active--;
+            }
+            if (statement != null) {
+                destroy(key, statement);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>The least recently used idle statements above the capacity are closed.</p>
+     */
+    @Override
+    public void returnObject(Object key, Object statement) throws Exception {
+        boolean keep;
+        try {
+            factory.passivateObject(key, statement);
+            keep = true;
+        } catch (Exception e) {
+            keep = false;
+        }
+        final List<Map.Entry<Object, Object>> evicted = new ArrayList<Map.Entry<Object, Object>>(1);
+        synchronized (this) {
+            active--;
+            if (keep && !isClosed() && !idle.containsKey(key)) {
+                idle.put(key, statement);
+                statistics.added();
+                final int limit = statistics.getCapacity() > 0 ? statistics.getCapacity() : maxOpen;
+                while (limit > 0 && idle.size() > limit) {
+                    evicted.add(removeEldest());
+                }
+            } else {
+                keep = false;
+            }
+        }
+        if (!keep) {
+            destroy(key, statement);
+        }
+        for (Map.Entry<Object, Object> entry : evicted) {
+            destroy(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invalidateObject(Object key, Object statement) throws Exception {
+        synchronized (this) {
+            active--;
+        }
+        destroy(key, statement);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int getNumIdle() {
+        return idle.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int getNumActive() {
+        return active;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        final List<Map.Entry<Object, Object>> cleared;
+        synchronized (this) {
+            cleared = new ArrayList<Map.Entry<Object, Object>>(idle.entrySet());
+            idle.clear();
+        }
+        for (Map.Entry<Object, Object> entry : cleared) {
+            statistics.removed(false);
+            destroy(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Closes the idle statements, the ones in use are closed when returned.</p>
+     */
+    @Override
+    public void close() throws Exception {
+        synchronized (this) {
+            super.close();
+        }
+        clear();
+    }
+
+    /**
+     * Remove the least recently used idle statement.
+     *
+     * @return the removed key and statement.
+     */
+    private Map.Entry<Object, Object> removeEldest() {
+        final Iterator<Map.Entry<Object, Object>> iterator = idle.entrySet().iterator();
+        final Map.Entry<Object, Object> eldest = iterator.next();
+        final Map.Entry<Object, Object> removed = new Entry(eldest.getKey(), eldest.getValue());
+        iterator.remove();
+        statistics.removed(true);
+        return removed;
+    }
+
+    /**
+     * Close a statement.
+     *
+     * @param key       the statement key.
+     * @param statement the statement.
+     */
+    private void destroy(Object key, Object statement) {
+        try {
+            factory.destroyObject(key, statement);
+        } catch (Exception e) {
+            // The statement is discarded anyway
+        }
+    }
+
+    /**
+     * A key and statement removed from the cache.
+     */
+    private static final class Entry implements Map.Entry<Object, Object> {
+
+        /**
+         * The statement key.
+         */
+        private final Object key;
+
+        /**
+         * The statement.
+         */
+        private final Object value;
+
+        /**
+         * Build a new {@link Entry}.
+         *
+         * @param key   the statement key.
+         * @param value the statement.
+         */
+        Entry(Object key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object getKey() {
+            return key;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object getValue() {
+            return value;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
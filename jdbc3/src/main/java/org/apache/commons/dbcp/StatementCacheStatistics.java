@@ -0,0 +1,177 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.weakref.jmx.Managed;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics and settings shared by the {@link StatementCache}s of all the connections of a datasource.
+ * <p/>
+ * <p>Only used when <code>poolPreparedStatements</code> is enabled.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class StatementCacheStatistics {
+
+    /**
+     * The number of statements found in a cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of statements that had to be prepared.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of statements closed to make room for more recently used ones.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The number of statements currently cached.
+     */
+    private final AtomicInteger cached = new AtomicInteger();
+
+    /**
+     * The maximum number of statements cached per connection, 0 or less to only be limited by
+     * <code>maxOpenPreparedStatements</code>.
+     */
+    private volatile int capacity;
+
+    /**
+     * Record a statement found in a cache.
+     */
+    void hit() {
+        hits.incrementAndGet();
+        cached.decrementAndGet();
+    }
+
+    /**
+     * Record a statement that had to be prepared.
+     */
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Record a statement put in a cache.
+     */
+    void added() {
+        cached.incrementAndGet();
+    }
+
+    /**
+     * Record a statement removed from a cache.
+     *
+     * @param evicted whether it was removed to make room for a more recently used one.
+     */
+    void removed(boolean evicted) {
+        cached.decrementAndGet();
+        if (evicted) {
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the number of statements found in a cache.
+     *
+     * @return the number of cache hits.
+     */
+    @Managed(description = "The number of prepared statements found in the cache of their connection.")
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of statements that had to be prepared.
+     *
+     * @return the number of cache misses.
+     */
+    @Managed(description = "The number of prepared statements that were not found in the cache of their connection.")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the ratio of statements found in a cache.
+     *
+     * @return the hits over the hits and misses, 0 if no statement was prepared.
+     */
+    @Managed(description = "The ratio of prepared statements found in the cache of their connection.")
+    public double getHitRatio() {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+        return total == 0 ? 0d : (double) hitCount / total;
+    }
+
+    /**
+     * Get the number of statements closed to make room for more recently used ones.
+     *
+     * @return the number of evictions.
+     */
+    @Managed(description = "The number of cached prepared statements closed to make room for more recently used ones.")
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of statements currently cached, across all the connections.
+     *
+     * @return the number of cached statements.
+     */
+    @Managed(description = "The number of prepared statements currently cached, across all the connections.")
+    public int getCached() {
+        return cached.get();
+    }
+
+    /**
+     * Get the maximum number of statements cached per connection.
+     *
+     * @return the per-connection capacity, 0 or less if only limited by <code>maxOpenPreparedStatements</code>.
+     */
+    @Managed(description = "The maximum number of prepared statements cached per connection, 0 if only limited by maxOpenPreparedStatements.")
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the maximum number of statements cached per connection.
+     * <p/>
+     * <p>Caches above the new capacity shrink the next time a statement is returned to them.</p>
+     *
+     * @param capacity the per-connection capacity, 0 or less to only be limited by
+     *                 <code>maxOpenPreparedStatements</code>.
+     */
+    @Managed(description = "Set the maximum number of prepared statements cached per connection, 0 to only be limited by maxOpenPreparedStatements.")
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reset the hit, miss and eviction counters.
+     */
+    @Managed(description = "Reset the hit, miss and eviction counters.")
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+}
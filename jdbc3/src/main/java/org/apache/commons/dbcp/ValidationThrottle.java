@@ -0,0 +1,220 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
+
+import java.sql.Connection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Skips the validation of connections that were validated or given back by the application recently.
+ * <p/>
+ * <p>With <code>testOnBorrow</code>, every borrow runs the validation query, which often costs as much as the
+ * statement the connection is borrowed for. When an {@link #getInterval() interval} is set, a connection validated
+ * less than that many milliseconds ago, or given back by the application without error since, is considered valid
+ * without running the query. Time spent idle in the pool does not count as use: a connection only validated by the
+ * evictor is validated again once the interval elapsed.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class ValidationThrottle {
+
+    /**
+     * The time at which each pooled connection was last known to be valid, from {@link System#nanoTime()}. Entries
+     * are added on the first successful validation and removed when the connection is destroyed.
+     */
+    private final ConcurrentMap<Object, AtomicLong> lastValid = new ConcurrentHashMap<Object, AtomicLong>();
+
+    /**
+     * The number of validations that ran.
+     */
+    private final AtomicLong executed = new AtomicLong();
+
+    /**
+     * The number of validations skipped because the connection was recently known to be valid.
+     */
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * The number of validations that ran and failed.
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * The time taken by the validations that ran.
+     */
+    private final LatencyHistogram time = new LatencyHistogram();
+
+    /**
+     * The interval in milliseconds during which a connection is not validated again, 0 or less to always validate.
+     */
+    private volatile long interval;
+
+    /**
+     * Whether a pooled connection was known to be valid less than {@link #interval} ago, recording a skipped
+     * validation if so.
+     *
+     * @param connection the pooled connection.
+     * @return true if its validation can be skipped.
+     */
+    boolean skip(Object connection) {
+        final long millis = interval;
+        if (millis <= 0) {
+            return false;
+        }
+        final AtomicLong last = lastValid.get(connection);
+        if (last == null || System.nanoTime() - last.get() >= TimeUnit.MILLISECONDS.toNanos(millis)) {
+            return false;
+        }
+        skipped.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Record a validation that ran.
+     *
+     * @param connection the pooled connection.
+     * @param valid      whether it succeeded.
+     * @param nanos      the time it took.
+     */
+    void validated(Object connection, boolean valid, long nanos) {
+        executed.incrementAndGet();
+        time.recordNanos(nanos);
+        if (!valid) {
+            failed.incrementAndGet();
+            lastValid.remove(connection);
+            return;
+        }
+        final long now = System.nanoTime();
+        final AtomicLong last = lastValid.get(connection);
+        if (last != null) {
+            last.set(now);
+        } else {
+            lastValid.put(connection, new AtomicLong(now));
+        }
+    }
+
+    /**
+     * Record a connection is about to be given back by the application.
+     * <p/>
+     * <p>Only connections that were validated before are tracked, so nothing is recorded when validation is
+     * disabled.</p>
+     *
+     * @param connection the connection handed out by the pool, wrapping the pooled connection.
+     */
+    void used(Connection connection) {
+        if (interval <= 0 || !(connection instanceof DelegatingConnection)) {
+            return;
+        }
+        final Connection pooled = ((DelegatingConnection) connection).getDelegateInternal();
+        final AtomicLong last = pooled == null ? null : lastValid.get(pooled);
+        if (last != null) {
+            last.set(System.nanoTime());
+        }
+    }
+
+    /**
+     * Forget a pooled connection that was destroyed.
+     *
+     * @param connection the pooled connection.
+     */
+    void destroyed(Object connection) {
+        if (connection != null) {
+            lastValid.remove(connection);
+        }
+    }
+
+    /**
+     * Get the interval during which a connection is not validated again.
+     *
+     * @return the interval in milliseconds, 0 or less if connections are always validated.
+     */
+    @Managed(description = "The number of milliseconds during which a connection validated or used is not validated again, 0 to always validate.")
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Set the interval during which a connection is not validated again.
+     *
+     * @param interval the interval in milliseconds, 0 or less to always validate.
+     */
+    @Managed(description = "Set the number of milliseconds during which a connection validated or used is not validated again, 0 to always validate.")
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Get the number of validations that ran.
+     *
+     * @return the number of executed validations.
+     */
+    @Managed(description = "The number of connection validations that ran.")
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * Get the number of validations skipped because the connection was recently known to be valid.
+     *
+     * @return the number of skipped validations.
+     */
+    @Managed(description = "The number of connection validations skipped because the connection was validated or used recently.")
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * Get the number of validations that ran and failed.
+     *
+     * @return the number of failed validations.
+     */
+    @Managed(description = "The number of connection validations that ran and failed.")
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Get the histogram of the time taken by the validations that ran.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>Validation.Time.Mean</code>, <code>Validation.Time.P99</code>,
+     * ...).</p>
+     *
+     * @return the validation time histogram.
+     */
+    @Managed
+    @Nested
+    public LatencyHistogram getTime() {
+        return time;
+    }
+
+    /**
+     * Reset the validation counters and time histogram.
+     */
+    @Managed(description = "Reset the executed, skipped and failed validation counters and the validation time histogram.")
+    public void reset() {
+        executed.set(0);
+        skipped.set(0);
+        failed.set(0);
+        time.reset();
+    }
+}
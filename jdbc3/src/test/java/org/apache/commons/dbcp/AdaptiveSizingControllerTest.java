@@ -0,0 +1,330 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.Attribute;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link AdaptiveSizingController}.
+ * <p/>
+ * The controllers are enabled with a long interval and driven by calling {@link AdaptiveSizingController#run()}
+ * directly.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class AdaptiveSizingControllerTest {
+
+    /**
+     * Create a datasource backed by the stub driver, with its controller enabled.
+     *
+     * @param maxActive the initial maxActive.
+     * @param maxIdle   the initial maxIdle.
+     * @param minIdle   the initial minIdle.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(int maxActive, int maxIdle, int minIdle) throws Exception {
+        return StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, String.valueOf(maxActive),
+                ManagedBasicDataSourceFactory.PROP_MAXIDLE, String.valueOf(maxIdle),
+                ManagedBasicDataSourceFactory.PROP_MINIDLE, String.valueOf(minIdle),
+                ManagedBasicDataSourceFactory.PROP_TARGETBORROWWAIT, "50",
+                ManagedBasicDataSourceFactory.PROP_ADAPTIVESIZINGINTERVAL, "3600000",
+                ManagedBasicDataSourceFactory.PROP_ADAPTIVESIZINGENABLED, "true");
+    }
+
+    /**
+     * Record slow borrows, so the 99th percentile of the borrow wait time over the next interval is above target.
+     *
+     * @param dataSource the datasource.
+     */
+    private static void recordSlowBorrows(ManagedBasicDataSource dataSource) {
+        for (int i = 0; i < 100; i++) {
+            dataSource.statistics.getBorrowWait().recordMillis(200L);
+        }
+    }
+
+    /**
+     * Wait for the idle connections opened in the background.
+     *
+     * @param dataSource the datasource.
+     * @param numIdle    the expected number of idle connections.
+     * @throws Exception should not happen.
+     */
+    private static void awaitIdle(ManagedBasicDataSource dataSource, int numIdle) throws Exception {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (dataSource.getNumIdle() < numIdle && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(dataSource.getNumIdle(), numIdle, "idle connections must be opened by the controller");
+    }
+
+    /**
+     * Borrow connections.
+     *
+     * @param dataSource the datasource.
+     * @param count      the number of connections.
+     * @return the borrowed connections.
+     * @throws Exception should not happen.
+     */
+    private static List<Connection> borrow(ManagedBasicDataSource dataSource, int count) throws Exception {
+        final List<Connection> connections = new ArrayList<Connection>();
+        for (int i = 0; i < count; i++) {
+            connections.add(dataSource.getConnection());
+        }
+        return connections;
+    }
+
+    /**
+     * Close connections.
+     *
+     * @param connections the connections.
+     * @throws Exception should not happen.
+     */
+    private static void close(List<Connection> connections) throws Exception {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Assert the controller is started by the factory property and stopped when the datasource is closed.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testEnabledAndClosed() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(8, 8, 0);
+        final ObjectName objectName = new ObjectName(dataSource.getMBeanName());
+        assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "AdaptiveSizing.Enabled"), Boolean.TRUE);
+        assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "AdaptiveSizing.TargetWait"), 50L);
+        dataSource.close();
+        assertFalse(dataSource.getAdaptiveSizing().isEnabled());
+    }
+
+    /**
+     * Assert maxActive is grown up to the ceiling when the waits are above target and the pool is saturated.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testGrowMaxActiveWhenSaturated() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(4, 4, 0);
+        final AdaptiveSizingController controller = dataSource.getAdaptiveSizing();
+        try {
+            final List<Connection> connections = borrow(dataSource, 4);
+
+            recordSlowBorrows(dataSource);
+            controller.run();
+            assertEquals(dataSource.getMaxActive(), 4, "no ceiling, maxActive must not grow");
+
+            controller.setMaxActiveCeiling(6);
+            recordSlowBorrows(dataSource);
+            controller.run();
+            assertEquals(dataSource.getMaxActive(), 5, controller.getLastDecision());
+            assertEquals(controller.getUtilization(), 1d);
+            assertTrue(controller.getWindowWaitP99() >= 190d);
+
+            connections.addAll(borrow(dataSource, 1));
+            recordSlowBorrows(dataSource);
+            controller.run();
+            connections.addAll(borrow(dataSource, 1));
+            recordSlowBorrows(dataSource);
+            controller.run();
+            assertEquals(dataSource.getMaxActive(), 6, "maxActive must not grow above the ceiling");
+            assertEquals(controller.getAdjustmentCount(), 2L);
+
+            close(connections);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert minIdle is grown and idle connections are opened when the waits are above target but the pool is not
+     * saturated.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testGrowMinIdleWhenNotSaturated() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(8, 1, 0);
+        final AdaptiveSizingController controller = dataSource.getAdaptiveSizing();
+        try {
+            final List<Connection> connections = borrow(dataSource, 1);
+            recordSlowBorrows(dataSource);
+            controller.run();
+            assertEquals(dataSource.getMinIdle(), 1, controller.getLastDecision());
+
+            recordSlowBorrows(dataSource);
+            controller.run();
+            assertEquals(dataSource.getMinIdle(), 2, controller.getLastDecision());
+            assertEquals(dataSource.getMaxIdle(), 2, "maxIdle must follow minIdle");
+            awaitIdle(dataSource, 2);
+            assertEquals(dataSource.getMaxActive(), 8);
+            close(connections);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert idle connections are opened in the background, so a slow database does not hold back the controller
+     * thread shared by all the datasources.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testFillInBackground() throws Exception {
+        final ManagedBasicDataSource dataSource = StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "8",
+                ManagedBasicDataSourceFactory.PROP_MAXIDLE, "1",
+                ManagedBasicDataSourceFactory.PROP_TARGETBORROWWAIT, "50",
+                ManagedBasicDataSourceFactory.PROP_ADAPTIVESIZINGINTERVAL, "3600000",
+                ManagedBasicDataSourceFactory.PROP_ADAPTIVESIZINGENABLED, "true",
+                ManagedBasicDataSourceFactory.PROP_CONNECTIONPROPERTIES, StubDriver.CONNECT_DELAY + "=500");
+        final AdaptiveSizingController controller = dataSource.getAdaptiveSizing();
+        try {
+            final List<Connection> connections = borrow(dataSource, 1);
+            recordSlowBorrows(dataSource);
+            final long start = System.nanoTime();
+            controller.run();
+            assertEquals(dataSource.getMinIdle(), 1, controller.getLastDecision());
+            assertTrue(System.nanoTime() - start < 250000000L, "the controller must not open connections itself");
+            awaitIdle(dataSource, 1);
+            close(connections);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert settings are shrunk one at a time, never below their value when the controller was enabled, and that idle
+     * connections are kept when opening one is slow.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testShrinkWhenIdle() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(8, 4, 1);
+        final AdaptiveSizingController controller = dataSource.getAdaptiveSizing();
+        try {
+            close(borrow(dataSource, 1));
+            dataSource.setMinIdle(3);
+            dataSource.setMaxActive(10);
+
+            controller.run();
+            assertEquals(dataSource.getMinIdle(), 2, controller.getLastDecision());
+            controller.run();
+            assertEquals(dataSource.getMinIdle(), 1);
+            controller.run();
+            assertEquals(dataSource.getMinIdle(), 1, "minIdle must not shrink below its initial value");
+            assertEquals(dataSource.getMaxActive(), 9, controller.getLastDecision());
+
+            dataSource.setMinIdle(3);
+            for (int i = 0; i < 100; i++) {
+                dataSource.statistics.connectionCreated(200000000L);
+            }
+            controller.run();
+            assertEquals(dataSource.getMinIdle(), 3, "idle connections must be kept when opening one is slow");
+            assertEquals(dataSource.getMaxActive(), 8);
+            controller.run();
+            assertEquals(dataSource.getMaxActive(), 8, "maxActive must not shrink below its initial value");
+            assertTrue(controller.getLastDecision().startsWith("steady"), controller.getLastDecision());
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the manual override, set through the MBean, stops the controller from changing the settings.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testOverride() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(8, 1, 0);
+        final AdaptiveSizingController controller = dataSource.getAdaptiveSizing();
+        try {
+            ManagementFactory.getPlatformMBeanServer().setAttribute(new ObjectName(dataSource.getMBeanName()),
+                                                                    new Attribute("AdaptiveSizing.Override", true));
+            final List<Connection> connections = borrow(dataSource, 1);
+            recordSlowBorrows(dataSource);
+            controller.run();
+            assertEquals(dataSource.getMinIdle(), 0);
+            assertEquals(controller.getAdjustmentCount(), 0L);
+            assertTrue(controller.getWindowWaitP99() >= 190d, "the controller must keep observing");
+            close(connections);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert closing the datasource while a tick is resizing the pool does not deadlock: the tick must not hold the
+     * controller monitor while it waits for the datasource monitor, held by <code>close()</code>.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testCloseDuringResize() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(8, 1, 0);
+        final AdaptiveSizingController controller = dataSource.getAdaptiveSizing();
+        final List<Connection> connections = borrow(dataSource, 1);
+        recordSlowBorrows(dataSource);
+        final Thread tick = new Thread(controller);
+        tick.setDaemon(true);
+        final Thread closer = new Thread() {
+            @Override
+            public void run() {
+                synchronized (dataSource) {
+                    tick.start();
+                    final long deadline = System.currentTimeMillis() + 10000L;
+                    while (tick.getState() != State.BLOCKED && tick.isAlive() &&
+                           System.currentTimeMillis() < deadline) {
+                        Thread.yield();
+                    }
+                    try {
+                        dataSource.close();
+                    } catch (SQLException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        };
+        closer.setDaemon(true);
+        closer.start();
+        closer.join(10000L);
+        assertFalse(closer.isAlive(), "closing the datasource must not wait for the tick forever");
+        tick.join(10000L);
+        assertFalse(tick.isAlive(), "the tick must not wait for the datasource forever");
+        assertFalse(controller.isEnabled());
+        close(connections);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for {@link BorrowQueue}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class BorrowQueueTest {
+
+    /**
+     * Create a datasource backed by the stub driver with concurrent borrow enabled.
+     *
+     * @param maxActive the maximum number of active connections.
+     * @param maxWait   the maximum number of milliseconds to wait for a connection.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(int maxActive, long maxWait) throws Exception {
+        return StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, String.valueOf(maxActive),
+                ManagedBasicDataSourceFactory.PROP_MAXIDLE, String.valueOf(maxActive),
+                ManagedBasicDataSourceFactory.PROP_MAXWAIT, String.valueOf(maxWait),
+                ManagedBasicDataSourceFactory.PROP_CONCURRENTBORROW, "true");
+    }
+
+    /**
+     * Assert thousands of threads sharing a small pool all get a connection, and never more than maxActive at once.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testManyThreads() throws Exception {
+        final int threadCount = 2000;
+        final ManagedBasicDataSource dataSource = createDataSource(4, -1);
+        try {
+            final AtomicInteger holding = new AtomicInteger();
+            final AtomicInteger maxHolding = new AtomicInteger();
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threadCount);
+            for (int i = 0; i < threadCount; i++) {
+                final Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            start.await();
+                            final Connection connection = dataSource.getConnection();
+                            final int held = holding.incrementAndGet();
+                            int max;
+                            while (held > (max = maxHolding.get()) && !maxHolding.compareAndSet(max, held)) {
+                                // Retry
+                            }
+                            Thread.yield();
+                            holding.decrementAndGet();
+                            connection.close();
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+            start.countDown();
+            assertTrue(done.await(60, TimeUnit.SECONDS));
+
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            assertEquals(dataSource.getBorrowedCount(), (long) threadCount);
+            assertEquals(dataSource.getFailedBorrowCount(), 0L);
+            assertTrue(maxHolding.get() <= 4, "at most maxActive connections at once, got " + maxHolding.get());
+            assertEquals(dataSource.getNumActive(), 0);
+            assertEquals(dataSource.getBorrowWaiting(), 0);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert a waiting thread gets the connection given back by another one.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testWakeUp() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(1, 10000);
+        try {
+            final Connection held = dataSource.getConnection();
+            final AtomicReference<Connection> borrowed = new AtomicReference<Connection>();
+            final Thread waiter = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        borrowed.set(dataSource.getConnection());
+                    } catch (SQLException e) {
+                        // Asserted below
+                    }
+                }
+            });
+            waiter.start();
+            while (dataSource.getBorrowWaiting() == 0) {
+                Thread.sleep(1);
+            }
+            held.close();
+            waiter.join(5000);
+            assertNotNull(borrowed.get());
+            assertEquals(dataSource.getBorrowWaiting(), 0);
+            borrowed.get().close();
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert waiting times out after maxWait, reported like a timeout of the pool.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(1, 50);
+        try {
+            final Connection held = dataSource.getConnection();
+            final long start = System.nanoTime();
+            try {
+                dataSource.getConnection();
+                fail("the pool is exhausted");
+            } catch (SQLException e) {
+                assertTrue(e.getCause() instanceof NoSuchElementException);
+                assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+            }
+            assertEquals(dataSource.getFailedBorrowCount(), 1L);
+            held.close();
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert a connection that cannot be validated fails the borrow right away instead of waiting for another
+     * connection, whether it is borrowed synchronously or not.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testValidationFailure() throws Exception {
+        final ManagedBasicDataSource dataSource = StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "2",
+                ManagedBasicDataSourceFactory.PROP_MAXWAIT, "5000",
+                ManagedBasicDataSourceFactory.PROP_CONCURRENTBORROW, "true",
+                ManagedBasicDataSourceFactory.PROP_VALIDATIONQUERY, StubDriver.FAILING_QUERY,
+                ManagedBasicDataSourceFactory.PROP_TESTONBORROW, "true");
+        try {
+            dataSource.getConnection().close();
+            StubDriver.setFailing(true);
+            final long start = System.nanoTime();
+            try {
+                dataSource.getConnection();
+                fail("the connection should not be validated");
+            } catch (SQLException e) {
+                assertTrue(e.getCause() instanceof NoSuchElementException);
+                assertTrue(e.getCause().getMessage().startsWith("Could not create a validated object"), e.getMessage());
+            }
+            try {
+                dataSource.getConnectionAsync().get(1, TimeUnit.SECONDS);
+                fail("the connection should not be validated");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getCause() instanceof NoSuchElementException);
+                assertTrue(e.getCause().getCause().getMessage().startsWith("Could not create a validated object"));
+            } finally {
+                StubDriver.setFailing(false);
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2), "validation failures must not wait");
+            assertEquals(dataSource.getFailedBorrowCount(), 2L);
+            assertEquals(dataSource.getAsyncTimeoutCount(), 0L);
+        } finally {
+            StubDriver.setFailing(false);
+            dataSource.close();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link LeakDetector}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class LeakDetectorTest {
+
+    /**
+     * Create a datasource backed by the stub driver with a 1 second abandoned timeout.
+     *
+     * @param sampleRate      the leak detection sample rate.
+     * @param deferredCapture whether deferred capture is enabled.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(int sampleRate, boolean deferredCapture) throws Exception {
+        return StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "4",
+                ManagedBasicDataSourceFactory.PROP_REMOVEABANDONEDTIMEOUT, "1",
+                ManagedBasicDataSourceFactory.PROP_LEAKSAMPLERATE, String.valueOf(sampleRate),
+                ManagedBasicDataSourceFactory.PROP_LEAKDEFERREDCAPTURE, String.valueOf(deferredCapture));
+    }
+
+    /**
+     * Assert nothing is tracked when leak detection is disabled.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testDisabled() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(0, false);
+        try {
+            final Connection connection = dataSource.getConnection();
+            assertEquals(dataSource.getLeakDetection().getTrackedCount(), 0);
+            connection.close();
+            assertEquals(dataSource.getLeakDetection().getSampledCount(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert only one borrow in <code>sampleRate</code> is tracked, until the connection is given back.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testSampling() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(4, false);
+        try {
+            for (int i = 0; i < 3; i++) {
+                dataSource.getConnection().close();
+            }
+            final Connection connection = dataSource.getConnection();
+            assertEquals(dataSource.getLeakDetection().getTrackedCount(), 1);
+            connection.close();
+            assertEquals(dataSource.getLeakDetection().getTrackedCount(), 0);
+
+            for (int i = 0; i < 4; i++) {
+                dataSource.getConnection().close();
+            }
+            assertEquals(dataSource.getLeakDetection().getSampledCount(), 2L);
+            assertEquals(dataSource.getLeakDetection().getLeakCount(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert sampled connections held longer than the timeout are reported with the code that borrowed them, and only
+     * logged once per call site.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testSampledLeak() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(1, false);
+        final StringWriter log = new StringWriter();
+        try {
+            dataSource.setLogWriter(new PrintWriter(log));
+            final Connection[] connections = new Connection[2];
+            for (int i = 0; i < connections.length; i++) {
+                connections[i] = dataSource.getConnection();
+            }
+            Thread.sleep(1100);
+            dataSource.getLeakDetection().run();
+            dataSource.getLeakDetection().run();
+
+            assertEquals(dataSource.getLeakDetection().getLeakCount(), 2L);
+            assertTrue(log.toString().contains("borrowed by the following code"), log.toString());
+            assertTrue(log.toString().contains("testSampledLeak"), log.toString());
+            assertEquals(log.toString().split("borrowed by the following code").length, 2, log.toString());
+
+            final TabularData report = (TabularData) ManagementFactory.getPlatformMBeanServer().getAttribute(
+                    new ObjectName(dataSource.getMBeanName()), "LeakReport");
+            assertEquals(report.size(), 1);
+            final CompositeData site = (CompositeData) report.values().iterator().next();
+            assertTrue(((String) site.get("site")).contains("testSampledLeak"), site.toString());
+            assertEquals(site.get("leakedCount"), 2L);
+            assertTrue((Long) site.get("oldestAge") >= 1000L);
+
+            for (Connection connection : connections) {
+                connection.close();
+            }
+            assertEquals(dataSource.getLeakDetection().getTrackedCount(), 0);
+            assertEquals(dataSource.getLeakDetection().getReport().sites().get(0).getReturnedCount(), 2L);
+
+            dataSource.resetLeakReport();
+            assertTrue(dataSource.getLeakReport().isEmpty());
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert a connection held longer than the timeout is reported with the current stack of the borrowing thread in
+     * deferred capture mode.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testDeferredCapture() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(0, true);
+        final StringWriter log = new StringWriter();
+        final CountDownLatch borrowed = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread holder = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    final Connection connection = dataSource.getConnection();
+                    borrowed.countDown();
+                    release.await();
+                    connection.close();
+                } catch (Exception e) {
+                    // fails the test through the latch
+                }
+            }
+        }, "leaking-thread");
+        try {
+            dataSource.setLogWriter(new PrintWriter(log));
+            holder.start();
+            borrowed.await();
+            assertEquals(dataSource.getLeakDetection().getTrackedCount(), 1);
+            Thread.sleep(1100);
+            dataSource.getLeakDetection().run();
+
+            assertEquals(dataSource.getLeakDetection().getLeakCount(), 1L);
+            assertEquals(dataSource.getLeakDetection().getSampledCount(), 0L);
+            assertTrue(log.toString().contains("\"leaking-thread\""), log.toString());
+            assertTrue(log.toString().contains("CountDownLatch.await"), log.toString());
+        } finally {
+            release.countDown();
+            holder.join();
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert a connection requested asynchronously is reported with the thread that requested it, not the one that
+     * gave back the connection it was handed.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testAsyncOrigin() throws Exception {
+        final ManagedBasicDataSource dataSource = StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "1",
+                ManagedBasicDataSourceFactory.PROP_CONCURRENTBORROW, "true",
+                ManagedBasicDataSourceFactory.PROP_REMOVEABANDONEDTIMEOUT, "1",
+                ManagedBasicDataSourceFactory.PROP_LEAKDEFERREDCAPTURE, "true");
+        final StringWriter log = new StringWriter();
+        final AtomicReference<ConnectionFuture> future = new AtomicReference<ConnectionFuture>();
+        final CountDownLatch requested = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread requester = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    future.set(dataSource.getConnectionAsync(0, TimeUnit.SECONDS));
+                    requested.countDown();
+                    release.await();
+                } catch (Exception e) {
+                    // fails the test through the future
+                }
+            }
+        }, "requesting-thread");
+        try {
+            dataSource.setLogWriter(new PrintWriter(log));
+            final Connection held = dataSource.getConnection();
+            requester.start();
+            requested.await();
+            held.close();
+            final Connection connection = future.get().get(1, TimeUnit.SECONDS);
+            Thread.sleep(1100);
+            dataSource.getLeakDetection().run();
+
+            assertEquals(dataSource.getLeakDetection().getLeakCount(), 1L);
+            assertTrue(log.toString().contains("\"requesting-thread\""), log.toString());
+            connection.close();
+            assertEquals(dataSource.getLeakDetection().getTrackedCount(), 0);
+        } finally {
+            release.countDown();
+            requester.join();
+            dataSource.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertSame;
+
+/**
+ * Tests for {@link LeakReport}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class LeakReportTest {
+
+    /**
+     * Build a stack as captured on a borrow, with the datasource frames on top of the given application frame.
+     *
+     * @param method the name of the application method.
+     * @return the stack.
+     */
+    private static StackTraceElement[] stack(String method) {
+        return new StackTraceElement[]{
+                new StackTraceElement(LeakDetector.class.getName(), "borrowed", "LeakDetector.java", 1),
+                new StackTraceElement(TrackedConnection.class.getName(), "wrap", "TrackedConnection.java", 2),
+                new StackTraceElement(ManagedBasicDataSource.class.getName(), "getConnection", "ManagedBasicDataSource.java", 3),
+                new StackTraceElement("com.example.Dao", method, "Dao.java", 4),
+                new StackTraceElement("com.example.Main", "main", "Main.java", 5)
+        };
+    }
+
+    /**
+     * Assert leaks are aggregated by call site, below the datasource frames.
+     */
+    @Test
+    public void testAggregate() {
+        final LeakReport report = new LeakReport();
+        final LeakReport.Site site = report.leaked(stack("load"), TimeUnit.SECONDS.toNanos(2));
+        assertEquals(site.getLeakedCount(), 1L);
+        assertEquals(site.getFrame(), "com.example.Dao.load(Dao.java:4)");
+        assertEquals(site.getStack(), "com.example.Dao.load(Dao.java:4)\ncom.example.Main.main(Main.java:5)");
+        assertEquals(site.getFingerprint().length(), 16);
+
+        assertSame(report.leaked(stack("load"), TimeUnit.SECONDS.toNanos(1)), site);
+        report.leaked(stack("save"), TimeUnit.SECONDS.toNanos(1));
+        report.returned(site, TimeUnit.SECONDS.toNanos(5));
+        report.abandoned(site, TimeUnit.SECONDS.toNanos(3));
+
+        final List<LeakReport.Site> sites = report.sites();
+        assertEquals(sites.size(), 2);
+        assertEquals(sites.get(0).getFingerprint(), site.getFingerprint());
+        assertEquals(sites.get(0).getLeakedCount(), 2L);
+        assertEquals(sites.get(0).getReturnedCount(), 1L);
+        assertEquals(sites.get(0).getAbandonedCount(), 1L);
+        assertEquals(sites.get(0).getOldestAge(), 5000L);
+        assertEquals(sites.get(1).getFrame(), "com.example.Dao.save(Dao.java:4)");
+    }
+
+    /**
+     * Assert the frames of the routing datasource, the proxies and the nested classes of the datasource are skipped.
+     */
+    @Test
+    public void testSkippedFrames() {
+        final StackTraceElement[] stack = {
+                new StackTraceElement(LeakDetector.class.getName(), "requested", "LeakDetector.java", 1),
+                new StackTraceElement(ManagedBasicDataSource.class.getName(), "getConnection", "ManagedBasicDataSource.java", 2),
+                new StackTraceElement(ManagedRoutingDataSource.class.getName(), "getConnection", "ManagedRoutingDataSource.java", 3),
+                new StackTraceElement(RoutingConnection.class.getName(), "invoke", "RoutingConnection.java", 4),
+                new StackTraceElement("com.sun.proxy.$Proxy12", "prepareStatement", null, -1),
+                new StackTraceElement(TrackedConnection.class.getName() + "$Guard", "prepareStatement", "TrackedConnection.java", 5),
+                new StackTraceElement("com.example.Dao", "load", "Dao.java", 6)
+        };
+        assertEquals(new LeakReport().leaked(stack, 0).getFrame(), "com.example.Dao.load(Dao.java:6)");
+    }
+
+    /**
+     * Assert the call site with the fewest leaks is dropped when the report is full.
+     */
+    @Test
+    public void testCapacity() {
+        final LeakReport report = new LeakReport();
+        report.setCapacity(2);
+        report.leaked(stack("a"), 0);
+        report.leaked(stack("a"), 0);
+        report.leaked(stack("b"), 0);
+        report.leaked(stack("c"), 0);
+
+        final List<LeakReport.Site> sites = report.sites();
+        assertEquals(sites.size(), 2);
+        assertEquals(sites.get(0).getFrame(), "com.example.Dao.a(Dao.java:4)");
+        assertEquals(sites.get(1).getFrame(), "com.example.Dao.c(Dao.java:4)");
+    }
+
+    /**
+     * Assert the report is exposed as open data and can be reset.
+     */
+    @Test
+    public void testTabularData() {
+        final LeakReport report = new LeakReport();
+        final LeakReport.Site site = report.leaked(stack("load"), TimeUnit.MILLISECONDS.toNanos(1500));
+
+        final TabularData table = report.toTabularData();
+        assertEquals(table.size(), 1);
+        final CompositeData row = table.get(new Object[]{site.getFingerprint()});
+        assertNotNull(row);
+        assertEquals(row.get("site"), "com.example.Dao.load(Dao.java:4)");
+        assertEquals(row.get("leakedCount"), 1L);
+        assertEquals(row.get("oldestAge"), 1500L);
+
+        report.reset();
+        assertEquals(report.size(), 0);
+        assertEquals(report.toTabularData().size(), 0);
+    }
+
+    /**
+     * Assert different stacks get different fingerprints.
+     */
+    @Test
+    public void testFingerprint() {
+        final StackTraceElement[] load = stack("load");
+        final StackTraceElement[] save = stack("save");
+        assertEquals(LeakReport.fingerprint(load, 3, 5), LeakReport.fingerprint(stack("load"), 3, 5));
+        assertFalse(LeakReport.fingerprint(load, 3, 5).equals(LeakReport.fingerprint(save, 3, 5)));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
+
+import javax.management.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for {@link MBeanModel}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class MBeanModelTest {
+
+    /**
+     * Assert the metadata follows the jmxutils naming conventions, including nested objects.
+     */
+    @Test
+    public void testInfo() {
+        final MBeanInfo info = MBeanModel.of(new Fixture(), new MBeanNotificationInfo[0]).getInfo();
+
+        final List<String> attributes = new ArrayList<String>();
+        for (MBeanAttributeInfo attribute : info.getAttributes()) {
+            attributes.add(attribute.getName());
+        }
+        assertEquals(attributes, Arrays.asList("Child.Count", "Flag", "Value"));
+        final MBeanAttributeInfo value = info.getAttributes()[2];
+        assertEquals(value.getType(), "int");
+        assertEquals(value.getDescription(), "The value.");
+        assertTrue(value.isReadable() && value.isWritable());
+        assertTrue(info.getAttributes()[1].isIs());
+
+        final List<String> operations = new ArrayList<String>();
+        for (MBeanOperationInfo operation : info.getOperations()) {
+            operations.add(operation.getName());
+            if (operation.getName().equals("echo")) {
+                assertEquals(operation.getSignature()[0].getName(), "message");
+            }
+        }
+        Collections.sort(operations);
+        assertEquals(operations, Arrays.asList("Child.reset", "echo", "fail"));
+    }
+
+    /**
+     * Assert the metadata is built once per class.
+     */
+    @Test
+    public void testShared() {
+        assertSame(MBeanModel.of(new Fixture(), new MBeanNotificationInfo[0]).getInfo(),
+                   MBeanModel.of(new Fixture(), new MBeanNotificationInfo[0]).getInfo());
+    }
+
+    /**
+     * Assert attributes are read and written on the instance the model is bound to.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testAttributes() throws Exception {
+        final Fixture first = new Fixture();
+        final MBeanModel model = MBeanModel.of(first, new MBeanNotificationInfo[0]);
+        final MBeanModel other = MBeanModel.of(new Fixture(), new MBeanNotificationInfo[0]);
+        model.setAttribute(new Attribute("Value", 42));
+        assertEquals(model.getAttribute("Value"), 42);
+        assertEquals(other.getAttribute("Value"), 0);
+
+        first.child.count = 3;
+        assertEquals(model.getAttribute("Child.Count"), 3L);
+        model.invoke("Child.reset", null, null);
+        assertEquals(first.child.count, 0L);
+
+        try {
+            model.getAttribute("Hidden");
+            fail("unmanaged getters must not be exposed");
+        } catch (AttributeNotFoundException e) {
+            // expected
+        }
+        try {
+            model.setAttribute(new Attribute("Flag", true));
+            fail("read-only attributes must not be writable");
+        } catch (AttributeNotFoundException e) {
+            // expected
+        }
+        try {
+            model.setAttribute(new Attribute("Value", "42"));
+            fail("values must have the attribute type");
+        } catch (InvalidAttributeValueException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Assert operations are matched by signature and their exceptions are reported as {@link MBeanException}s.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testOperations() throws Exception {
+        final MBeanModel model = MBeanModel.of(new Fixture(), new MBeanNotificationInfo[0]);
+        assertEquals(model.invoke("echo", new Object[]{"hello"}, new String[]{String.class.getName()}), "hello");
+        try {
+            model.invoke("echo", new Object[]{1}, new String[]{Integer.class.getName()});
+            fail("operations must be matched by signature");
+        } catch (MBeanException e) {
+            assertTrue(e.getTargetException() instanceof ServiceNotFoundException);
+        }
+        try {
+            model.invoke("fail", null, null);
+            fail("exceptions must be reported");
+        } catch (MBeanException e) {
+            assertTrue(e.getTargetException() instanceof IllegalStateException);
+        }
+    }
+
+    /**
+     * An annotated class.
+     */
+    public static class Fixture {
+
+        private final Child child = new Child();
+
+        private int value;
+
+        @Managed(description = "The value.")
+        public int getValue() {
+            return value;
+        }
+
+        @Managed
+        public void setValue(int value) {
+            this.value = value;
+        }
+
+        @Managed
+        public boolean isFlag() {
+            return true;
+        }
+
+        @Managed
+        @Nested
+        public Child getChild() {
+            return child;
+        }
+
+        public String getHidden() {
+            return "hidden";
+        }
+
+        @Managed
+        public String echo(String message) {
+            return message;
+        }
+
+        @Managed
+        public void fail() {
+            throw new IllegalStateException("failed");
+        }
+    }
+
+    /**
+     * A nested annotated class.
+     */
+    public static class Child {
+
+        private long count;
+
+        @Managed
+        public long getCount() {
+            return count;
+        }
+
+        @Managed
+        public void reset() {
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for {@link ManagedStripedDataSource}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class ManagedStripedDataSourceTest {
+
+    /**
+     * Create a striped datasource backed by the stub driver.
+     *
+     * @param stripes   the number of stripes.
+     * @param maxActive the maximum number of active connections.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedStripedDataSource createDataSource(int stripes, int maxActive) throws Exception {
+        return (ManagedStripedDataSource) ManagedStripedDataSourceFactory.createDataSource(StubDriver.properties(
+                ManagedStripedDataSourceFactory.PROP_STRIPES, String.valueOf(stripes),
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, String.valueOf(maxActive),
+                ManagedBasicDataSourceFactory.PROP_MAXWAIT, "10"));
+    }
+
+    /**
+     * Assert maxActive is split across the stripes, each exposed as its own MBean.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testSplit() throws Exception {
+        final ManagedStripedDataSource dataSource = createDataSource(3, 8);
+        try {
+            assertEquals(dataSource.getStripes(), 3);
+            assertEquals(dataSource.getStripe(0).getMaxActive(), 3);
+            assertEquals(dataSource.getStripe(1).getMaxActive(), 3);
+            assertEquals(dataSource.getStripe(2).getMaxActive(), 2);
+            assertEquals(dataSource.getMaxActive(), 8);
+
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (String name : dataSource.getStripeNames()) {
+                assertTrue(server.isRegistered(new ObjectName(name)));
+            }
+            assertEquals(server.getAttribute(new ObjectName(dataSource.getMBeanName()), "MaxActive"), 8);
+
+            dataSource.setMaxActive(4);
+            assertEquals(dataSource.getStripe(0).getMaxActive(), 2);
+            assertEquals(dataSource.getStripe(2).getMaxActive(), 1);
+            try {
+                dataSource.setMaxActive(2);
+                fail("every stripe must be allowed a connection");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert there are no more stripes than connections.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testStripesLimitedByMaxActive() throws Exception {
+        final ManagedStripedDataSource dataSource = createDataSource(16, 2);
+        try {
+            assertEquals(dataSource.getStripes(), 2);
+            assertEquals(dataSource.getMaxActive(), 2);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert a thread whose home stripe is exhausted takes a connection from another stripe, and only fails once all
+     * the stripes are exhausted.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testWorkStealing() throws Exception {
+        final ManagedStripedDataSource dataSource = createDataSource(2, 2);
+        try {
+            final Connection first = dataSource.getConnection();
+            final Connection second = dataSource.getConnection();
+            assertEquals(dataSource.getStealCount(), 1L);
+            assertEquals(dataSource.getNumActive(), 2);
+            assertEquals(dataSource.getStripe(0).getNumActive(), 1);
+            assertEquals(dataSource.getStripe(1).getNumActive(), 1);
+            try {
+                dataSource.getConnection();
+                fail("all the stripes are exhausted");
+            } catch (SQLException e) {
+                // expected
+            }
+            first.close();
+            second.close();
+            assertEquals(dataSource.getNumIdle(), 2);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the room of a stripe comes from its active connections, so connections the pool destroyed without them
+     * being closed do not make the stripe look busy forever.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testRoomAfterAbandonedConnection() throws Exception {
+        final Properties properties = StubDriver.properties();
+        properties.setProperty(ManagedStripedDataSourceFactory.PROP_STRIPES, "2");
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "2");
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXWAIT, "10");
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_REMOVEABANDONED, "true");
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_REMOVEABANDONEDTIMEOUT, "1");
+        final ManagedStripedDataSource dataSource = (ManagedStripedDataSource) ManagedStripedDataSourceFactory.createDataSource(properties);
+        try {
+            final ManagedBasicDataSource home = dataSource.getStripe((int) (Thread.currentThread().getId() % 2));
+            home.getConnection();
+            Thread.sleep(1500);
+            home.getConnection().close();
+            assertEquals(home.getNumActive(), 0);
+            assertEquals(home.getBorrowedCount() - home.getReturnedCount(), 1L);
+
+            dataSource.getConnection().close();
+            assertEquals(dataSource.getStealCount(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the statistics of the stripes are summed.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testPoolStats() throws Exception {
+        final ManagedStripedDataSource dataSource = createDataSource(2, 4);
+        try {
+            final Connection first = dataSource.getConnection();
+            final Connection second = dataSource.getConnection();
+            second.close();
+
+            final CompositeData stats = (CompositeData) ManagementFactory.getPlatformMBeanServer()
+                                                                         .getAttribute(new ObjectName(dataSource.getMBeanName()), "PoolStats");
+            assertEquals(stats.get("NumActive"), 1);
+            assertEquals(stats.get("NumIdle"), 1);
+            assertEquals(stats.get("MaxActive"), 4);
+            assertEquals(stats.get("BorrowedCount"), 2L);
+            assertEquals(stats.get("ReturnedCount"), 1L);
+            assertEquals(dataSource.getBorrowedCount(), 2L);
+            first.close();
+        } finally {
+            dataSource.close();
+        }
+    }
+}
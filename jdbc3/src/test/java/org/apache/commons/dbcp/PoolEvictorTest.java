@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link PoolEvictor}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class PoolEvictorTest {
+
+    /**
+     * Create a datasource backed by the stub driver with 8 idle connections tested while idle.
+     *
+     * @param parallelism      the eviction parallelism.
+     * @param evictionInterval the number of milliseconds between eviction runs.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(int parallelism, long evictionInterval) throws Exception {
+        return StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "8",
+                ManagedBasicDataSourceFactory.PROP_MAXIDLE, "8",
+                ManagedBasicDataSourceFactory.PROP_INITIALSIZE, "8",
+                ManagedBasicDataSourceFactory.PROP_TESTWHILEIDLE, "true",
+                ManagedBasicDataSourceFactory.PROP_VALIDATIONQUERY, "SELECT 1",
+                ManagedBasicDataSourceFactory.PROP_NUMTESTSPEREVICTIONRUN, "8",
+                ManagedBasicDataSourceFactory.PROP_TIMEBETWEENEVICTIONRUNSMILLIS, String.valueOf(evictionInterval),
+                ManagedBasicDataSourceFactory.PROP_EVICTIONPARALLELISM, String.valueOf(parallelism));
+    }
+
+    /**
+     * Assert the number of connections examined per run follows <code>numTestsPerEvictionRun</code>.
+     */
+    @Test
+    public void testGetNumTests() {
+        assertEquals(PoolEvictor.getNumTests(3, 8), 3);
+        assertEquals(PoolEvictor.getNumTests(10, 8), 8);
+        assertEquals(PoolEvictor.getNumTests(-3, 8), 3);
+        assertEquals(PoolEvictor.getNumTests(-1, 8), 8);
+    }
+
+    /**
+     * Assert a run validates the idle connections and gives them all back.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testRun() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(4, 3600000L);
+        try {
+            final Connection connection = dataSource.getConnection();
+            assertEquals(dataSource.connectionPool.getTimeBetweenEvictionRunsMillis(), -1L);
+            dataSource.getEviction().run();
+
+            assertEquals(dataSource.getEviction().getRunCount(), 1L);
+            assertEquals(dataSource.getEviction().getTestedCount(), 7L);
+            assertEquals(dataSource.getEviction().getEvictedCount(), 0L);
+            assertEquals(dataSource.getEviction().getFailedCount(), 0L);
+            assertEquals(dataSource.getNumIdle(), 7);
+            assertEquals(dataSource.getNumActive(), 1);
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(dataSource.getMBeanName()),
+                                                                                "Eviction.RunTime.Count"), 1L);
+            connection.close();
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert connections idle for too long are evicted, and the pool is topped up to <code>minIdle</code>.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testEvictIdle() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(4, 3600000L);
+        try {
+            dataSource.getConnection().close();
+            dataSource.setMinEvictableIdleTimeMillis(1L);
+            dataSource.setMinIdle(2);
+            Thread.sleep(10);
+            dataSource.getEviction().run();
+
+            assertEquals(dataSource.getEviction().getEvictedCount(), 8L);
+            assertEquals(dataSource.getNumIdle(), 2);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the evictor runs on schedule, and gives eviction back to the pool when disabled.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testSchedule() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(2, 20L);
+        try {
+            dataSource.getConnection().close();
+            Thread.sleep(200);
+            assertTrue(dataSource.getEviction().getRunCount() > 0);
+            assertTrue(dataSource.getEviction().getTestedCount() > 0);
+
+            dataSource.getEviction().setParallelism(0);
+            assertEquals(dataSource.connectionPool.getTimeBetweenEvictionRunsMillis(), 20L);
+            assertEquals(dataSource.connectionPool.getNumTestsPerEvictionRun(), 8);
+        } finally {
+            dataSource.close();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for {@link PoolHistory}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class PoolHistoryTest {
+
+    /**
+     * Create a datasource backed by the stub driver.
+     *
+     * @param capacity the history capacity.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(int capacity) throws Exception {
+        return StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "1",
+                ManagedBasicDataSourceFactory.PROP_MAXWAIT, "50",
+                ManagedBasicDataSourceFactory.PROP_HISTORYCAPACITY, String.valueOf(capacity));
+    }
+
+    /**
+     * Sum an item over all the samples.
+     *
+     * @param table the samples.
+     * @param item  the item name.
+     * @return the sum.
+     */
+    private static long sum(TabularData table, String item) {
+        long sum = 0;
+        for (Object row : table.values()) {
+            sum += ((Number) ((CompositeData) row).get(item)).longValue();
+        }
+        return sum;
+    }
+
+    /**
+     * Assert nothing is sampled when the history is disabled.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testDisabled() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(0);
+        try {
+            dataSource.getConnection().close();
+            dataSource.getHistory().run();
+            assertEquals(dataSource.getHistory().getSize(), 0);
+            assertTrue(dataSource.getPoolHistory().isEmpty());
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the samples record the gauges, and the borrows and timeouts since the previous sample.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testSample() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(60);
+        try {
+            final Connection connection = dataSource.getConnection();
+            try {
+                dataSource.getConnection();
+                fail("pool should be exhausted");
+            } catch (SQLException e) {
+                // expected
+            }
+            dataSource.getHistory().run();
+
+            final TabularData table = dataSource.getPoolHistory();
+            assertTrue(table.size() >= 1);
+            assertEquals(sum(table, "borrows"), 1L);
+            assertEquals(sum(table, "timeouts"), 1L);
+            long latest = 0;
+            CompositeData last = null;
+            for (Object row : table.values()) {
+                final CompositeData sample = (CompositeData) row;
+                if ((Long) sample.get("timestamp") >= latest) {
+                    latest = (Long) sample.get("timestamp");
+                    last = sample;
+                }
+            }
+            assertEquals(last.get("active"), 1);
+            assertEquals(last.get("idle"), 0);
+            assertEquals(last.get("waiters"), 0);
+            connection.close();
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the oldest samples are overwritten once the buffer is full.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testWrap() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(3);
+        try {
+            final PoolHistory history = dataSource.getHistory();
+            for (int i = 0; i < 5; i++) {
+                dataSource.getConnection().close();
+                history.run();
+                Thread.sleep(2);
+            }
+            assertEquals(history.getSize(), 3);
+            final TabularData table = history.toTabularData();
+            assertEquals(table.size(), 3);
+            assertTrue(sum(table, "borrows") <= 3L);
+
+            history.reset();
+            assertEquals(history.getSize(), 0);
+            assertTrue(history.toTabularData().isEmpty());
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the history is exposed through JMX.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testMBean() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(10);
+        try {
+            dataSource.getConnection().close();
+            dataSource.getHistory().run();
+            final ObjectName objectName = new ObjectName(dataSource.getMBeanName());
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "History.Capacity"), 10);
+            final TabularData table =
+                    (TabularData) ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "PoolHistory");
+            assertTrue(table.size() >= 1);
+            assertEquals(sum(table, "borrows"), 1L);
+        } finally {
+            dataSource.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link PoolWarmUp}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class PoolWarmUpTest {
+
+    /**
+     * Create a datasource backed by the stub driver, whose connections take a given time to open.
+     *
+     * @param initialSize  the number of initial connections.
+     * @param connectDelay the number of milliseconds opening a connection takes.
+     * @param concurrency  the warm-up concurrency.
+     * @param async        whether the warm-up runs in the background.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(int initialSize, long connectDelay, int concurrency, boolean async) throws Exception {
+        return StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_INITIALSIZE, String.valueOf(initialSize),
+                ManagedBasicDataSourceFactory.PROP_MAXIDLE, String.valueOf(initialSize),
+                ManagedBasicDataSourceFactory.PROP_CONNECTIONPROPERTIES, StubDriver.CONNECT_DELAY + "=" + connectDelay,
+                ManagedBasicDataSourceFactory.PROP_WARMUPCONCURRENCY, String.valueOf(concurrency),
+                ManagedBasicDataSourceFactory.PROP_WARMUPASYNC, String.valueOf(async));
+    }
+
+    /**
+     * Assert the default warm-up opens the initial connections one after the other, like {@link BasicDataSource}.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testDefault() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(3, 0, 1, false);
+        try {
+            assertEquals(dataSource.getNumIdle(), 3);
+            assertEquals(dataSource.getWarmUp().getOpened(), 3);
+            assertEquals(dataSource.getWarmUp().getTarget(), 3);
+            assertFalse(dataSource.getWarmUp().isRunning());
+            assertNull(dataSource.getWarmUp().getLastError());
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert a synchronous parallel warm-up opens all the initial connections before the datasource is returned, and
+     * faster than opening them one after the other.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testParallel() throws Exception {
+        final long start = System.nanoTime();
+        final ManagedBasicDataSource dataSource = createDataSource(8, 200, 8, false);
+        final long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+        try {
+            final ObjectName objectName = new ObjectName(dataSource.getMBeanName());
+            assertEquals(dataSource.getNumIdle(), 8);
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "WarmUp.Opened"), 8);
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "WarmUp.Running"), false);
+            final double duration = (Double) ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "WarmUp.Duration");
+            assertTrue(duration >= 200d && duration < 8 * 200d / 2, "warm-up took " + duration + " ms");
+            assertTrue(elapsedMillis < 8 * 200L / 2 + 200L, "datasource creation took " + elapsedMillis + " ms");
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert an asynchronous warm-up returns the datasource right away, which is usable while the initial connections
+     * are being opened.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test(timeOut = 30000)
+    public void testAsync() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(4, 200, 2, true);
+        try {
+            final PoolWarmUp warmUp = dataSource.getWarmUp();
+            assertTrue(warmUp.isRunning());
+            assertTrue(warmUp.getOpened() < 4);
+
+            final Connection connection = dataSource.getConnection();
+            connection.close();
+
+            while (warmUp.isRunning()) {
+                Thread.sleep(10L);
+            }
+            assertEquals(warmUp.getOpened(), 4);
+            assertTrue(warmUp.getDuration() >= 2 * 200d, "warm-up took " + warmUp.getDuration() + " ms");
+            assertTrue(dataSource.getNumIdle() >= 4);
+            assertNull(warmUp.getLastError());
+        } finally {
+            dataSource.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link SqlStatistics}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class SqlStatisticsTest {
+
+    /**
+     * Data provider for {@link #testFingerprint(String, String)}.
+     *
+     * @return an array of parameters to be passed to {@link #testFingerprint(String, String)}.
+     */
+    @DataProvider(name = "testFingerprintProvider")
+    public Object[][] testFingerprintProvider() {
+        return new Object[][]{
+                {"SELECT * FROM users WHERE id = 42", "select * from users where id = ?"},
+                {"select *\n  from   users where name='O''Brien'", "select * from users where name=?"},
+                {"SELECT a FROM t WHERE x IN (1, 2, 3.5, 0x1F)", "select a from t where x in (?)"},
+                {"SELECT a FROM t WHERE x IN (?, ?,?)", "select a from t where x in (?)"},
+                {"SELECT col1 FROM table2 -- comment\nWHERE y = -1", "select col1 from table2 where y = -?"},
+                {"SELECT /* hint */ \"Mixed Case\" FROM `T`", "select \"Mixed Case\" from `T`"},
+                {"  INSERT INTO t VALUES ('a', 1)  ", "insert into t values (?)"},
+                {null, ""}
+        };
+    }
+
+    /**
+     * Assert SQL statements are normalized as expected.
+     *
+     * @param sql      the SQL statement.
+     * @param expected the expected fingerprint.
+     */
+    @Test(dataProvider = "testFingerprintProvider")
+    public void testFingerprint(String sql, String expected) {
+        assertEquals(SqlStatistics.fingerprint(sql), expected);
+    }
+
+    /**
+     * Assert fingerprints of very long statements are truncated.
+     */
+    @Test
+    public void testFingerprintTruncated() {
+        final StringBuilder sql = new StringBuilder("SELECT a");
+        for (int i = 0; i < 1000; i++) {
+            sql.append(", column").append(i);
+        }
+        final int length = SqlStatistics.fingerprint(sql.toString()).length();
+        assertTrue(length <= SqlStatistics.MAX_FINGERPRINT_LENGTH && length > SqlStatistics.MAX_FINGERPRINT_LENGTH - 2);
+    }
+
+    /**
+     * Assert the number of tracked fingerprints is bounded and heavy fingerprints survive a flood of distinct ones.
+     */
+    @Test
+    public void testBoundedCapacity() {
+        final SqlStatistics statistics = new SqlStatistics();
+        statistics.setCapacity(10);
+        for (int i = 0; i < 100; i++) {
+            statistics.record("heavy", 10000000L);
+        }
+        for (int i = 0; i < 10000; i++) {
+            statistics.record("light " + i, 1000L);
+        }
+        assertEquals(statistics.size(), 10);
+        final List<SqlStatistics.Entry> top = statistics.top(3);
+        assertEquals(top.size(), 3);
+        assertEquals(top.get(0).getFingerprint(), "heavy");
+        assertEquals(top.get(0).getTimes().getCount(), 100L);
+        assertEquals(top.get(0).getError(), 0L);
+        assertTrue(top.get(1).getError() > 0L, "entries admitted by eviction must carry an error bound");
+    }
+
+    /**
+     * Assert evicted entries are detached rather than reused, so late recordings into them do not land on the
+     * fingerprint admitted in their place.
+     */
+    @Test
+    public void testEvictedEntryDetached() {
+        final SqlStatistics statistics = new SqlStatistics();
+        statistics.setCapacity(1);
+        statistics.record("select a", 1000000L);
+        final SqlStatistics.Entry evicted = statistics.top(1).get(0);
+        statistics.record("select b", 2000000L);
+        final SqlStatistics.Entry admitted = statistics.top(1).get(0);
+
+        evicted.getTimes().recordNanos(5000000L);
+        assertEquals(evicted.getFingerprint(), "select a");
+        assertEquals(evicted.getTimes().getCount(), 2L);
+        assertEquals(admitted.getFingerprint(), "select b");
+        assertEquals(admitted.getTimes().getCount(), 1L);
+        assertEquals(admitted.getError(), 1000L);
+    }
+
+    /**
+     * Assert the open data representation and reset.
+     */
+    @Test
+    public void testTabularDataAndReset() {
+        final SqlStatistics statistics = new SqlStatistics();
+        statistics.record("select ?", 2000000L);
+        statistics.record("select ?", 4000000L);
+        statistics.record("update t set a = ?", 1000000L);
+
+        final TabularData table = statistics.toTabularData(SqlStatistics.TOP_SIZE);
+        assertEquals(table.size(), 2);
+        final CompositeData row = table.get(new Object[]{"select ?"});
+        assertEquals(row.get("count"), 2L);
+        assertEquals((Double) row.get("totalTime"), 6d, 0.001);
+        assertEquals((Double) row.get("meanTime"), 3d, 0.001);
+        assertEquals((Double) row.get("totalTimeError"), 0d);
+        assertEquals(statistics.toTabularData(1).size(), 1);
+
+        statistics.reset();
+        assertEquals(statistics.size(), 0);
+        assertTrue(statistics.toTabularData(SqlStatistics.TOP_SIZE).isEmpty());
+    }
+}
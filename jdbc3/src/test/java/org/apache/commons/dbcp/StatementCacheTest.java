@@ -0,0 +1,181 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.Attribute;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for {@link StatementCache}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class StatementCacheTest {
+
+    /**
+     * Create a datasource backed by the stub driver that pools prepared statements.
+     *
+     * @param capacity the per-connection cache capacity.
+     * @param maxOpen  the maximum number of statements open per connection.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(int capacity, int maxOpen) throws Exception {
+        return StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_POOLPREPAREDSTATEMENTS, "true",
+                ManagedBasicDataSourceFactory.PROP_MAXOPENPREPAREDSTATEMENTS, String.valueOf(maxOpen),
+                ManagedBasicDataSourceFactory.PROP_STATEMENTCACHECAPACITY, String.valueOf(capacity));
+    }
+
+    /**
+     * Prepare and close a statement.
+     *
+     * @param connection the connection.
+     * @param sql        the statement SQL.
+     * @throws SQLException should not happen.
+     */
+    private static void prepare(Connection connection, String sql) throws SQLException {
+        connection.prepareStatement(sql).close();
+    }
+
+    /**
+     * Assert statements prepared again on the same connection are counted as hits, and cached statements are counted
+     * across connections.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(0, -1);
+        try {
+            final Connection first = dataSource.getConnection();
+            final Connection second = dataSource.getConnection();
+            prepare(first, "SELECT 1");
+            prepare(first, "SELECT 1");
+            prepare(first, "SELECT 2");
+            prepare(second, "SELECT 1");
+
+            final StatementCacheStatistics statistics = dataSource.getStatementCache();
+            assertEquals(statistics.getHits(), 1L);
+            assertEquals(statistics.getMisses(), 3L);
+            assertEquals(statistics.getHitRatio(), 0.25d);
+            assertEquals(statistics.getCached(), 3);
+            assertEquals(statistics.getEvictions(), 0L);
+
+            first.close();
+            second.close();
+            dataSource.close();
+            assertEquals(statistics.getCached(), 0);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the least recently used statements are closed once the capacity is reached.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testLruEviction() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(2, -1);
+        try {
+            final Connection connection = dataSource.getConnection();
+            prepare(connection, "SELECT 1");
+            prepare(connection, "SELECT 2");
+            prepare(connection, "SELECT 1");
+            prepare(connection, "SELECT 3");
+
+            final StatementCacheStatistics statistics = dataSource.getStatementCache();
+            assertEquals(statistics.getEvictions(), 1L);
+            assertEquals(statistics.getCached(), 2);
+
+            // "SELECT 2" was the least recently used
+            prepare(connection, "SELECT 1");
+            prepare(connection, "SELECT 2");
+            assertEquals(statistics.getHits(), 2L);
+            assertEquals(statistics.getMisses(), 4L);
+            connection.close();
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert <code>maxOpenPreparedStatements</code> still limits the statements open on a connection, idle ones being
+     * closed to make room.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testMaxOpenPreparedStatements() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(0, 2);
+        try {
+            final Connection connection = dataSource.getConnection();
+            prepare(connection, "SELECT 1");
+            final PreparedStatement open = connection.prepareStatement("SELECT 2");
+            prepare(connection, "SELECT 3");
+            assertEquals(dataSource.getStatementCache().getEvictions(), 1L);
+
+            final PreparedStatement other = connection.prepareStatement("SELECT 4");
+            try {
+                connection.prepareStatement("SELECT 5");
+                fail("maxOpenPreparedStatements must be enforced");
+            } catch (SQLException e) {
+                // expected
+            }
+            open.close();
+            other.close();
+            connection.close();
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the statistics are exposed through the datasource MBean.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testMBean() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(0, -1);
+        try {
+            final Connection connection = dataSource.getConnection();
+            prepare(connection, "SELECT 1");
+            prepare(connection, "SELECT 1");
+            connection.close();
+
+            final ObjectName name = new ObjectName(dataSource.getMBeanName());
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "StatementCache.Hits"), 1L);
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "StatementCache.Cached"), 1);
+            ManagementFactory.getPlatformMBeanServer().setAttribute(name, new Attribute("StatementCache.Capacity", 5));
+            assertEquals(dataSource.getStatementCache().getCapacity(), 5);
+        } finally {
+            dataSource.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import javax.management.*;
+
+/**
+ * A MBean exposing the {@link org.weakref.jmx.Managed} members of any object through its {@link MBeanModel}.
+ * <p/>
+ * <p>Used for the objects that do not need the bulk reads and notifications of {@link DataSourceMBean}.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+class AnnotatedMBean implements DynamicMBean {
+
+    /**
+     * The MBean model of the exposed object.
+     */
+    private final MBeanModel model;
+
+    /**
+     * Build a new {@link AnnotatedMBean}.
+     *
+     * @param target the exposed object.
+     */
+    AnnotatedMBean(Object target) {
+        this.model = MBeanModel.of(target, new MBeanNotificationInfo[0]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MBeanInfo getMBeanInfo() {
+        return model.getInfo();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException, ReflectionException {
+        return model.getAttribute(attribute);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public AttributeList getAttributes(String[] attributes) {
+        final AttributeList result = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                result.add(new Attribute(attribute, model.getAttribute(attribute)));
+            } catch (JMException e) {
+                // Left out
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException {
+        model.setAttribute(attribute);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public AttributeList setAttributes(AttributeList attributes) {
+        final AttributeList result = new AttributeList();
+        for (Object attribute : attributes) {
+            try {
+                model.setAttribute((Attribute) attribute);
+                result.add((Attribute) attribute);
+            } catch (JMException e) {
+                // Left out
+            } catch (RuntimeException e) {
+                // Left out
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+        return model.invoke(actionName, params, signature);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Handler for the {@link PreparedStatement} proxies created by {@link TrackedConnection} for the SQL allow-listed in
+ * the {@link ResultCache}.
+ * <p/>
+ * <p>Remembers the parameters set on the statement, and serves <code>executeQuery()</code> from the cache when a result
+ * was already read for the same SQL and parameters. Otherwise the query is executed, its result read into memory and
+ * cached, and handed out as a {@link CachedResultSet}. Reading stops as soon as the result is larger than the
+ * {@link ResultCache#getMaxMemory() memory cap}: it is then not cached, and the rows left are read from the actual
+ * result set.</p>
+ * <p/>
+ * <p>Executions are only cached when all the parameters are set with simple values: setting a stream, a LOB or an
+ * object of another type makes the statement bypass the cache until {@link PreparedStatement#clearParameters()}. The
+ * statement also bypasses the cache while it has a <code>maxRows</code> or <code>maxFieldSize</code> limit, as its
+ * results are truncated.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+class CachingStatement implements InvocationHandler {
+
+    /**
+     * The parameter setters whose value can be part of a cache key.
+     */
+    private static final Set<String> KEYABLE_SETTERS = new HashSet<String>(Arrays.asList(
+            "setNull", "setBoolean", "setByte", "setShort", "setInt", "setLong", "setFloat", "setDouble",
+            "setBigDecimal", "setString", "setNString", "setDate", "setTime", "setTimestamp", "setObject"));
+
+    /**
+     * The actual statement, possibly a {@link TrackedStatement}.
+     */
+    private final PreparedStatement delegate;
+
+    /**
+     * The connection proxy the statement was created from.
+     */
+    private final Connection connection;
+
+    /**
+     * The cache to serve the results from.
+     */
+    private final ResultCache cache;
+
+    /**
+     * The prepared SQL.
+     */
+    private final String sql;
+
+    /**
+     * The parameter values set so far, by index minus one.
+     */
+    private Object[] parameters = new Object[8];
+
+    /**
+     * The highest parameter index set so far.
+     */
+    private int parameterCount;
+
+    /**
+     * Whether all the parameters set so far can be part of a cache key.
+     */
+    private boolean keyable = true;
+
+    /**
+     * Build a new {@link CachingStatement}.
+     *
+     * @param delegate   the actual statement.
+     * @param connection the connection proxy the statement was created from.
+     * @param cache      the cache to serve the results from.
+     * @param sql        the prepared SQL.
+     */
+    private CachingStatement(PreparedStatement delegate, Connection connection, ResultCache cache, String sql) {
+        this.delegate = delegate;
+        this.connection = connection;
+        this.cache = cache;
+        this.sql = sql;
+    }
+
+    /**
+     * Wrap a prepared statement.
+     *
+     * @param type       the statement interface to proxy.
+     * @param delegate   the actual statement.
+     * @param connection the connection proxy the statement was created from.
+     * @param cache      the cache to serve the results from.
+     * @param sql        the prepared SQL.
+     * @return a proxy for the statement.
+     */
+    static Statement wrap(Class<?> type, PreparedStatement delegate, Connection connection, ResultCache cache, String sql) {
+        return (Statement) Proxy.newProxyInstance(CachingStatement.class.getClassLoader(),
+                                                  new Class<?>[]{type},
+                                                  new CachingStatement(delegate, connection, cache, sql));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final String name = method.getName();
+        if (args == null) {
+            if ("executeQuery".equals(name)) {
+                return executeQuery((Statement) proxy, method);
+            } else if ("clearParameters".equals(name)) {
+                Arrays.fill(parameters, null);
+                parameterCount = 0;
+                keyable = true;
+            } else if ("getConnection".equals(name)) {
+                return connection;
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+        } else if (args.length >= 2 && name.startsWith("set") && args[0] instanceof Integer) {
+            setParameter(name, args);
+        } else if (args.length == 1 && "equals".equals(name)) {
+            return proxy == args[0];
+        }
+        return invokeDelegate(method, args);
+    }
+
+    /**
+     * Remember the value of a parameter.
+     *
+     * @param setter the name of the setter.
+     * @param args   the arguments of the setter, starting with the parameter index.
+     */
+    private void setParameter(String setter, Object[] args) {
+        final int index = (Integer) args[0];
+        if (index < 1) {
+            keyable = false;
+            return;
+        }
+        if (index > parameters.length) {
+            final Object[] grown = new Object[Math.max(index, parameters.length * 2)];
+            System.arraycopy(parameters, 0, grown, 0, parameters.length);
+            parameters = grown;
+        }
+        if ("setNull".equals(setter)) {
+            parameters[index - 1] = null;
+        } else if (args.length == 2 && KEYABLE_SETTERS.contains(setter) && ResultCache.isKeyable(args[1])) {
+            parameters[index - 1] = ResultCache.copy(args[1]);
+        } else {
+            keyable = false;
+        }
+        parameterCount = Math.max(parameterCount, index);
+    }
+
+    /**
+     * Serve a query from the cache, or execute it and cache its result.
+     *
+     * @param proxy  the statement proxy.
+     * @param method the <code>executeQuery()</code> method.
+     * @return the result set.
+     * @throws Throwable the exception thrown by the actual statement.
+     */
+    private ResultSet executeQuery(Statement proxy, Method method) throws Throwable {
+        if (!keyable || delegate.getMaxRows() != 0 || delegate.getMaxFieldSize() != 0) {
+            return (ResultSet) invokeDelegate(method, null);
+        }
+        final Object[] values = new Object[parameterCount];
+        System.arraycopy(parameters, 0, values, 0, parameterCount);
+        final ResultCache.Key key = new ResultCache.Key(sql, values);
+        ResultCache.Entry entry = cache.get(key);
+        if (entry == null) {
+            final ResultSet resultSet = (ResultSet) invokeDelegate(method, null);
+            if (!ResultCache.Entry.isReadable(resultSet.getMetaData())) {
+                return resultSet;
+            }
+            boolean partial = false;
+            try {
+                entry = ResultCache.Entry.read(resultSet, cache.getMaxMemory());
+                partial = !entry.complete;
+            } finally {
+                if (!partial) {
+                    resultSet.close();
+                }
+            }
+            if (partial) {
+                // Too large to be cached: the rows left are read from the actual result set
+                return CachedResultSet.wrap(entry, resultSet, proxy);
+            }
+            cache.put(key, entry);
+        }
+        return CachedResultSet.wrap(entry, proxy);
+    }
+
+    /**
+     * Invoke a method on the actual statement.
+     *
+     * @param method the method.
+     * @param args   the arguments.
+     * @return the result of the method.
+     * @throws Throwable the exception thrown by the method.
+     */
+    private Object invokeDelegate(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Handler for the statement proxies created by {@link TrackedConnection} when {@link BatchCoalescing batch coalescing}
+ * is enabled.
+ * <p/>
+ * <p>The <code>executeUpdate()</code> calls of the statements prepared with
+ * {@link Connection#prepareStatement(String)} are buffered with <code>addBatch()</code> while the connection is not in
+ * auto-commit mode. The {@link Buffer} of the connection executes the batch before anything else is done: executing
+ * another statement, reading results, committing, or calling any other method of the statement or the connection but
+ * the parameter setters. A rollback drops the buffered executions.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+class CoalescingStatement implements InvocationHandler {
+
+    /**
+     * {@link PreparedStatement#executeUpdate()}.
+     */
+    private static final Method EXECUTE_UPDATE;
+
+    /**
+     * {@link PreparedStatement#addBatch()}.
+     */
+    private static final Method ADD_BATCH;
+
+    /**
+     * {@link Statement#executeBatch()}.
+     */
+    private static final Method EXECUTE_BATCH;
+
+    /**
+     * {@link Statement#clearBatch()}.
+     */
+    private static final Method CLEAR_BATCH;
+
+    static {
+        try {
+            EXECUTE_UPDATE = PreparedStatement.class.getMethod("executeUpdate");
+            ADD_BATCH = PreparedStatement.class.getMethod("addBatch");
+            EXECUTE_BATCH = Statement.class.getMethod("executeBatch");
+            CLEAR_BATCH = Statement.class.getMethod("clearBatch");
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The actual statement, possibly a {@link TrackedStatement} or a {@link CachingStatement}.
+     */
+    private final Statement delegate;
+
+    /**
+     * The connection proxy the statement was created from.
+     */
+    private final Connection connection;
+
+    /**
+     * The buffer of the connection.
+     */
+    private final Buffer buffer;
+
+    /**
+     * Whether <code>executeUpdate()</code> calls may be buffered, i.e. the statement is a prepared statement without
+     * generated keys nor specific result set settings.
+     */
+    private final boolean coalescable;
+
+    /**
+     * The number of buffered executions.
+     */
+    private int buffered;
+
+    /**
+     * Build a new {@link CoalescingStatement}.
+     *
+     * @param delegate    the actual statement.
+     * @param connection  the connection proxy the statement was created from.
+     * @param buffer      the buffer of the connection.
+     * @param coalescable whether <code>executeUpdate()</code> calls may be buffered.
+     */
+    private CoalescingStatement(Statement delegate, Connection connection, Buffer buffer, boolean coalescable) {
+        this.delegate = delegate;
+        this.connection = connection;
+        this.buffer = buffer;
+        this.coalescable = coalescable;
+    }
+
+    /**
+     * Wrap a statement.
+     *
+     * @param type        the statement interface to proxy.
+     * @param delegate    the actual statement.
+     * @param connection  the connection proxy the statement was created from.
+     * @param buffer      the buffer of the connection.
+     * @param coalescable whether <code>executeUpdate()</code> calls may be buffered.
+     * @return a proxy for the statement.
+     */
+    static Statement wrap(Class<?> type, Statement delegate, Connection connection, Buffer buffer, boolean coalescable) {
+        return (Statement) Proxy.newProxyInstance(CoalescingStatement.class.getClassLoader(),
+                                                  new Class<?>[]{type},
+                                                  new CoalescingStatement(delegate, connection, buffer, coalescable));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final String name = method.getName();
+        if (args == null) {
+            if ("executeUpdate".equals(name) && coalescable) {
+                return executeUpdate();
+            } else if ("getConnection".equals(name)) {
+                return connection;
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("clearParameters".equals(name)) {
+                return invokeDelegate(method, null);
+            }
+        } else if (args.length == 1 && "equals".equals(name)) {
+            return proxy == args[0];
+        } else if (args.length >= 2 && name.startsWith("set") && args[0] instanceof Integer) {
+            // Parameter setters only apply to the next execution
+            return invokeDelegate(method, args);
+        }
+        final boolean read = "executeQuery".equals(name) || "execute".equals(name);
+        if (buffer.pending == this) {
+            buffer.flush(read || name.startsWith("get") ? BatchCoalescing.Flush.READ : BatchCoalescing.Flush.OTHER);
+        } else if (name.startsWith("execute")) {
+            buffer.flush(read ? BatchCoalescing.Flush.READ : BatchCoalescing.Flush.SQL);
+        }
+        return invokeDelegate(method, args);
+    }
+
+    /**
+     * Buffer an execution, or execute it if coalescing does not apply.
+     *
+     * @return {@link BatchCoalescing#PROVISIONAL_UPDATE_COUNT} if the execution was buffered, the actual update count
+     *         otherwise.
+     * @throws SQLException if the statement or a batch failed.
+     */
+    private Object executeUpdate() throws SQLException {
+        if (buffer.pending != this) {
+            buffer.flush(BatchCoalescing.Flush.SQL);
+            if (!buffer.coalescing.isEnabled() || connection.getAutoCommit()) {
+                return invoke(EXECUTE_UPDATE);
+            }
+        }
+        invoke(ADD_BATCH);
+        buffer.pending = this;
+        buffered++;
+        buffer.coalescing.coalesced();
+        if (buffered >= buffer.coalescing.getBatchSize()) {
+            buffer.flush(BatchCoalescing.Flush.SIZE);
+        }
+        return BatchCoalescing.PROVISIONAL_UPDATE_COUNT;
+    }
+
+    /**
+     * Execute the buffered executions in a batch.
+     *
+     * @param reason why the batch is executed.
+     * @throws SQLException if the batch failed, or an update count differs from
+     *                      {@link BatchCoalescing#PROVISIONAL_UPDATE_COUNT} with strict update counts.
+     */
+    private void executeBatch(BatchCoalescing.Flush reason) throws SQLException {
+        buffered = 0;
+        final int[] counts = (int[]) invoke(EXECUTE_BATCH);
+        int mismatches = 0;
+        for (int count : counts) {
+            if (count != BatchCoalescing.PROVISIONAL_UPDATE_COUNT && count != Statement.SUCCESS_NO_INFO) {
+                mismatches++;
+            }
+        }
+        buffer.coalescing.flushed(reason, mismatches);
+        if (mismatches > 0 && buffer.coalescing.isStrictUpdateCounts()) {
+            throw new BatchUpdateException(mismatches + " of " + counts.length + " coalesced updates did not update "
+                                           + BatchCoalescing.PROVISIONAL_UPDATE_COUNT + " row", counts);
+        }
+    }
+
+    /**
+     * Drop the buffered executions.
+     *
+     * @throws SQLException if the batch could not be cleared.
+     */
+    private void clearBatch() throws SQLException {
+        buffer.coalescing.discarded(buffered);
+        buffered = 0;
+        invoke(CLEAR_BATCH);
+    }
+
+    /**
+     * Invoke a method without arguments on the actual statement.
+     *
+     * @param method the method.
+     * @return the result of the method.
+     * @throws SQLException the exception thrown by the method.
+     */
+    private Object invoke(Method method) throws SQLException {
+        try {
+            return invokeDelegate(method, null);
+        } catch (SQLException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new SQLException(method.getName() + " failed", e);
+        }
+    }
+
+    /**
+     * Invoke a method on the actual statement.
+     *
+     * @param method the method.
+     * @param args   the arguments.
+     * @return the result of the method.
+     * @throws Throwable the exception thrown by the method.
+     */
+    private Object invokeDelegate(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * The statement whose executions are buffered on a connection, if any.
+     */
+    static class Buffer {
+
+        /**
+         * The settings and statistics of the datasource.
+         */
+        final BatchCoalescing coalescing;
+
+        /**
+         * The statement whose executions are buffered, <code>null</code> if none.
+         */
+        CoalescingStatement pending;
+
+        /**
+         * Build a new {@link Buffer}.
+         *
+         * @param coalescing the settings and statistics of the datasource.
+         */
+        Buffer(BatchCoalescing coalescing) {
+            this.coalescing = coalescing;
+        }
+
+        /**
+         * Execute the buffered executions, if any.
+         *
+         * @param reason why the batch is executed.
+         * @throws SQLException if the batch failed.
+         */
+        void flush(BatchCoalescing.Flush reason) throws SQLException {
+            final CoalescingStatement statement = pending;
+            if (statement != null) {
+                pending = null;
+                statement.executeBatch(reason);
+            }
+        }
+
+        /**
+         * Drop the buffered executions, if any, when the transaction is rolled back.
+         *
+         * @throws SQLException if the batch could not be cleared.
+         */
+        void discard() throws SQLException {
+            final CoalescingStatement statement = pending;
+            if (statement != null) {
+                pending = null;
+                statement.clearBatch();
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.apache.commons.pool.PoolableObjectFactory;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Connection pool of a {@link ManagedBasicDataSource} that mirrors its active and idle gauges into the
+ * {@link PoolStatistics}, so they can be read without the pool monitor.
+ * <p/>
+ * <p>Connections are counted active from a successful {@link #borrowObject()} until they are returned or invalidated,
+ * exactly like the pool counts them, and open from the factory creating them until it destroys them; the idle ones
+ * are the difference. It extends {@link AbandonedObjectPool}, which behaves like a plain
+ * {@link org.apache.commons.pool.impl.GenericObjectPool} without configuration, so abandoned connections can still be
+ * removed when <code>removeAbandoned</code> is set.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+class CountingObjectPool extends AbandonedObjectPool {
+
+    /**
+     * The statistics to mirror the gauges into.
+     */
+    private final PoolStatistics statistics;
+
+    /**
+     * The connections currently borrowed, <code>null</code> unless abandoned connections are removed: the pool then
+     * ignores the connections it already removed when they are closed, and so must the counters.
+     */
+    private final Map<Object, Boolean> borrowed;
+
+    /**
+     * Build a new {@link CountingObjectPool}.
+     *
+     * @param config     the configuration for the removal of abandoned connections, <code>null</code> if disabled.
+     * @param statistics the statistics to mirror the gauges into.
+     */
+    CountingObjectPool(AbandonedConfig config, PoolStatistics statistics) {
+        super(null, config);
+        this.statistics = statistics;
+        this.borrowed = config == null ? null : Collections.synchronizedMap(new IdentityHashMap<Object, Boolean>());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>The factory is wrapped so the connections it opens and destroys are counted.</p>
+     */
+    @Override
+    public void setFactory(final PoolableObjectFactory factory) throws IllegalStateException {
+        super.setFactory(factory == null ? null : new PoolableObjectFactory() {
+            public Object makeObject() throws Exception {
+                final Object obj = factory.makeObject();
+                statistics.connectionOpened();
+                return obj;
+            }
+
+            public void destroyObject(Object obj) throws Exception {
+                try {
+                    factory.destroyObject(obj);
+                } finally {
+                    statistics.connectionDestroyed();
+                }
+            }
+
+            public boolean validateObject(Object obj) {
+                return factory.validateObject(obj);
+            }
+
+            public void activateObject(Object obj) throws Exception {
+                factory.activateObject(obj);
+            }
+
+            public void passivateObject(Object obj) throws Exception {
+                factory.passivateObject(obj);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object borrowObject() throws Exception {
+        final Object obj = super.borrowObject();
+        if (borrowed != null) {
+            borrowed.put(obj, Boolean.TRUE);
+        }
+        statistics.connectionActivated();
+        return obj;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void returnObject(Object obj) throws Exception {
+        released(obj);
+        super.returnObject(obj);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invalidateObject(Object obj) throws Exception {
+        released(obj);
+        super.invalidateObject(obj);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Always true while idle connections are {@link BudgetShare#reclaimIdle() reclaimed}, so that
+     * {@link #evict()} asks the factory which one to close.</p>
+     */
+    @Override
+    public boolean getTestWhileIdle() {
+        return BudgetShare.isReclaiming() || super.getTestWhileIdle();
+    }
+
+    /**
+     * Stop counting a connection as active, before the pool makes it idle or destroys it.
+     *
+     * @param obj the connection given back.
+     */
+    private void released(Object obj) {
+        if (borrowed == null || borrowed.remove(obj) != null) {
+            statistics.connectionReleased();
+        }
+    }
+}
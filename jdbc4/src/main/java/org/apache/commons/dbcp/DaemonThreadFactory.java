@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the named daemon threads of the background tasks, so they never prevent the JVM from exiting.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+    /**
+     * The prefix of the thread names.
+     */
+    private final String name;
+
+    /**
+     * The number of threads created so far.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Build a new {@link DaemonThreadFactory}.
+     *
+     * @param name the prefix of the thread names.
+     */
+    DaemonThreadFactory(String name) {
+        this.name = name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.weakref.jmx.MBeanExporter;
+
+import javax.management.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link org.weakref.jmx.Managed} members of an object, exposed through the MBean metadata jmxutils builds for its
+ * class.
+ * <p/>
+ * <p>jmxutils introspects every object it exports, which is the bulk of the cost of building a datasource. Here the
+ * {@link MBeanInfo} it builds is kept per class, so only the first instance of a class is introspected; the names in
+ * the metadata (<code>BorrowWait.P99</code>, <code>BorrowWait.reset</code>) are bound to the methods of the instance
+ * when first used.</p>
+ * <p/>
+ * <p>The metadata is built from the first instance, so the members of a {@link org.weakref.jmx.Nested} object that
+ * instance does not have are not exposed for the other instances either.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+final class MBeanModel {
+
+    /**
+     * The metadata built by jmxutils, by class. The classes are weakly referenced so their class loader can still be
+     * unloaded.
+     */
+    private static final Map<Class<?>, MBeanInfo> INFOS = new WeakHashMap<Class<?>, MBeanInfo>();
+
+    /**
+     * The name the objects are introspected under, in a private MBean server.
+     */
+    private static final String INTROSPECTION_NAME = "org.apache.commons.dbcp:type=MBeanModel";
+
+    /**
+     * The prefixes of getters.
+     */
+    private static final String[] GETTER_PREFIXES = {"get", "is"};
+
+    /**
+     * The prefixes of setters.
+     */
+    private static final String[] SETTER_PREFIXES = {"set"};
+
+    /**
+     * The prefixes of operations.
+     */
+    private static final String[] OPERATION_PREFIXES = {""};
+
+    /**
+     * The wrapper types of the primitive types.
+     */
+    private static final Map<String, Class<?>> WRAPPERS = new HashMap<String, Class<?>>();
+
+    static {
+        WRAPPERS.put(Boolean.TYPE.getName(), Boolean.class);
+        WRAPPERS.put(Byte.TYPE.getName(), Byte.class);
+        WRAPPERS.put(Character.TYPE.getName(), Character.class);
+        WRAPPERS.put(Short.TYPE.getName(), Short.class);
+        WRAPPERS.put(Integer.TYPE.getName(), Integer.class);
+        WRAPPERS.put(Long.TYPE.getName(), Long.class);
+        WRAPPERS.put(Float.TYPE.getName(), Float.class);
+        WRAPPERS.put(Double.TYPE.getName(), Double.class);
+    }
+
+    /**
+     * The exposed object.
+     */
+    private final Object target;
+
+    /**
+     * The MBean metadata.
+     */
+    private final MBeanInfo info;
+
+    /**
+     * The attributes, by name.
+     */
+    private final Map<String, MBeanAttributeInfo> attributes = new HashMap<String, MBeanAttributeInfo>();
+
+    /**
+     * The operations, by {@link #signature(String, String[]) signature}.
+     */
+    private final Map<String, MBeanOperationInfo> operations = new HashMap<String, MBeanOperationInfo>();
+
+    /**
+     * The methods bound so far, by kind and name: the getters leading to the nested object, then the accessor or
+     * operation.
+     */
+    private final ConcurrentMap<String, Method[]> methods = new ConcurrentHashMap<String, Method[]>();
+
+    /**
+     * Build a new {@link MBeanModel}.
+     *
+     * @param target        the exposed object.
+     * @param notifications the notifications emitted by the object.
+     */
+    private MBeanModel(Object target, MBeanNotificationInfo[] notifications) {
+        this.target = target;
+        final MBeanInfo exported = introspect(target);
+        this.info = notifications.length == 0 ? exported : new MBeanInfo(exported.getClassName(),
+                                                                         exported.getDescription(),
+                                                                         exported.getAttributes(),
+                                                                         exported.getConstructors(),
+                                                                         exported.getOperations(),
+                                                                         notifications);
+        for (MBeanAttributeInfo attribute : info.getAttributes()) {
+            attributes.put(attribute.getName(), attribute);
+        }
+        for (MBeanOperationInfo operation : info.getOperations()) {
+            final MBeanParameterInfo[] parameters = operation.getSignature();
+            final String[] types = new String[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                types[i] = parameters[i].getType();
+            }
+            operations.put(signature(operation.getName(), types), operation);
+        }
+    }
+
+    /**
+     * Get the model of an object.
+     *
+     * @param target        the exposed object.
+     * @param notifications the notifications emitted by the object.
+     * @return the model, which reuses the metadata of the objects of the same class.
+     */
+    static MBeanModel of(Object target, MBeanNotificationInfo[] notifications) {
+        return new MBeanModel(target, notifications);
+    }
+
+    /**
+     * Get the metadata jmxutils builds for the class of an object, exporting it on first use.
+     *
+     * @param target the object.
+     * @return the metadata shared by all the instances of the class.
+     */
+    private static MBeanInfo introspect(Object target) {
+        synchronized (INFOS) {
+            MBeanInfo info = INFOS.get(target.getClass());
+            if (info == null) {
+                final MBeanServer server = MBeanServerFactory.newMBeanServer();
+                try {
+                    new MBeanExporter(server).export(INTROSPECTION_NAME, target);
+                    info = server.getMBeanInfo(new ObjectName(INTROSPECTION_NAME));
+                } catch (JMException e) {
+                    throw new IllegalStateException("Could not introspect " + target.getClass().getName() + ": "
+                                                    + e.getMessage(), e);
+                }
+                INFOS.put(target.getClass(), info);
+            }
+            return info;
+        }
+    }
+
+    /**
+     * Get the MBean metadata.
+     *
+     * @return the metadata.
+     */
+    MBeanInfo getInfo() {
+        return info;
+    }
+
+    /**
+     * Whether the model has an attribute.
+     *
+     * @param name the attribute name.
+     * @return true if the attribute exists.
+     */
+    boolean hasAttribute(String name) {
+        return attributes.containsKey(name);
+    }
+
+    /**
+     * Read an attribute.
+     *
+     * @param name the attribute name.
+     * @return the attribute value.
+     * @throws AttributeNotFoundException if there is no such readable attribute.
+     * @throws MBeanException             if the getter threw an exception.
+     * @throws ReflectionException        if the getter could not be invoked.
+     */
+    Object getAttribute(String name) throws AttributeNotFoundException, MBeanException, ReflectionException {
+        final MBeanAttributeInfo attribute = attributes.get(name);
+        if (attribute == null) {
+            throw new AttributeNotFoundException(name);
+        }
+        if (!attribute.isReadable()) {
+            throw new AttributeNotFoundException(name + " is write-only");
+        }
+        return invoke(bind("get " + name, name, GETTER_PREFIXES, new String[0]));
+    }
+
+    /**
+     * Write an attribute.
+     *
+     * @param attribute the attribute name and value.
+     * @throws AttributeNotFoundException     if there is no such writable attribute.
+     * @throws InvalidAttributeValueException if the value does not have the attribute type.
+     * @throws MBeanException                 if the setter threw an exception.
+     * @throws ReflectionException            if the setter could not be invoked.
+     */
+    void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException {
+        final String name = attribute.getName();
+        final MBeanAttributeInfo metadata = attributes.get(name);
+        if (metadata == null) {
+            throw new AttributeNotFoundException(name);
+        }
+        if (!metadata.isWritable()) {
+            throw new AttributeNotFoundException(name + " is read-only");
+        }
+        final Method[] setter = bind("set " + name, name, SETTER_PREFIXES, new String[]{metadata.getType()});
+        final Object value = attribute.getValue();
+        final Class<?> type = setter[setter.length - 1].getParameterTypes()[0];
+        if (type.isPrimitive() ? !WRAPPERS.get(type.getName()).isInstance(value) : value != null && !type.isInstance(value)) {
+            throw new InvalidAttributeValueException("Can not assign " + value + " to attribute " + name);
+        }
+        invoke(setter, value);
+    }
+
+    /**
+     * Invoke an operation.
+     *
+     * @param actionName the operation name.
+     * @param params     the parameters, may be <code>null</code> if there are none.
+     * @param signature  the parameter types, may be <code>null</code> if there are none.
+     * @return the operation result.
+     * @throws MBeanException      if there is no such operation, or it threw an exception.
+     * @throws ReflectionException if the operation could not be invoked.
+     */
+    Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+        final String[] types = signature == null ? new String[0] : signature;
+        final String key = signature(actionName, types);
+        if (!operations.containsKey(key)) {
+            final String message = "Operation " + actionName + " not found";
+            throw new MBeanException(new ServiceNotFoundException(message), message);
+        }
+        return invoke(bind(key, actionName, OPERATION_PREFIXES, types), params == null ? new Object[0] : params);
+    }
+
+    /**
+     * Find the methods behind a name of the metadata, the first time it is used.
+     *
+     * @param key      the key of the methods in {@link #methods}.
+     * @param name     the attribute or operation name, prefixed with the getters of the nested objects.
+     * @param prefixes the prefixes of the method name.
+     * @param types    the parameter types of the method.
+     * @return the getters leading to the nested object, then the method.
+     * @throws ReflectionException if a method could not be found.
+     */
+    private Method[] bind(String key, String name, String[] prefixes, String[] types) throws ReflectionException {
+        Method[] bound = methods.get(key);
+        if (bound == null) {
+            final String[] path = name.split("\\.");
+            bound = new Method[path.length];
+            Class<?> type = target.getClass();
+            for (int i = 0; i < path.length; i++) {
+                final boolean last = i == path.length - 1;
+                bound[i] = find(type, last ? prefixes : GETTER_PREFIXES, path[i], last ? types : new String[0]);
+                type = bound[i].getReturnType();
+            }
+            methods.put(key, bound);
+        }
+        return bound;
+    }
+
+    /**
+     * Find a public method by name and parameter types.
+     *
+     * @param type     the class declaring or inheriting the method.
+     * @param prefixes the possible prefixes of the method name.
+     * @param name     the method name, without prefix.
+     * @param types    the parameter type names.
+     * @return the method.
+     * @throws ReflectionException if there is no such method.
+     */
+    private static Method find(Class<?> type, String[] prefixes, String name, String[] types) throws ReflectionException {
+        for (Method method : type.getMethods()) {
+            if (method.isBridge() || method.getParameterTypes().length != types.length) {
+                continue;
+            }
+            for (String prefix : prefixes) {
+                if (method.getName().equals(prefix + name)) {
+                    final Class<?>[] parameterTypes = method.getParameterTypes();
+                    boolean matches = true;
+                    for (int i = 0; i < types.length && matches; i++) {
+                        matches = parameterTypes[i].getName().equals(types[i]);
+                    }
+                    if (matches) {
+                        return method;
+                    }
+                }
+            }
+        }
+        throw new ReflectionException(new NoSuchMethodException(type.getName() + "." + name),
+                                      "Could not find the method of " + name);
+    }
+
+    /**
+     * Invoke bound methods on the exposed object.
+     *
+     * @param bound  the getters leading to the nested object, then the method.
+     * @param params the parameters of the method.
+     * @return the method result.
+     * @throws MBeanException      if a method threw an exception.
+     * @throws ReflectionException if a method could not be invoked.
+     */
+    private Object invoke(Method[] bound, Object... params) throws MBeanException, ReflectionException {
+        Object object = target;
+        for (int i = 0; i < bound.length - 1; i++) {
+            object = invoke(object, bound[i]);
+        }
+        return invoke(object, bound[bound.length - 1], params);
+    }
+
+    /**
+     * Invoke a method, reporting failures the way JMX expects.
+     *
+     * @param target the instance.
+     * @param method the method.
+     * @param params the parameters.
+     * @return the method result.
+     * @throws MBeanException      if the method threw an exception.
+     * @throws ReflectionException if the method could not be invoked.
+     */
+    private static Object invoke(Object target, Method method, Object... params) throws MBeanException, ReflectionException {
+        try {
+            return method.invoke(target, params);
+        } catch (InvocationTargetException e) {
+            final Throwable cause = e.getTargetException();
+            if (cause instanceof MBeanException) {
+                throw (MBeanException) cause;
+            } else if (cause instanceof ReflectionException) {
+                throw (ReflectionException) cause;
+            } else if (cause instanceof Exception) {
+                throw new MBeanException((Exception) cause, "Exception occurred while invoking " + method.getName());
+            } else if (cause instanceof Error) {
+                throw new RuntimeErrorException((Error) cause, "Error occurred while invoking " + method.getName());
+            }
+            throw new RuntimeErrorException(new Error(cause), "Unexpected throwable occurred while invoking " + method.getName());
+        } catch (IllegalAccessException e) {
+            throw new ReflectionException(e, "Could not invoke " + method.getName());
+        } catch (IllegalArgumentException e) {
+            throw new ReflectionException(e, "Invalid parameters for " + method.getName());
+        }
+    }
+
+    /**
+     * Build the key of an operation.
+     *
+     * @param name  the operation name.
+     * @param types the parameter type names.
+     * @return the operation signature.
+     */
+    private static String signature(String name, String[] types) {
+        final StringBuilder signature = new StringBuilder(name).append('(');
+        for (int i = 0; i < types.length; i++) {
+            signature.append(i == 0 ? "" : ",").append(types[i]);
+        }
+        return signature.append(')').toString();
+    }
+}
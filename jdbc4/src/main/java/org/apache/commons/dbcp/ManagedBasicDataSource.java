@@ -15,16 +15,37 @@
  */
 package org.apache.commons.dbcp;
 
-import org.weakref.jmx.MBeanExporter;
+import org.apache.commons.pool.KeyedObjectPool;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
 import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
 
+import javax.management.JMException;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import javax.sql.DataSource;
 import java.lang.management.ManagementFactory;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Wrapper for {@link BasicDataSource} that exposes some fields and methods as a MBean.
+ * <p/>
+ * <p>The MBean getters never take the datasource monitor: they read the lock-free {@link PoolStatistics}, so JMX
+ * polling does not contend with {@link #getConnection()}. Collectors can read all the gauges and counters in one round
+ * trip with {@link #getPoolStats()}.</p>
+ * <p/>
+ * <p>The MBean is a {@link javax.management.NotificationEmitter}: it emits rate-limited notifications when the pool is
+ * exhausted ({@link #NOTIFICATION_POOL_EXHAUSTED}), when getting a connection is slow ({@link #NOTIFICATION_SLOW_BORROW})
+ * and when it times out ({@link #NOTIFICATION_BORROW_TIMEOUT}).</p>
+ * <p/>
+ * <p>An optional {@link AdaptiveSizingController} can tune minIdle, maxIdle and maxActive to keep the borrow wait time
+ * under a target, see {@link #getAdaptiveSizing()}.</p>
  *
  * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
  * @since 0.1
@@ -36,11 +57,139 @@ public class ManagedBasicDataSource extends BasicDataSource {
      */
     public static final String DEFAULT_MBEAN_NAME = "org.apache.commons.dbcp:ManagedBasicDataSource=ManagedBasicDataSource";
 
+    /**
+     * The type of the notification emitted when all the connections of the pool are in use.
+     */
+    public static final String NOTIFICATION_POOL_EXHAUSTED = "org.apache.commons.dbcp.pool.exhausted";
+
+    /**
+     * The type of the notification emitted when getting a connection took longer than {@link #getBorrowWaitThreshold()}.
+     */
+    public static final String NOTIFICATION_SLOW_BORROW = "org.apache.commons.dbcp.borrow.slow";
+
+    /**
+     * The type of the notification emitted when getting a connection timed out after {@link #getMaxWait()}.
+     */
+    public static final String NOTIFICATION_BORROW_TIMEOUT = "org.apache.commons.dbcp.borrow.timeout";
+
     /**
      * The name under which this object is exposed to the MBean server.
      */
     protected final String mBeanName;
 
+    /**
+     * The MBean server the MBean is still to be registered in, <code>null</code> once registered.
+     */
+    private MBeanServer pendingMBeanServer;
+
+    /**
+     * The lock-free statistics of this datasource.
+     */
+    protected final PoolStatistics statistics = new PoolStatistics();
+
+    /**
+     * The per-SQL execution statistics of this datasource.
+     */
+    protected final SqlStatistics sqlStatistics = new SqlStatistics();
+
+    /**
+     * Whether statement executions are recorded into {@link #sqlStatistics}.
+     */
+    private volatile boolean sqlStatisticsEnabled;
+
+    /**
+     * The emitter of the notifications of this datasource.
+     */
+    final PoolNotifier notifier = new PoolNotifier(statistics);
+
+    /**
+     * The controller that can size the pool of this datasource, disabled by default.
+     */
+    protected final AdaptiveSizingController adaptiveSizing = new AdaptiveSizingController(this);
+
+    /**
+     * Opens the <code>initialSize</code> connections when the pool is created.
+     */
+    protected final PoolWarmUp warmUp = new PoolWarmUp();
+
+    /**
+     * Examines the idle connections on several threads, disabled by default.
+     */
+    protected final PoolEvictor eviction = new PoolEvictor(this);
+
+    /**
+     * Reports the connections held longer than <code>removeAbandonedTimeout</code>, disabled by default.
+     */
+    protected final LeakDetector leakDetection = new LeakDetector(this);
+
+    /**
+     * The statistics and capacity of the prepared statement caches of the connections.
+     */
+    protected final StatementCacheStatistics statementCache = new StatementCacheStatistics();
+
+    /**
+     * Skips the validation of connections recently known to be valid.
+     */
+    protected final ValidationThrottle validation = new ValidationThrottle();
+
+    /**
+     * The share of this datasource in a {@link ConnectionBudget}, none by default.
+     */
+    protected final BudgetShare budget = new BudgetShare(this);
+
+    /**
+     * Keeps per-second samples of the pool metrics, disabled by default.
+     */
+    protected final PoolHistory history = new PoolHistory(this);
+
+    /**
+     * Serves the results of the allow-listed queries from memory, disabled by default.
+     */
+    protected final ResultCache resultCache = new ResultCache();
+
+    /**
+     * Coalesces repeated updates into JDBC batches, disabled by default.
+     */
+    protected final BatchCoalescing batchCoalescing = new BatchCoalescing();
+
+    /**
+     * Where threads wait for a connection when {@link #isConcurrentBorrow() concurrent borrow} is enabled.
+     */
+    final BorrowQueue borrowQueue = new BorrowQueue(this);
+
+    /**
+     * Whether threads wait for a connection in {@link #borrowQueue} rather than in the pool monitor.
+     */
+    private volatile boolean concurrentBorrow;
+
+    /**
+     * The {@link #getValidationMode() validation mode} running the validation query, connections are not tested if
+     * there is none.
+     */
+    public static final String VALIDATION_MODE_QUERY = "query";
+
+    /**
+     * The {@link #getValidationMode() validation mode} calling {@link Connection#isValid(int)} when there is no
+     * validation query.
+     */
+    public static final String VALIDATION_MODE_ISVALID = "isValid";
+
+    /**
+     * Whether connections are validated with {@link Connection#isValid(int)} when there is no validation query.
+     */
+    private volatile boolean useIsValid;
+
+    /**
+     * The factory of the pooled connections, <code>null</code> until the pool is created.
+     */
+    private volatile ThrottledConnectionFactory poolableConnectionFactory;
+
+    /**
+     * The <code>testOnBorrow</code>, <code>testOnReturn</code> and <code>testWhileIdle</code> settings when the pool was
+     * created, kept because {@link BasicDataSource} turns them off when there is no validation query.
+     */
+    private boolean[] configuredTests;
+
     /**
      * Build a new instance of {@link org.apache.commons.dbcp.ManagedBasicDataSource} and expose it as a MBean with an auto-generated unique name.
      *
@@ -48,7 +197,7 @@ public class ManagedBasicDataSource extends BasicDataSource {
      * @see #exportMBean(MBeanServer, String)
      */
     public ManagedBasicDataSource() {
-        this(DEFAULT_MBEAN_NAME + "-" + UUID.randomUUID());
+        this(newMBeanName());
     }
 
     /**
@@ -77,14 +226,84 @@ public class ManagedBasicDataSource extends BasicDataSource {
         exportMBean(mBeanServer, mBeanName);
     }
 
+    /**
+     * Build a new instance of {@link org.apache.commons.dbcp.ManagedBasicDataSource} and expose it as a MBean with the
+     * specified name, possibly later.
+     *
+     * @param mBeanServer the MBean server to register the MBean in.
+     * @param mBeanName   the name of the MBean to expose, should be unique accross the target application.
+     * @param export      when the MBean is registered.
+     * @see #registerMBean()
+     */
+    public ManagedBasicDataSource(MBeanServer mBeanServer, String mBeanName, MBeanExport export) {
+        this.mBeanName = mBeanName;
+        if (export == MBeanExport.EAGER) {
+            exportMBean(mBeanServer, mBeanName);
+        } else {
+            pendingMBeanServer = mBeanServer;
+            if (export == MBeanExport.BATCH) {
+                MBeanExportBatch.add(this);
+            }
+        }
+    }
+
+    /**
+     * Generate a unique MBean name.
+     *
+     * @return {@link #DEFAULT_MBEAN_NAME} followed by a random UUID.
+     */
+    static String newMBeanName() {
+        return DEFAULT_MBEAN_NAME + "-" + UUID.randomUUID();
+    }
+
     /**
      * Export this object as a MBean to the platform default MBean server.
+     * <p/>
+     * <p>The MBean is a {@link DataSourceMBean}, which dispatches to the {@link org.weakref.jmx.Managed} members
+     * through metadata shared by all the instances of the class, serves bulk attribute reads from a single statistics
+     * snapshot and emits the notifications.</p>
      *
      * @param mBeanServer
      * @param name the name of the MBean to expose.
      */
     protected synchronized void exportMBean(MBeanServer mBeanServer, String name) {
-        new MBeanExporter(mBeanServer).export(name, this);
+        try {
+            final ObjectName objectName = new ObjectName(name);
+            notifier.setSource(objectName);
+            mBeanServer.registerMBean(new DataSourceMBean(this), objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register MBean " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Register the MBean now if it was built with {@link MBeanExport#LAZY} or {@link MBeanExport#BATCH} and is not
+     * registered yet.
+     */
+    public synchronized void registerMBean() {
+        if (pendingMBeanServer != null) {
+            exportMBean(pendingMBeanServer, mBeanName);
+            pendingMBeanServer = null;
+        }
+    }
+
+    /**
+     * Whether the MBean is registered.
+     *
+     * @return false if the registration was deferred and did not happen yet.
+     */
+    public synchronized boolean isMBeanRegistered() {
+        return pendingMBeanServer == null;
+    }
+
+    /**
+     * Register the MBeans of all the datasources built with {@link MBeanExport#BATCH} that are not registered yet, on
+     * the calling thread.
+     * <p/>
+     * <p>They are otherwise registered in the background shortly after being built.</p>
+     */
+    public static void registerPendingMBeans() {
+        MBeanExportBatch.flush();
     }
 
     /**
@@ -96,6 +315,341 @@ public class ManagedBasicDataSource extends BasicDataSource {
         return mBeanName;
     }
 
+    /**
+     * Get an immutable snapshot of the statistics of this datasource.
+     *
+     * @return the current statistics.
+     */
+    public PoolStatisticsSnapshot getPoolStatistics() {
+        return statistics.snapshot();
+    }
+
+    /**
+     * Get the gauges and counters of this datasource, captured together.
+     * <p/>
+     * <p>Lets remote collectors read everything in a single round trip.</p>
+     *
+     * @return the current statistics, as a {@link PoolStatisticsSnapshot#COMPOSITE_TYPE}.
+     */
+    @Managed(description = "The gauges and counters of this data source, captured together.")
+    public CompositeData getPoolStats() {
+        return getPoolStatistics().toCompositeData();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Unlike {@link BasicDataSource#getConnection()}, this only takes the datasource monitor until the pool is
+     * created.</p>
+     * <p/>
+     * <p>Only counters are updated on the calling thread, notifications are delivered asynchronously.</p>
+     * <p/>
+     * <p>The returned connection is a proxy that records how long it is held until it is closed, and the execution
+     * time of its statements if {@link #isSqlStatisticsEnabled() SQL statistics} are enabled.</p>
+     * <p/>
+     * <p>If {@link #isConcurrentBorrow() concurrent borrow} is enabled, waiting for a connection when the pool is
+     * exhausted does not hold any monitor.</p>
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        final long start = System.nanoTime();
+        try {
+            DataSource pool = dataSource;
+            if (pool == null) {
+                pool = createDataSource();
+            }
+            return borrowed(concurrentBorrow ? borrowQueue.borrow(pool, statistics.getMaxWait()) : pool.getConnection(),
+                            start, leakDetection.requested());
+        } catch (SQLException e) {
+            borrowFailed(e, start);
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.borrowFailed(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * Get a connection without blocking, waiting for <code>maxWait</code> at most.
+     *
+     * @return the pending connection.
+     * @see #getConnectionAsync(long, TimeUnit)
+     */
+    public ConnectionFuture getConnectionAsync() {
+        return getConnectionAsync(statistics.getMaxWait(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get a connection without blocking.
+     * <p/>
+     * <p>If no connection is available, the request waits in a bounded FIFO queue and the returned future is
+     * completed by the thread that gives a connection back. If the queue already holds
+     * {@link #getAsyncQueueCapacity()} requests, the future fails immediately: {@link #getAsyncQueueDepth()} and
+     * {@link #getAsyncRejectedCount()} let callers apply backpressure upstream.</p>
+     * <p/>
+     * <p>Requires {@link #isConcurrentBorrow() concurrent borrow}. The first call may block while the pool is
+     * created.</p>
+     *
+     * @param timeout the maximum time to wait, 0 or less to wait indefinitely.
+     * @param unit    the unit of <code>timeout</code>.
+     * @return the pending connection, which fails with a {@link SQLException} if no connection could be obtained.
+     * @throws IllegalStateException if concurrent borrow is disabled.
+     */
+    public ConnectionFuture getConnectionAsync(long timeout, TimeUnit unit) {
+        if (!concurrentBorrow) {
+            throw new IllegalStateException("getConnectionAsync requires concurrentBorrow to be enabled");
+        }
+        final ConnectionFuture future = new ConnectionFuture(borrowQueue, leakDetection.requested());
+        try {
+            DataSource pool = dataSource;
+            if (pool == null) {
+                pool = createDataSource();
+            }
+            borrowQueue.borrowAsync(pool, future, unit.toNanos(timeout));
+        } catch (SQLException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * Record a successful borrow and wrap the connection.
+     *
+     * @param connection the pooled connection.
+     * @param start      the time at which the connection was requested, from {@link System#nanoTime()}.
+     * @param origin     the code that requested the connection, <code>null</code> if leak detection does not track it.
+     * @return the connection to hand out.
+     */
+    Connection borrowed(Connection connection, long start, LeakDetector.Origin origin) {
+        final long waitNanos = System.nanoTime() - start;
+        statistics.borrowed(waitNanos);
+        notifier.borrowed(waitNanos);
+        return TrackedConnection.wrap(connection, statistics, sqlStatisticsEnabled ? sqlStatistics : null, borrowQueue,
+                                      validation, leakDetection.borrowed(connection, origin),
+                                      resultCache.isEnabled() ? resultCache : null,
+                                      batchCoalescing.isEnabled() ? batchCoalescing : null);
+    }
+
+    /**
+     * Record a failed borrow.
+     *
+     * @param failure the failure.
+     * @param start   the time at which the connection was requested, from {@link System#nanoTime()}.
+     */
+    void borrowFailed(SQLException failure, long start) {
+        final long waitNanos = System.nanoTime() - start;
+        statistics.borrowFailed(waitNanos);
+        notifier.borrowFailed(failure);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>The <code>initialSize</code> connections are opened by the {@link #getWarmUp() warm-up}, possibly in parallel
+     * and in the background.</p>
+     * <p/>
+     * <p>Registers the MBean if its registration was deferred, starts drawing on the {@link #getBudget() connection
+     * budget} if any, unless the pool could not be created, and adds this datasource to the
+     * {@link OpenMetricsExporter} registry.</p>
+     */
+    @Override
+    protected synchronized DataSource createDataSource() throws SQLException {
+        registerMBean();
+        if (dataSource != null || closed) {
+            return super.createDataSource();
+        }
+        budget.join();
+        final int size = initialSize;
+        final DataSource created;
+        initialSize = 0;
+        try {
+            created = super.createDataSource();
+        } catch (SQLException e) {
+            budget.leave();
+            throw e;
+        } catch (RuntimeException e) {
+            budget.leave();
+            throw e;
+        } finally {
+            initialSize = size;
+        }
+        if (concurrentBorrow) {
+            connectionPool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_FAIL);
+        }
+        eviction.reschedule();
+        leakDetection.reschedule();
+        history.reschedule();
+        OpenMetricsExporter.register(this);
+        if (size > 0) {
+            warmUp.start(connectionPool, size);
+        }
+        return created;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Creates a {@link CountingObjectPool}, which mirrors its active and idle gauges into the
+     * {@link #getPoolStatistics() statistics}. Abandoned connections are removed as configured when it is created, with
+     * the timeout and logging settings read from this datasource each time.</p>
+     */
+    @Override
+    protected void createConnectionPool() {
+        final AbandonedConfig config = !getRemoveAbandoned() ? null : new AbandonedConfig() {
+            @Override
+            public boolean getRemoveAbandoned() {
+                return ManagedBasicDataSource.this.getRemoveAbandoned();
+            }
+
+            @Override
+            public int getRemoveAbandonedTimeout() {
+                return ManagedBasicDataSource.this.getRemoveAbandonedTimeout();
+            }
+
+            @Override
+            public boolean getLogAbandoned() {
+                return ManagedBasicDataSource.this.getLogAbandoned();
+            }
+        };
+        final CountingObjectPool pool = new CountingObjectPool(config, statistics);
+        pool.setMaxActive(maxActive);
+        pool.setMaxIdle(maxIdle);
+        pool.setMinIdle(minIdle);
+        pool.setMaxWait(maxWait);
+        pool.setTestOnBorrow(testOnBorrow);
+        pool.setTestOnReturn(testOnReturn);
+        pool.setTimeBetweenEvictionRunsMillis(timeBetweenEvictionRunsMillis);
+        pool.setNumTestsPerEvictionRun(numTestsPerEvictionRun);
+        pool.setMinEvictableIdleTimeMillis(minEvictableIdleTimeMillis);
+        pool.setTestWhileIdle(testWhileIdle);
+        connectionPool = pool;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>The returned factory records the time taken to open each connection in {@link #getConnectionCreateTime()}.</p>
+     * <p/>
+     * <p>In {@link #VALIDATION_MODE_ISVALID} mode, connections are tested as configured even without validation
+     * query.</p>
+     */
+    @Override
+    protected ConnectionFactory createConnectionFactory() throws SQLException {
+        configuredTests = new boolean[]{testOnBorrow, testOnReturn, testWhileIdle};
+        final ConnectionFactory connectionFactory = super.createConnectionFactory();
+        if (useIsValid) {
+            applyConfiguredTests(true);
+        }
+        return new ConnectionFactory() {
+            public Connection createConnection() throws SQLException {
+                final long start = System.nanoTime();
+                final Connection connection = connectionFactory.createConnection();
+                statistics.connectionCreated(System.nanoTime() - start);
+                return connection;
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>When <code>poolPreparedStatements</code> is enabled, each connection caches its statements in a
+     * {@link StatementCache} bounded by the {@link #getStatementCache() statement cache capacity}.</p>
+     * <p/>
+     * <p>Connections are validated through the {@link #getValidation() validation throttle}, according to the
+     * {@link #getValidationMode() validation mode}.</p>
+     */
+    @Override
+    protected void createPoolableConnectionFactory(ConnectionFactory driverConnectionFactory,
+                                                   KeyedObjectPoolFactory statementPoolFactory,
+                                                   AbandonedConfig configuration) throws SQLException {
+        try {
+            final ThrottledConnectionFactory factory =
+                    new ThrottledConnectionFactory(driverConnectionFactory,
+                                                   connectionPool,
+                                                   statementPoolFactory == null ? null : new KeyedObjectPoolFactory() {
+                                                       public KeyedObjectPool createPool() {
+                                                           return new StatementCache(statementCache, maxOpenPreparedStatements);
+                                                       }
+                                                   },
+                                                   validationQuery,
+                                                   validationQueryTimeout,
+                                                   connectionInitSqls,
+                                                   defaultReadOnly,
+                                                   defaultAutoCommit,
+                                                   defaultTransactionIsolation,
+                                                   defaultCatalog,
+                                                   configuration,
+                                                   validation,
+                                                   eviction,
+                                                   budget);
+            factory.setUseIsValid(useIsValid);
+            poolableConnectionFactory = factory;
+            validateConnectionFactory(factory);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException("Cannot create PoolableConnectionFactory (" + e.getMessage() + ")", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Also reschedules the {@link #getEviction() parallel evictor}.</p>
+     */
+    @Override
+    public synchronized void setTimeBetweenEvictionRunsMillis(long timeBetweenEvictionRunsMillis) {
+        super.setTimeBetweenEvictionRunsMillis(timeBetweenEvictionRunsMillis);
+        eviction.reschedule();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Also applies to the {@link #getEviction() parallel evictor}.</p>
+     */
+    @Override
+    public synchronized void setNumTestsPerEvictionRun(int numTestsPerEvictionRun) {
+        super.setNumTestsPerEvictionRun(numTestsPerEvictionRun);
+        eviction.reschedule();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Also applies to the {@link #getLeakDetection() leak detector}.</p>
+     */
+    @Override
+    public void setRemoveAbandonedTimeout(int removeAbandonedTimeout) {
+        super.setRemoveAbandonedTimeout(removeAbandonedTimeout);
+        leakDetection.reschedule();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Also stops the {@link #getAdaptiveSizing() adaptive sizing controller}, the {@link #getWarmUp() warm-up}, the
+     * {@link #getEviction() parallel evictor}, the {@link #getLeakDetection() leak detector} and the
+     * {@link #getHistory() history}, fails the pending
+     * {@link #getConnectionAsync(long, TimeUnit) asynchronous requests}, stops drawing on the
+     * {@link #getBudget() connection budget}, leaves the {@link OpenMetricsExporter} registry and drops the
+     * {@link #getResultCache() cached results}.</p>
+     */
+    @Override
+    public synchronized void close() throws SQLException {
+        adaptiveSizing.setEnabled(false);
+        warmUp.cancel();
+        eviction.stop();
+        leakDetection.stop();
+        history.stop();
+        borrowQueue.close();
+        super.close();
+        budget.leave();
+        OpenMetricsExporter.unregister(this);
+        resultCache.invalidate();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -121,8 +675,8 @@ public class ManagedBasicDataSource extends BasicDataSource {
      * @return the current number of active connections.
      */
     @Managed(description = "The current number of active connections that have been allocated from this data source.")
-    public synchronized int getNumActive() {
-        return super.getNumActive();
+    public int getNumActive() {
+        return statistics.getNumActive();
     }
 
     /**
@@ -131,8 +685,8 @@ public class ManagedBasicDataSource extends BasicDataSource {
      * @return the current number of idle connections.
      */
     @Managed(description = "The current number of idle connections that are waiting to be allocated from this data source.")
-    public synchronized int getNumIdle() {
-        return super.getNumIdle();
+    public int getNumIdle() {
+        return statistics.getNumIdle();
     }
 
     /**
@@ -143,8 +697,8 @@ public class ManagedBasicDataSource extends BasicDataSource {
      * @return the maximum number of active connections.
      */
     @Managed(description = "The maximum number of active connections that can be allocated at the same time.")
-    public synchronized int getMaxActive() {
-        return super.getMaxActive();
+    public int getMaxActive() {
+        return statistics.getMaxActive();
     }
 
     /**
@@ -156,6 +710,7 @@ public class ManagedBasicDataSource extends BasicDataSource {
     @Managed(description = "Set the maximum number of active connections that can be allocated at the same time. Use a negative value for no limit.")
     public synchronized void setMaxActive(int maxActive) {
         super.setMaxActive(maxActive);
+        statistics.setMaxActive(maxActive);
     }
 
     /**
@@ -166,8 +721,8 @@ public class ManagedBasicDataSource extends BasicDataSource {
      * @return the maximum number of idle connections.
      */
     @Managed(description = "The maximum number of connections that can remain idle in the pool.")
-    public synchronized int getMaxIdle() {
-        return super.getMaxIdle();
+    public int getMaxIdle() {
+        return statistics.getMaxIdle();
     }
 
     /**
@@ -179,6 +734,7 @@ public class ManagedBasicDataSource extends BasicDataSource {
     @Managed(description = "Set the maximum number of connections that can remain idle in the pool.")
     public synchronized void setMaxIdle(int maxIdle) {
         super.setMaxIdle(maxIdle);
+        statistics.setMaxIdle(maxIdle);
     }
 
     /**
@@ -188,8 +744,8 @@ public class ManagedBasicDataSource extends BasicDataSource {
      * @see org.apache.commons.pool.impl.GenericObjectPool#getMinIdle()
      */
     @Managed(description = "The minimum number of idle connections in the pool.")
-    public synchronized int getMinIdle() {
-        return super.getMinIdle();
+    public int getMinIdle() {
+        return statistics.getMinIdle();
     }
 
     /**
@@ -201,6 +757,7 @@ public class ManagedBasicDataSource extends BasicDataSource {
     @Managed(description = "The minimum number of idle connections in the pool.")
     public synchronized void setMinIdle(int minIdle) {
         super.setMinIdle(minIdle);
+        statistics.setMinIdle(minIdle);
     }
 
     /**
@@ -211,8 +768,8 @@ public class ManagedBasicDataSource extends BasicDataSource {
      * @return the maxWait property value.
      */
     @Managed(description = "The maximum number of milliseconds that the pool will wait for a connection to be returned before throwing an exception.")
-    public synchronized long getMaxWait() {
-        return super.getMaxWait();
+    public long getMaxWait() {
+        return statistics.getMaxWait();
     }
 
     /**
@@ -226,16 +783,19 @@ public class ManagedBasicDataSource extends BasicDataSource {
     @Managed(description = "Set the maxWait property. Use -1 to make the pool wait indefinitely.")
     public synchronized void setMaxWait(long maxWait) {
         super.setMaxWait(maxWait);
+        statistics.setMaxWait(maxWait);
     }
 
     /**
      * Get the JDBC connection {@link #url} property.
+     * <p/>
+     * <p>Not synchronized: {@link #url} is an immutable reference that is only replaced by {@link #setUrl(String)}.</p>
      *
      * @return the {@link #url} passed to the JDBC driver to establish connections.
      */
     @Managed
-    public synchronized String getUrl() {
-        return super.getUrl();
+    public String getUrl() {
+        return url;
     }
 
     /**
@@ -247,4 +807,580 @@ public class ManagedBasicDataSource extends BasicDataSource {
     public String getUsername() {
         return super.getUsername();
     }
+
+    /**
+     * Get the number of connections handed out by this data source since it was created.
+     *
+     * @return the number of successful borrows.
+     */
+    @Managed(description = "The number of connections handed out by this data source since it was created.")
+    public long getBorrowedCount() {
+        return statistics.getBorrowedCount();
+    }
+
+    /**
+     * Get the number of attempts to get a connection from this data source that failed.
+     *
+     * @return the number of failed borrows.
+     */
+    @Managed(description = "The number of attempts to get a connection from this data source that failed.")
+    public long getFailedBorrowCount() {
+        return statistics.getFailedBorrowCount();
+    }
+
+    /**
+     * Get the number of attempts to get a connection from this data source that timed out after <code>maxWait</code>.
+     *
+     * @return the number of timed out borrows, also counted in {@link #getFailedBorrowCount()}.
+     */
+    @Managed(description = "The number of attempts to get a connection from this data source that timed out after maxWait.")
+    public long getBorrowTimeoutCount() {
+        return statistics.getBorrowTimeoutCount();
+    }
+
+    /**
+     * Get the histogram of the time threads spent in {@link #getConnection()}.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>BorrowWait.P99</code>, ...), along with a <code>BorrowWait.reset</code>
+     * operation.</p>
+     *
+     * @return the borrow wait time histogram.
+     */
+    @Managed
+    @Nested
+    public LatencyHistogram getBorrowWait() {
+        return statistics.getBorrowWait();
+    }
+
+    /**
+     * Get the number of connections given back to this data source by the application.
+     *
+     * @return the number of connections closed by the application.
+     */
+    @Managed(description = "The number of connections given back to this data source by the application.")
+    public long getReturnedCount() {
+        return statistics.getReturnedCount();
+    }
+
+    /**
+     * Get the histogram of the time connections were held by the application, between {@link #getConnection()} and
+     * {@link Connection#close()}.
+     *
+     * @return the connection hold time histogram.
+     */
+    @Managed
+    @Nested
+    public LatencyHistogram getHoldTime() {
+        return statistics.getHoldTime();
+    }
+
+    /**
+     * Get the histogram of the time taken to open a new physical connection.
+     *
+     * @return the connection creation time histogram.
+     */
+    @Managed
+    @Nested
+    public LatencyHistogram getConnectionCreateTime() {
+        return statistics.getConnectionCreateTime();
+    }
+
+    /**
+     * Get the controller that can size the pool of this datasource to keep the borrow wait time under a target.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>AdaptiveSizing.Enabled</code>, <code>AdaptiveSizing.Override</code>,
+     * <code>AdaptiveSizing.LastDecision</code>, ...).</p>
+     *
+     * @return the adaptive sizing controller.
+     */
+    @Managed
+    @Nested
+    public AdaptiveSizingController getAdaptiveSizing() {
+        return adaptiveSizing;
+    }
+
+    /**
+     * Get the warm-up that opens the <code>initialSize</code> connections when the pool is created.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>WarmUp.Concurrency</code>, <code>WarmUp.Opened</code>,
+     * <code>WarmUp.Duration</code>, ...).</p>
+     *
+     * @return the pool warm-up.
+     */
+    @Managed
+    @Nested
+    public PoolWarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Get the evictor that can examine the idle connections on several threads.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>Eviction.Parallelism</code>, <code>Eviction.TestedCount</code>,
+     * <code>Eviction.LastRunDuration</code>, ...).</p>
+     *
+     * @return the parallel evictor.
+     */
+    @Managed
+    @Nested
+    public PoolEvictor getEviction() {
+        return eviction;
+    }
+
+    /**
+     * Get the detector that reports the connections held longer than <code>removeAbandonedTimeout</code>, at a fraction
+     * of the cost of <code>logAbandoned</code>.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>LeakDetection.SampleRate</code>, <code>LeakDetection.DeferredCapture</code>,
+     * <code>LeakDetection.LeakCount</code>, ...).</p>
+     *
+     * @return the leak detector.
+     */
+    @Managed
+    @Nested
+    public LeakDetector getLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * Get the share of this datasource in a {@link ConnectionBudget}, shared with other datasources.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>Budget.Name</code>, <code>Budget.MinConnections</code>,
+     * <code>Budget.Connections</code>, ...).</p>
+     *
+     * @return the budget share.
+     */
+    @Managed
+    @Nested
+    public BudgetShare getBudget() {
+        return budget;
+    }
+
+    /**
+     * Get the rolling history of the pool metrics, one sample per second.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>History.Capacity</code>, <code>History.Size</code>), along with a
+     * <code>History.reset</code> operation. The samples themselves are exposed by {@link #getPoolHistory()}.</p>
+     *
+     * @return the pool history.
+     */
+    @Managed
+    @Nested
+    public PoolHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Get the read-through cache of the results of the allow-listed queries.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>ResultCache.Sql</code>, <code>ResultCache.Hits</code>,
+     * <code>ResultCache.Memory</code>, ...), along with <code>ResultCache.invalidate</code> and
+     * <code>ResultCache.invalidateSql</code> operations.</p>
+     *
+     * @return the result cache.
+     */
+    @Managed
+    @Nested
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Get the settings and statistics of the coalescing of repeated updates into JDBC batches.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>BatchCoalescing.BatchSize</code>,
+     * <code>BatchCoalescing.CoalescingRatio</code>, <code>BatchCoalescing.CommitFlushCount</code>, ...).</p>
+     *
+     * @return the batch coalescing.
+     */
+    @Managed
+    @Nested
+    public BatchCoalescing getBatchCoalescing() {
+        return batchCoalescing;
+    }
+
+    /**
+     * Get the statistics and capacity of the prepared statement caches of the connections.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>StatementCache.Hits</code>, <code>StatementCache.Cached</code>,
+     * <code>StatementCache.Capacity</code>, ...). Only used when <code>poolPreparedStatements</code> is enabled.</p>
+     *
+     * @return the statement cache statistics.
+     */
+    @Managed
+    @Nested
+    public StatementCacheStatistics getStatementCache() {
+        return statementCache;
+    }
+
+    /**
+     * Get the throttle that skips the validation of connections recently known to be valid.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>Validation.Interval</code>, <code>Validation.ExecutedCount</code>,
+     * <code>Validation.SkippedCount</code>, ...).</p>
+     *
+     * @return the validation throttle.
+     */
+    @Managed
+    @Nested
+    public ValidationThrottle getValidation() {
+        return validation;
+    }
+
+    /**
+     * Get how connections are validated when there is no validation query.
+     *
+     * @return {@link #VALIDATION_MODE_QUERY} or {@link #VALIDATION_MODE_ISVALID}.
+     */
+    @Managed(description = "How connections are validated when there is no validation query: query (do not test connections) or isValid (ask the driver).")
+    public String getValidationMode() {
+        return useIsValid ? VALIDATION_MODE_ISVALID : VALIDATION_MODE_QUERY;
+    }
+
+    /**
+     * Set how connections are validated when there is no validation query.
+     * <p/>
+     * <p>In {@link #VALIDATION_MODE_ISVALID} mode, connections are validated with {@link Connection#isValid(int)},
+     * which most drivers implement as a lightweight ping, bounded by the validation query timeout. The time taken by
+     * the validations is exposed as <code>Validation.Time.*</code> attributes to compare both modes.</p>
+     *
+     * @param validationMode {@link #VALIDATION_MODE_QUERY} or {@link #VALIDATION_MODE_ISVALID}.
+     * @throws IllegalArgumentException if the mode is unknown.
+     */
+    @Managed(description = "Set how connections are validated when there is no validation query: query or isValid.")
+    public void setValidationMode(String validationMode) {
+        if (VALIDATION_MODE_ISVALID.equals(validationMode)) {
+            useIsValid = true;
+        } else if (VALIDATION_MODE_QUERY.equals(validationMode)) {
+            useIsValid = false;
+        } else {
+            throw new IllegalArgumentException("Unknown validation mode: " + validationMode);
+        }
+        final ThrottledConnectionFactory factory = poolableConnectionFactory;
+        if (factory != null) {
+            factory.setUseIsValid(useIsValid);
+        }
+        applyConfiguredTests(useIsValid);
+    }
+
+    /**
+     * Turn the tests configured when the pool was created on or off, if it was created without validation query.
+     *
+     * @param enabled whether connections can be tested.
+     */
+    private synchronized void applyConfiguredTests(boolean enabled) {
+        if (configuredTests != null && validationQuery == null) {
+            setTestOnBorrow(enabled && configuredTests[0]);
+            setTestOnReturn(enabled && configuredTests[1]);
+            setTestWhileIdle(enabled && configuredTests[2]);
+        }
+    }
+
+    /**
+     * Get the number of connections that were held longer than {@link #getLongHoldThreshold()}.
+     *
+     * @return the number of long holds.
+     */
+    @Managed(description = "The number of connections that were held longer than LongHoldThreshold.")
+    public long getLongHoldCount() {
+        return statistics.getLongHoldCount();
+    }
+
+    /**
+     * Get the number of milliseconds above which a connection hold is counted as a long hold.
+     * <p/>
+     * <p>A value less than or equal to zero means long holds are not counted.</p>
+     *
+     * @return the long hold threshold.
+     */
+    @Managed(description = "The number of milliseconds above which a connection hold is counted as a long hold.")
+    public long getLongHoldThreshold() {
+        return statistics.getLongHoldThreshold();
+    }
+
+    /**
+     * Set the number of milliseconds above which a connection hold is counted as a long hold.
+     *
+     * @param longHoldThreshold the new value for longHoldThreshold, zero or negative to disable.
+     * @see #getLongHoldThreshold()
+     */
+    @Managed(description = "Set the number of milliseconds above which a connection hold is counted as a long hold. Use 0 to disable.")
+    public void setLongHoldThreshold(long longHoldThreshold) {
+        statistics.setLongHoldThreshold(longHoldThreshold);
+    }
+
+    /**
+     * Get the number of milliseconds above which getting a connection emits a {@link #NOTIFICATION_SLOW_BORROW}
+     * notification.
+     * <p/>
+     * <p>A value less than or equal to zero means slow borrows are not notified.</p>
+     *
+     * @return the borrow wait threshold.
+     */
+    @Managed(description = "The number of milliseconds above which getting a connection emits a slow borrow notification.")
+    public long getBorrowWaitThreshold() {
+        return notifier.getBorrowWaitThreshold();
+    }
+
+    /**
+     * Set the number of milliseconds above which getting a connection emits a {@link #NOTIFICATION_SLOW_BORROW}
+     * notification.
+     *
+     * @param borrowWaitThreshold the new value for borrowWaitThreshold, zero or negative to disable.
+     * @see #getBorrowWaitThreshold()
+     */
+    @Managed(description = "Set the number of milliseconds above which getting a connection emits a slow borrow notification. Use 0 to disable.")
+    public void setBorrowWaitThreshold(long borrowWaitThreshold) {
+        notifier.setBorrowWaitThreshold(borrowWaitThreshold);
+    }
+
+    /**
+     * Get the minimum number of milliseconds between two notifications of the same type.
+     * <p/>
+     * <p>Events occurring in between are coalesced into the next notification.</p>
+     *
+     * @return the notification interval.
+     */
+    @Managed(description = "The minimum number of milliseconds between two notifications of the same type.")
+    public long getNotificationInterval() {
+        return notifier.getNotificationInterval();
+    }
+
+    /**
+     * Set the minimum number of milliseconds between two notifications of the same type.
+     *
+     * @param notificationInterval the new value for notificationInterval, 0 to notify every event.
+     * @see #getNotificationInterval()
+     */
+    @Managed(description = "Set the minimum number of milliseconds between two notifications of the same type.")
+    public void setNotificationInterval(long notificationInterval) {
+        notifier.setNotificationInterval(notificationInterval);
+    }
+
+    /**
+     * Whether the execution time of statements is recorded per SQL fingerprint.
+     * <p/>
+     * <p>Only applies to connections borrowed after the setting is changed.</p>
+     *
+     * @return true if SQL statistics are enabled.
+     */
+    @Managed(description = "Whether the execution time of statements is recorded per SQL fingerprint.")
+    public boolean isSqlStatisticsEnabled() {
+        return sqlStatisticsEnabled;
+    }
+
+    /**
+     * Enable or disable recording the execution time of statements per SQL fingerprint.
+     *
+     * @param sqlStatisticsEnabled the new value for sqlStatisticsEnabled.
+     * @see #isSqlStatisticsEnabled()
+     */
+    @Managed(description = "Enable or disable recording the execution time of statements per SQL fingerprint.")
+    public void setSqlStatisticsEnabled(boolean sqlStatisticsEnabled) {
+        this.sqlStatisticsEnabled = sqlStatisticsEnabled;
+    }
+
+    /**
+     * Get the maximum number of SQL fingerprints tracked by the SQL statistics.
+     *
+     * @return the SQL statistics capacity.
+     * @see SqlStatistics#getCapacity()
+     */
+    @Managed(description = "The maximum number of SQL fingerprints tracked by the SQL statistics.")
+    public int getSqlStatisticsCapacity() {
+        return sqlStatistics.getCapacity();
+    }
+
+    /**
+     * Set the maximum number of SQL fingerprints tracked by the SQL statistics.
+     *
+     * @param sqlStatisticsCapacity the new value for sqlStatisticsCapacity, at least 1.
+     * @see SqlStatistics#setCapacity(int)
+     */
+    @Managed(description = "Set the maximum number of SQL fingerprints tracked by the SQL statistics.")
+    public void setSqlStatisticsCapacity(int sqlStatisticsCapacity) {
+        sqlStatistics.setCapacity(sqlStatisticsCapacity);
+    }
+
+    /**
+     * Get the SQL fingerprints with the highest total execution time.
+     *
+     * @return the {@link SqlStatistics#TOP_SIZE} heaviest SQL fingerprints, times in milliseconds.
+     */
+    @Managed(description = "The SQL fingerprints with the highest total execution time, times in milliseconds.")
+    public TabularData getTopSql() {
+        return sqlStatistics.toTabularData(SqlStatistics.TOP_SIZE);
+    }
+
+    /**
+     * Get a given number of SQL fingerprints with the highest total execution time.
+     *
+     * @param count the maximum number of fingerprints to return.
+     * @return the heaviest SQL fingerprints, times in milliseconds.
+     */
+    @Managed(description = "Get a given number of SQL fingerprints with the highest total execution time.")
+    public TabularData topSql(int count) {
+        return sqlStatistics.toTabularData(count);
+    }
+
+    /**
+     * Whether threads wait for a connection on a <code>java.util.concurrent</code> lock rather than in the pool
+     * monitor when the pool is exhausted.
+     *
+     * @return true if concurrent borrow is enabled.
+     * @see BorrowQueue
+     */
+    @Managed(description = "Whether threads wait for a connection on a java.util.concurrent lock rather than in the pool monitor.")
+    public boolean isConcurrentBorrow() {
+        return concurrentBorrow;
+    }
+
+    /**
+     * Enable or disable waiting for a connection on a <code>java.util.concurrent</code> lock rather than in the pool
+     * monitor.
+     * <p/>
+     * <p>Meant to be set before the datasource is used: threads already waiting in the pool monitor are not moved.</p>
+     *
+     * @param concurrentBorrow the new value for concurrentBorrow.
+     * @see #isConcurrentBorrow()
+     */
+    @Managed(description = "Enable or disable waiting for a connection on a java.util.concurrent lock rather than in the pool monitor.")
+    public void setConcurrentBorrow(boolean concurrentBorrow) {
+        this.concurrentBorrow = concurrentBorrow;
+        final GenericObjectPool pool = connectionPool;
+        if (pool != null) {
+            pool.setWhenExhaustedAction(concurrentBorrow ? GenericObjectPool.WHEN_EXHAUSTED_FAIL
+                                                         : GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+        }
+    }
+
+    /**
+     * Get the number of threads waiting for a connection when {@link #isConcurrentBorrow() concurrent borrow} is
+     * enabled.
+     *
+     * @return the number of waiting threads.
+     */
+    @Managed(description = "The number of threads waiting for a connection when concurrent borrow is enabled.")
+    public int getBorrowWaiting() {
+        return borrowQueue.getWaiting();
+    }
+
+    /**
+     * Get the number of {@link #getConnectionAsync(long, TimeUnit) asynchronous requests} waiting for a connection.
+     *
+     * @return the asynchronous queue depth.
+     */
+    @Managed(description = "The number of asynchronous requests waiting for a connection.")
+    public int getAsyncQueueDepth() {
+        return borrowQueue.getQueued();
+    }
+
+    /**
+     * Get the maximum number of {@link #getConnectionAsync(long, TimeUnit) asynchronous requests} waiting for a
+     * connection.
+     *
+     * @return the asynchronous queue capacity.
+     */
+    @Managed(description = "The maximum number of asynchronous requests waiting for a connection.")
+    public int getAsyncQueueCapacity() {
+        return borrowQueue.getAsyncCapacity();
+    }
+
+    /**
+     * Set the maximum number of {@link #getConnectionAsync(long, TimeUnit) asynchronous requests} waiting for a
+     * connection.
+     *
+     * @param asyncQueueCapacity the new value for asyncQueueCapacity, requests above it fail immediately.
+     * @see #getAsyncQueueCapacity()
+     */
+    @Managed(description = "Set the maximum number of asynchronous requests waiting for a connection.")
+    public void setAsyncQueueCapacity(int asyncQueueCapacity) {
+        borrowQueue.setAsyncCapacity(asyncQueueCapacity);
+    }
+
+    /**
+     * Get the number of {@link #getConnectionAsync(long, TimeUnit) asynchronous requests} that failed because the
+     * queue was full.
+     *
+     * @return the number of rejected asynchronous requests.
+     */
+    @Managed(description = "The number of asynchronous requests that failed because the queue was full.")
+    public long getAsyncRejectedCount() {
+        return borrowQueue.getRejectedCount();
+    }
+
+    /**
+     * Get the number of {@link #getConnectionAsync(long, TimeUnit) asynchronous requests} that timed out.
+     *
+     * @return the number of timed out asynchronous requests.
+     */
+    @Managed(description = "The number of asynchronous requests that timed out.")
+    public long getAsyncTimeoutCount() {
+        return borrowQueue.getTimeoutCount();
+    }
+
+    /**
+     * Forget all the SQL statistics.
+     */
+    @Managed(description = "Forget all the SQL statistics.")
+    public void resetSqlStatistics() {
+        sqlStatistics.reset();
+    }
+
+    /**
+     * Get the connections held longer than <code>removeAbandonedTimeout</code>, aggregated by call site.
+     * <p/>
+     * <p>Only the connections tracked by the {@link #getLeakDetection() leak detector} are reported.</p>
+     *
+     * @return the call sites by descending number of leaked connections, ages in milliseconds.
+     * @see LeakReport
+     */
+    @Managed(description = "The connections held longer than removeAbandonedTimeout, aggregated by call site, ages in milliseconds.")
+    public TabularData getLeakReport() {
+        return leakDetection.getReport().toTabularData();
+    }
+
+    /**
+     * Get the per-second samples of the pool metrics kept by the {@link #getHistory() history}.
+     *
+     * @return the samples indexed by timestamp, times in milliseconds.
+     * @see PoolHistory
+     */
+    @Managed(description = "The per-second samples of active, idle, waiters, borrows, timeouts and borrow wait 99th percentile, times in milliseconds.")
+    public TabularData getPoolHistory() {
+        return history.toTabularData();
+    }
+
+    /**
+     * Forget all the call sites of the leak report.
+     */
+    @Managed(description = "Forget all the call sites of the leak report.")
+    public void resetLeakReport() {
+        leakDetection.getReport().reset();
+    }
+
+    /**
+     * When the MBean of a datasource is registered.
+     * <p/>
+     * <p>Registering is cheap, as the MBean metadata is shared by all the instances of a class, but deferring it keeps
+     * it off the thread that builds many datasources.</p>
+     */
+    public enum MBeanExport {
+
+        /**
+         * When the datasource is built.
+         */
+        EAGER,
+
+        /**
+         * When the datasource is first used, i.e. when its pool is created.
+         */
+        LAZY,
+
+        /**
+         * Together with the other datasources built meanwhile, on a background thread, or when the datasource is first
+         * used if that happens sooner.
+         */
+        BATCH
+    }
 }
@@ -21,6 +21,7 @@ import javax.naming.RefAddr;
 import javax.naming.Reference;
 import javax.sql.DataSource;
 import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.util.*;
 
@@ -28,8 +29,8 @@ import java.util.*;
  * Factory for {@link ManagedBasicDataSource}.
  * <p/>
  * This is almost a copy/paste of {@link BasicDataSourceFactory}, since most of the required fields in
- * {@link BasicDataSourceFactory} are private. It only adds the {@link #PROP_MBEANNAME} property to the datasource configuration
- * properties set.
+ * {@link BasicDataSourceFactory} are private. It only adds the {@link #PROP_MBEANNAME} property and the settings specific to
+ * {@link ManagedBasicDataSource} (such as {@link #PROP_LONGHOLDTHRESHOLD}) to the datasource configuration properties set.
  *
  * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
  * @see ManagedBasicDataSource
@@ -190,6 +191,263 @@ public class ManagedBasicDataSourceFactory extends BasicDataSourceFactory {
      */
     public final static String PROP_MBEANNAME = "mbeanName";
 
+    /**
+     * The key for the property where one can specify when the MBean is registered: <code>eager</code> (the default),
+     * <code>lazy</code> or <code>batch</code>.
+     *
+     * @see ManagedBasicDataSource.MBeanExport
+     */
+    public final static String PROP_MBEANEXPORT = "mbeanExport";
+
+    /**
+     * The key for the property where one can specify the number of milliseconds above which a connection hold is
+     * counted as a long hold.
+     *
+     * @see ManagedBasicDataSource#setLongHoldThreshold(long)
+     */
+    public final static String PROP_LONGHOLDTHRESHOLD = "longHoldThreshold";
+
+    /**
+     * The key for the property where one can specify the number of milliseconds above which getting a connection
+     * emits a slow borrow notification.
+     *
+     * @see ManagedBasicDataSource#setBorrowWaitThreshold(long)
+     */
+    public final static String PROP_BORROWWAITTHRESHOLD = "borrowWaitThreshold";
+
+    /**
+     * The key for the property where one can specify the minimum number of milliseconds between two notifications of
+     * the same type.
+     *
+     * @see ManagedBasicDataSource#setNotificationInterval(long)
+     */
+    public final static String PROP_NOTIFICATIONINTERVAL = "notificationInterval";
+
+    /**
+     * The key for the property where one can enable recording the execution time of statements per SQL fingerprint.
+     *
+     * @see ManagedBasicDataSource#setSqlStatisticsEnabled(boolean)
+     */
+    public final static String PROP_SQLSTATISTICSENABLED = "sqlStatisticsEnabled";
+
+    /**
+     * The key for the property where one can specify the maximum number of SQL fingerprints tracked by the SQL
+     * statistics.
+     *
+     * @see ManagedBasicDataSource#setSqlStatisticsCapacity(int)
+     */
+    public final static String PROP_SQLSTATISTICSCAPACITY = "sqlStatisticsCapacity";
+
+    /**
+     * The key for the property where one can start the adaptive sizing controller.
+     *
+     * @see AdaptiveSizingController#setEnabled(boolean)
+     */
+    public final static String PROP_ADAPTIVESIZINGENABLED = "adaptiveSizingEnabled";
+
+    /**
+     * The key for the property where one can specify the target for the 99th percentile of the borrow wait time, in
+     * milliseconds.
+     *
+     * @see AdaptiveSizingController#setTargetWait(long)
+     */
+    public final static String PROP_TARGETBORROWWAIT = "targetBorrowWait";
+
+    /**
+     * The key for the property where one can specify the value the adaptive sizing controller never grows maxActive
+     * above.
+     *
+     * @see AdaptiveSizingController#setMaxActiveCeiling(int)
+     */
+    public final static String PROP_MAXACTIVECEILING = "maxActiveCeiling";
+
+    /**
+     * The key for the property where one can specify the number of milliseconds between two decisions of the adaptive
+     * sizing controller.
+     *
+     * @see AdaptiveSizingController#setInterval(long)
+     */
+    public final static String PROP_ADAPTIVESIZINGINTERVAL = "adaptiveSizingInterval";
+
+    /**
+     * The key for the property where one can specify the maximum number of initial connections opened at the same
+     * time.
+     *
+     * @see PoolWarmUp#setConcurrency(int)
+     */
+    public final static String PROP_WARMUPCONCURRENCY = "warmUpConcurrency";
+
+    /**
+     * The key for the property where one can make the datasource usable before its initial connections are opened.
+     *
+     * @see PoolWarmUp#setAsync(boolean)
+     */
+    public final static String PROP_WARMUPASYNC = "warmUpAsync";
+
+    /**
+     * The key for the property where one can specify the maximum number of prepared statements cached per connection.
+     *
+     * @see StatementCacheStatistics#setCapacity(int)
+     */
+    public final static String PROP_STATEMENTCACHECAPACITY = "statementCacheCapacity";
+
+    /**
+     * The key for the property where one can make threads wait for a connection on a
+     * <code>java.util.concurrent</code> lock rather than in the pool monitor.
+     *
+     * @see ManagedBasicDataSource#setConcurrentBorrow(boolean)
+     */
+    public final static String PROP_CONCURRENTBORROW = "concurrentBorrow";
+
+    /**
+     * The key for the property where one can specify the maximum number of asynchronous requests waiting for a
+     * connection.
+     *
+     * @see ManagedBasicDataSource#setAsyncQueueCapacity(int)
+     */
+    public final static String PROP_ASYNCQUEUECAPACITY = "asyncQueueCapacity";
+
+    /**
+     * The key for the property where one can specify the number of milliseconds during which a connection validated or
+     * used is not validated again.
+     *
+     * @see ValidationThrottle#setInterval(long)
+     */
+    public final static String PROP_VALIDATIONINTERVAL = "validationInterval";
+
+    /**
+     * The key for the property where one can specify the maximum number of threads examining idle connections.
+     *
+     * @see PoolEvictor#setParallelism(int)
+     */
+    public final static String PROP_EVICTIONPARALLELISM = "evictionParallelism";
+
+    /**
+     * The key for the property where one can specify one borrow in how many captures the stack of the code that
+     * borrowed the connection.
+     *
+     * @see LeakDetector#setSampleRate(int)
+     */
+    public final static String PROP_LEAKSAMPLERATE = "leakSampleRate";
+
+    /**
+     * The key for the property where one can specify whether the stack of the borrowing thread is captured when a
+     * connection is held longer than <code>removeAbandonedTimeout</code>.
+     *
+     * @see LeakDetector#setDeferredCapture(boolean)
+     */
+    public final static String PROP_LEAKDEFERREDCAPTURE = "leakDeferredCapture";
+
+    /**
+     * The key for the property where one can specify the maximum number of call sites in the leak report.
+     *
+     * @see LeakDetector#setReportCapacity(int)
+     */
+    public final static String PROP_LEAKREPORTCAPACITY = "leakReportCapacity";
+
+    /**
+     * The key for the property where one can specify the name of the connection budget shared with other datasources,
+     * none by default.
+     *
+     * @see BudgetShare#setName(String)
+     */
+    public final static String PROP_CONNECTIONBUDGET = "connectionBudget";
+
+    /**
+     * The key for the property where one can specify the capacity of the connection budget. Applies to all the
+     * datasources drawing on it.
+     *
+     * @see ConnectionBudget#setCapacity(int)
+     */
+    public final static String PROP_CONNECTIONBUDGETCAPACITY = "connectionBudgetCapacity";
+
+    /**
+     * The key for the property where one can specify the number of connections reserved for the datasource in the
+     * connection budget.
+     *
+     * @see BudgetShare#setMinConnections(int)
+     */
+    public final static String PROP_BUDGETMINCONNECTIONS = "budgetMinConnections";
+
+    /**
+     * The key for the property where one can specify the maximum number of connections the datasource can take from
+     * the connection budget.
+     *
+     * @see BudgetShare#setMaxConnections(int)
+     */
+    public final static String PROP_BUDGETMAXCONNECTIONS = "budgetMaxConnections";
+
+    /**
+     * The key for the property where one can specify the port on which the default {@link OpenMetricsExporter} serves
+     * the metrics of all the datasources, on the loopback interface. Not started by default.
+     *
+     * @see OpenMetricsExporter#start(int)
+     */
+    public final static String PROP_OPENMETRICSPORT = "openMetricsPort";
+
+    /**
+     * The key for the property where one can specify the number of per-second samples of the pool metrics kept, 0
+     * (disabled) by default.
+     *
+     * @see PoolHistory#setCapacity(int)
+     */
+    public final static String PROP_HISTORYCAPACITY = "historyCapacity";
+
+    /**
+     * The key for the property where one can specify the SQL whose results are cached, separated by semicolons. None
+     * (cache disabled) by default.
+     *
+     * @see ResultCache#setSql(String)
+     */
+    public final static String PROP_RESULTCACHESQL = "resultCacheSql";
+
+    /**
+     * The key for the property where one can specify the maximum number of cached query results,
+     * {@link ResultCache#DEFAULT_CAPACITY} by default.
+     *
+     * @see ResultCache#setCapacity(int)
+     */
+    public final static String PROP_RESULTCACHECAPACITY = "resultCacheCapacity";
+
+    /**
+     * The key for the property where one can specify the time query results are cached in milliseconds,
+     * {@link ResultCache#DEFAULT_TIME_TO_LIVE} by default.
+     *
+     * @see ResultCache#setTimeToLive(long)
+     */
+    public final static String PROP_RESULTCACHETIMETOLIVE = "resultCacheTimeToLive";
+
+    /**
+     * The key for the property where one can specify the maximum estimated size of the cached query results in bytes,
+     * {@link ResultCache#DEFAULT_MAX_MEMORY} by default.
+     *
+     * @see ResultCache#setMaxMemory(long)
+     */
+    public final static String PROP_RESULTCACHEMAXMEMORY = "resultCacheMaxMemory";
+
+    /**
+     * The key for the property where one can specify the maximum number of <code>executeUpdate()</code> calls coalesced
+     * into a JDBC batch within a transaction, 0 (disabled) by default.
+     *
+     * @see BatchCoalescing#setBatchSize(int)
+     */
+    public final static String PROP_BATCHCOALESCINGSIZE = "batchCoalescingSize";
+
+    /**
+     * The key for the property where one can specify whether coalesced updates that do not update exactly one row fail
+     * the call executing the batch, <code>true</code> by default.
+     *
+     * @see BatchCoalescing#setStrictUpdateCounts(boolean)
+     */
+    public final static String PROP_BATCHCOALESCINGSTRICT = "batchCoalescingStrict";
+
+    /**
+     * The key for the property where one can specify how connections are validated when there is no validation query.
+     *
+     * @see ManagedBasicDataSource#setValidationMode(String)
+     */
+    public final static String PROP_VALIDATIONMODE = "validationMode";
+
     /**
      * TODO Add Javadoc comment.
      */
@@ -223,7 +481,40 @@ public class ManagedBasicDataSourceFactory extends BasicDataSourceFactory {
             PROP_POOLPREPAREDSTATEMENTS,
             PROP_MAXOPENPREPAREDSTATEMENTS,
             PROP_CONNECTIONPROPERTIES,
-            PROP_MBEANNAME
+            PROP_MBEANNAME,
+            PROP_MBEANEXPORT,
+            PROP_LONGHOLDTHRESHOLD,
+            PROP_SQLSTATISTICSENABLED,
+            PROP_SQLSTATISTICSCAPACITY,
+            PROP_BORROWWAITTHRESHOLD,
+            PROP_NOTIFICATIONINTERVAL,
+            PROP_ADAPTIVESIZINGENABLED,
+            PROP_TARGETBORROWWAIT,
+            PROP_MAXACTIVECEILING,
+            PROP_ADAPTIVESIZINGINTERVAL,
+            PROP_WARMUPCONCURRENCY,
+            PROP_WARMUPASYNC,
+            PROP_STATEMENTCACHECAPACITY,
+            PROP_CONCURRENTBORROW,
+            PROP_ASYNCQUEUECAPACITY,
+            PROP_VALIDATIONINTERVAL,
+            PROP_EVICTIONPARALLELISM,
+            PROP_LEAKSAMPLERATE,
+            PROP_LEAKDEFERREDCAPTURE,
+            PROP_LEAKREPORTCAPACITY,
+            PROP_CONNECTIONBUDGET,
+            PROP_CONNECTIONBUDGETCAPACITY,
+            PROP_BUDGETMINCONNECTIONS,
+            PROP_BUDGETMAXCONNECTIONS,
+            PROP_OPENMETRICSPORT,
+            PROP_HISTORYCAPACITY,
+            PROP_RESULTCACHESQL,
+            PROP_RESULTCACHECAPACITY,
+            PROP_RESULTCACHETIMETOLIVE,
+            PROP_RESULTCACHEMAXMEMORY,
+            PROP_BATCHCOALESCINGSIZE,
+            PROP_BATCHCOALESCINGSTRICT,
+            PROP_VALIDATIONMODE
     };
 
     /**
@@ -274,8 +565,14 @@ public class ManagedBasicDataSourceFactory extends BasicDataSourceFactory {
         ManagedBasicDataSource dataSource;
         String value = null;
 
+        value = properties.getProperty(PROP_MBEANEXPORT);
+        final ManagedBasicDataSource.MBeanExport export = (value != null)
+                                                          ? ManagedBasicDataSource.MBeanExport.valueOf(value.trim().toUpperCase(Locale.ENGLISH))
+                                                          : ManagedBasicDataSource.MBeanExport.EAGER;
         value = properties.getProperty(PROP_MBEANNAME);
-        dataSource = (value != null) ? new ManagedBasicDataSource(value) : new ManagedBasicDataSource();
+        dataSource = new ManagedBasicDataSource(ManagementFactory.getPlatformMBeanServer(),
+                                                (value != null) ? value : ManagedBasicDataSource.newMBeanName(),
+                                                export);
 
         value = properties.getProperty(PROP_DEFAULTAUTOCOMMIT);
         if (value != null) {
@@ -449,6 +746,166 @@ public class ManagedBasicDataSourceFactory extends BasicDataSourceFactory {
             }
         }
 
+        value = properties.getProperty(PROP_LONGHOLDTHRESHOLD);
+        if (value != null) {
+            dataSource.setLongHoldThreshold(Long.parseLong(value));
+        }
+
+        value = properties.getProperty(PROP_SQLSTATISTICSENABLED);
+        if (value != null) {
+            dataSource.setSqlStatisticsEnabled(Boolean.valueOf(value).booleanValue());
+        }
+
+        value = properties.getProperty(PROP_SQLSTATISTICSCAPACITY);
+        if (value != null) {
+            dataSource.setSqlStatisticsCapacity(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_BORROWWAITTHRESHOLD);
+        if (value != null) {
+            dataSource.setBorrowWaitThreshold(Long.parseLong(value));
+        }
+
+        value = properties.getProperty(PROP_NOTIFICATIONINTERVAL);
+        if (value != null) {
+            dataSource.setNotificationInterval(Long.parseLong(value));
+        }
+
+        value = properties.getProperty(PROP_TARGETBORROWWAIT);
+        if (value != null) {
+            dataSource.getAdaptiveSizing().setTargetWait(Long.parseLong(value));
+        }
+
+        value = properties.getProperty(PROP_MAXACTIVECEILING);
+        if (value != null) {
+            dataSource.getAdaptiveSizing().setMaxActiveCeiling(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_ADAPTIVESIZINGINTERVAL);
+        if (value != null) {
+            dataSource.getAdaptiveSizing().setInterval(Long.parseLong(value));
+        }
+
+        // Last, so the sizing floors are the configured values
+        value = properties.getProperty(PROP_ADAPTIVESIZINGENABLED);
+        if (value != null) {
+            dataSource.getAdaptiveSizing().setEnabled(Boolean.valueOf(value).booleanValue());
+        }
+
+        value = properties.getProperty(PROP_WARMUPCONCURRENCY);
+        if (value != null) {
+            dataSource.getWarmUp().setConcurrency(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_WARMUPASYNC);
+        if (value != null) {
+            dataSource.getWarmUp().setAsync(Boolean.valueOf(value).booleanValue());
+        }
+
+        value = properties.getProperty(PROP_STATEMENTCACHECAPACITY);
+        if (value != null) {
+            dataSource.getStatementCache().setCapacity(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_CONCURRENTBORROW);
+        if (value != null) {
+            dataSource.setConcurrentBorrow(Boolean.valueOf(value).booleanValue());
+        }
+
+        value = properties.getProperty(PROP_ASYNCQUEUECAPACITY);
+        if (value != null) {
+            dataSource.setAsyncQueueCapacity(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_VALIDATIONINTERVAL);
+        if (value != null) {
+            dataSource.getValidation().setInterval(Long.parseLong(value));
+        }
+
+        value = properties.getProperty(PROP_EVICTIONPARALLELISM);
+        if (value != null) {
+            dataSource.getEviction().setParallelism(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_LEAKSAMPLERATE);
+        if (value != null) {
+            dataSource.getLeakDetection().setSampleRate(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_LEAKDEFERREDCAPTURE);
+        if (value != null) {
+            dataSource.getLeakDetection().setDeferredCapture(Boolean.valueOf(value).booleanValue());
+        }
+
+        value = properties.getProperty(PROP_LEAKREPORTCAPACITY);
+        if (value != null) {
+            dataSource.getLeakDetection().setReportCapacity(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_CONNECTIONBUDGET);
+        if (value != null) {
+            dataSource.getBudget().setName(value);
+            final String capacity = properties.getProperty(PROP_CONNECTIONBUDGETCAPACITY);
+            if (capacity != null) {
+                ConnectionBudget.get(value).setCapacity(Integer.parseInt(capacity));
+            }
+        }
+
+        value = properties.getProperty(PROP_BUDGETMINCONNECTIONS);
+        if (value != null) {
+            dataSource.getBudget().setMinConnections(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_BUDGETMAXCONNECTIONS);
+        if (value != null) {
+            dataSource.getBudget().setMaxConnections(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_OPENMETRICSPORT);
+        if (value != null) {
+            OpenMetricsExporter.getDefault().start(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_HISTORYCAPACITY);
+        if (value != null) {
+            dataSource.getHistory().setCapacity(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_RESULTCACHESQL);
+        if (value != null) {
+            dataSource.getResultCache().setSql(value);
+        }
+
+        value = properties.getProperty(PROP_RESULTCACHECAPACITY);
+        if (value != null) {
+            dataSource.getResultCache().setCapacity(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_RESULTCACHETIMETOLIVE);
+        if (value != null) {
+            dataSource.getResultCache().setTimeToLive(Long.parseLong(value));
+        }
+
+        value = properties.getProperty(PROP_RESULTCACHEMAXMEMORY);
+        if (value != null) {
+            dataSource.getResultCache().setMaxMemory(Long.parseLong(value));
+        }
+
+        value = properties.getProperty(PROP_BATCHCOALESCINGSIZE);
+        if (value != null) {
+            dataSource.getBatchCoalescing().setBatchSize(Integer.parseInt(value));
+        }
+
+        value = properties.getProperty(PROP_BATCHCOALESCINGSTRICT);
+        if (value != null) {
+            dataSource.getBatchCoalescing().setStrictUpdateCounts(Boolean.valueOf(value).booleanValue());
+        }
+
+        value = properties.getProperty(PROP_VALIDATIONMODE);
+        if (value != null) {
+            dataSource.setValidationMode(value);
+        }
+
         // DBCP-215
         // Trick to make sure that initialSize connections are created
         if (dataSource.getInitialSize() > 0) {
@@ -0,0 +1,477 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.weakref.jmx.Managed;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * A {@link DataSource} routing connections between a primary {@link ManagedBasicDataSource} and several read
+ * replica ones.
+ * <p/>
+ * <p>Reads go to the replica with the lowest load, i.e. the connections it has handed out plus the threads waiting
+ * for one, relative to its <code>maxActive</code>. The load is computed from lock-free counters, so choosing a replica
+ * never takes a pool monitor. Ties are broken in turn, so idle replicas share the traffic evenly.</p>
+ * <p/>
+ * <p>A connection is routed as a read when it is requested with {@link #getReadConnection()}, or when
+ * {@link Connection#setReadOnly(boolean) setReadOnly(true)} is called on a connection returned by
+ * {@link #getConnection()} before it is used: these connections only borrow from a pool on their first use, which is
+ * anything but {@link Connection#setReadOnly(boolean)}, {@link Connection#isReadOnly()}, {@link Connection#isClosed()}
+ * and {@link Connection#close()}. Once borrowed, a connection is not routed again. Without replica, everything goes to
+ * the primary.</p>
+ * <p/>
+ * <p>Each target is exposed as its own MBean, named after the MBean of this datasource with an additional
+ * <code>target</code> key, and this datasource MBean exposes how many connections were routed to each.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @see ManagedRoutingDataSourceFactory
+ * @since 0.2.5
+ */
+public class ManagedRoutingDataSource implements DataSource {
+
+    /**
+     * The default auto-generated unique name for the exposed MBean.
+     */
+    public static final String DEFAULT_MBEAN_NAME = "org.apache.commons.dbcp:ManagedRoutingDataSource=ManagedRoutingDataSource";
+
+    /**
+     * The <code>target</code> key of the MBean of the primary.
+     */
+    public static final String PRIMARY = "primary";
+
+    /**
+     * The prefix of the <code>target</code> key of the MBeans of the replicas, followed by their index.
+     */
+    public static final String REPLICA = "replica";
+
+    /**
+     * The name under which this object is exposed to the MBean server.
+     */
+    protected final String mBeanName;
+
+    /**
+     * The datasource writes are routed to.
+     */
+    protected final ManagedBasicDataSource primary;
+
+    /**
+     * The datasources reads are routed to.
+     */
+    protected final ManagedBasicDataSource[] replicas;
+
+    /**
+     * The number of threads currently waiting for a connection from each replica.
+     */
+    private final AtomicIntegerArray pending;
+
+    /**
+     * The number of connections routed to each replica.
+     */
+    private final AtomicLongArray replicaReadCounts;
+
+    /**
+     * The number of connections routed to the primary.
+     */
+    private final AtomicLong writeCount = new AtomicLong();
+
+    /**
+     * The number of reads routed to the primary, because there is no replica.
+     */
+    private final AtomicLong primaryReadCount = new AtomicLong();
+
+    /**
+     * The replica the search for the least loaded one starts from, to break ties in turn.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Build a new instance of {@link ManagedRoutingDataSource} and expose it as a MBean with the specified name.
+     *
+     * @param mBeanServer the MBean server to register the MBean in.
+     * @param mBeanName   the name of the MBean to expose, should be unique accross the target application.
+     * @param primary     the configured primary.
+     * @param replicas    the configured replicas, may be empty.
+     * @see #getTargetMBeanName(String, String)
+     */
+    public ManagedRoutingDataSource(MBeanServer mBeanServer, String mBeanName, ManagedBasicDataSource primary,
+                                    ManagedBasicDataSource[] replicas) {
+        this.mBeanName = mBeanName;
+        this.primary = primary;
+        this.replicas = replicas.clone();
+        this.pending = new AtomicIntegerArray(replicas.length);
+        this.replicaReadCounts = new AtomicLongArray(replicas.length);
+        exportMBean(mBeanServer, mBeanName);
+    }
+
+    /**
+     * Generate a unique MBean name.
+     *
+     * @return {@link #DEFAULT_MBEAN_NAME} followed by a random UUID.
+     */
+    static String newMBeanName() {
+        return DEFAULT_MBEAN_NAME + "-" + UUID.randomUUID();
+    }
+
+    /**
+     * Get the name of the MBean of a target.
+     *
+     * @param mBeanName the name of the MBean of the routing datasource.
+     * @param target    {@link #PRIMARY}, or {@link #REPLICA} followed by the replica index.
+     * @return the name of the routing datasource MBean with an additional <code>target</code> key.
+     */
+    public static String getTargetMBeanName(String mBeanName, String target) {
+        return mBeanName + ",target=" + target;
+    }
+
+    /**
+     * Export this object as a MBean.
+     *
+     * @param mBeanServer the MBean server to register the MBean in.
+     * @param name        the name of the MBean to expose.
+     */
+    protected void exportMBean(MBeanServer mBeanServer, String name) {
+        try {
+            mBeanServer.registerMBean(new AnnotatedMBean(this), new ObjectName(name));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register MBean " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the name under which this object is exposed to the MBean server.
+     *
+     * @return the MBean object name.
+     */
+    public String getMBeanName() {
+        return mBeanName;
+    }
+
+    /**
+     * Get the datasource writes are routed to.
+     *
+     * @return the primary datasource.
+     */
+    public ManagedBasicDataSource getPrimary() {
+        return primary;
+    }
+
+    /**
+     * Get a datasource reads are routed to.
+     *
+     * @param replica the replica index.
+     * @return the replica datasource.
+     */
+    public ManagedBasicDataSource getReplica(int replica) {
+        return replicas[replica];
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>The returned connection borrows from the primary on its first use, or from the least loaded replica if
+     * {@link Connection#setReadOnly(boolean) setReadOnly(true)} was called before.</p>
+     */
+    public Connection getConnection() throws SQLException {
+        return (Connection) Proxy.newProxyInstance(RoutingConnection.class.getClassLoader(),
+                                                   new Class<?>[]{Connection.class},
+                                                   new RoutingConnection(this));
+    }
+
+    /**
+     * Get a connection from the least loaded replica, or from the primary if there is no replica.
+     *
+     * @return a connection.
+     * @throws SQLException if the connection could not be borrowed.
+     */
+    public Connection getReadConnection() throws SQLException {
+        if (replicas.length == 0) {
+            primaryReadCount.incrementAndGet();
+            return primary.getConnection();
+        }
+        final int replica = getLeastLoadedReplica();
+        replicaReadCounts.incrementAndGet(replica);
+        pending.incrementAndGet(replica);
+        try {
+            return replicas[replica].getConnection();
+        } finally {
+            pending.decrementAndGet(replica);
+        }
+    }
+
+    /**
+     * Get a connection from the primary.
+     *
+     * @return a connection.
+     * @throws SQLException if the connection could not be borrowed.
+     */
+    public Connection getWriteConnection() throws SQLException {
+        writeCount.incrementAndGet();
+        return primary.getConnection();
+    }
+
+    /**
+     * Get the index of the replica with the lowest load.
+     *
+     * @return the replica index.
+     */
+    private int getLeastLoadedReplica() {
+        final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+        int best = start;
+        double bestLoad = Double.MAX_VALUE;
+        for (int i = 0; i < replicas.length; i++) {
+            final int replica = (start + i) % replicas.length;
+            final double load = getLoad(replica);
+            if (load < bestLoad) {
+                best = replica;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Get the load of a replica, from its lock-free counters.
+     *
+     * @param replica the replica index.
+     * @return the number of connections handed out plus the number of threads waiting for one, divided by
+     *         <code>maxActive</code> if it is positive.
+     */
+    private double getLoad(int replica) {
+        final ManagedBasicDataSource dataSource = replicas[replica];
+        // Returned first, so the estimate errs on the busy side
+        final long returned = dataSource.getReturnedCount();
+        final long demand = dataSource.getBorrowedCount() - returned + pending.get(replica);
+        final int maxActive = dataSource.getMaxActive();
+        return maxActive > 0 ? (double) demand / maxActive : demand;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Not supported, like {@link BasicDataSource#getConnection(String, String)}.</p>
+     */
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new UnsupportedOperationException("Not supported by ManagedRoutingDataSource");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public PrintWriter getLogWriter() throws SQLException {
+        return primary.getLogWriter();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        primary.setLogWriter(out);
+        for (ManagedBasicDataSource replica : replicas) {
+            replica.setLogWriter(out);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getLoginTimeout() throws SQLException {
+        return primary.getLoginTimeout();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setLoginTimeout(int seconds) throws SQLException {
+        primary.setLoginTimeout(seconds);
+        for (ManagedBasicDataSource replica : replicas) {
+            replica.setLoginTimeout(seconds);
+        }
+    }
+
+    /**
+     * Get the parent logger of the loggers of this datasource (JDBC 4.1).
+     * <p/>
+     * <p>The targets log through their {@link #getLogWriter() log writer}, so this logger is not used.</p>
+     *
+     * @return the <code>org.apache.commons.dbcp</code> logger.
+     */
+    public Logger getParentLogger() {
+        return Logger.getLogger(ManagedRoutingDataSource.class.getPackage().getName());
+    }
+
+    /**
+     * Whether this datasource implements an interface.
+     *
+     * @param iface the interface.
+     * @return true if this datasource is an instance of <code>iface</code>.
+     * @throws SQLException never.
+     */
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * Get this datasource as an instance of an interface.
+     *
+     * @param iface the interface.
+     * @return this datasource.
+     * @throws SQLException if this datasource does not implement <code>iface</code>.
+     */
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (!iface.isInstance(this)) {
+            throw new SQLException(getClass().getName() + " is not a wrapper for " + iface.getName());
+        }
+        return iface.cast(this);
+    }
+
+    /**
+     * Close the primary and all the replicas.
+     *
+     * @throws SQLException if a target could not be closed, after trying to close the others.
+     */
+    public void close() throws SQLException {
+        SQLException failure = null;
+        try {
+            primary.close();
+        } catch (SQLException e) {
+            failure = e;
+        }
+        for (ManagedBasicDataSource replica : replicas) {
+            try {
+                replica.close();
+            } catch (SQLException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Get the number of replicas.
+     *
+     * @return the number of replicas.
+     */
+    @Managed(description = "The number of read replica pools.")
+    public int getReplicas() {
+        return replicas.length;
+    }
+
+    /**
+     * Get the names of the MBeans of the targets.
+     *
+     * @return the MBean name of the primary, then of the replicas by index.
+     */
+    @Managed(description = "The names of the MBeans of the primary pool, then of the read replica pools.")
+    public String[] getTargetNames() {
+        final String[] names = new String[replicas.length + 1];
+        names[0] = primary.getMBeanName();
+        for (int i = 0; i < replicas.length; i++) {
+            names[i + 1] = replicas[i].getMBeanName();
+        }
+        return names;
+    }
+
+    /**
+     * Get the number of connections routed to the primary as writes.
+     *
+     * @return the number of writes.
+     */
+    @Managed(description = "The number of connections routed to the primary pool as writes.")
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * Get the number of connections routed as reads, to the replicas or to the primary if there is none.
+     *
+     * @return the number of reads.
+     */
+    @Managed(description = "The number of connections routed as reads.")
+    public long getReadCount() {
+        long readCount = primaryReadCount.get();
+        for (int i = 0; i < replicas.length; i++) {
+            readCount += replicaReadCounts.get(i);
+        }
+        return readCount;
+    }
+
+    /**
+     * Get the number of reads routed to the primary because there is no replica.
+     *
+     * @return the number of reads served by the primary.
+     */
+    @Managed(description = "The number of connections routed as reads to the primary pool, because there is no read replica.")
+    public long getPrimaryReadCount() {
+        return primaryReadCount.get();
+    }
+
+    /**
+     * Get the number of reads routed to each replica.
+     *
+     * @return the number of reads, by replica index.
+     */
+    @Managed(description = "The number of connections routed as reads to each read replica pool.")
+    public long[] getReplicaReadCounts() {
+        final long[] counts = new long[replicas.length];
+        for (int i = 0; i < replicas.length; i++) {
+            counts[i] = replicaReadCounts.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Get the load of each replica, as used for routing.
+     *
+     * @return the connections handed out plus the threads waiting for one, relative to <code>maxActive</code>, by
+     *         replica index.
+     */
+    @Managed(description = "The connections handed out plus the threads waiting for one, relative to maxActive, of each read replica pool.")
+    public double[] getReplicaLoads() {
+        final double[] loads = new double[replicas.length];
+        for (int i = 0; i < replicas.length; i++) {
+            loads[i] = getLoad(i);
+        }
+        return loads;
+    }
+
+    /**
+     * Reset the routing counters.
+     */
+    @Managed(description = "Reset the routing counters.")
+    public void resetRoutingCounts() {
+        writeCount.set(0);
+        primaryReadCount.set(0);
+        for (int i = 0; i < replicas.length; i++) {
+            replicaReadCounts.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.weakref.jmx.Managed;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A {@link DataSource} spreading its connections over several {@link ManagedBasicDataSource} stripes, so that
+ * concurrent threads do not all contend on the monitor of a single pool.
+ * <p/>
+ * <p>Each thread gets connections from the same home stripe. When all the connections of its home stripe are in use,
+ * it steals one from the stripe with the most room, and only waits on its home stripe if every stripe is exhausted.
+ * The room left in a stripe is computed from its lock-free active gauge, so choosing a stripe never takes a pool
+ * monitor.</p>
+ * <p/>
+ * <p><code>maxActive</code> is split across the stripes. Each stripe is exposed as its own MBean, named after the
+ * MBean of this datasource with an additional <code>stripe</code> key, and this datasource MBean exposes the
+ * aggregated statistics.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @see ManagedStripedDataSourceFactory
+ * @since 0.2.5
+ */
+public class ManagedStripedDataSource implements DataSource {
+
+    /**
+     * The default auto-generated unique name for the exposed MBean.
+     */
+    public static final String DEFAULT_MBEAN_NAME = "org.apache.commons.dbcp:ManagedStripedDataSource=ManagedStripedDataSource";
+
+    /**
+     * The name under which this object is exposed to the MBean server.
+     */
+    protected final String mBeanName;
+
+    /**
+     * The stripes.
+     */
+    protected final ManagedBasicDataSource[] stripes;
+
+    /**
+     * The number of connections taken from another stripe than the home stripe of the borrowing thread.
+     */
+    private final AtomicLong stealCount = new AtomicLong();
+
+    /**
+     * Build a new instance of {@link ManagedStripedDataSource} and expose it as a MBean with the specified name.
+     *
+     * @param mBeanServer the MBean server to register the MBean in.
+     * @param mBeanName   the name of the MBean to expose, should be unique accross the target application.
+     * @param stripes     the configured stripes, at least one.
+     * @see #getStripeMBeanName(String, int)
+     */
+    public ManagedStripedDataSource(MBeanServer mBeanServer, String mBeanName, ManagedBasicDataSource[] stripes) {
+        if (stripes.length == 0) {
+            throw new IllegalArgumentException("At least one stripe is required");
+        }
+        this.mBeanName = mBeanName;
+        this.stripes = stripes.clone();
+        exportMBean(mBeanServer, mBeanName);
+    }
+
+    /**
+     * Generate a unique MBean name.
+     *
+     * @return {@link #DEFAULT_MBEAN_NAME} followed by a random UUID.
+     */
+    static String newMBeanName() {
+        return DEFAULT_MBEAN_NAME + "-" + UUID.randomUUID();
+    }
+
+    /**
+     * Get the name of the MBean of a stripe.
+     *
+     * @param mBeanName the name of the MBean of the striped datasource.
+     * @param stripe    the stripe index.
+     * @return the name of the striped datasource MBean with an additional <code>stripe</code> key.
+     */
+    public static String getStripeMBeanName(String mBeanName, int stripe) {
+        return mBeanName + ",stripe=" + stripe;
+    }
+
+    /**
+     * Split a pool size across stripes.
+     *
+     * @param total   the size of the whole pool, negative for no limit.
+     * @param stripes the number of stripes.
+     * @param stripe  the stripe index.
+     * @return the size of the stripe, negative if <code>total</code> is.
+     */
+    static int split(int total, int stripes, int stripe) {
+        if (total < 0) {
+            return total;
+        }
+        return total / stripes + (stripe < total % stripes ? 1 : 0);
+    }
+
+    /**
+     * Export this object as a MBean.
+     *
+     * @param mBeanServer the MBean server to register the MBean in.
+     * @param name        the name of the MBean to expose.
+     */
+    protected void exportMBean(MBeanServer mBeanServer, String name) {
+        try {
+            mBeanServer.registerMBean(new AnnotatedMBean(this), new ObjectName(name));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register MBean " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the name under which this object is exposed to the MBean server.
+     *
+     * @return the MBean object name.
+     */
+    public String getMBeanName() {
+        return mBeanName;
+    }
+
+    /**
+     * Get a stripe.
+     *
+     * @param stripe the stripe index.
+     * @return the stripe datasource.
+     */
+    public ManagedBasicDataSource getStripe(int stripe) {
+        return stripes[stripe];
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>The connection is taken from the home stripe of the calling thread, or from the stripe with the most room if
+     * all the connections of the home stripe are in use.</p>
+     */
+    public Connection getConnection() throws SQLException {
+        final ManagedBasicDataSource home = stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+        if (getRoom(home) > 0) {
+            return home.getConnection();
+        }
+        ManagedBasicDataSource victim = null;
+        long victimRoom = 0;
+        for (ManagedBasicDataSource stripe : stripes) {
+            final long room = getRoom(stripe);
+            if (room > victimRoom) {
+                victim = stripe;
+                victimRoom = room;
+            }
+        }
+        if (victim == null) {
+            return home.getConnection();
+        }
+        stealCount.incrementAndGet();
+        return victim.getConnection();
+    }
+
+    /**
+     * Get the number of connections a stripe can still hand out, from its lock-free active gauge.
+     *
+     * @param stripe the stripe.
+     * @return an approximation of the number of connections that can be borrowed without waiting.
+     */
+    private static long getRoom(ManagedBasicDataSource stripe) {
+        final int maxActive = stripe.getMaxActive();
+        if (maxActive < 0) {
+            return Long.MAX_VALUE;
+        }
+        return maxActive - stripe.getNumActive();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Not supported, like {@link BasicDataSource#getConnection(String, String)}.</p>
+     */
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new UnsupportedOperationException("Not supported by ManagedStripedDataSource");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public PrintWriter getLogWriter() throws SQLException {
+        return stripes[0].getLogWriter();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        for (ManagedBasicDataSource stripe : stripes) {
+            stripe.setLogWriter(out);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getLoginTimeout() throws SQLException {
+        return stripes[0].getLoginTimeout();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setLoginTimeout(int seconds) throws SQLException {
+        for (ManagedBasicDataSource stripe : stripes) {
+            stripe.setLoginTimeout(seconds);
+        }
+    }
+
+    /**
+     * Get the parent logger of the loggers of this datasource (JDBC 4.1).
+     * <p/>
+     * <p>The stripes log through their {@link #getLogWriter() log writer}, so this logger is not used.</p>
+     *
+     * @return the <code>org.apache.commons.dbcp</code> logger.
+     */
+    public Logger getParentLogger() {
+        return Logger.getLogger(ManagedStripedDataSource.class.getPackage().getName());
+    }
+
+    /**
+     * Whether this datasource implements an interface.
+     *
+     * @param iface the interface.
+     * @return true if this datasource is an instance of <code>iface</code>.
+     * @throws SQLException never.
+     */
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * Get this datasource as an instance of an interface.
+     *
+     * @param iface the interface.
+     * @return this datasource.
+     * @throws SQLException if this datasource does not implement <code>iface</code>.
+     */
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (!iface.isInstance(this)) {
+            throw new SQLException(getClass().getName() + " is not a wrapper for " + iface.getName());
+        }
+        return iface.cast(this);
+    }
+
+    /**
+     * Close all the stripes.
+     *
+     * @throws SQLException if a stripe could not be closed, after trying to close the others.
+     */
+    public void close() throws SQLException {
+        SQLException failure = null;
+        for (ManagedBasicDataSource stripe : stripes) {
+            try {
+                stripe.close();
+            } catch (SQLException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Get the number of stripes.
+     *
+     * @return the number of stripes.
+     */
+    @Managed(description = "The number of pools the connections are spread over.")
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Get the names of the MBeans of the stripes.
+     *
+     * @return the stripe MBean names, by stripe index.
+     */
+    @Managed(description = "The names of the MBeans of the pools the connections are spread over.")
+    public String[] getStripeNames() {
+        final String[] names = new String[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            names[i] = stripes[i].getMBeanName();
+        }
+        return names;
+    }
+
+    /**
+     * Get the maximum number of active connections of all the stripes.
+     *
+     * @return the sum of the maxActive of the stripes, negative if a stripe has no limit.
+     */
+    @Managed(description = "The maximum number of active connections that can be allocated at the same time, across all the stripes.")
+    public int getMaxActive() {
+        int maxActive = 0;
+        for (ManagedBasicDataSource stripe : stripes) {
+            if (stripe.getMaxActive() < 0) {
+                return -1;
+            }
+            maxActive += stripe.getMaxActive();
+        }
+        return maxActive;
+    }
+
+    /**
+     * Set the maximum number of active connections, split across the stripes.
+     *
+     * @param maxActive the new value for maxActive, negative for no limit, or at least the number of stripes.
+     * @see #getMaxActive()
+     */
+    @Managed(description = "Set the maximum number of active connections, split across the stripes. Use a negative value for no limit.")
+    public void setMaxActive(int maxActive) {
+        if (maxActive > 0 && maxActive < stripes.length) {
+            throw new IllegalArgumentException("maxActive must be negative or at least the number of stripes: " + maxActive);
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i].setMaxActive(split(maxActive, stripes.length, i));
+        }
+    }
+
+    /**
+     * Get the current number of active connections of all the stripes.
+     *
+     * @return the current number of active connections.
+     */
+    @Managed(description = "The current number of active connections, across all the stripes.")
+    public int getNumActive() {
+        int numActive = 0;
+        for (ManagedBasicDataSource stripe : stripes) {
+            numActive += stripe.getNumActive();
+        }
+        return numActive;
+    }
+
+    /**
+     * Get the current number of idle connections of all the stripes.
+     *
+     * @return the current number of idle connections.
+     */
+    @Managed(description = "The current number of idle connections, across all the stripes.")
+    public int getNumIdle() {
+        int numIdle = 0;
+        for (ManagedBasicDataSource stripe : stripes) {
+            numIdle += stripe.getNumIdle();
+        }
+        return numIdle;
+    }
+
+    /**
+     * Get the number of connections handed out by all the stripes.
+     *
+     * @return the number of successful borrows.
+     */
+    @Managed(description = "The number of connections handed out by this data source since it was created.")
+    public long getBorrowedCount() {
+        long borrowedCount = 0;
+        for (ManagedBasicDataSource stripe : stripes) {
+            borrowedCount += stripe.getBorrowedCount();
+        }
+        return borrowedCount;
+    }
+
+    /**
+     * Get the number of connections taken from another stripe than the home stripe of the borrowing thread.
+     *
+     * @return the number of stolen connections.
+     */
+    @Managed(description = "The number of connections taken from another stripe than the home stripe of the borrowing thread.")
+    public long getStealCount() {
+        return stealCount.get();
+    }
+
+    /**
+     * Get the gauges and counters of all the stripes, summed.
+     * <p/>
+     * <p>Each stripe is captured under its own pool monitor, one after the other.</p>
+     *
+     * @return the aggregated statistics.
+     */
+    public PoolStatisticsSnapshot getPoolStatistics() {
+        int numActive = 0;
+        int numIdle = 0;
+        int maxActive = 0;
+        int maxIdle = 0;
+        int minIdle = 0;
+        long borrowedCount = 0;
+        long failedBorrowCount = 0;
+        long returnedCount = 0;
+        long longHoldCount = 0;
+        for (ManagedBasicDataSource stripe : stripes) {
+            final PoolStatisticsSnapshot snapshot = stripe.getPoolStatistics();
+            numActive += snapshot.getNumActive();
+            numIdle += snapshot.getNumIdle();
+            maxActive = maxActive < 0 || snapshot.getMaxActive() < 0 ? -1 : maxActive + snapshot.getMaxActive();
+            maxIdle = maxIdle < 0 || snapshot.getMaxIdle() < 0 ? -1 : maxIdle + snapshot.getMaxIdle();
+            minIdle += snapshot.getMinIdle();
+            borrowedCount += snapshot.getBorrowedCount();
+            failedBorrowCount += snapshot.getFailedBorrowCount();
+            returnedCount += snapshot.getReturnedCount();
+            longHoldCount += snapshot.getLongHoldCount();
+        }
+        return new PoolStatisticsSnapshot(System.currentTimeMillis(),
+                                          numActive,
+                                          numIdle,
+                                          maxActive,
+                                          maxIdle,
+                                          minIdle,
+                                          stripes[0].getMaxWait(),
+                                          borrowedCount,
+                                          failedBorrowCount,
+                                          returnedCount,
+                                          longHoldCount);
+    }
+
+    /**
+     * Get the gauges and counters of all the stripes, summed.
+     *
+     * @return the aggregated statistics, as a {@link PoolStatisticsSnapshot#COMPOSITE_TYPE}.
+     */
+    @Managed(description = "The gauges and counters of all the stripes, summed.")
+    public CompositeData getPoolStats() {
+        return getPoolStatistics().toCompositeData();
+    }
+}
@@ -0,0 +1,694 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Renders the metrics of all the {@link ManagedBasicDataSource}s in the
+ * <a href="https://openmetrics.io">OpenMetrics</a> text format, for scrapers such as Prometheus.
+ * <p/>
+ * <p>Datasources are added to the shared registry when their pool is created, and removed when they are closed. Each
+ * metric family has one sample per datasource, labelled with its MBean name: gauges for the pool sizes, counters for
+ * the events counted since the datasource was created, and histograms in seconds for the durations, with fixed
+ * buckets from 100 microseconds to 10 seconds.</p>
+ * <p/>
+ * <p>The metrics can be written to any {@link Writer} with {@link #writeTo(Writer)}, e.g. from a servlet of the
+ * application, or served by a minimal HTTP endpoint bound to the loopback interface with {@link #start(int)}, at
+ * <code>/metrics</code>.</p>
+ * <p/>
+ * <p>Rendering only reads the lock-free statistics of the datasources, including the active and idle gauges, and
+ * never takes the datasource nor the pool monitor. The text and encoding buffers are kept between scrapes, so a scrape only
+ * allocates a statistics snapshot per datasource once the buffers are large enough. Scrapes of an exporter are
+ * serialized.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class OpenMetricsExporter {
+
+    /**
+     * The path served by the HTTP endpoint.
+     */
+    public static final String PATH = "/metrics";
+
+    /**
+     * The content type of the rendered metrics.
+     */
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    /**
+     * The upper bounds of the histogram buckets, in microseconds.
+     */
+    private static final long[] BOUNDS_MICROS = {
+            100, 500, 1000, 5000, 10000, 50000, 100000, 500000, 1000000, 5000000, 10000000
+    };
+
+    /**
+     * The labels of the histogram buckets, in seconds, the last one being for all values.
+     */
+    private static final String[] BOUND_LABELS = {
+            "0.0001", "0.0005", "0.001", "0.005", "0.01", "0.05", "0.1", "0.5", "1.0", "5.0", "10.0", "+Inf"
+    };
+
+    /**
+     * The maximum length of the head of the HTTP requests.
+     */
+    private static final int MAX_REQUEST_LENGTH = 8192;
+
+    /**
+     * The number of milliseconds after which an HTTP client that sends nothing is disconnected.
+     */
+    private static final int SO_TIMEOUT = 5000;
+
+    /**
+     * The datasources whose metrics are rendered, shared by all the exporters.
+     */
+    private static final ConcurrentHashMap<ManagedBasicDataSource, Boolean> registry =
+            new ConcurrentHashMap<ManagedBasicDataSource, Boolean>();
+
+    /**
+     * Orders datasources by MBean name, so samples come in the same order at each scrape.
+     */
+    private static final Comparator<ManagedBasicDataSource> BY_NAME = new Comparator<ManagedBasicDataSource>() {
+        public int compare(ManagedBasicDataSource dataSource1, ManagedBasicDataSource dataSource2) {
+            return dataSource1.getMBeanName().compareTo(dataSource2.getMBeanName());
+        }
+    };
+
+    /**
+     * The gauges and counters.
+     */
+    private static final Metric[] METRICS = {
+            new Metric("dbcp_connections_active", "gauge", "The number of connections handed out.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return snapshot.getNumActive();
+                }
+            },
+            new Metric("dbcp_connections_idle", "gauge", "The number of idle connections in the pool.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return snapshot.getNumIdle();
+                }
+            },
+            new Metric("dbcp_connections_max_active", "gauge", "The maximum number of active connections, -1 for no limit.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return snapshot.getMaxActive();
+                }
+            },
+            new Metric("dbcp_connections_max_idle", "gauge", "The maximum number of idle connections, -1 for no limit.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return snapshot.getMaxIdle();
+                }
+            },
+            new Metric("dbcp_connections_min_idle", "gauge", "The minimum number of idle connections.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return snapshot.getMinIdle();
+                }
+            },
+            new Metric("dbcp_borrow_waiting", "gauge", "The number of threads waiting for a connection with concurrent borrow.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getBorrowWaiting();
+                }
+            },
+            new Metric("dbcp_async_queue_depth", "gauge", "The number of asynchronous requests waiting for a connection.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getAsyncQueueDepth();
+                }
+            },
+            new Metric("dbcp_statements_cached", "gauge", "The number of prepared statements cached by the connections.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getStatementCache().getCached();
+                }
+            },
+            new Metric("dbcp_leak_tracked", "gauge", "The number of connections tracked by the leak detector.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getLeakDetection().getTrackedCount();
+                }
+            },
+            new Metric("dbcp_borrowed", "counter", "The number of connections handed out.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return snapshot.getBorrowedCount();
+                }
+            },
+            new Metric("dbcp_borrow_failed", "counter", "The number of attempts to get a connection that failed.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return snapshot.getFailedBorrowCount();
+                }
+            },
+            new Metric("dbcp_returned", "counter", "The number of connections given back by the application.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return snapshot.getReturnedCount();
+                }
+            },
+            new Metric("dbcp_long_holds", "counter", "The number of connections held longer than the long hold threshold.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return snapshot.getLongHoldCount();
+                }
+            },
+            new Metric("dbcp_async_rejected", "counter", "The number of asynchronous requests that failed because the queue was full.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getAsyncRejectedCount();
+                }
+            },
+            new Metric("dbcp_async_timeouts", "counter", "The number of asynchronous requests that timed out.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getAsyncTimeoutCount();
+                }
+            },
+            new Metric("dbcp_validations", "counter", "The number of connection validations executed.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getValidation().getExecutedCount();
+                }
+            },
+            new Metric("dbcp_validations_skipped", "counter", "The number of connection validations skipped by the validation throttle.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getValidation().getSkippedCount();
+                }
+            },
+            new Metric("dbcp_validations_failed", "counter", "The number of connection validations that failed.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getValidation().getFailedCount();
+                }
+            },
+            new Metric("dbcp_evictions", "counter", "The number of idle connections destroyed by the parallel evictor.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getEviction().getEvictedCount();
+                }
+            },
+            new Metric("dbcp_leaks", "counter", "The number of connections reported as leaked by the leak detector.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getLeakDetection().getLeakCount();
+                }
+            },
+            new Metric("dbcp_statement_cache_hits", "counter", "The number of prepared statements served from the cache.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getStatementCache().getHits();
+                }
+            },
+            new Metric("dbcp_statement_cache_misses", "counter", "The number of prepared statements not found in the cache.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getStatementCache().getMisses();
+                }
+            },
+            new Metric("dbcp_statement_cache_evictions", "counter", "The number of prepared statements evicted from the cache.") {
+                long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot) {
+                    return dataSource.getStatementCache().getEvictions();
+                }
+            }
+    };
+
+    /**
+     * The histograms.
+     */
+    private static final Histogram[] HISTOGRAMS = {
+            new Histogram("dbcp_borrow_wait_seconds", "The time threads spent getting a connection.") {
+                LatencyHistogram get(ManagedBasicDataSource dataSource) {
+                    return dataSource.getBorrowWait();
+                }
+            },
+            new Histogram("dbcp_hold_seconds", "The time connections were held by the application.") {
+                LatencyHistogram get(ManagedBasicDataSource dataSource) {
+                    return dataSource.getHoldTime();
+                }
+            },
+            new Histogram("dbcp_connection_create_seconds", "The time taken to open a physical connection.") {
+                LatencyHistogram get(ManagedBasicDataSource dataSource) {
+                    return dataSource.getConnectionCreateTime();
+                }
+            },
+            new Histogram("dbcp_validation_seconds", "The time taken to validate a connection.") {
+                LatencyHistogram get(ManagedBasicDataSource dataSource) {
+                    return dataSource.getValidation().getTime();
+                }
+            }
+    };
+
+    /**
+     * The exporter shared by the datasources configured through {@link ManagedBasicDataSourceFactory}, created on first
+     * use.
+     */
+    private static OpenMetricsExporter defaultExporter;
+
+    /**
+     * The datasources of the current scrape.
+     */
+    private final List<ManagedBasicDataSource> dataSources = new ArrayList<ManagedBasicDataSource>();
+
+    /**
+     * The statistics of the datasources of the current scrape.
+     */
+    private final List<PoolStatisticsSnapshot> snapshots = new ArrayList<PoolStatisticsSnapshot>();
+
+    /**
+     * The cumulative counts of the histogram being rendered.
+     */
+    private final long[] cumulativeCounts = new long[BOUNDS_MICROS.length + 1];
+
+    /**
+     * The rendered text.
+     */
+    private final StringBuilder text = new StringBuilder(4096);
+
+    /**
+     * The rendered text, as characters for {@link #writeTo(Writer)}.
+     */
+    private char[] chars = new char[0];
+
+    /**
+     * The rendered text, as UTF-8 bytes for the HTTP endpoint.
+     */
+    private byte[] bytes = new byte[0];
+
+    /**
+     * The socket of the HTTP endpoint, <code>null</code> if not started.
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * Add a datasource to the shared registry, called when its pool is created.
+     *
+     * @param dataSource the datasource.
+     */
+    static void register(ManagedBasicDataSource dataSource) {
+        registry.put(dataSource, Boolean.TRUE);
+    }
+
+    /**
+     * Remove a datasource from the shared registry, called when it is closed.
+     *
+     * @param dataSource the datasource.
+     */
+    static void unregister(ManagedBasicDataSource dataSource) {
+        registry.remove(dataSource);
+    }
+
+    /**
+     * Get the exporter shared by the datasources configured through {@link ManagedBasicDataSourceFactory}.
+     *
+     * @return the default exporter.
+     */
+    public static synchronized OpenMetricsExporter getDefault() {
+        if (defaultExporter == null) {
+            defaultExporter = new OpenMetricsExporter();
+        }
+        return defaultExporter;
+    }
+
+    /**
+     * Write the metrics of all the registered datasources.
+     *
+     * @param out the writer to write to, not flushed.
+     * @throws IOException if the writer failed.
+     */
+    public synchronized void writeTo(Writer out) throws IOException {
+        render();
+        final int length = text.length();
+        if (chars.length < length) {
+            chars = new char[length + (length >> 2)];
+        }
+        text.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+    }
+
+    /**
+     * Render the metrics of all the registered datasources.
+     *
+     * @return the metrics, in the OpenMetrics text format.
+     */
+    public synchronized String scrape() {
+        render();
+        return text.toString();
+    }
+
+    /**
+     * Render the metrics into {@link #text}.
+     */
+    private void render() {
+        dataSources.clear();
+        snapshots.clear();
+        dataSources.addAll(registry.keySet());
+        Collections.sort(dataSources, BY_NAME);
+        for (ManagedBasicDataSource dataSource : dataSources) {
+            snapshots.add(dataSource.getPoolStatistics());
+        }
+
+        text.setLength(0);
+        for (Metric metric : METRICS) {
+            appendHeader(metric.name, metric.type, metric.help);
+            final String suffix = "counter".equals(metric.type) ? "_total" : "";
+            for (int i = 0; i < dataSources.size(); i++) {
+                final ManagedBasicDataSource dataSource = dataSources.get(i);
+                text.append(metric.name).append(suffix);
+                appendLabel(dataSource);
+                text.append("} ").append(metric.value(dataSource, snapshots.get(i))).append('\n');
+            }
+        }
+        for (Histogram histogram : HISTOGRAMS) {
+            appendHeader(histogram.name, "histogram", histogram.help);
+            text.append("# UNIT ").append(histogram.name).append(" seconds\n");
+            for (ManagedBasicDataSource dataSource : dataSources) {
+                final LatencyHistogram values = histogram.get(dataSource);
+                final long sumMicros = values.getSumMicros();
+                values.copyCumulativeCounts(BOUNDS_MICROS, cumulativeCounts);
+                for (int i = 0; i < cumulativeCounts.length; i++) {
+                    text.append(histogram.name).append("_bucket");
+                    appendLabel(dataSource);
+                    text.append(",le=\"").append(BOUND_LABELS[i]).append("\"} ").append(cumulativeCounts[i]).append('\n');
+                }
+                text.append(histogram.name).append("_count");
+                appendLabel(dataSource);
+                text.append("} ").append(cumulativeCounts[BOUNDS_MICROS.length]).append('\n');
+                text.append(histogram.name).append("_sum");
+                appendLabel(dataSource);
+                text.append("} ");
+                appendSeconds(sumMicros);
+                text.append('\n');
+            }
+        }
+        text.append("# EOF\n");
+
+        // Do not keep the datasources reachable between scrapes
+        dataSources.clear();
+        snapshots.clear();
+    }
+
+    /**
+     * Append the <code>TYPE</code> and <code>HELP</code> lines of a metric family.
+     *
+     * @param name the name of the metric family.
+     * @param type the type of the metric family.
+     * @param help the description of the metric family.
+     */
+    private void appendHeader(String name, String type, String help) {
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    }
+
+    /**
+     * Append the opening brace and the datasource label of a sample.
+     *
+     * @param dataSource the datasource of the sample.
+     */
+    private void appendLabel(ManagedBasicDataSource dataSource) {
+        text.append("{datasource=\"");
+        final String name = dataSource.getMBeanName();
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (c == '\\' || c == '"') {
+                text.append('\\').append(c);
+            } else if (c == '\n') {
+                text.append("\\n");
+            } else {
+                text.append(c);
+            }
+        }
+        text.append('"');
+    }
+
+    /**
+     * Append a duration in seconds, without going through a <code>double</code>.
+     *
+     * @param micros the duration in microseconds.
+     */
+    private void appendSeconds(long micros) {
+        text.append(micros / 1000000L).append('.');
+        final long fraction = micros % 1000000L;
+        for (long digit = 100000L; digit > 1 && fraction < digit; digit /= 10) {
+            text.append('0');
+        }
+        text.append(fraction);
+    }
+
+    /**
+     * Encode {@link #text} in UTF-8 into {@link #bytes}.
+     *
+     * @return the number of bytes.
+     */
+    private int encode() {
+        final int length = text.length();
+        if (bytes.length < length * 3) {
+            bytes = new byte[length * 3 + (length >> 1)];
+        }
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            int c = text.charAt(i);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte) (0xc0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate((char) c) && i + 1 < length
+                       && Character.isLowSurrogate(text.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, text.charAt(++i));
+                bytes[position++] = (byte) (0xf0 | (c >> 18));
+                bytes[position++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                bytes[position++] = (byte) (0xe0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Start serving the metrics over HTTP at {@link #PATH}, on the loopback interface.
+     *
+     * @param port the port to listen on, 0 for any free port.
+     * @return the port listened on.
+     * @throws IOException           if the port could not be bound.
+     * @throws IllegalStateException if the endpoint is already started on another port.
+     */
+    public synchronized int start(int port) throws IOException {
+        if (serverSocket != null) {
+            if (port != 0 && port != serverSocket.getLocalPort()) {
+                throw new IllegalStateException("Already listening on port " + serverSocket.getLocalPort());
+            }
+            return serverSocket.getLocalPort();
+        }
+        final ServerSocket socket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        serverSocket = socket;
+        new DaemonThreadFactory("commons-dbcp-jmx-openmetrics").newThread(new Runnable() {
+            public void run() {
+                serve(socket);
+            }
+        }).start();
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Stop serving the metrics over HTTP.
+     */
+    public synchronized void stop() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+            serverSocket = null;
+        }
+    }
+
+    /**
+     * Get the port the HTTP endpoint listens on.
+     *
+     * @return the port, -1 if the endpoint is not started.
+     */
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * Answer the HTTP requests until the socket is closed, one at a time.
+     *
+     * @param server the socket of the HTTP endpoint.
+     */
+    private void serve(ServerSocket server) {
+        final byte[] request = new byte[MAX_REQUEST_LENGTH];
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                continue;
+            }
+            try {
+                socket.setSoTimeout(SO_TIMEOUT);
+                answer(socket, request);
+            } catch (IOException e) {
+                // The client went away
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer a HTTP request.
+     *
+     * @param socket  the socket of the client.
+     * @param request the buffer to read the head of the request into.
+     * @throws IOException if the client went away.
+     */
+    private void answer(Socket socket, byte[] request) throws IOException {
+        final InputStream in = socket.getInputStream();
+        int length = 0;
+        int lineEnd = -1;
+        while (length < request.length) {
+            final int read = in.read(request, length, request.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+            if (endsHead(request, length)) {
+                break;
+            }
+        }
+        for (int i = 0; i + 1 < length; i++) {
+            if (request[i] == '\r' && request[i + 1] == '\n') {
+                lineEnd = i;
+                break;
+            }
+        }
+        if (lineEnd < 0) {
+            return;
+        }
+        final String[] requestLine = new String(request, 0, lineEnd, "US-ASCII").split(" ");
+        final OutputStream out = socket.getOutputStream();
+        if (requestLine.length < 2 || !"GET".equals(requestLine[0])) {
+            out.write("HTTP/1.1 405 Method Not Allowed\r\nAllow: GET\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+        } else if (!PATH.equals(requestLine[1]) && !requestLine[1].startsWith(PATH + "?")) {
+            out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+        } else {
+            synchronized (this) {
+                render();
+                final int size = encode();
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: " + CONTENT_TYPE + "\r\nContent-Length: " + size +
+                           "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                out.write(bytes, 0, size);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Whether a buffer ends with the blank line closing the head of a HTTP request.
+     *
+     * @param request the buffer.
+     * @param length  the number of bytes read into the buffer.
+     * @return true if the head of the request was fully read.
+     */
+    private static boolean endsHead(byte[] request, int length) {
+        return length >= 4 && request[length - 4] == '\r' && request[length - 3] == '\n' && request[length - 2] == '\r'
+               && request[length - 1] == '\n';
+    }
+
+    /**
+     * A gauge or counter of a datasource.
+     */
+    private abstract static class Metric {
+
+        /**
+         * The name of the metric family, without the <code>_total</code> suffix of counters.
+         */
+        final String name;
+
+        /**
+         * The type of the metric family, <code>gauge</code> or <code>counter</code>.
+         */
+        final String type;
+
+        /**
+         * The description of the metric family.
+         */
+        final String help;
+
+        /**
+         * Build a new {@link Metric}.
+         *
+         * @param name the name of the metric family.
+         * @param type the type of the metric family.
+         * @param help the description of the metric family.
+         */
+        Metric(String name, String type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+        }
+
+        /**
+         * Get the value of the metric for a datasource.
+         *
+         * @param dataSource the datasource.
+         * @param snapshot   the statistics of the datasource, captured for this scrape.
+         * @return the value.
+         */
+        abstract long value(ManagedBasicDataSource dataSource, PoolStatisticsSnapshot snapshot);
+    }
+
+    /**
+     * A histogram of durations of a datasource.
+     */
+    private abstract static class Histogram {
+
+        /**
+         * The name of the metric family.
+         */
+        final String name;
+
+        /**
+         * The description of the metric family.
+         */
+        final String help;
+
+        /**
+         * Build a new {@link Histogram}.
+         *
+         * @param name the name of the metric family.
+         * @param help the description of the metric family.
+         */
+        Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        /**
+         * Get the recorded durations of a datasource.
+         *
+         * @param dataSource the datasource.
+         * @return the histogram.
+         */
+        abstract LatencyHistogram get(ManagedBasicDataSource dataSource);
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evictor that examines the idle connections of a {@link ManagedBasicDataSource} on several threads.
+ * <p/>
+ * <p>The evictor of {@link GenericObjectPool} examines the idle connections one after the other, so with
+ * <code>testWhileIdle</code> and a large <code>numTestsPerEvictionRun</code>, a slow database makes each run take as
+ * long as all the validations together. When a {@link #getParallelism() parallelism} is set, the pool evictor is
+ * stopped and this one runs instead every <code>timeBetweenEvictionRunsMillis</code>: up to that many threads take
+ * the idle connections one at a time, and each connection goes back to the pool as soon as it is examined. The pool
+ * is then topped up to <code>minIdle</code>, as the pool evictor does.</p>
+ * <p/>
+ * <p>The counters and run times are only recorded by this evictor, not by the pool one.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class PoolEvictor implements Runnable {
+
+    /**
+     * The thread scheduling the runs of the evictors of all the datasources, created on first use.
+     */
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * The threads helping the scheduler thread examine connections, created on first use.
+     */
+    private static ExecutorService workers;
+
+    /**
+     * The datasource whose idle connections are examined.
+     */
+    private final ManagedBasicDataSource dataSource;
+
+    /**
+     * Set on the threads examining connections, so that the connection factory can tell eviction from borrows.
+     */
+    private final ThreadLocal<Boolean> evicting = new ThreadLocal<Boolean>();
+
+    /**
+     * The number of runs.
+     */
+    private final AtomicLong runCount = new AtomicLong();
+
+    /**
+     * The number of connections validated by the runs.
+     */
+    private final AtomicLong testedCount = new AtomicLong();
+
+    /**
+     * The number of connections destroyed by the runs.
+     */
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    /**
+     * The number of connections that failed validation during the runs.
+     */
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * The time taken by the runs.
+     */
+    private final LatencyHistogram runTime = new LatencyHistogram();
+
+    /**
+     * The maximum number of threads examining connections, 0 to leave eviction to the pool.
+     */
+    private volatile int parallelism;
+
+    /**
+     * How long the last run took, in nanoseconds.
+     */
+    private volatile long lastRunNanos;
+
+    /**
+     * The scheduled runs, <code>null</code> if the pool evictor is used.
+     */
+    private ScheduledFuture<?> task;
+
+    /**
+     * Whether the eviction settings of the pool were changed to stop its evictor.
+     */
+    private boolean poolEvictorStopped;
+
+    /**
+     * Build a new {@link PoolEvictor}.
+     *
+     * @param dataSource the datasource whose idle connections are examined.
+     */
+    PoolEvictor(ManagedBasicDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Get the thread scheduling the runs, creating it if needed.
+     *
+     * @return the scheduler.
+     */
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("commons-dbcp-jmx-evictor"));
+        }
+        return scheduler;
+    }
+
+    /**
+     * Get the threads helping the scheduler thread, creating them if needed.
+     *
+     * @return the workers, that stop after a minute without work.
+     */
+    private static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            workers = Executors.newCachedThreadPool(new DaemonThreadFactory("commons-dbcp-jmx-evictor-worker"));
+        }
+        return workers;
+    }
+
+    /**
+     * Get the maximum number of threads examining connections.
+     *
+     * @return the parallelism, 0 if eviction is left to the pool.
+     */
+    @Managed(description = "The maximum number of threads examining idle connections, 0 to leave eviction to the pool.")
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the maximum number of threads examining connections.
+     *
+     * @param parallelism the parallelism, 0 to leave eviction to the pool.
+     * @throws IllegalArgumentException if the parallelism is negative.
+     */
+    @Managed(description = "Set the maximum number of threads examining idle connections, 0 to leave eviction to the pool.")
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException("parallelism must not be negative: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        reschedule();
+    }
+
+    /**
+     * Take over eviction from the pool or give it back, according to the parallelism and the datasource settings.
+     * <p/>
+     * <p>Called again whenever the pool is created or its eviction settings change.</p>
+     */
+    synchronized void reschedule() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        final GenericObjectPool pool = dataSource.connectionPool;
+        if (pool == null) {
+            return;
+        }
+        final long period = dataSource.timeBetweenEvictionRunsMillis;
+        if (parallelism > 0 && period > 0) {
+            pool.setTimeBetweenEvictionRunsMillis(-1L);
+            // Each GenericObjectPool#evict() call examines a single connection
+            pool.setNumTestsPerEvictionRun(1);
+            poolEvictorStopped = true;
+            task = getScheduler().scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+        } else if (poolEvictorStopped) {
+            pool.setNumTestsPerEvictionRun(dataSource.numTestsPerEvictionRun);
+            pool.setTimeBetweenEvictionRunsMillis(period);
+            poolEvictorStopped = false;
+        }
+    }
+
+    /**
+     * Stop the runs, when the datasource is closed.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Examine the idle connections, then open connections up to <code>minIdle</code>.
+     */
+    public void run() {
+        final GenericObjectPool pool = dataSource.connectionPool;
+        if (pool == null) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final int tests = getNumTests(dataSource.numTestsPerEvictionRun, pool.getNumIdle());
+        final int threads = Math.max(1, Math.min(parallelism, tests));
+        final AtomicInteger remaining = new AtomicInteger(tests);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 1; i < threads; i++) {
+            getWorkers().execute(new Worker(pool, remaining, done));
+        }
+        new Worker(pool, remaining, done).run();
+        try {
+            done.await();
+            ensureMinIdle(pool);
+        } catch (InterruptedException e) {
+            remaining.set(0);
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // Same as the pool evictor, try again on the next run
+        }
+        final long duration = System.nanoTime() - start;
+        lastRunNanos = duration;
+        runTime.recordNanos(duration);
+        runCount.incrementAndGet();
+    }
+
+    /**
+     * Get the number of connections to examine in a run, as {@link GenericObjectPool} does.
+     *
+     * @param numTestsPerEvictionRun the number of connections to examine, or if negative, the inverse of the fraction
+     *                               of the idle connections to examine.
+     * @param idle                   the number of idle connections.
+     * @return the number of connections to examine.
+     */
+    static int getNumTests(int numTestsPerEvictionRun, int idle) {
+        if (numTestsPerEvictionRun >= 0) {
+            return Math.min(numTestsPerEvictionRun, idle);
+        }
+        return (int) Math.ceil(idle / Math.abs((double) numTestsPerEvictionRun));
+    }
+
+    /**
+     * Open connections until there are <code>minIdle</code> idle ones, without going over <code>maxActive</code>.
+     *
+     * @param pool the pool.
+     * @throws Exception if a connection could not be opened.
+     */
+    private static void ensureMinIdle(GenericObjectPool pool) throws Exception {
+        int deficit = pool.getMinIdle() - pool.getNumIdle();
+        if (pool.getMaxActive() > 0) {
+            deficit = Math.min(deficit, pool.getMaxActive() - pool.getNumActive() - pool.getNumIdle());
+        }
+        for (int i = 0; i < deficit; i++) {
+            pool.addObject();
+        }
+    }
+
+    /**
+     * Record a connection validated by the factory, if it is being examined by this evictor.
+     *
+     * @param valid whether it is valid.
+     */
+    void validated(boolean valid) {
+        if (evicting.get() != null) {
+            testedCount.incrementAndGet();
+            if (!valid) {
+                failedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Record a connection destroyed by the factory, if it is being examined by this evictor.
+     */
+    void destroyed() {
+        if (evicting.get() != null) {
+            evictedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the number of runs.
+     *
+     * @return the number of runs.
+     */
+    @Managed(description = "The number of eviction runs.")
+    public long getRunCount() {
+        return runCount.get();
+    }
+
+    /**
+     * Get how long the last run took.
+     *
+     * @return the duration of the last run in milliseconds, 0 if none.
+     */
+    @Managed(description = "How long the last eviction run took, in milliseconds.")
+    public double getLastRunDuration() {
+        return lastRunNanos / 1000000d;
+    }
+
+    /**
+     * Get the histogram of the time taken by the runs.
+     * <p/>
+     * <p>Exposed as nested attributes (<code>Eviction.RunTime.Mean</code>, <code>Eviction.RunTime.Max</code>,
+     * ...).</p>
+     *
+     * @return the run time histogram.
+     */
+    @Managed
+    @Nested
+    public LatencyHistogram getRunTime() {
+        return runTime;
+    }
+
+    /**
+     * Get the number of connections validated by the runs.
+     *
+     * @return the number of tested connections.
+     */
+    @Managed(description = "The number of idle connections validated by the eviction runs.")
+    public long getTestedCount() {
+        return testedCount.get();
+    }
+
+    /**
+     * Get the number of connections destroyed by the runs, because they were idle for too long or invalid.
+     *
+     * @return the number of evicted connections.
+     */
+    @Managed(description = "The number of idle connections destroyed by the eviction runs, because they were idle for too long or invalid.")
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * Get the number of connections that failed validation during the runs.
+     *
+     * @return the number of invalid connections.
+     */
+    @Managed(description = "The number of idle connections that failed validation during the eviction runs.")
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Reset the counters and the run time histogram.
+     */
+    @Managed(description = "Reset the eviction counters and run time histogram.")
+    public void reset() {
+        runCount.set(0);
+        testedCount.set(0);
+        evictedCount.set(0);
+        failedCount.set(0);
+        runTime.reset();
+    }
+
+    /**
+     * Examines connections until the run has examined enough of them.
+     */
+    private final class Worker implements Runnable {
+
+        /**
+         * The pool.
+         */
+        private final GenericObjectPool pool;
+
+        /**
+         * The number of connections left to examine in the run.
+         */
+        private final AtomicInteger remaining;
+
+        /**
+         * Released when all the workers of the run are done.
+         */
+        private final CountDownLatch done;
+
+        /**
+         * Build a new {@link Worker}.
+         *
+         * @param pool      the pool.
+         * @param remaining the number of connections left to examine in the run.
+         * @param done      released when all the workers of the run are done.
+         */
+        Worker(GenericObjectPool pool, AtomicInteger remaining, CountDownLatch done) {
+            this.pool = pool;
+            this.remaining = remaining;
+            this.done = done;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void run() {
+            evicting.set(Boolean.TRUE);
+            try {
+                while (remaining.getAndDecrement() > 0) {
+                    pool.evict();
+                }
+            } catch (Exception e) {
+                // The pool is closed
+                remaining.set(0);
+            } finally {
+                evicting.remove();
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import javax.management.openmbean.*;
+
+/**
+ * Immutable view of the {@link PoolStatistics} of a {@link ManagedBasicDataSource} at a given instant.
+ * <p/>
+ * <p>It can be converted to open data with {@link #toCompositeData()}, whose item names are the names of the matching
+ * MBean attributes.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @see PoolStatistics#snapshot(org.apache.commons.pool.impl.GenericObjectPool)
+ * @since 0.2.5
+ */
+public final class PoolStatisticsSnapshot {
+
+    /**
+     * The names of the items of {@link #COMPOSITE_TYPE}, all but the first one are also MBean attribute names.
+     */
+    static final String[] ITEM_NAMES = {
+            "Timestamp", "NumActive", "NumIdle", "MaxActive", "MaxIdle", "MinIdle", "MaxWait", "BorrowedCount",
+            "FailedBorrowCount", "ReturnedCount", "LongHoldCount"
+    };
+
+    /**
+     * The open type of {@link #toCompositeData()}.
+     */
+    public static final CompositeType COMPOSITE_TYPE;
+
+    static {
+        try {
+            COMPOSITE_TYPE = new CompositeType("PoolStats",
+                                               "Gauges and counters of a ManagedBasicDataSource",
+                                               ITEM_NAMES,
+                                               new String[]{
+                                                       "The time at which the statistics were captured, in milliseconds since the epoch",
+                                                       "The number of active connections",
+                                                       "The number of idle connections",
+                                                       "The maximum number of active connections",
+                                                       "The maximum number of idle connections",
+                                                       "The minimum number of idle connections",
+                                                       "The maximum number of milliseconds to wait for a connection",
+                                                       "The number of connections handed out",
+                                                       "The number of borrow attempts that failed",
+                                                       "The number of connections given back by the application",
+                                                       "The number of connections held longer than the long hold threshold"
+                                               },
+                                               new OpenType<?>[]{
+                                                       SimpleType.LONG, SimpleType.INTEGER, SimpleType.INTEGER,
+                                                       SimpleType.INTEGER, SimpleType.INTEGER, SimpleType.INTEGER,
+                                                       SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+                                                       SimpleType.LONG, SimpleType.LONG
+                                               });
+        } catch (OpenDataException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The time at which the snapshot was taken, in milliseconds since the epoch.
+     */
+    private final long timestamp;
+
+    /**
+     * The number of active connections.
+     */
+    private final int numActive;
+
+    /**
+     * The number of idle connections.
+     */
+    private final int numIdle;
+
+    /**
+     * The maxActive setting.
+     */
+    private final int maxActive;
+
+    /**
+     * The maxIdle setting.
+     */
+    private final int maxIdle;
+
+    /**
+     * The minIdle setting.
+     */
+    private final int minIdle;
+
+    /**
+     * The maxWait setting.
+     */
+    private final long maxWait;
+
+    /**
+     * The number of successful borrows.
+     */
+    private final long borrowedCount;
+
+    /**
+     * The number of failed borrows.
+     */
+    private final long failedBorrowCount;
+
+    /**
+     * The number of connections given back by the application.
+     */
+    private final long returnedCount;
+
+    /**
+     * The number of long holds.
+     */
+    private final long longHoldCount;
+
+    /**
+     * Build a new {@link PoolStatisticsSnapshot}.
+     *
+     * @param timestamp         the time at which the snapshot was taken.
+     * @param numActive         the number of active connections.
+     * @param numIdle           the number of idle connections.
+     * @param maxActive         the maxActive setting.
+     * @param maxIdle           the maxIdle setting.
+     * @param minIdle           the minIdle setting.
+     * @param maxWait           the maxWait setting.
+     * @param borrowedCount     the number of successful borrows.
+     * @param failedBorrowCount the number of failed borrows.
+     * @param returnedCount     the number of connections given back by the application.
+     * @param longHoldCount     the number of long holds.
+     */
+    public PoolStatisticsSnapshot(long timestamp,
+                                  int numActive,
+                                  int numIdle,
+                                  int maxActive,
+                                  int maxIdle,
+                                  int minIdle,
+                                  long maxWait,
+                                  long borrowedCount,
+                                  long failedBorrowCount,
+                                  long returnedCount,
+                                  long longHoldCount) {
+        this.timestamp = timestamp;
+        this.numActive = numActive;
+        this.numIdle = numIdle;
+        this.maxActive = maxActive;
+        this.maxIdle = maxIdle;
+        this.minIdle = minIdle;
+        this.maxWait = maxWait;
+        this.borrowedCount = borrowedCount;
+        this.failedBorrowCount = failedBorrowCount;
+        this.returnedCount = returnedCount;
+        this.longHoldCount = longHoldCount;
+    }
+
+    /**
+     * Get the time at which the snapshot was taken.
+     *
+     * @return the snapshot time, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the number of active connections.
+     *
+     * @return the number of active connections.
+     */
+    public int getNumActive() {
+        return numActive;
+    }
+
+    /**
+     * Get the number of idle connections.
+     *
+     * @return the number of idle connections.
+     */
+    public int getNumIdle() {
+        return numIdle;
+    }
+
+    /**
+     * Get the maxActive setting.
+     *
+     * @return the maximum number of active connections.
+     */
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    /**
+     * Get the maxIdle setting.
+     *
+     * @return the maximum number of idle connections.
+     */
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Get the minIdle setting.
+     *
+     * @return the minimum number of idle connections.
+     */
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * Get the maxWait setting.
+     *
+     * @return the maximum number of milliseconds to wait for a connection.
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Get the number of successful borrows.
+     *
+     * @return the number of connections handed out.
+     */
+    public long getBorrowedCount() {
+        return borrowedCount;
+    }
+
+    /**
+     * Get the number of failed borrows.
+     *
+     * @return the number of borrow attempts that threw an exception.
+     */
+    public long getFailedBorrowCount() {
+        return failedBorrowCount;
+    }
+
+    /**
+     * Get the number of connections given back by the application.
+     *
+     * @return the number of connections closed by the application.
+     */
+    public long getReturnedCount() {
+        return returnedCount;
+    }
+
+    /**
+     * Get the number of long holds.
+     *
+     * @return the number of connections held longer than the long hold threshold.
+     */
+    public long getLongHoldCount() {
+        return longHoldCount;
+    }
+
+    /**
+     * Convert this snapshot to open data.
+     *
+     * @return a {@link CompositeData} of type {@link #COMPOSITE_TYPE}.
+     */
+    public CompositeData toCompositeData() {
+        try {
+            return new CompositeDataSupport(COMPOSITE_TYPE, ITEM_NAMES, new Object[]{
+                    timestamp, numActive, numIdle, maxActive, maxIdle, minIdle, maxWait, borrowedCount,
+                    failedBorrowCount, returnedCount, longHoldCount
+            });
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "PoolStatisticsSnapshot[timestamp=" + timestamp +
+               ", numActive=" + numActive +
+               ", numIdle=" + numIdle +
+               ", maxActive=" + maxActive +
+               ", maxIdle=" + maxIdle +
+               ", minIdle=" + minIdle +
+               ", maxWait=" + maxWait +
+               ", borrowedCount=" + borrowedCount +
+               ", failedBorrowCount=" + failedBorrowCount +
+               ", returnedCount=" + returnedCount +
+               ", longHoldCount=" + longHoldCount + "]";
+    }
+}
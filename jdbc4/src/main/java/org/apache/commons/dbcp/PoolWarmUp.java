@@ -0,0 +1,284 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.weakref.jmx.Managed;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens the <code>initialSize</code> connections of a {@link ManagedBasicDataSource}.
+ * <p/>
+ * <p>{@link BasicDataSource} opens them one after the other on the thread that creates the pool. Here they can be
+ * opened by up to {@link #getConcurrency() concurrency} threads, and {@link #isAsync() asynchronously}, in which case
+ * the pool is usable right away and borrowers simply open their own connections until the warm-up catches up.</p>
+ * <p/>
+ * <p>Like {@link BasicDataSource}, the warm-up stops at the first connection that cannot be opened. A synchronous
+ * warm-up then fails pool creation, an asynchronous one reports it in {@link #getLastError()}.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class PoolWarmUp {
+
+    /**
+     * The number of connections left to open.
+     */
+    private final AtomicInteger remaining = new AtomicInteger();
+
+    /**
+     * The number of connections opened.
+     */
+    private final AtomicInteger opened = new AtomicInteger();
+
+    /**
+     * The number of threads still opening connections.
+     */
+    private final AtomicInteger workers = new AtomicInteger();
+
+    /**
+     * The maximum number of connections opened at the same time.
+     */
+    private volatile int concurrency = 1;
+
+    /**
+     * Whether the pool is returned before the connections are opened.
+     */
+    private volatile boolean async;
+
+    /**
+     * The number of connections to open.
+     */
+    private volatile int target;
+
+    /**
+     * When the warm-up started, from {@link System#nanoTime()}.
+     */
+    private volatile long startNanos;
+
+    /**
+     * How long the warm-up took, in nanoseconds, -1 while it is running.
+     */
+    private volatile long durationNanos;
+
+    /**
+     * The exception that stopped the warm-up, <code>null</code> if none.
+     */
+    private volatile Exception failure;
+
+    /**
+     * Get the maximum number of connections opened at the same time.
+     *
+     * @return the warm-up concurrency.
+     */
+    @Managed(description = "The maximum number of initial connections opened at the same time.")
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Set the maximum number of connections opened at the same time.
+     * <p/>
+     * <p>Only applies to warm-ups started after the setting is changed.</p>
+     *
+     * @param concurrency the warm-up concurrency, at least 1.
+     */
+    @Managed(description = "Set the maximum number of initial connections opened at the same time.")
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1: " + concurrency);
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Whether the pool is usable before the initial connections are opened.
+     *
+     * @return true if the warm-up runs in the background.
+     */
+    @Managed(description = "Whether the pool is usable before the initial connections are opened.")
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * Set whether the pool is usable before the initial connections are opened.
+     *
+     * @param async true to run the warm-up in the background.
+     */
+    @Managed(description = "Set whether the pool is usable before the initial connections are opened.")
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * Get the number of connections the last warm-up had to open.
+     *
+     * @return the number of initial connections.
+     */
+    @Managed(description = "The number of connections the last warm-up had to open.")
+    public int getTarget() {
+        return target;
+    }
+
+    /**
+     * Get the number of connections the last warm-up opened so far.
+     *
+     * @return the number of initial connections opened.
+     */
+    @Managed(description = "The number of connections the last warm-up opened so far.")
+    public int getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * Whether a warm-up is running.
+     *
+     * @return true if initial connections are being opened.
+     */
+    @Managed(description = "Whether initial connections are being opened.")
+    public boolean isRunning() {
+        return workers.get() > 0;
+    }
+
+    /**
+     * Get how long the last warm-up took, or has been running for.
+     *
+     * @return the warm-up duration, in milliseconds.
+     */
+    @Managed(description = "How long the last warm-up took, or has been running for, in milliseconds.")
+    public double getDuration() {
+        final long duration = durationNanos;
+        return (duration >= 0 ? duration : System.nanoTime() - startNanos) / 1000000d;
+    }
+
+    /**
+     * Get the exception that stopped the last warm-up.
+     *
+     * @return the description of the exception, <code>null</code> if none.
+     */
+    @Managed(description = "The exception that stopped the last warm-up, if any.")
+    public String getLastError() {
+        final Exception e = failure;
+        return e == null ? null : e.toString();
+    }
+
+    /**
+     * Open connections in a pool.
+     * <p/>
+     * <p>When synchronous, the calling thread opens connections too and waits for the other threads to finish.</p>
+     *
+     * @param pool the pool.
+     * @param size the number of connections to open.
+     * @throws SQLException if a synchronous warm-up failed to open a connection.
+     */
+    void start(GenericObjectPool pool, int size) throws SQLException {
+        final boolean background = async;
+        final int threads = Math.max(1, Math.min(concurrency, size));
+        final CountDownLatch done = new CountDownLatch(threads);
+        target = size;
+        opened.set(0);
+        failure = null;
+        remaining.set(size);
+        workers.set(threads);
+        durationNanos = -1;
+        startNanos = System.nanoTime();
+
+        final int pooled = background ? threads : threads - 1;
+        if (pooled > 0) {
+            final ExecutorService executor = Executors.newFixedThreadPool(
+                    pooled, new DaemonThreadFactory("commons-dbcp-jmx-warmup"));
+            for (int i = 0; i < pooled; i++) {
+                executor.execute(new Worker(pool, done));
+            }
+            executor.shutdown();
+        }
+        if (background) {
+            return;
+        }
+        new Worker(pool, done).run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while preloading the connection pool", e);
+        }
+        final Exception e = failure;
+        if (e != null) {
+            throw new SQLException("Error preloading the connection pool", e);
+        }
+    }
+
+    /**
+     * Stop opening connections, the ones being opened are still added to the pool.
+     */
+    void cancel() {
+        remaining.set(0);
+    }
+
+    /**
+     * Opens connections until there are none left to open.
+     */
+    private final class Worker implements Runnable {
+
+        /**
+         * The pool.
+         */
+        private final GenericObjectPool pool;
+
+        /**
+         * Counted down when this worker is done.
+         */
+        private final CountDownLatch done;
+
+        /**
+         * Build a new {@link Worker}.
+         *
+         * @param pool the pool.
+         * @param done counted down when this worker is done.
+         */
+        Worker(GenericObjectPool pool, CountDownLatch done) {
+            this.pool = pool;
+            this.done = done;
+        }
+
+        /**
+         * Open connections until there are none left to open.
+         */
+        public void run() {
+            try {
+                while (remaining.getAndDecrement() > 0) {
+                    pool.addObject();
+                    opened.incrementAndGet();
+                }
+            } catch (Exception e) {
+                failure = e;
+                cancel();
+            } finally {
+                if (workers.decrementAndGet() == 0) {
+                    durationNanos = System.nanoTime() - startNanos;
+                }
+                done.countDown();
+            }
+        }
+    }
+}
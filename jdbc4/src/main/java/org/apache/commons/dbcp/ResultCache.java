@@ -0,0 +1,732 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.weakref.jmx.Managed;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of the results of idempotent queries, shared by the connections of a {@link ManagedBasicDataSource}.
+ * <p/>
+ * <p>Only the prepared statements whose SQL is {@link #getSql() allow-listed} are cached, which disables the cache by
+ * default. Their <code>executeQuery()</code> results are read into memory on the first execution, then served from the
+ * cache for the same SQL and parameters without going to the database, see {@link CachingStatement}.</p>
+ * <p/>
+ * <p>Entries are dropped when they are older than {@link #getTimeToLive()}, and the least recently used ones are
+ * evicted to stay within {@link #getCapacity()} entries and {@link #getMaxMemory()} bytes, as estimated from the cached
+ * values. Results are cached whatever the transaction they were read in, so only reference data that rarely changes
+ * should be allow-listed, and {@link #invalidate()} called when it does.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class ResultCache {
+
+    /**
+     * The default maximum number of cached results.
+     */
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    /**
+     * The default time results are cached, in milliseconds.
+     */
+    public static final long DEFAULT_TIME_TO_LIVE = 60000L;
+
+    /**
+     * The default maximum estimated size of the cached results, in bytes.
+     */
+    public static final long DEFAULT_MAX_MEMORY = 16L * 1024L * 1024L;
+
+    /**
+     * The column types whose values are only valid while the result set is open, never cached.
+     */
+    private static final int[] UNCACHEABLE_TYPES = {
+            Types.BLOB, Types.CLOB, Types.ARRAY, Types.STRUCT, Types.REF, Types.JAVA_OBJECT, Types.OTHER, Types.DATALINK
+    };
+
+    /**
+     * The allow-listed SQL, as configured.
+     */
+    private volatile String sql;
+
+    /**
+     * The fingerprints of the allow-listed SQL.
+     */
+    private volatile Set<String> fingerprints = Collections.emptySet();
+
+    /**
+     * The maximum number of cached results.
+     */
+    private int capacity = DEFAULT_CAPACITY;
+
+    /**
+     * The time results are cached, in milliseconds, 0 or less for no limit.
+     */
+    private long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+    /**
+     * The maximum estimated size of the cached results, in bytes.
+     */
+    private long maxMemory = DEFAULT_MAX_MEMORY;
+
+    /**
+     * The cached results, least recently used first.
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /**
+     * The estimated size of the cached results, in bytes.
+     */
+    private long memory;
+
+    /**
+     * The number of queries served from the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of queries that had to be executed.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of results evicted to make room for more recently used ones.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The number of results dropped because they were older than the time to live.
+     */
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * Whether some SQL is allow-listed.
+     *
+     * @return true if the cache is enabled.
+     */
+    public boolean isEnabled() {
+        return !fingerprints.isEmpty();
+    }
+
+    /**
+     * Whether the results of a prepared statement may be cached.
+     *
+     * @param sql the prepared SQL.
+     * @return true if the fingerprint of the SQL is allow-listed.
+     */
+    boolean isCached(String sql) {
+        final Set<String> allowed = fingerprints;
+        return !allowed.isEmpty() && sql != null && allowed.contains(SqlStatistics.fingerprint(sql));
+    }
+
+    /**
+     * Get the allow-listed SQL.
+     *
+     * @return the SQL whose results are cached, separated by semicolons, <code>null</code> if none.
+     */
+    @Managed(description = "The SQL whose results are cached, separated by semicolons.")
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * Set the allow-listed SQL.
+     * <p/>
+     * <p>SQL is compared by {@link SqlStatistics#fingerprint(String) fingerprint}, so whitespace, comments and literals
+     * do not matter. The cached results are invalidated.</p>
+     *
+     * @param sql the SQL whose results are cached, separated by semicolons, <code>null</code> or empty to disable the
+     *            cache.
+     */
+    @Managed(description = "Set the SQL whose results are cached, separated by semicolons, empty to disable the cache.")
+    public void setSql(String sql) {
+        final Set<String> allowed = new HashSet<String>();
+        if (sql != null) {
+            for (String statement : sql.split(";")) {
+                if (statement.trim().length() > 0) {
+                    allowed.add(SqlStatistics.fingerprint(statement));
+                }
+            }
+        }
+        this.sql = allowed.isEmpty() ? null : sql;
+        this.fingerprints = allowed;
+        invalidate();
+    }
+
+    /**
+     * Get the maximum number of cached results.
+     *
+     * @return the capacity.
+     */
+    @Managed(description = "The maximum number of cached query results.")
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the maximum number of cached results, evicting the least recently used ones if needed.
+     *
+     * @param capacity the new capacity.
+     * @throws IllegalArgumentException if the capacity is negative.
+     */
+    @Managed(description = "Set the maximum number of cached query results.")
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+        trim();
+    }
+
+    /**
+     * Get the time results are cached.
+     *
+     * @return the time to live in milliseconds, 0 or less for no limit.
+     */
+    @Managed(description = "The time query results are cached, in milliseconds, 0 for no limit.")
+    public synchronized long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Set the time results are cached. Also applies to the results already cached.
+     *
+     * @param timeToLive the new time to live in milliseconds, 0 or less for no limit.
+     */
+    @Managed(description = "Set the time query results are cached, in milliseconds, 0 for no limit.")
+    public synchronized void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Get the maximum estimated size of the cached results.
+     *
+     * @return the memory cap in bytes.
+     */
+    @Managed(description = "The maximum estimated size of the cached query results, in bytes.")
+    public synchronized long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Set the maximum estimated size of the cached results, evicting the least recently used ones if needed.
+     * <p/>
+     * <p>Results larger than the cap on their own are never cached.</p>
+     *
+     * @param maxMemory the new memory cap in bytes.
+     * @throws IllegalArgumentException if the cap is negative.
+     */
+    @Managed(description = "Set the maximum estimated size of the cached query results, in bytes.")
+    public synchronized void setMaxMemory(long maxMemory) {
+        if (maxMemory < 0) {
+            throw new IllegalArgumentException("maxMemory must not be negative: " + maxMemory);
+        }
+        this.maxMemory = maxMemory;
+        trim();
+    }
+
+    /**
+     * Get the number of cached results.
+     *
+     * @return the number of entries.
+     */
+    @Managed(description = "The number of cached query results.")
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Get the estimated size of the cached results.
+     *
+     * @return the estimated size in bytes.
+     */
+    @Managed(description = "The estimated size of the cached query results, in bytes.")
+    public synchronized long getMemory() {
+        return memory;
+    }
+
+    /**
+     * Get the number of queries served from the cache.
+     *
+     * @return the number of cache hits.
+     */
+    @Managed(description = "The number of queries served from the result cache.")
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of allow-listed queries that had to be executed.
+     *
+     * @return the number of cache misses.
+     */
+    @Managed(description = "The number of allow-listed queries that were not found in the result cache.")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the ratio of allow-listed queries served from the cache.
+     *
+     * @return the hits over the hits and misses, 0 if no allow-listed query was executed.
+     */
+    @Managed(description = "The ratio of allow-listed queries served from the result cache.")
+    public double getHitRatio() {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+        return total == 0 ? 0d : (double) hitCount / total;
+    }
+
+    /**
+     * Get the number of results evicted to stay within the capacity and memory cap.
+     *
+     * @return the number of evictions.
+     */
+    @Managed(description = "The number of query results evicted to stay within the capacity and memory cap.")
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of results dropped because they were older than the time to live.
+     *
+     * @return the number of expirations.
+     */
+    @Managed(description = "The number of query results dropped because they were older than the time to live.")
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * Drop all the cached results.
+     */
+    @Managed(description = "Drop all the cached query results.")
+    public synchronized void invalidate() {
+        entries.clear();
+        memory = 0;
+    }
+
+    /**
+     * Drop the cached results of a query, whatever its parameters.
+     *
+     * @param sql the SQL of the query, compared by fingerprint.
+     * @return the number of dropped results.
+     */
+    @Managed(description = "Drop the cached results of a query, whatever its parameters.")
+    public synchronized int invalidateSql(String sql) {
+        final String fingerprint = SqlStatistics.fingerprint(sql);
+        int dropped = 0;
+        for (Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry<Key, Entry> entry = iterator.next();
+            if (fingerprint.equals(SqlStatistics.fingerprint(entry.getKey().sql))) {
+                memory -= entry.getValue().size;
+                iterator.remove();
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Reset the hit, miss, eviction and expiration counters.
+     */
+    @Managed(description = "Reset the hit, miss, eviction and expiration counters.")
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        expirations.set(0);
+    }
+
+    /**
+     * Look up a result, counting a hit or a miss.
+     *
+     * @param key the SQL and parameters of the query.
+     * @return the cached result, <code>null</code> if there is none or it expired.
+     */
+    synchronized Entry get(Key key) {
+        final Entry entry = entries.get(key);
+        if (entry != null && timeToLive > 0 && System.currentTimeMillis() - entry.createdAt > timeToLive) {
+            entries.remove(key);
+            memory -= entry.size;
+            expirations.incrementAndGet();
+        } else if (entry != null) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache a result, evicting the least recently used ones if needed.
+     *
+     * @param key   the SQL and parameters of the query.
+     * @param entry the result, not cached if it is not {@link Entry#storable}, not {@link Entry#complete} or larger
+     *              than the memory cap.
+     */
+    synchronized void put(Key key, Entry entry) {
+        if (!entry.storable || !entry.complete || entry.size > maxMemory || capacity == 0) {
+            return;
+        }
+        final Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            memory -= previous.size;
+        }
+        memory += entry.size;
+        trim();
+    }
+
+    /**
+     * Evict the least recently used results until the cache is within its capacity and memory cap.
+     */
+    private void trim() {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while ((entries.size() > capacity || memory > maxMemory) && iterator.hasNext()) {
+            memory -= iterator.next().size;
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Whether a parameter value can be part of a cache key: it must be immutable, or copied by {@link #copy(Object)}.
+     *
+     * @param value the parameter value.
+     * @return true if the value is <code>null</code>, a string, a boolean, a standard number or a date.
+     */
+    static boolean isKeyable(Object value) {
+        return value == null || value instanceof String || value instanceof Boolean || value instanceof Character
+               || value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+               || value instanceof Double || value instanceof Float || value instanceof BigDecimal
+               || value instanceof BigInteger || value instanceof java.util.Date;
+    }
+
+    /**
+     * Copy a value if it is mutable, so the cache is not changed through the values it hands out.
+     *
+     * @param value the value.
+     * @return a copy of the value if it is a date or a byte array, the value itself otherwise.
+     */
+    static Object copy(Object value) {
+        if (value instanceof java.util.Date) {
+            return ((java.util.Date) value).clone();
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        return value;
+    }
+
+    /**
+     * Estimate the memory taken by a cached value.
+     *
+     * @param value the value.
+     * @return the estimated size in bytes, not counting the reference to it.
+     */
+    private static long sizeOf(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        } else if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+            return 64;
+        } else if (value instanceof java.util.Date) {
+            return 32;
+        }
+        return 16;
+    }
+
+    /**
+     * The SQL and parameters of a query.
+     */
+    static final class Key {
+
+        /**
+         * The prepared SQL.
+         */
+        final String sql;
+
+        /**
+         * The parameter values, by index minus one.
+         */
+        private final Object[] parameters;
+
+        /**
+         * The precomputed hash code.
+         */
+        private final int hash;
+
+        /**
+         * Build a new {@link Key}.
+         *
+         * @param sql        the prepared SQL.
+         * @param parameters the parameter values, by index minus one, not copied.
+         */
+        Key(String sql, Object[] parameters) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.hash = 31 * sql.hashCode() + Arrays.hashCode(parameters);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return hash == key.hash && sql.equals(key.sql) && Arrays.equals(parameters, key.parameters);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The description of a column of a cached result.
+     */
+    static final class Column {
+
+        /**
+         * The column label.
+         */
+        final String label;
+
+        /**
+         * The column name.
+         */
+        final String name;
+
+        /**
+         * The SQL type, from {@link Types}.
+         */
+        final int type;
+
+        /**
+         * The database specific type name.
+         */
+        final String typeName;
+
+        /**
+         * The name of the class of the values.
+         */
+        final String className;
+
+        /**
+         * The column precision.
+         */
+        final int precision;
+
+        /**
+         * The column scale.
+         */
+        final int scale;
+
+        /**
+         * Whether the column is nullable, as defined by {@link ResultSetMetaData}.
+         */
+        final int nullable;
+
+        /**
+         * The maximum width of the column, in characters.
+         */
+        final int displaySize;
+
+        /**
+         * Whether the values are signed numbers.
+         */
+        final boolean signed;
+
+        /**
+         * The table name.
+         */
+        final String tableName;
+
+        /**
+         * The schema name.
+         */
+        final String schemaName;
+
+        /**
+         * The catalog name.
+         */
+        final String catalogName;
+
+        /**
+         * Read the description of a column.
+         *
+         * @param metaData the metadata of the result set.
+         * @param column   the column index, starting at 1.
+         * @throws SQLException if the metadata could not be read.
+         */
+        Column(ResultSetMetaData metaData, int column) throws SQLException {
+            label = metaData.getColumnLabel(column);
+            name = metaData.getColumnName(column);
+            type = metaData.getColumnType(column);
+            typeName = metaData.getColumnTypeName(column);
+            className = metaData.getColumnClassName(column);
+            precision = metaData.getPrecision(column);
+            scale = metaData.getScale(column);
+            nullable = metaData.isNullable(column);
+            displaySize = metaData.getColumnDisplaySize(column);
+            signed = metaData.isSigned(column);
+            tableName = metaData.getTableName(column);
+            schemaName = metaData.getSchemaName(column);
+            catalogName = metaData.getCatalogName(column);
+        }
+    }
+
+    /**
+     * A result read into memory.
+     */
+    static final class Entry {
+
+        /**
+         * The columns.
+         */
+        final Column[] columns;
+
+        /**
+         * The rows, each holding one value per column.
+         */
+        final List<Object[]> rows;
+
+        /**
+         * The estimated size of the result, in bytes.
+         */
+        final long size;
+
+        /**
+         * Whether all the values can be kept after the result set is closed.
+         */
+        final boolean storable;
+
+        /**
+         * Whether all the rows were read, false if reading stopped at the memory cap with rows left in the result set.
+         */
+        final boolean complete;
+
+        /**
+         * The time the result was read, from {@link System#currentTimeMillis()}.
+         */
+        final long createdAt = System.currentTimeMillis();
+
+        /**
+         * Build a new {@link Entry}.
+         *
+         * @param columns  the columns.
+         * @param rows     the rows.
+         * @param size     the estimated size in bytes.
+         * @param storable whether all the values can be kept after the result set is closed.
+         * @param complete whether all the rows were read.
+         */
+        private Entry(Column[] columns, List<Object[]> rows, long size, boolean storable, boolean complete) {
+            this.columns = columns;
+            this.rows = rows;
+            this.size = size;
+            this.storable = storable;
+            this.complete = complete;
+        }
+
+        /**
+         * Whether the values of a result set can be read into memory.
+         *
+         * @param metaData the metadata of the result set.
+         * @return false if a column is a LOB or another type only valid while the result set is open.
+         * @throws SQLException if the metadata could not be read.
+         */
+        static boolean isReadable(ResultSetMetaData metaData) throws SQLException {
+            if (metaData == null) {
+                return false;
+            }
+            final int count = metaData.getColumnCount();
+            for (int column = 1; column <= count; column++) {
+                final int type = metaData.getColumnType(column);
+                for (int uncacheable : UNCACHEABLE_TYPES) {
+                    if (type == uncacheable) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Read the remaining rows of a result set, stopping as soon as the result is larger than a memory cap.
+         *
+         * @param resultSet the result set, left open and, if the result is not {@link #complete}, on its last row read.
+         * @param maxSize   the memory cap in bytes.
+         * @return the result.
+         * @throws SQLException if the result set could not be read.
+         */
+        static Entry read(ResultSet resultSet, long maxSize) throws SQLException {
+            final ResultSetMetaData metaData = resultSet.getMetaData();
+            final Column[] columns = new Column[metaData.getColumnCount()];
+            long size = 128;
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = new Column(metaData, i + 1);
+                size += 128;
+            }
+            final List<Object[]> rows = new ArrayList<Object[]>();
+            boolean storable = true;
+            boolean complete = false;
+            while (size <= maxSize) {
+                if (!resultSet.next()) {
+                    complete = true;
+                    break;
+                }
+                final Object[] row = new Object[columns.length];
+                size += 16 + 8L * columns.length;
+                for (int i = 0; i < columns.length; i++) {
+                    final Object value = resultSet.getObject(i + 1);
+                    storable &= value instanceof byte[] || isKeyable(value);
+                    row[i] = value;
+                    size += sizeOf(value);
+                }
+                rows.add(row);
+            }
+            return new Entry(columns, rows, size, storable, complete);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.ObjectPool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * {@link PoolableConnectionFactory} that skips the validation of connections recently known to be valid, as decided
+ * by a {@link ValidationThrottle}.
+ * <p/>
+ * <p>It also reports the connections validated and destroyed to the {@link PoolEvictor}, and counts the connections it
+ * opens against the {@link ConnectionBudget} of the datasource, if any. While an idle connection is
+ * {@link BudgetShare#reclaimIdle() reclaimed} for the budget, it fails the activation of the connection to close and
+ * leaves the others examined untouched.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+class ThrottledConnectionFactory extends PoolableConnectionFactory {
+
+    /**
+     * Decides which validations are skipped, and counts them.
+     */
+    private final ValidationThrottle throttle;
+
+    /**
+     * The evictor to report the connections it examines to.
+     */
+    private final PoolEvictor evictor;
+
+    /**
+     * The share of the datasource in its connection budget.
+     */
+    private final BudgetShare budget;
+
+    /**
+     * Whether connections are validated with {@link Connection#isValid(int)} when there is no validation query.
+     */
+    private volatile boolean useIsValid;
+
+    /**
+     * Build a new {@link ThrottledConnectionFactory}.
+     *
+     * @param connFactory                 the {@link ConnectionFactory} from which to obtain base {@link Connection}s.
+     * @param pool                        the {@link ObjectPool} in which to pool those connections.
+     * @param stmtPoolFactory             the {@link KeyedObjectPoolFactory} to use to create pools of prepared statements,
+     *                                    or <code>null</code> to disable statement pooling.
+     * @param validationQuery             a query to use to validate connections, or <code>null</code>.
+     * @param validationQueryTimeout      the number of seconds that validation queries will wait for database response
+     *                                    before failing, 0 or less to wait indefinitely.
+     * @param connectionInitSqls          the SQL statements run when connections are created, or <code>null</code>.
+     * @param defaultReadOnly             the default "read only" setting for borrowed connections.
+     * @param defaultAutoCommit           the default "auto commit" setting for returned connections.
+     * @param defaultTransactionIsolation the default "Transaction Isolation" setting for returned connections.
+     * @param defaultCatalog              the default "catalog" setting for returned connections.
+     * @param config                      the {@link AbandonedConfig} if tracing SQL objects.
+     * @param throttle                    decides which validations are skipped.
+     * @param evictor                     the evictor to report the connections it examines to.
+     * @param budget                      the share of the datasource in its connection budget.
+     */
+    ThrottledConnectionFactory(ConnectionFactory connFactory,
+                               ObjectPool pool,
+                               KeyedObjectPoolFactory stmtPoolFactory,
+                               String validationQuery,
+                               int validationQueryTimeout,
+                               Collection<?> connectionInitSqls,
+                               Boolean defaultReadOnly,
+                               boolean defaultAutoCommit,
+                               int defaultTransactionIsolation,
+                               String defaultCatalog,
+                               AbandonedConfig config,
+                               ValidationThrottle throttle,
+                               PoolEvictor evictor,
+                               BudgetShare budget) {
+        super(connFactory, pool, stmtPoolFactory, validationQuery, validationQueryTimeout, connectionInitSqls,
+              defaultReadOnly, defaultAutoCommit, defaultTransactionIsolation, defaultCatalog, config);
+        this.throttle = throttle;
+        this.evictor = evictor;
+        this.budget = budget;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Waits for the connection budget first.</p>
+     */
+    @Override
+    public Object makeObject() throws Exception {
+        budget.acquire();
+        try {
+            return super.makeObject();
+        } catch (Exception e) {
+            budget.release();
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Skipped if the connection was validated or given back by the application less than the
+     * {@link ValidationThrottle#getInterval() validation interval} ago, or while idle connections are
+     * {@link BudgetShare#reclaimIdle() reclaimed}.</p>
+     */
+    @Override
+    public boolean validateObject(Object obj) {
+        if (BudgetShare.isReclaiming()) {
+            return true;
+        }
+        if (throttle.skip(obj)) {
+            evictor.validated(true);
+            return true;
+        }
+        final long start = System.nanoTime();
+        final boolean valid = super.validateObject(obj);
+        throttle.validated(obj, valid, System.nanoTime() - start);
+        evictor.validated(valid);
+        return valid;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>While idle connections are {@link BudgetShare#reclaimIdle() reclaimed}, fails for the connection claimed to be
+     * closed and does nothing for the others.</p>
+     */
+    @Override
+    public void activateObject(Object obj) throws Exception {
+        if (BudgetShare.isReclaiming()) {
+            if (BudgetShare.claim()) {
+                throw new SQLException("Connection reclaimed by the connection budget");
+            }
+            return;
+        }
+        super.activateObject(obj);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>Does nothing while idle connections are {@link BudgetShare#reclaimIdle() reclaimed}, as the connection was
+     * not activated.</p>
+     */
+    @Override
+    public void passivateObject(Object obj) throws Exception {
+        if (!BudgetShare.isReclaiming()) {
+            super.passivateObject(obj);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * <p>When there is no validation query and {@link #setUseIsValid(boolean) enabled}, asks the driver with
+     * {@link Connection#isValid(int)}, bounded by the validation query timeout.</p>
+     */
+    @Override
+    public void validateConnection(Connection conn) throws SQLException {
+        if (!useIsValid || _validationQuery != null) {
+            super.validateConnection(conn);
+        } else if (!conn.isValid(Math.max(0, _validationQueryTimeout))) {
+            throw new SQLException("validateConnection: isValid() returned false");
+        }
+    }
+
+    /**
+     * Set whether connections are validated with {@link Connection#isValid(int)} when there is no validation query.
+     *
+     * @param useIsValid true to call {@link Connection#isValid(int)}, false to only check the connection is not closed.
+     */
+    void setUseIsValid(boolean useIsValid) {
+        this.useIsValid = useIsValid;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroyObject(Object obj) throws Exception {
+        throttle.destroyed(obj);
+        evictor.destroyed();
+        try {
+            super.destroyObject(obj);
+        } finally {
+            budget.release();
+        }
+    }
+}
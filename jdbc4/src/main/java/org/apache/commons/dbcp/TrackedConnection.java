@@ -0,0 +1,323 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Handler for the {@link Connection} proxies handed out by {@link ManagedBasicDataSource}.
+ * <p/>
+ * <p>Records how long the connection is held between {@link ManagedBasicDataSource#getConnection()} and
+ * {@link Connection#close()}, and delegates everything else to the pooled connection. A dynamic proxy is used so the
+ * same code works with every version of the JDBC API. The application gets it behind a {@link DelegatingConnection},
+ * so it can still reach the pooled connection with {@link DelegatingConnection#getInnermostDelegate()} when
+ * <code>accessToUnderlyingConnectionAllowed</code> is set, like with a plain {@link BasicDataSource}.</p>
+ * <p/>
+ * <p>When SQL statistics are enabled, the statements it creates are wrapped with {@link TrackedStatement}. The
+ * statements prepared for the SQL allow-listed in the {@link ResultCache} are wrapped with {@link CachingStatement}.
+ * When {@link BatchCoalescing batch coalescing} is enabled, all the statements are wrapped with
+ * {@link CoalescingStatement}, and the buffered executions are flushed before any connection method that may depend on
+ * them.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+class TrackedConnection implements InvocationHandler {
+
+    /**
+     * Updater for {@link #released}, avoids allocating an atomic per borrow.
+     */
+    private static final AtomicIntegerFieldUpdater<TrackedConnection> RELEASED =
+            AtomicIntegerFieldUpdater.newUpdater(TrackedConnection.class, "released");
+
+    /**
+     * The connection methods that do not depend on the executions buffered by {@link CoalescingStatement}.
+     */
+    private static final Set<String> COALESCING_SAFE_METHODS = new HashSet<String>(Arrays.asList(
+            "prepareStatement", "prepareCall", "createStatement", "nativeSQL", "getAutoCommit", "isClosed",
+            "isReadOnly", "getTransactionIsolation", "getHoldability", "getCatalog", "getTypeMap", "getWarnings",
+            "clearWarnings", "hashCode", "equals", "toString"));
+
+    /**
+     * The pooled connection.
+     */
+    private final Connection delegate;
+
+    /**
+     * The statistics to record the hold time into.
+     */
+    private final PoolStatistics statistics;
+
+    /**
+     * The statistics to record statement executions into, <code>null</code> if disabled.
+     */
+    private final SqlStatistics sqlStatistics;
+
+    /**
+     * The queue to signal when the connection is given back, <code>null</code> if none.
+     */
+    private final BorrowQueue borrowQueue;
+
+    /**
+     * The throttle to tell when the connection is given back, <code>null</code> if none.
+     */
+    private final ValidationThrottle validation;
+
+    /**
+     * The time at which the connection was borrowed, from {@link System#nanoTime()}.
+     */
+    private final long borrowedAt;
+
+    /**
+     * The leak detection trace to release when the connection is given back, <code>null</code> if not tracked.
+     */
+    private final LeakDetector.Trace trace;
+
+    /**
+     * The cache to serve the allow-listed queries from, <code>null</code> if disabled.
+     */
+    private final ResultCache resultCache;
+
+    /**
+     * The executions buffered by the statements of the connection, <code>null</code> if batch coalescing is disabled.
+     */
+    private final CoalescingStatement.Buffer buffer;
+
+    /**
+     * Whether the connection was already closed by the application: 1 if so, 0 otherwise.
+     */
+    private volatile int released;
+
+    /**
+     * Build a new {@link TrackedConnection}.
+     *
+     * @param delegate   the pooled connection.
+     * @param statistics    the statistics to record the hold time into.
+     * @param sqlStatistics the statistics to record statement executions into, <code>null</code> if disabled.
+     * @param borrowQueue   the queue to signal when the connection is given back, <code>null</code> if none.
+     * @param validation    the throttle to tell when the connection is given back, <code>null</code> if none.
+     * @param trace         the leak detection trace of the connection, <code>null</code> if not tracked.
+     * @param resultCache   the cache to serve the allow-listed queries from, <code>null</code> if disabled.
+     * @param coalescing    the batch coalescing settings and statistics, <code>null</code> if disabled.
+     */
+    private TrackedConnection(Connection delegate, PoolStatistics statistics, SqlStatistics sqlStatistics,
+                              BorrowQueue borrowQueue, ValidationThrottle validation, LeakDetector.Trace trace,
+                              ResultCache resultCache, BatchCoalescing coalescing) {
+        this.delegate = delegate;
+        this.statistics = statistics;
+        this.sqlStatistics = sqlStatistics;
+        this.borrowQueue = borrowQueue;
+        this.validation = validation;
+        this.borrowedAt = System.nanoTime();
+        this.trace = trace;
+        this.resultCache = resultCache;
+        this.buffer = coalescing == null ? null : new CoalescingStatement.Buffer(coalescing);
+    }
+
+    /**
+     * Wrap a pooled connection.
+     *
+     * @param delegate      the pooled connection.
+     * @param statistics    the statistics to record the hold time into.
+     * @param sqlStatistics the statistics to record statement executions into, <code>null</code> if disabled.
+     * @param borrowQueue   the queue to signal when the connection is given back, <code>null</code> if none.
+     * @param validation    the throttle to tell when the connection is given back, <code>null</code> if none.
+     * @param trace         the leak detection trace of the connection, <code>null</code> if not tracked.
+     * @param resultCache   the cache to serve the allow-listed queries from, <code>null</code> if disabled.
+     * @param coalescing    the batch coalescing settings and statistics, <code>null</code> if disabled.
+     * @return a {@link DelegatingConnection} forwarding to a proxy for the connection.
+     */
+    static Connection wrap(Connection delegate, PoolStatistics statistics, SqlStatistics sqlStatistics,
+                           BorrowQueue borrowQueue, ValidationThrottle validation, LeakDetector.Trace trace,
+                           ResultCache resultCache, BatchCoalescing coalescing) {
+        final Connection proxy = (Connection) Proxy.newProxyInstance(
+                TrackedConnection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new TrackedConnection(delegate, statistics, sqlStatistics, borrowQueue, validation, trace, resultCache,
+                                      coalescing));
+        return new Guard(proxy, delegate);
+    }
+
+    /**
+     * Get the pooled connection.
+     *
+     * @return the connection this handler delegates to.
+     */
+    Connection getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Give the connection back to the pool, recording the hold time and signaling the borrow queue, the validation
+     * throttle and the leak detector the first time it is called.
+     *
+     * @throws Throwable if the pooled connection could not be closed.
+     */
+    private void close() throws Throwable {
+        final boolean first = RELEASED.compareAndSet(this, 0, 1);
+        if (first) {
+            statistics.returned(System.nanoTime() - borrowedAt);
+            if (validation != null) {
+                validation.used(delegate);
+            }
+            if (trace != null) {
+                trace.release();
+            }
+        }
+        try {
+            delegate.close();
+        } finally {
+            if (first && borrowQueue != null) {
+                borrowQueue.released();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final String name = method.getName();
+        if (args == null) {
+            if ("close".equals(name)) {
+                try {
+                    if (buffer != null) {
+                        buffer.flush(BatchCoalescing.Flush.OTHER);
+                    }
+                } finally {
+                    close();
+                }
+                return null;
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name)) {
+                return delegate.toString();
+            }
+        } else if ("equals".equals(name) && args.length == 1) {
+            return proxy == args[0];
+        }
+        if (buffer != null && buffer.pending != null) {
+            if ("rollback".equals(name) && args == null) {
+                buffer.discard();
+            } else if (!COALESCING_SAFE_METHODS.contains(name)) {
+                buffer.flush("commit".equals(name) || "setAutoCommit".equals(name) ? BatchCoalescing.Flush.COMMIT
+                                                                                     : BatchCoalescing.Flush.OTHER);
+            }
+        }
+        final Object result;
+        try {
+            result = method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+        Object statement = result;
+        if (sqlStatistics != null && result instanceof Statement) {
+            final String preparedSql = "createStatement".equals(name) ? null : (String) args[0];
+            statement = TrackedStatement.wrap(method.getReturnType(), (Statement) result, (Connection) proxy,
+                                              sqlStatistics, preparedSql);
+        }
+        if (resultCache != null && "prepareStatement".equals(name) && args.length == 1
+            && resultCache.isCached((String) args[0])) {
+            statement = CachingStatement.wrap(method.getReturnType(), (PreparedStatement) statement, (Connection) proxy,
+                                              resultCache, (String) args[0]);
+        }
+        if (buffer != null && result instanceof Statement) {
+            return CoalescingStatement.wrap(method.getReturnType(), (Statement) statement, (Connection) proxy, buffer,
+                                            "prepareStatement".equals(name) && args.length == 1);
+        }
+        return statement;
+    }
+
+    /**
+     * The connection handed out to the application, forwarding everything to the proxy.
+     * <p/>
+     * <p>Its delegates are the ones of the pooled connection, which only exposes them when
+     * <code>accessToUnderlyingConnectionAllowed</code> is set.</p>
+     */
+    private static class Guard extends DelegatingConnection {
+
+        /**
+         * The pooled connection.
+         */
+        private final Connection pooled;
+
+        /**
+         * Build a new {@link Guard}.
+         *
+         * @param proxy  the proxy to forward to.
+         * @param pooled the pooled connection.
+         */
+        Guard(Connection proxy, Connection pooled) {
+            super(proxy);
+            this.pooled = pooled;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Connection getDelegate() {
+            return pooled instanceof DelegatingConnection ? ((DelegatingConnection) pooled).getDelegate() : null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Connection getInnermostDelegate() {
+            return pooled instanceof DelegatingConnection ? ((DelegatingConnection) pooled).getInnermostDelegate()
+                                                          : null;
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * <p>Describes the pooled connection, without querying the database metadata.</p>
+         */
+        @Override
+        public String toString() {
+            return pooled.toString();
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * <p>Overridden with the generic signature of {@link Connection#getTypeMap()}.</p>
+         */
+        @Override
+        public Map<String, Class<?>> getTypeMap() throws SQLException {
+            checkOpen();
+            try {
+                return _conn.getTypeMap();
+            } catch (SQLException e) {
+                handleException(e);
+                return null;
+            }
+        }
+    }
+}
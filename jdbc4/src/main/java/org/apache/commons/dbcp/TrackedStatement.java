@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+
+/**
+ * Handler for the {@link Statement}, {@link java.sql.PreparedStatement} and {@link java.sql.CallableStatement} proxies
+ * created by {@link TrackedConnection} when SQL statistics are enabled.
+ * <p/>
+ * <p>Times every <code>execute*</code> call and records it in {@link SqlStatistics} under the fingerprint of the
+ * executed SQL. The fingerprint of prepared statements is computed once, when they are prepared.</p>
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+class TrackedStatement implements InvocationHandler {
+
+    /**
+     * The actual statement.
+     */
+    private final Statement delegate;
+
+    /**
+     * The connection proxy the statement was created from.
+     */
+    private final Connection connection;
+
+    /**
+     * The statistics to record executions into.
+     */
+    private final SqlStatistics sqlStatistics;
+
+    /**
+     * The fingerprint of the prepared SQL, <code>null</code> for plain statements.
+     */
+    private final String preparedFingerprint;
+
+    /**
+     * The fingerprint of the first SQL added to the current batch of a plain statement.
+     */
+    private String batchFingerprint;
+
+    /**
+     * Build a new {@link TrackedStatement}.
+     *
+     * @param delegate      the actual statement.
+     * @param connection    the connection proxy the statement was created from.
+     * @param sqlStatistics the statistics to record executions into.
+     * @param preparedSql   the prepared SQL, <code>null</code> for plain statements.
+     */
+    private TrackedStatement(Statement delegate, Connection connection, SqlStatistics sqlStatistics, String preparedSql) {
+        this.delegate = delegate;
+        this.connection = connection;
+        this.sqlStatistics = sqlStatistics;
+        this.preparedFingerprint = preparedSql != null ? SqlStatistics.fingerprint(preparedSql) : null;
+    }
+
+    /**
+     * Wrap a statement.
+     *
+     * @param type          the statement interface to proxy.
+     * @param delegate      the actual statement.
+     * @param connection    the connection proxy the statement was created from.
+     * @param sqlStatistics the statistics to record executions into.
+     * @param preparedSql   the prepared SQL, <code>null</code> for plain statements.
+     * @return a proxy for the statement.
+     */
+    static Statement wrap(Class<?> type, Statement delegate, Connection connection, SqlStatistics sqlStatistics, String preparedSql) {
+        return (Statement) Proxy.newProxyInstance(TrackedStatement.class.getClassLoader(),
+                                                  new Class<?>[]{type},
+                                                  new TrackedStatement(delegate, connection, sqlStatistics, preparedSql));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final String name = method.getName();
+        if (name.startsWith("execute")) {
+            final String fingerprint;
+            if (args != null && args.length > 0 && args[0] instanceof String) {
+                fingerprint = SqlStatistics.fingerprint((String) args[0]);
+            } else if (preparedFingerprint != null) {
+                fingerprint = preparedFingerprint;
+            } else {
+                fingerprint = batchFingerprint;
+                batchFingerprint = null;
+            }
+            final long start = System.nanoTime();
+            try {
+                return invokeDelegate(method, args);
+            } finally {
+                if (fingerprint != null) {
+                    sqlStatistics.record(fingerprint, System.nanoTime() - start);
+                }
+            }
+        } else if ("addBatch".equals(name) && args != null && args.length == 1 && batchFingerprint == null) {
+            batchFingerprint = SqlStatistics.fingerprint((String) args[0]);
+        } else if ("clearBatch".equals(name)) {
+            batchFingerprint = null;
+        } else if ("getConnection".equals(name)) {
+            return connection;
+        } else if (args == null && "hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        } else if (args != null && args.length == 1 && "equals".equals(name)) {
+            return proxy == args[0];
+        }
+        return invokeDelegate(method, args);
+    }
+
+    /**
+     * Invoke a method on the actual statement.
+     *
+     * @param method the method.
+     * @param args   the arguments.
+     * @return the result of the method.
+     * @throws Throwable the exception thrown by the method.
+     */
+    private Object invokeDelegate(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
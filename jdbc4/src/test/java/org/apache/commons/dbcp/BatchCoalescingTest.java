@@ -0,0 +1,260 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for {@link BatchCoalescing}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class BatchCoalescingTest {
+
+    /**
+     * The coalesced update.
+     */
+    private static final String SQL = "UPDATE account SET balance = balance + 1 WHERE id = ?";
+
+    /**
+     * Create a datasource backed by the stub driver.
+     *
+     * @param batchSize the batch size, <code>null</code> to leave coalescing disabled.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(String batchSize) throws Exception {
+        if (batchSize == null) {
+            return StubDriver.createDataSource();
+        }
+        return StubDriver.createDataSource(ManagedBasicDataSourceFactory.PROP_BATCHCOALESCINGSIZE, batchSize);
+    }
+
+    /**
+     * Execute the update a number of times.
+     *
+     * @param statement the prepared update.
+     * @param count     the number of executions.
+     * @throws Exception should not happen.
+     */
+    private static void update(PreparedStatement statement, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            statement.setString(1, "id" + i);
+            assertEquals(statement.executeUpdate(), BatchCoalescing.PROVISIONAL_UPDATE_COUNT);
+        }
+    }
+
+    /**
+     * Assert updates are executed one by one when coalescing is disabled.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testDisabled() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(null);
+        try {
+            assertFalse(dataSource.getBatchCoalescing().isEnabled());
+            final long updates = StubDriver.getUpdateCount();
+            final Connection connection = dataSource.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                update(connection.prepareStatement(SQL), 3);
+                assertEquals(StubDriver.getUpdateCount() - updates, 3L);
+                connection.commit();
+            } finally {
+                connection.close();
+            }
+            assertEquals(dataSource.getBatchCoalescing().getCoalescedCount(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert updates are executed one by one in auto-commit mode.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testAutoCommit() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource("10");
+        try {
+            final long updates = StubDriver.getUpdateCount();
+            final Connection connection = dataSource.getConnection();
+            try {
+                update(connection.prepareStatement(SQL), 3);
+                assertEquals(StubDriver.getUpdateCount() - updates, 3L);
+            } finally {
+                connection.close();
+            }
+            assertEquals(dataSource.getBatchCoalescing().getCoalescedCount(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert updates within a transaction are sent in batches when full and on commit.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testSizeAndCommit() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource("3");
+        final BatchCoalescing coalescing = dataSource.getBatchCoalescing();
+        try {
+            final long updates = StubDriver.getUpdateCount();
+            final Connection connection = dataSource.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                final PreparedStatement statement = connection.prepareStatement(SQL);
+                update(statement, 7);
+                assertEquals(StubDriver.getUpdateCount() - updates, 2L);
+                assertEquals(coalescing.getSizeFlushCount(), 2L);
+                assertEquals(connection.getAutoCommit(), false);
+                assertEquals(StubDriver.getUpdateCount() - updates, 2L);
+                connection.commit();
+                assertEquals(StubDriver.getUpdateCount() - updates, 3L);
+                statement.close();
+            } finally {
+                connection.close();
+            }
+            assertEquals(coalescing.getCoalescedCount(), 7L);
+            assertEquals(coalescing.getBatchCount(), 3L);
+            assertEquals(coalescing.getCommitFlushCount(), 1L);
+            assertEquals(coalescing.getCoalescingRatio(), 7d / 3);
+            assertEquals(coalescing.getMismatchCount(), 0L);
+            coalescing.reset();
+            assertEquals(coalescing.getBatchCount(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert buffered updates are sent before another statement is executed or results are read, dropped on rollback,
+     * and sent when the connection is closed.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testFlushReasons() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource("100");
+        final BatchCoalescing coalescing = dataSource.getBatchCoalescing();
+        try {
+            final Connection connection = dataSource.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                final PreparedStatement statement = connection.prepareStatement(SQL);
+                final PreparedStatement other = connection.prepareStatement("DELETE FROM account WHERE id = ?");
+
+                update(statement, 2);
+                update(other, 2);
+                assertEquals(coalescing.getSqlFlushCount(), 1L);
+
+                connection.createStatement().executeQuery("SELECT 1").close();
+                assertEquals(coalescing.getReadFlushCount(), 1L);
+
+                update(statement, 2);
+                connection.rollback();
+                assertEquals(coalescing.getDiscardedCount(), 2L);
+                assertEquals(coalescing.getBatchCount(), 2L);
+
+                update(statement, 2);
+            } finally {
+                connection.close();
+            }
+            assertEquals(coalescing.getOtherFlushCount(), 1L);
+            assertEquals(coalescing.getCoalescedCount(), 8L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert unexpected update counts fail the flushing call, unless strict update counts are disabled.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testStrictUpdateCounts() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource("10");
+        final BatchCoalescing coalescing = dataSource.getBatchCoalescing();
+        try {
+            final Connection connection = dataSource.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                final PreparedStatement statement = connection.prepareStatement(SQL);
+                update(statement, 1);
+                statement.setInt(1, 0);
+                assertEquals(statement.executeUpdate(), BatchCoalescing.PROVISIONAL_UPDATE_COUNT);
+                try {
+                    connection.commit();
+                    fail("the batch should have failed");
+                } catch (BatchUpdateException e) {
+                    assertEquals(e.getUpdateCounts(), new int[]{1, 0});
+                }
+                assertEquals(coalescing.getMismatchCount(), 1L);
+
+                coalescing.setStrictUpdateCounts(false);
+                statement.setInt(1, 0);
+                statement.executeUpdate();
+                connection.commit();
+                assertEquals(coalescing.getMismatchCount(), 2L);
+            } finally {
+                connection.close();
+            }
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the coalescing is exposed through JMX.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testMBean() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource("2");
+        try {
+            final Connection connection = dataSource.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                update(connection.prepareStatement(SQL), 2);
+            } finally {
+                connection.close();
+            }
+            final ObjectName objectName = new ObjectName(dataSource.getMBeanName());
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "BatchCoalescing.BatchSize"), 2);
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "BatchCoalescing.SizeFlushCount"), 1L);
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "BatchCoalescing.CoalescingRatio"), 2d);
+        } finally {
+            dataSource.close();
+        }
+    }
+}
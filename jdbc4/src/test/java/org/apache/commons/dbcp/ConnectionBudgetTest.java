@@ -0,0 +1,289 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for {@link ConnectionBudget}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class ConnectionBudgetTest {
+
+    /**
+     * Create a datasource backed by the stub driver, drawing on a budget.
+     *
+     * @param budget         the name of the budget.
+     * @param capacity       the capacity of the budget.
+     * @param minConnections the number of connections reserved for the datasource.
+     * @param maxConnections the maximum number of connections of the datasource.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(String budget, int capacity, int minConnections,
+                                                           int maxConnections) throws Exception {
+        return StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "4",
+                ManagedBasicDataSourceFactory.PROP_MAXWAIT, "50",
+                ManagedBasicDataSourceFactory.PROP_CONNECTIONBUDGET, budget,
+                ManagedBasicDataSourceFactory.PROP_CONNECTIONBUDGETCAPACITY, String.valueOf(capacity),
+                ManagedBasicDataSourceFactory.PROP_BUDGETMINCONNECTIONS, String.valueOf(minConnections),
+                ManagedBasicDataSourceFactory.PROP_BUDGETMAXCONNECTIONS, String.valueOf(maxConnections));
+    }
+
+    /**
+     * Assert the connections of all the datasources are bounded by the capacity, and given back when closed.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testCapacity() throws Exception {
+        final String name = UUID.randomUUID().toString();
+        final ManagedBasicDataSource first = createDataSource(name, 3, 0, -1);
+        final ManagedBasicDataSource second = createDataSource(name, 3, 0, -1);
+        try {
+            final Connection a = first.getConnection();
+            final Connection b = first.getConnection();
+            final Connection c = second.getConnection();
+            final ConnectionBudget budget = ConnectionBudget.get(name);
+            assertSame(first.getBudget().getBudget(), budget);
+            assertEquals(budget.getConnections(), 3);
+            assertEquals(budget.getAvailable(), 0);
+            try {
+                second.getConnection();
+                fail("the budget is exhausted");
+            } catch (SQLException e) {
+                // expected
+            }
+            assertEquals(budget.getDeniedCount(), 1L);
+            assertEquals(second.getBudget().getDeniedCount(), 1L);
+
+            c.close();
+            assertEquals(budget.getConnections(), 3);
+            a.close();
+            b.close();
+            first.close();
+            assertEquals(budget.getConnections(), 1);
+            assertEquals(budget.getDataSources(), 1);
+            assertEquals(budget.getPeakConnections(), 3);
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    /**
+     * Assert the connections reserved for a datasource cannot be taken by another one, and that a datasource cannot take
+     * more than its maximum.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testMinMax() throws Exception {
+        final String name = UUID.randomUUID().toString();
+        final ManagedBasicDataSource reserved = createDataSource(name, 3, 2, -1);
+        final ManagedBasicDataSource capped = createDataSource(name, 3, 0, 1);
+        try {
+            reserved.getConnection().close();
+            final ConnectionBudget budget = ConnectionBudget.get(name);
+            assertEquals(budget.getReserved(), 1);
+            assertEquals(budget.getAvailable(), 1);
+
+            final Connection connection = capped.getConnection();
+            try {
+                capped.getConnection();
+                fail("the datasource is at its maximum");
+            } catch (SQLException e) {
+                // expected
+            }
+            connection.close();
+
+            capped.getBudget().setMaxConnections(-1);
+            final Connection other = capped.getConnection();
+            try {
+                capped.getConnection();
+                fail("the remaining connection is reserved");
+            } catch (SQLException e) {
+                // expected
+            }
+            final Connection first = reserved.getConnection();
+            final Connection second = reserved.getConnection();
+            assertEquals(budget.getConnections(), 3);
+            assertEquals(reserved.getBudget().getConnections(), 2);
+            first.close();
+            second.close();
+            other.close();
+        } finally {
+            reserved.close();
+            capped.close();
+        }
+    }
+
+    /**
+     * Assert idle connections of a datasource above its minimum are closed to make room for another one.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testReclaim() throws Exception {
+        final String name = UUID.randomUUID().toString();
+        final ManagedBasicDataSource idle = createDataSource(name, 2, 1, -1);
+        final ManagedBasicDataSource busy = createDataSource(name, 2, 0, -1);
+        try {
+            final Connection a = idle.getConnection();
+            final Connection b = idle.getConnection();
+            a.close();
+            b.close();
+            assertEquals(idle.getNumIdle(), 2);
+
+            final Connection connection = busy.getConnection();
+            assertEquals(idle.getNumIdle(), 1);
+            assertEquals(idle.getBudget().getReclaimedCount(), 1L);
+            try {
+                busy.getConnection();
+                fail("the remaining connection is reserved");
+            } catch (SQLException e) {
+                // expected
+            }
+            assertEquals(idle.getNumIdle(), 1);
+            connection.close();
+
+            final ConnectionBudget budget = ConnectionBudget.get(name);
+            assertEquals(budget.getReclaimedCount(), 1L);
+            assertEquals(budget.getWaitCount(), 2L);
+        } finally {
+            idle.close();
+            busy.close();
+        }
+    }
+
+    /**
+     * Assert idle connections are reclaimed without being borrowed, activated or validated.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testReclaimWithoutBorrow() throws Exception {
+        final String name = UUID.randomUUID().toString();
+        final ManagedBasicDataSource idle = createDataSource(name, 2, 0, -1);
+        final ManagedBasicDataSource busy = createDataSource(name, 2, 0, -1);
+        idle.setValidationQuery("SELECT 1");
+        idle.setTestOnBorrow(true);
+        try {
+            final Connection a = idle.getConnection();
+            final Connection b = idle.getConnection();
+            a.close();
+            b.close();
+            final long borrowed = idle.getBorrowedCount();
+
+            final long queries = StubDriver.getQueryCount();
+            final Connection connection = busy.getConnection();
+            assertEquals(StubDriver.getQueryCount(), queries);
+            assertEquals(idle.getNumIdle(), 1);
+            assertEquals(idle.getNumActive(), 0);
+            assertEquals(idle.getBorrowedCount(), borrowed);
+            assertEquals(idle.getBudget().getConnections(), 1);
+            assertEquals(idle.getBudget().getReclaimedCount(), 1L);
+            connection.close();
+
+            idle.getConnection().close();
+            assertEquals(idle.getNumIdle(), 1);
+        } finally {
+            idle.close();
+            busy.close();
+        }
+    }
+
+    /**
+     * Assert a datasource whose pool could not be created does not keep drawing on the budget.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testCreationFailure() throws Exception {
+        final String name = UUID.randomUUID().toString();
+        final ManagedBasicDataSource dataSource = createDataSource(name, 2, 2, -1);
+        final ManagedBasicDataSource other = createDataSource(name, 2, 0, -1);
+        dataSource.setValidationQuery(StubDriver.FAILING_QUERY);
+        StubDriver.setFailing(true);
+        try {
+            try {
+                dataSource.getConnection();
+                fail("the validation query fails");
+            } catch (SQLException e) {
+                // expected
+            }
+            StubDriver.setFailing(false);
+            final ConnectionBudget budget = ConnectionBudget.get(name);
+            assertEquals(budget.getDataSources(), 0);
+            assertEquals(budget.getConnections(), 0);
+
+            final Connection a = other.getConnection();
+            final Connection b = other.getConnection();
+            assertEquals(budget.getConnections(), 2);
+            a.close();
+            b.close();
+        } finally {
+            StubDriver.setFailing(false);
+            dataSource.close();
+            other.close();
+        }
+    }
+
+    /**
+     * Assert the budget is exposed as a MBean listing the top consumers.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testMBean() throws Exception {
+        final String name = UUID.randomUUID().toString();
+        final ManagedBasicDataSource dataSource = createDataSource(name, 10, 1, 5);
+        try {
+            final Connection connection = dataSource.getConnection();
+            final ObjectName objectName = new ObjectName(ConnectionBudget.MBEAN_NAME_PREFIX + name);
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "Connections"), 1);
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "Capacity"), 10);
+
+            final TabularData top = (TabularData) ManagementFactory.getPlatformMBeanServer()
+                                                                   .getAttribute(objectName, "TopConsumers");
+            assertEquals(top.size(), 1);
+            final CompositeData row = top.get(new Object[]{dataSource.getMBeanName()});
+            assertEquals(row.get("connections"), 1);
+            assertEquals(row.get("minConnections"), 1);
+            assertEquals(row.get("maxConnections"), 5);
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+            connection.close();
+        } finally {
+            dataSource.close();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for {@link ConnectionFuture} and {@link ManagedBasicDataSource#getConnectionAsync(long, TimeUnit)}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class ConnectionFutureTest {
+
+    /**
+     * Create a datasource backed by the stub driver with concurrent borrow enabled.
+     *
+     * @param maxActive     the maximum number of active connections.
+     * @param queueCapacity the maximum number of queued asynchronous requests.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(int maxActive, int queueCapacity) throws Exception {
+        return StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, String.valueOf(maxActive),
+                ManagedBasicDataSourceFactory.PROP_MAXIDLE, String.valueOf(maxActive),
+                ManagedBasicDataSourceFactory.PROP_CONCURRENTBORROW, "true",
+                ManagedBasicDataSourceFactory.PROP_ASYNCQUEUECAPACITY, String.valueOf(queueCapacity));
+    }
+
+    /**
+     * Assert the cause of the failure of a future.
+     *
+     * @param future the failed future.
+     * @return the {@link SQLException} the future failed with.
+     * @throws Exception should not happen.
+     */
+    private static SQLException getFailure(ConnectionFuture future) throws Exception {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("the future should have failed");
+            return null;
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+            return (SQLException) e.getCause();
+        }
+    }
+
+    /**
+     * Assert a request is completed on the calling thread when a connection is available.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testImmediate() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(2, 10);
+        try {
+            final ConnectionFuture future = dataSource.getConnectionAsync(1, TimeUnit.SECONDS);
+            assertTrue(future.isDone());
+            future.get().close();
+            assertEquals(dataSource.getBorrowedCount(), 1L);
+            assertEquals(dataSource.getReturnedCount(), 1L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert queued requests are completed in order as connections are given back, and run their listeners.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testFifo() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(1, 10);
+        try {
+            final Connection held = dataSource.getConnection();
+            final ConnectionFuture first = dataSource.getConnectionAsync(0, TimeUnit.SECONDS);
+            final ConnectionFuture second = dataSource.getConnectionAsync(0, TimeUnit.SECONDS);
+            final AtomicInteger completed = new AtomicInteger();
+            first.addListener(new Runnable() {
+                public void run() {
+                    completed.incrementAndGet();
+                }
+            });
+            assertFalse(first.isDone());
+            assertEquals(dataSource.getAsyncQueueDepth(), 2);
+
+            held.close();
+            assertTrue(first.isDone());
+            assertFalse(second.isDone());
+            assertEquals(completed.get(), 1);
+            assertEquals(dataSource.getAsyncQueueDepth(), 1);
+
+            first.get().close();
+            assertTrue(second.isDone());
+            assertEquals(dataSource.getAsyncQueueDepth(), 0);
+            second.get().close();
+            assertEquals(dataSource.getBorrowedCount(), 3L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert a future a connection is being handed to is not done, and does not run its listeners, before the
+     * connection is published.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testClaimed() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(1, 10);
+        try {
+            final Connection held = dataSource.getConnection();
+            final ConnectionFuture future = new ConnectionFuture(dataSource.borrowQueue, null);
+            assertTrue(future.claim());
+            final AtomicInteger completed = new AtomicInteger();
+            future.addListener(new Runnable() {
+                public void run() {
+                    completed.incrementAndGet();
+                }
+            });
+            assertFalse(future.isDone());
+            assertEquals(completed.get(), 0);
+
+            future.complete(held);
+            assertTrue(future.isDone());
+            assertEquals(completed.get(), 1);
+            assertSame(future.get(), held);
+            held.close();
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert a listener throwing an exception neither prevents the other listeners from running nor breaks the thread
+     * giving the connection back, and the next queued request is still served.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testThrowingListener() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(1, 10);
+        try {
+            final Connection held = dataSource.getConnection();
+            final ConnectionFuture first = dataSource.getConnectionAsync(0, TimeUnit.SECONDS);
+            final ConnectionFuture second = dataSource.getConnectionAsync(0, TimeUnit.SECONDS);
+            final AtomicInteger completed = new AtomicInteger();
+            first.addListener(new Runnable() {
+                public void run() {
+                    throw new IllegalStateException("listener failure");
+                }
+            });
+            first.addListener(new Runnable() {
+                public void run() {
+                    completed.incrementAndGet();
+                }
+            });
+
+            held.close();
+            assertTrue(held.isClosed());
+            assertEquals(completed.get(), 1);
+            assertEquals(dataSource.getBorrowedCount(), 2L);
+
+            first.get().close();
+            assertTrue(second.isDone());
+            second.get().close();
+            assertEquals(dataSource.getBorrowedCount(), 3L);
+            assertEquals(dataSource.getNumActive(), 0);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert requests above the queue capacity fail immediately and are counted.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testRejected() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(1, 1);
+        try {
+            final Connection held = dataSource.getConnection();
+            final ConnectionFuture queued = dataSource.getConnectionAsync(0, TimeUnit.SECONDS);
+            final ConnectionFuture rejected = dataSource.getConnectionAsync(0, TimeUnit.SECONDS);
+            assertTrue(rejected.isDone());
+            getFailure(rejected);
+            assertEquals(dataSource.getAsyncRejectedCount(), 1L);
+            assertFalse(queued.isDone());
+            held.close();
+            queued.get().close();
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert a request that waits too long fails like a timeout of the pool, and leaves the queue.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(1, 10);
+        try {
+            final Connection held = dataSource.getConnection();
+            final ConnectionFuture future = dataSource.getConnectionAsync(50, TimeUnit.MILLISECONDS);
+            assertTrue(getFailure(future).getCause() instanceof NoSuchElementException);
+            assertEquals(dataSource.getAsyncTimeoutCount(), 1L);
+            assertEquals(dataSource.getAsyncQueueDepth(), 0);
+            assertEquals(dataSource.getFailedBorrowCount(), 1L);
+            held.close();
+            assertEquals(dataSource.getNumIdle(), 1);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert a cancelled request leaves the queue and does not take the next connection.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(1, 10);
+        try {
+            final Connection held = dataSource.getConnection();
+            final ConnectionFuture future = dataSource.getConnectionAsync(0, TimeUnit.SECONDS);
+            assertTrue(future.cancel(false));
+            assertTrue(future.isCancelled());
+            assertEquals(dataSource.getAsyncQueueDepth(), 0);
+            held.close();
+            assertEquals(dataSource.getNumIdle(), 1);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert pending requests fail when the datasource is closed.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testClose() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(1, 10);
+        final Connection held = dataSource.getConnection();
+        final ConnectionFuture future = dataSource.getConnectionAsync(0, TimeUnit.SECONDS);
+        dataSource.close();
+        getFailure(future);
+        held.close();
+    }
+
+    /**
+     * Assert the asynchronous API requires concurrent borrow.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testRequiresConcurrentBorrow() throws Exception {
+        final ManagedBasicDataSource dataSource = StubDriver.createDataSource();
+        try {
+            dataSource.getConnectionAsync();
+        } finally {
+            dataSource.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Assert every value falls into a bucket whose upper bound is within the histogram precision.
+     */
+    @Test
+    public void testBucketBounds() {
+        int previousBucket = -1;
+        for (long value = 0; value < LatencyHistogram.MAX_VALUE; value = value < 1000 ? value + 1 : value + value / 7) {
+            final int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(bucket >= previousBucket, "buckets must be monotonic");
+            assertTrue(bucket < LatencyHistogram.BUCKETS);
+            final long highest = LatencyHistogram.highestValueOf(bucket);
+            assertTrue(highest >= value, "bucket upper bound must not be lower than the value");
+            assertTrue(highest - value <= value / LatencyHistogram.SUB_BUCKETS, "bucket too wide for " + value);
+            previousBucket = bucket;
+        }
+        assertEquals(LatencyHistogram.bucketOf(LatencyHistogram.MAX_VALUE), LatencyHistogram.BUCKETS - 1);
+    }
+
+    /**
+     * Data provider for {@link #testPercentile(double, long)}.
+     *
+     * @return an array of parameters to be passed to {@link #testPercentile(double, long)}.
+     */
+    @DataProvider(name = "testPercentileProvider")
+    public Object[][] testPercentileProvider() {
+        return new Object[][]{{50d, 5000L}, {90d, 9000L}, {99d, 9900L}, {99.9d, 9990L}, {100d, 10000L}};
+    }
+
+    /**
+     * Assert percentiles of a uniform distribution from 1 to 10000 milliseconds are accurate.
+     *
+     * @param percentile the percentile.
+     * @param expected   the exact value of the percentile, in milliseconds.
+     */
+    @Test(dataProvider = "testPercentileProvider")
+    public void testPercentile(double percentile, long expected) {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.recordMillis(i);
+        }
+        final double actual = histogram.getPercentileMicros(percentile) / 1000d;
+        assertTrue(Math.abs(actual - expected) <= expected * 0.035, "p" + percentile + " = " + actual);
+    }
+
+    /**
+     * Assert count, mean, max and reset.
+     */
+    @Test
+    public void testSummaryAndReset() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(histogram.getP99(), 0d);
+        histogram.recordNanos(1000000L);
+        histogram.recordNanos(3000000L);
+        histogram.recordNanos(-1L);
+        assertEquals(histogram.getCount(), 3L);
+        assertEquals(histogram.getMax(), 3d);
+        assertEquals(histogram.getMean(), 4d / 3, 0.001);
+        histogram.reset();
+        assertEquals(histogram.getCount(), 0L);
+        assertEquals(histogram.getMax(), 0d);
+        assertEquals(histogram.getP50(), 0d);
+    }
+
+    /**
+     * Assert percentiles over a window only account for the values recorded since the earlier copy of the counts.
+     */
+    @Test
+    public void testWindowedPercentile() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final long[] previous = new long[LatencyHistogram.BUCKETS];
+        final long[] current = new long[LatencyHistogram.BUCKETS];
+        for (int i = 0; i < 1000; i++) {
+            histogram.recordMillis(1000L);
+        }
+        histogram.copyCounts(previous);
+        histogram.copyCounts(current);
+        assertEquals(LatencyHistogram.getPercentileMicros(current, previous, 99d), 0L);
+
+        for (int i = 0; i < 100; i++) {
+            histogram.recordMillis(2L);
+        }
+        histogram.copyCounts(current);
+        final long p99 = LatencyHistogram.getPercentileMicros(current, previous, 99d);
+        assertTrue(Math.abs(p99 - 2000L) <= 2000L * 0.035, "windowed p99 = " + p99);
+
+        histogram.reset();
+        histogram.copyCounts(current);
+        assertEquals(LatencyHistogram.getPercentileMicros(current, previous, 99d), 0L);
+    }
+
+    /**
+     * Assert values are counted under the bounds above their bucket.
+     */
+    @Test
+    public void testCumulativeCounts() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(50000L);
+        histogram.recordMillis(2L);
+        histogram.recordMillis(2L);
+        histogram.recordMillis(20L);
+        final long[] counts = new long[4];
+        histogram.copyCumulativeCounts(new long[]{100L, 1000L, 5000L}, counts);
+        assertEquals(counts, new long[]{1L, 1L, 3L, 4L});
+    }
+}
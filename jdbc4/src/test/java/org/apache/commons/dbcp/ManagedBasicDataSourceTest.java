@@ -18,11 +18,35 @@ package org.apache.commons.dbcp;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 /**
  * Tests for {@link ManagedBasicDataSource}.
@@ -62,6 +86,54 @@ public class ManagedBasicDataSourceTest extends AbstractMBeanTest {
         assertTrue(getMBeanServerConnection().isRegistered(new ObjectName(testDataSource.getMBeanName())));
     }
 
+    /**
+     * Assert a datasource built with {@link ManagedBasicDataSource.MBeanExport#LAZY} registers its MBean when it is
+     * first used.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testLazyMBeanExport() throws Exception {
+        final Properties testDataSourceProperties = StubDriver.properties();
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_MBEANEXPORT, "lazy");
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(testDataSourceProperties);
+        final ObjectName objectName = new ObjectName(testDataSource.getMBeanName());
+        try {
+            assertFalse(testDataSource.isMBeanRegistered());
+            assertFalse(getMBeanServerConnection().isRegistered(objectName));
+            testDataSource.getConnection().close();
+            assertTrue(testDataSource.isMBeanRegistered());
+            assertEquals(getMBeanServerConnection().getAttribute(objectName, "BorrowedCount"), 1L);
+        } finally {
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert datasources built with {@link ManagedBasicDataSource.MBeanExport#BATCH} register their MBeans together.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testBatchMBeanExport() throws Exception {
+        final Properties testDataSourceProperties = new Properties();
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_MBEANEXPORT, "batch");
+        final List<ManagedBasicDataSource> dataSources = new ArrayList<ManagedBasicDataSource>();
+        try {
+            for (int i = 0; i < 10; i++) {
+                dataSources.add((ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(testDataSourceProperties));
+            }
+            ManagedBasicDataSource.registerPendingMBeans();
+            for (ManagedBasicDataSource dataSource : dataSources) {
+                assertTrue(getMBeanServerConnection().isRegistered(new ObjectName(dataSource.getMBeanName())));
+            }
+        } finally {
+            for (ManagedBasicDataSource dataSource : dataSources) {
+                dataSource.close();
+            }
+        }
+    }
+
     /**
      * Data provider for {@link #testAttributeExists(String)}.
      *
@@ -69,7 +141,41 @@ public class ManagedBasicDataSourceTest extends AbstractMBeanTest {
      */
     @DataProvider(name = "testAttributeExistsProvider")
     public Object[][] testAttributeExistsProvider() {
-        return new Object[][]{{"NumActive"}, {"NumIdle"}, {"MaxActive"}, {"MaxIdle"}, {"MinIdle"}, {"MaxWait"}, {"Url"}, {"Username"}};
+        return new Object[][]{{"NumActive"}, {"NumIdle"}, {"MaxActive"}, {"MaxIdle"}, {"MinIdle"}, {"MaxWait"}, {"Url"}, {"Username"},
+                              {"BorrowedCount"}, {"FailedBorrowCount"}, {"BorrowTimeoutCount"}, {"BorrowWait.Count"}, {"BorrowWait.Mean"}, {"BorrowWait.P50"},
+                              {"BorrowWait.P90"}, {"BorrowWait.P99"}, {"BorrowWait.P999"}, {"BorrowWait.Max"}, {"ReturnedCount"},
+                              {"HoldTime.Count"}, {"HoldTime.P99"}, {"HoldTime.Max"}, {"LongHoldCount"}, {"LongHoldThreshold"},
+                              {"SqlStatisticsEnabled"}, {"SqlStatisticsCapacity"}, {"TopSql"}, {"PoolStats"},
+                              {"BorrowWaitThreshold"}, {"NotificationInterval"}, {"ConnectionCreateTime.Count"},
+                              {"ConnectionCreateTime.Mean"}, {"AdaptiveSizing.Enabled"}, {"AdaptiveSizing.Override"},
+                              {"AdaptiveSizing.TargetWait"}, {"AdaptiveSizing.MaxActiveCeiling"}, {"AdaptiveSizing.Interval"},
+                              {"AdaptiveSizing.WindowWaitP99"}, {"AdaptiveSizing.Utilization"},
+                              {"AdaptiveSizing.LastDecision"}, {"AdaptiveSizing.AdjustmentCount"}, {"WarmUp.Concurrency"},
+                              {"WarmUp.Async"}, {"WarmUp.Target"}, {"WarmUp.Opened"}, {"WarmUp.Running"},
+                              {"WarmUp.Duration"}, {"WarmUp.LastError"}, {"StatementCache.Hits"},
+                              {"StatementCache.Misses"}, {"StatementCache.HitRatio"}, {"StatementCache.Evictions"},
+                              {"StatementCache.Cached"}, {"StatementCache.Capacity"}, {"ConcurrentBorrow"},
+                              {"BorrowWaiting"}, {"AsyncQueueDepth"}, {"AsyncQueueCapacity"}, {"AsyncRejectedCount"},
+                              {"AsyncTimeoutCount"}, {"Validation.Interval"}, {"Validation.ExecutedCount"},
+                              {"Validation.SkippedCount"}, {"Validation.FailedCount"}, {"Validation.Time.Count"},
+                              {"Validation.Time.P99"}, {"Eviction.Parallelism"}, {"Eviction.RunCount"},
+                              {"Eviction.LastRunDuration"}, {"Eviction.TestedCount"}, {"Eviction.EvictedCount"},
+                              {"Eviction.FailedCount"}, {"Eviction.RunTime.Count"}, {"LeakDetection.SampleRate"},
+                              {"LeakDetection.DeferredCapture"}, {"LeakDetection.TrackedCount"},
+                              {"LeakDetection.SampledCount"}, {"LeakDetection.LeakCount"},
+                              {"LeakDetection.ReportCapacity"}, {"LeakReport"}, {"Budget.Name"},
+                              {"Budget.MinConnections"}, {"Budget.MaxConnections"}, {"Budget.Connections"},
+                              {"Budget.ReclaimedCount"}, {"Budget.DeniedCount"}, {"History.Capacity"}, {"History.Size"},
+                              {"PoolHistory"}, {"ResultCache.Sql"}, {"ResultCache.Capacity"}, {"ResultCache.TimeToLive"},
+                              {"ResultCache.MaxMemory"}, {"ResultCache.Size"}, {"ResultCache.Memory"}, {"ResultCache.Hits"},
+                              {"ResultCache.Misses"}, {"ResultCache.HitRatio"}, {"ResultCache.Evictions"},
+                              {"ResultCache.Expirations"}, {"BatchCoalescing.BatchSize"},
+                              {"BatchCoalescing.StrictUpdateCounts"}, {"BatchCoalescing.CoalescedCount"},
+                              {"BatchCoalescing.BatchCount"}, {"BatchCoalescing.CoalescingRatio"},
+                              {"BatchCoalescing.SizeFlushCount"}, {"BatchCoalescing.SqlFlushCount"},
+                              {"BatchCoalescing.CommitFlushCount"}, {"BatchCoalescing.ReadFlushCount"},
+                              {"BatchCoalescing.OtherFlushCount"}, {"BatchCoalescing.MismatchCount"},
+                              {"BatchCoalescing.DiscardedCount"}};
     }
 
     /**
@@ -99,7 +205,12 @@ public class ManagedBasicDataSourceTest extends AbstractMBeanTest {
                 {ManagedBasicDataSourceFactory.PROP_MAXACTIVE, randomGenerator.nextInt(1000), "MaxActive", "getMaxActive"},
                 {ManagedBasicDataSourceFactory.PROP_MAXIDLE, randomGenerator.nextInt(1000), "MaxIdle", "getMaxIdle"},
                 {ManagedBasicDataSourceFactory.PROP_MINIDLE, randomGenerator.nextInt(1000), "MinIdle", "getMinIdle"},
-                {ManagedBasicDataSourceFactory.PROP_MAXWAIT, randomGenerator.nextLong(), "MaxWait", "getMaxWait"}
+                {ManagedBasicDataSourceFactory.PROP_MAXWAIT, randomGenerator.nextLong(), "MaxWait", "getMaxWait"},
+                {ManagedBasicDataSourceFactory.PROP_LONGHOLDTHRESHOLD, randomGenerator.nextLong(), "LongHoldThreshold", "getLongHoldThreshold"},
+                {ManagedBasicDataSourceFactory.PROP_SQLSTATISTICSENABLED, true, "SqlStatisticsEnabled", "isSqlStatisticsEnabled"},
+                {ManagedBasicDataSourceFactory.PROP_SQLSTATISTICSCAPACITY, 1 + randomGenerator.nextInt(1000), "SqlStatisticsCapacity", "getSqlStatisticsCapacity"},
+                {ManagedBasicDataSourceFactory.PROP_BORROWWAITTHRESHOLD, randomGenerator.nextLong(), "BorrowWaitThreshold", "getBorrowWaitThreshold"},
+                {ManagedBasicDataSourceFactory.PROP_NOTIFICATIONINTERVAL, (long) randomGenerator.nextInt(100000), "NotificationInterval", "getNotificationInterval"}
         };
     }
 
@@ -129,4 +240,544 @@ public class ManagedBasicDataSourceTest extends AbstractMBeanTest {
         // Check both values are equal.
         assertTrue((ManagedBasicDataSource.class.getMethod(attributeGetterName).invoke(testDataSource)).equals(attributeValue));
     }
+
+    /**
+     * Read all the MBean attributes of a datasource.
+     *
+     * @param mBeanServer    the MBean server to use.
+     * @param testDataSource the datasource.
+     * @throws Exception should not happen.
+     */
+    private void readAllAttributes(MBeanServer mBeanServer, ManagedBasicDataSource testDataSource) throws Exception {
+        final ObjectName objectName = new ObjectName(testDataSource.getMBeanName());
+        for (Object[] attribute : testAttributeExistsProvider()) {
+            mBeanServer.getAttribute(objectName, (String) attribute[0]);
+        }
+    }
+
+    /**
+     * Assert reading the MBean attributes and getting connections never wait on the datasource monitor, nor on
+     * borrowers blocked on an exhausted pool.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test(timeOut = 60000)
+    public void testAttributeReadsDoNotBlockOnDataSourceMonitor() throws Exception {
+
+        // Create a datasource with a single connection.
+        final Properties testDataSourceProperties = StubDriver.properties();
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "1");
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXWAIT, "-1");
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(testDataSourceProperties);
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+
+            // Exhaust the pool and have another thread wait for a connection.
+            final Connection connection = testDataSource.getConnection();
+            final Future<?> waiter = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    testDataSource.getConnection().close();
+                    return null;
+                }
+            });
+
+            // Have another thread hold the datasource monitor.
+            final CountDownLatch locked = new CountDownLatch(1);
+            final CountDownLatch unlock = new CountDownLatch(1);
+            executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    synchronized (testDataSource) {
+                        locked.countDown();
+                        unlock.await();
+                    }
+                    return null;
+                }
+            });
+            locked.await();
+
+            // Attributes can still be read.
+            executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    readAllAttributes(mBeanServer, testDataSource);
+                    return null;
+                }
+            }).get(10, TimeUnit.SECONDS);
+
+            // Connections can still be borrowed.
+            connection.close();
+            waiter.get(10, TimeUnit.SECONDS);
+            executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    testDataSource.getConnection().close();
+                    return null;
+                }
+            }).get(10, TimeUnit.SECONDS);
+
+            unlock.countDown();
+            assertEquals(testDataSource.getBorrowedCount(), 3L);
+        } finally {
+            executor.shutdownNow();
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert the active and idle gauges are read without the pool monitor, and follow the connections borrowed and given
+     * back.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test(timeOut = 60000)
+    public void testGaugesDoNotBlockOnPoolMonitor() throws Exception {
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(StubDriver.properties());
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final Connection first = testDataSource.getConnection();
+            testDataSource.getConnection().close();
+            assertEquals(testDataSource.getNumActive(), 1);
+            assertEquals(testDataSource.getNumIdle(), 1);
+
+            // Have another thread hold the pool monitor.
+            final Object pool = testDataSource.connectionPool;
+            final CountDownLatch locked = new CountDownLatch(1);
+            final CountDownLatch unlock = new CountDownLatch(1);
+            executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    synchronized (pool) {
+                        locked.countDown();
+                        unlock.await();
+                    }
+                    return null;
+                }
+            });
+            locked.await();
+
+            // The gauges can still be read.
+            executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    final ObjectName objectName = new ObjectName(testDataSource.getMBeanName());
+                    assertEquals(mBeanServer.getAttribute(objectName, "NumActive"), 1);
+                    assertEquals(mBeanServer.getAttribute(objectName, "NumIdle"), 1);
+                    assertEquals(((CompositeData) mBeanServer.getAttribute(objectName, "PoolStats")).get("NumActive"), 1);
+                    return null;
+                }
+            }).get(10, TimeUnit.SECONDS);
+            unlock.countDown();
+
+            first.close();
+            assertEquals(testDataSource.getNumActive(), 0);
+            assertEquals(testDataSource.getNumIdle(), 2);
+        } finally {
+            executor.shutdownNow();
+            testDataSource.close();
+        }
+        assertEquals(testDataSource.getNumIdle(), 0);
+    }
+
+    /**
+     * Assert connections removed as abandoned stop being counted active, and are not counted again when closed.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testGaugesWithRemoveAbandoned() throws Exception {
+        final Properties properties = StubDriver.properties();
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "3");
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_REMOVEABANDONED, "true");
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_REMOVEABANDONEDTIMEOUT, "1");
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(properties);
+        try {
+            final Connection abandoned = testDataSource.getConnection();
+            Thread.sleep(1100);
+            final Connection connection = testDataSource.getConnection();
+            assertEquals(testDataSource.getNumActive(), 1);
+            abandoned.close();
+            assertEquals(testDataSource.getNumActive(), 1);
+            connection.close();
+            assertEquals(testDataSource.getNumActive(), 0);
+            assertEquals(testDataSource.getNumIdle(), 1);
+        } finally {
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert concurrent MBean attribute reads do not prevent borrowers from making progress, and that statistics are
+     * consistent afterwards.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test(timeOut = 60000)
+    public void testConcurrentAttributeReadsAndBorrows() throws Exception {
+        final int borrowers = 4;
+        final int borrowsPerThread = 500;
+        final int readers = 4;
+
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(StubDriver.properties());
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ExecutorService executor = Executors.newFixedThreadPool(borrowers + readers);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        try {
+            final Future<?>[] readerFutures = new Future<?>[readers];
+            for (int i = 0; i < readers; i++) {
+                readerFutures[i] = executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        while (running.get()) {
+                            readAllAttributes(mBeanServer, testDataSource);
+                        }
+                        return null;
+                    }
+                });
+            }
+
+            final Future<?>[] borrowerFutures = new Future<?>[borrowers];
+            for (int i = 0; i < borrowers; i++) {
+                borrowerFutures[i] = executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        for (int j = 0; j < borrowsPerThread; j++) {
+                            testDataSource.getConnection().close();
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> future : borrowerFutures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+
+            running.set(false);
+            for (Future<?> future : readerFutures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+
+            final PoolStatisticsSnapshot statistics = testDataSource.getPoolStatistics();
+            assertEquals(statistics.getBorrowedCount(), (long) borrowers * borrowsPerThread);
+            assertEquals(statistics.getFailedBorrowCount(), 0L);
+            assertEquals(statistics.getNumActive(), 0);
+        } finally {
+            running.set(false);
+            executor.shutdownNow();
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert borrows are recorded in the borrow wait histogram, including the ones that time out, and that the
+     * histogram can be reset through the MBean.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testBorrowWaitHistogram() throws Exception {
+        final Properties testDataSourceProperties = StubDriver.properties();
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "1");
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXWAIT, "100");
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(testDataSourceProperties);
+        final ObjectName objectName = new ObjectName(testDataSource.getMBeanName());
+        try {
+            final Connection connection = testDataSource.getConnection();
+            try {
+                testDataSource.getConnection();
+                fail("pool should be exhausted");
+            } catch (SQLException e) {
+                // expected
+            }
+            connection.close();
+
+            assertEquals(getMBeanServerConnection().getAttribute(objectName, "BorrowWait.Count"), 2L);
+            assertTrue((Double) getMBeanServerConnection().getAttribute(objectName, "BorrowWait.Max") >= 100d);
+            assertEquals(testDataSource.getFailedBorrowCount(), 1L);
+            assertEquals(testDataSource.getBorrowTimeoutCount(), 1L);
+
+            getMBeanServerConnection().invoke(objectName, "BorrowWait.reset", new Object[0], new String[0]);
+            assertEquals(getMBeanServerConnection().getAttribute(objectName, "BorrowWait.Count"), 0L);
+        } finally {
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert a timeout reported by the pool is counted even when it was measured shorter than <code>maxWait</code>, as
+     * happens when the pool clock ticks coarser than {@link System#nanoTime()}.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testEarlyTimeout() throws Exception {
+        final Properties testDataSourceProperties = StubDriver.properties();
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXWAIT, "100");
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(testDataSourceProperties);
+        try {
+            final SQLException failure = new SQLException("Cannot get a connection");
+            failure.initCause(new NoSuchElementException(PoolNotifier.TIMEOUT_MESSAGE));
+            testDataSource.borrowFailed(failure, System.nanoTime());
+            assertEquals(testDataSource.getFailedBorrowCount(), 1L);
+            assertEquals(testDataSource.getBorrowTimeoutCount(), 1L);
+        } finally {
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert a borrow failing because a new connection could not be validated is not counted as a timeout, even when
+     * opening the connection took a good part of <code>maxWait</code>.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testValidationFailureIsNotTimeout() throws Exception {
+        final Properties testDataSourceProperties = StubDriver.properties();
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXWAIT, "200");
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_VALIDATIONQUERY, StubDriver.FAILING_QUERY);
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_TESTONBORROW, "true");
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_CONNECTIONPROPERTIES, StubDriver.CONNECT_DELAY + "=150");
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(testDataSourceProperties);
+        try {
+            testDataSource.getConnection().close();
+            StubDriver.setFailing(true);
+            try {
+                testDataSource.getConnection();
+                fail("the connection should not be validated");
+            } catch (SQLException e) {
+                assertTrue(e.getCause() instanceof NoSuchElementException);
+            } finally {
+                StubDriver.setFailing(false);
+            }
+            assertEquals(testDataSource.getFailedBorrowCount(), 1L);
+            assertEquals(testDataSource.getBorrowTimeoutCount(), 0L);
+        } finally {
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert statement executions are recorded per fingerprint when SQL statistics are enabled, and that they can be
+     * queried and reset through the MBean.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testSqlStatistics() throws Exception {
+        final Properties testDataSourceProperties = StubDriver.properties();
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_SQLSTATISTICSENABLED, "true");
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(testDataSourceProperties);
+        final ObjectName objectName = new ObjectName(testDataSource.getMBeanName());
+        try {
+            final Connection connection = testDataSource.getConnection();
+            final PreparedStatement preparedStatement = connection.prepareStatement("SELECT * FROM t WHERE id = ?");
+            assertTrue(preparedStatement.getConnection() == connection);
+            for (int i = 0; i < 3; i++) {
+                preparedStatement.setInt(1, i);
+                preparedStatement.executeQuery().close();
+            }
+            preparedStatement.close();
+            final Statement statement = connection.createStatement();
+            statement.execute("SELECT * FROM t WHERE id = 1");
+            statement.executeUpdate("UPDATE t SET a = 'b'");
+            statement.close();
+            connection.close();
+
+            final TabularData topSql = (TabularData) getMBeanServerConnection().getAttribute(objectName, "TopSql");
+            assertEquals(topSql.size(), 2);
+            assertEquals(topSql.get(new Object[]{"select * from t where id = ?"}).get("count"), 4L);
+            assertEquals(topSql.get(new Object[]{"update t set a = ?"}).get("count"), 1L);
+            final TabularData top1 = (TabularData) getMBeanServerConnection().invoke(objectName, "topSql", new Object[]{1}, new String[]{"int"});
+            assertEquals(top1.size(), 1);
+
+            getMBeanServerConnection().invoke(objectName, "resetSqlStatistics", new Object[0], new String[0]);
+            assertTrue(testDataSource.getTopSql().isEmpty());
+
+            testDataSource.setSqlStatisticsEnabled(false);
+            final Connection untracked = testDataSource.getConnection();
+            untracked.createStatement().execute("SELECT 1");
+            untracked.close();
+            assertTrue(testDataSource.getTopSql().isEmpty());
+        } finally {
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert the PoolStats attribute returns all the gauges and counters in one call.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testPoolStats() throws Exception {
+        final Properties testDataSourceProperties = StubDriver.properties();
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "5");
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(testDataSourceProperties);
+        try {
+            testDataSource.getConnection().close();
+            final Connection connection = testDataSource.getConnection();
+
+            final CompositeData poolStats = (CompositeData) getMBeanServerConnection().getAttribute(new ObjectName(testDataSource.getMBeanName()), "PoolStats");
+            assertEquals(poolStats.getCompositeType(), PoolStatisticsSnapshot.COMPOSITE_TYPE);
+            assertEquals(poolStats.get("NumActive"), 1);
+            assertEquals(poolStats.get("NumIdle"), 0);
+            assertEquals(poolStats.get("MaxActive"), 5);
+            assertEquals(poolStats.get("BorrowedCount"), 2L);
+            assertEquals(poolStats.get("ReturnedCount"), 1L);
+            assertTrue((Long) poolStats.get("Timestamp") > 0L);
+            connection.close();
+        } finally {
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert reading several attributes at once returns the same values as reading them one by one, whether they are
+     * served from a statistics snapshot or not, and skips unknown attributes.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testGetAttributes() throws Exception {
+        final Properties testDataSourceProperties = StubDriver.properties();
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_LONGHOLDTHRESHOLD, "1234");
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(testDataSourceProperties);
+        final ObjectName objectName = new ObjectName(testDataSource.getMBeanName());
+        try {
+            final Connection connection = testDataSource.getConnection();
+            final String[] names = {"NumActive", "Url", "BorrowedCount", "BorrowWait.Count", "LongHoldThreshold", "NoSuchAttribute"};
+            final AttributeList attributes = getMBeanServerConnection().getAttributes(objectName, names);
+            final Map<String, Object> values = new HashMap<String, Object>();
+            for (Object attribute : attributes) {
+                values.put(((Attribute) attribute).getName(), ((Attribute) attribute).getValue());
+            }
+            assertEquals(values.size(), names.length - 1);
+            for (int i = 0; i < names.length - 1; i++) {
+                assertEquals(values.get(names[i]), getMBeanServerConnection().getAttribute(objectName, names[i]), names[i]);
+            }
+            assertEquals(values.get("NumActive"), 1);
+            assertEquals(values.get("LongHoldThreshold"), 1234L);
+            connection.close();
+        } finally {
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Listener queuing the notifications it receives.
+     */
+    private static class QueuingListener implements NotificationListener {
+
+        /**
+         * The received notifications.
+         */
+        final BlockingQueue<Notification> notifications = new LinkedBlockingQueue<Notification>();
+
+        public void handleNotification(Notification notification, Object handback) {
+            notifications.add(notification);
+        }
+
+        /**
+         * Wait for a notification of a given type, discarding the others.
+         *
+         * @param type the notification type.
+         * @return the notification.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        Notification await(String type) throws InterruptedException {
+            Notification notification;
+            do {
+                notification = notifications.poll(10, TimeUnit.SECONDS);
+                assertTrue(notification != null, "no " + type + " notification received");
+            } while (!type.equals(notification.getType()));
+            return notification;
+        }
+    }
+
+    /**
+     * Assert the pool exhaustion, slow borrow and borrow timeout notifications are emitted, off the borrowing thread.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test(timeOut = 60000)
+    public void testNotifications() throws Exception {
+        final Properties testDataSourceProperties = StubDriver.properties();
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "1");
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXWAIT, "100");
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_BORROWWAITTHRESHOLD, "20");
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_NOTIFICATIONINTERVAL, "0");
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(testDataSourceProperties);
+        final ObjectName objectName = new ObjectName(testDataSource.getMBeanName());
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final QueuingListener listener = new QueuingListener();
+        mBeanServer.addNotificationListener(objectName, listener, null, null);
+        try {
+            final List<String> types = new ArrayList<String>();
+            for (MBeanNotificationInfo info : mBeanServer.getMBeanInfo(objectName).getNotifications()) {
+                types.addAll(Arrays.asList(info.getNotifTypes()));
+            }
+            assertTrue(types.contains(ManagedBasicDataSource.NOTIFICATION_POOL_EXHAUSTED));
+
+            final Connection connection = testDataSource.getConnection();
+            final Notification exhausted = listener.await(ManagedBasicDataSource.NOTIFICATION_POOL_EXHAUSTED);
+            assertEquals(exhausted.getSource(), objectName);
+            assertEquals(exhausted.getUserData(), 1L);
+
+            try {
+                testDataSource.getConnection();
+                fail("pool should be exhausted");
+            } catch (SQLException e) {
+                // expected
+            }
+            listener.await(ManagedBasicDataSource.NOTIFICATION_BORROW_TIMEOUT);
+
+            final Thread releaser = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                        connection.close();
+                    } catch (Exception e) {
+                        // the borrow below will time out
+                    }
+                }
+            };
+            releaser.start();
+            testDataSource.getConnection().close();
+            listener.await(ManagedBasicDataSource.NOTIFICATION_SLOW_BORROW);
+        } finally {
+            mBeanServer.removeNotificationListener(objectName, listener);
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert a storm of events is coalesced into a few notifications that account for all the events.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test(timeOut = 60000)
+    public void testNotificationsCoalesced() throws Exception {
+        final Properties testDataSourceProperties = StubDriver.properties();
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "1");
+        testDataSourceProperties.setProperty(ManagedBasicDataSourceFactory.PROP_NOTIFICATIONINTERVAL, "500");
+        final ManagedBasicDataSource testDataSource = (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(testDataSourceProperties);
+        final ObjectName objectName = new ObjectName(testDataSource.getMBeanName());
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final QueuingListener listener = new QueuingListener();
+        mBeanServer.addNotificationListener(objectName, listener, null, null);
+        try {
+            final int borrows = 1000;
+            for (int i = 0; i < borrows; i++) {
+                testDataSource.getConnection().close();
+            }
+            long notified = 0;
+            int notifications = 0;
+            while (notified < borrows) {
+                notified += (Long) listener.await(ManagedBasicDataSource.NOTIFICATION_POOL_EXHAUSTED).getUserData();
+                notifications++;
+            }
+            assertEquals(notified, borrows);
+            assertTrue(notifications < 10, notifications + " notifications for " + borrows + " events");
+        } finally {
+            mBeanServer.removeNotificationListener(objectName, listener);
+            testDataSource.close();
+        }
+    }
 }
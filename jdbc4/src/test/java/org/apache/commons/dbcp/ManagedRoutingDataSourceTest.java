@@ -0,0 +1,211 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for {@link ManagedRoutingDataSource}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class ManagedRoutingDataSourceTest {
+
+    /**
+     * Create a routing datasource backed by the stub driver.
+     *
+     * @param replicas the number of replicas.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedRoutingDataSource createDataSource(int replicas) throws Exception {
+        final StringBuilder replicaUrls = new StringBuilder();
+        for (int i = 0; i < replicas; i++) {
+            replicaUrls.append(i == 0 ? "" : ",").append(StubDriver.URL_PREFIX).append("replica").append(i);
+        }
+        return (ManagedRoutingDataSource) ManagedRoutingDataSourceFactory.createDataSource(StubDriver.properties(
+                ManagedRoutingDataSourceFactory.PROP_REPLICAURLS, replicaUrls.toString(),
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "2",
+                ManagedRoutingDataSourceFactory.REPLICA_PREFIX + ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "4"));
+    }
+
+    /**
+     * Assert the targets are configured from the properties and exposed as their own MBeans.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testTargets() throws Exception {
+        final ManagedRoutingDataSource dataSource = createDataSource(2);
+        try {
+            assertEquals(dataSource.getReplicas(), 2);
+            assertEquals(dataSource.getPrimary().getUrl(), StubDriver.URL_PREFIX + "test");
+            assertEquals(dataSource.getPrimary().getMaxActive(), 2);
+            assertEquals(dataSource.getReplica(1).getUrl(), StubDriver.URL_PREFIX + "replica1");
+            assertEquals(dataSource.getReplica(1).getMaxActive(), 4);
+
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final String[] names = dataSource.getTargetNames();
+            assertEquals(names.length, 3);
+            assertEquals(names[0], ManagedRoutingDataSource.getTargetMBeanName(dataSource.getMBeanName(), ManagedRoutingDataSource.PRIMARY));
+            for (String name : names) {
+                assertTrue(server.isRegistered(new ObjectName(name)));
+            }
+            assertEquals(server.getAttribute(new ObjectName(dataSource.getMBeanName()), "Replicas"), 2);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert reads go to the least loaded replica, and writes to the primary.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testLeastLoaded() throws Exception {
+        final ManagedRoutingDataSource dataSource = createDataSource(2);
+        try {
+            final Connection first = dataSource.getReadConnection();
+            final Connection second = dataSource.getReadConnection();
+            assertEquals(dataSource.getReplica(0).getNumActive(), 1);
+            assertEquals(dataSource.getReplica(1).getNumActive(), 1);
+
+            final Connection third = dataSource.getReadConnection();
+            final int busy = dataSource.getReplica(0).getNumActive() == 2 ? 0 : 1;
+            assertEquals(dataSource.getReplicaLoads()[busy], 0.5);
+            final Connection fourth = dataSource.getReadConnection();
+            assertEquals(dataSource.getReplica(1 - busy).getNumActive(), 2);
+            for (Connection connection : new Connection[]{first, second, third, fourth}) {
+                connection.close();
+            }
+            assertEquals(dataSource.getReplicaLoads()[busy], 0.0);
+
+            dataSource.getWriteConnection().close();
+            assertEquals(dataSource.getPrimary().getBorrowedCount(), 1L);
+            assertEquals(dataSource.getWriteCount(), 1L);
+            assertEquals(dataSource.getReadCount(), 4L);
+            assertEquals(dataSource.getReplicaReadCounts()[busy], 2L);
+            assertEquals(dataSource.getReplicaReadCounts()[1 - busy], 2L);
+
+            dataSource.resetRoutingCounts();
+            assertEquals(dataSource.getReadCount(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert connections marked read-only before their first use are routed to a replica, and that connections closed
+     * without being used borrow nothing.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testReadOnly() throws Exception {
+        final ManagedRoutingDataSource dataSource = createDataSource(1);
+        try {
+            Connection connection = dataSource.getConnection();
+            connection.setReadOnly(true);
+            assertTrue(connection.isReadOnly());
+            connection.close();
+            assertTrue(connection.isClosed());
+            assertEquals(dataSource.getReadCount() + dataSource.getWriteCount(), 0L);
+
+            connection = dataSource.getConnection();
+            connection.setReadOnly(true);
+            connection.createStatement().close();
+            assertTrue(connection.isReadOnly());
+            assertEquals(dataSource.getReplica(0).getNumActive(), 1);
+            connection.close();
+            assertEquals(dataSource.getReplica(0).getNumActive(), 0);
+
+            connection = dataSource.getConnection();
+            assertFalse(connection.isReadOnly());
+            connection.createStatement().close();
+            assertEquals(dataSource.getPrimary().getNumActive(), 1);
+            connection.close();
+
+            assertEquals(dataSource.getReplicaReadCounts()[0], 1L);
+            assertEquals(dataSource.getWriteCount(), 1L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert connections routed to a replica cannot be made writable, so writes never reach a replica.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testReplicaStaysReadOnly() throws Exception {
+        final ManagedRoutingDataSource dataSource = createDataSource(1);
+        try {
+            final Connection connection = dataSource.getConnection();
+            connection.setReadOnly(true);
+            connection.createStatement().close();
+            connection.setReadOnly(true);
+            try {
+                connection.setReadOnly(false);
+                fail("a connection routed to a replica must not be made writable");
+            } catch (SQLException e) {
+                // expected
+            }
+            assertTrue(connection.isReadOnly());
+            connection.close();
+            assertEquals(dataSource.getWriteCount(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert reads go to the primary when there is no replica.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testNoReplica() throws Exception {
+        final ManagedRoutingDataSource dataSource = createDataSource(0);
+        try {
+            final Connection connection = dataSource.getConnection();
+            connection.setReadOnly(true);
+            connection.createStatement().close();
+            assertEquals(dataSource.getPrimary().getNumActive(), 1);
+            connection.setReadOnly(false);
+            connection.close();
+
+            assertEquals(dataSource.getPrimaryReadCount(), 1L);
+            assertEquals(dataSource.getReadCount(), 1L);
+            assertEquals(dataSource.getReplicaReadCounts().length, 0);
+        } finally {
+            dataSource.close();
+        }
+    }
+}
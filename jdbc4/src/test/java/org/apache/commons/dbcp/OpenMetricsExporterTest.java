@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.sql.Connection;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link OpenMetricsExporter}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class OpenMetricsExporterTest {
+
+    /**
+     * Create a datasource backed by the stub driver, with a quote in its MBean name.
+     *
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource() throws Exception {
+        return StubDriver.createDataSource(ManagedBasicDataSourceFactory.PROP_MBEANNAME,
+                                           ManagedBasicDataSource.newMBeanName() + ",tenant=\"a\\\"b\"");
+    }
+
+    /**
+     * Get the label of the samples of a datasource.
+     *
+     * @param dataSource the datasource.
+     * @return the escaped label.
+     */
+    private static String label(ManagedBasicDataSource dataSource) {
+        return "datasource=\"" + dataSource.getMBeanName().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Assert gauges, counters and histograms are rendered for the datasources whose pool was created, until they are
+     * closed.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testRender() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource();
+        final OpenMetricsExporter exporter = new OpenMetricsExporter();
+        try {
+            assertFalse(exporter.scrape().contains(label(dataSource)));
+
+            final Connection connection = dataSource.getConnection();
+            Thread.sleep(2);
+            connection.close();
+            dataSource.getConnection().close();
+
+            final StringWriter out = new StringWriter();
+            exporter.writeTo(out);
+            final String text = out.toString();
+            assertTrue(text.endsWith("# EOF\n"), text);
+            assertTrue(text.contains("# TYPE dbcp_connections_idle gauge\n"), text);
+            assertTrue(text.contains("\ndbcp_connections_idle{" + label(dataSource) + "} 1\n"), text);
+            assertTrue(text.contains("# TYPE dbcp_borrowed counter\n"), text);
+            assertTrue(text.contains("\ndbcp_borrowed_total{" + label(dataSource) + "} 2\n"), text);
+            assertTrue(text.contains("# TYPE dbcp_hold_seconds histogram\n# HELP dbcp_hold_seconds "), text);
+            assertTrue(text.contains("\ndbcp_hold_seconds_bucket{" + label(dataSource) + ",le=\"0.0001\"} "), text);
+            assertTrue(text.contains("\ndbcp_hold_seconds_bucket{" + label(dataSource) + ",le=\"+Inf\"} 2\n"), text);
+            assertTrue(text.contains("\ndbcp_hold_seconds_count{" + label(dataSource) + "} 2\n"), text);
+            assertTrue(text.contains("\ndbcp_hold_seconds_sum{" + label(dataSource) + "} 0.00"), text);
+            assertEquals(exporter.scrape(), text);
+        } finally {
+            dataSource.close();
+        }
+        assertFalse(exporter.scrape().contains(label(dataSource)));
+    }
+
+    /**
+     * Assert the metrics are served over HTTP at {@link OpenMetricsExporter#PATH}.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testHttp() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource();
+        final OpenMetricsExporter exporter = new OpenMetricsExporter();
+        try {
+            dataSource.getConnection().close();
+            final int port = exporter.start(0);
+            assertEquals(exporter.getPort(), port);
+            assertEquals(exporter.start(0), port);
+
+            HttpURLConnection http = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/metrics").openConnection();
+            assertEquals(http.getResponseCode(), 200);
+            assertEquals(http.getContentType(), OpenMetricsExporter.CONTENT_TYPE);
+            final InputStream in = http.getInputStream();
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) >= 0; ) {
+                body.write(buffer, 0, read);
+            }
+            in.close();
+            final String text = body.toString("UTF-8");
+            assertTrue(text.contains("\ndbcp_borrowed_total{" + label(dataSource) + "} 1\n"), text);
+            assertTrue(text.endsWith("# EOF\n"), text);
+
+            http = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/other").openConnection();
+            assertEquals(http.getResponseCode(), 404);
+        } finally {
+            exporter.stop();
+            dataSource.close();
+        }
+        assertEquals(exporter.getPort(), -1);
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for {@link ResultCache}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class ResultCacheTest {
+
+    /**
+     * The allow-listed query.
+     */
+    private static final String SQL = "SELECT name FROM country WHERE code = ?";
+
+    /**
+     * Create a datasource backed by the stub driver.
+     *
+     * @param sql the allow-listed SQL, <code>null</code> for none.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(String sql) throws Exception {
+        if (sql == null) {
+            return StubDriver.createDataSource();
+        }
+        return StubDriver.createDataSource(ManagedBasicDataSourceFactory.PROP_RESULTCACHESQL, sql);
+    }
+
+    /**
+     * Run a query with a single string parameter and read its single value.
+     *
+     * @param dataSource the datasource.
+     * @param sql        the query.
+     * @param parameter  the parameter value.
+     * @return the value read.
+     * @throws SQLException should not happen.
+     */
+    private static String query(ManagedBasicDataSource dataSource, String sql, String parameter) throws SQLException {
+        final Connection connection = dataSource.getConnection();
+        try {
+            final PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setString(1, parameter);
+            final ResultSet resultSet = statement.executeQuery();
+            assertTrue(resultSet.next());
+            final String value = resultSet.getString(1);
+            assertFalse(resultSet.next());
+            resultSet.close();
+            statement.close();
+            return value;
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Assert queries go to the database when the cache is disabled.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testDisabled() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(null);
+        try {
+            assertFalse(dataSource.getResultCache().isEnabled());
+            final long queries = StubDriver.getQueryCount();
+            assertEquals(query(dataSource, SQL, "FR"), "FR");
+            assertEquals(query(dataSource, SQL, "FR"), "FR");
+            assertEquals(StubDriver.getQueryCount() - queries, 2L);
+            assertEquals(dataSource.getResultCache().getMisses(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert allow-listed queries are served from the cache for the same parameters.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testHit() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(SQL + "; SELECT 1");
+        final ResultCache cache = dataSource.getResultCache();
+        try {
+            final long queries = StubDriver.getQueryCount();
+            assertEquals(query(dataSource, SQL, "FR"), "FR");
+            assertEquals(query(dataSource, "select name  from country\n where code = ?", "FR"), "FR");
+            assertEquals(StubDriver.getQueryCount() - queries, 2L);
+            assertEquals(query(dataSource, SQL, "FR"), "FR");
+            assertEquals(query(dataSource, SQL, "DE"), "DE");
+            assertEquals(query(dataSource, SQL, "DE"), "DE");
+            assertEquals(StubDriver.getQueryCount() - queries, 3L);
+            assertEquals(cache.getHits(), 2L);
+            assertEquals(cache.getMisses(), 3L);
+            assertEquals(cache.getSize(), 3);
+            assertTrue(cache.getMemory() > 0);
+
+            assertEquals(query(dataSource, "SELECT code FROM country WHERE name = ?", "France"), "France");
+            assertEquals(query(dataSource, "SELECT code FROM country WHERE name = ?", "France"), "France");
+            assertEquals(StubDriver.getQueryCount() - queries, 5L);
+        } finally {
+            dataSource.close();
+        }
+        assertEquals(cache.getSize(), 0);
+    }
+
+    /**
+     * Assert the executions with parameters that cannot be part of a key bypass the cache.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testUnkeyableParameter() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(SQL);
+        try {
+            final long queries = StubDriver.getQueryCount();
+            final Connection connection = dataSource.getConnection();
+            try {
+                final PreparedStatement statement = connection.prepareStatement(SQL);
+                for (int i = 0; i < 2; i++) {
+                    statement.setBinaryStream(1, new ByteArrayInputStream(new byte[1]), 1);
+                    statement.executeQuery().close();
+                }
+                statement.clearParameters();
+                statement.setString(1, "FR");
+                statement.executeQuery().close();
+                statement.executeQuery().close();
+                statement.close();
+            } finally {
+                connection.close();
+            }
+            assertEquals(StubDriver.getQueryCount() - queries, 3L);
+            assertEquals(dataSource.getResultCache().getHits(), 1L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the executions truncated by <code>maxRows</code> bypass the cache, so they are not served to the
+     * executions without a limit.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testMaxRows() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(SQL);
+        StubDriver.setRowCount(3);
+        try {
+            final long queries = StubDriver.getQueryCount();
+            final Connection connection = dataSource.getConnection();
+            try {
+                final PreparedStatement limited = connection.prepareStatement(SQL);
+                limited.setMaxRows(1);
+                limited.setString(1, "FR");
+                for (int i = 0; i < 2; i++) {
+                    final ResultSet resultSet = limited.executeQuery();
+                    assertTrue(resultSet.next());
+                    assertFalse(resultSet.next());
+                    resultSet.close();
+                }
+                limited.close();
+
+                final PreparedStatement statement = connection.prepareStatement(SQL);
+                statement.setString(1, "FR");
+                final ResultSet resultSet = statement.executeQuery();
+                int rows = 0;
+                while (resultSet.next()) {
+                    rows++;
+                }
+                assertEquals(rows, 3);
+                resultSet.close();
+                statement.close();
+            } finally {
+                connection.close();
+            }
+            assertEquals(StubDriver.getQueryCount() - queries, 3L);
+            assertEquals(dataSource.getResultCache().getSize(), 1);
+        } finally {
+            StubDriver.setRowCount(1);
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert results are evicted by capacity, memory and age, and dropped on invalidation.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testEviction() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(SQL);
+        final ResultCache cache = dataSource.getResultCache();
+        try {
+            cache.setCapacity(2);
+            query(dataSource, SQL, "FR");
+            query(dataSource, SQL, "DE");
+            query(dataSource, SQL, "FR");
+            query(dataSource, SQL, "IT");
+            assertEquals(cache.getSize(), 2);
+            assertEquals(cache.getEvictions(), 1L);
+            final long queries = StubDriver.getQueryCount();
+            query(dataSource, SQL, "FR");
+            assertEquals(StubDriver.getQueryCount(), queries);
+            query(dataSource, SQL, "DE");
+            assertEquals(StubDriver.getQueryCount() - queries, 1L);
+
+            cache.setMaxMemory(cache.getMemory() / 2);
+            assertEquals(cache.getSize(), 1);
+            cache.setMaxMemory(1);
+            assertEquals(cache.getSize(), 0);
+            query(dataSource, SQL, "FR");
+            assertEquals(cache.getSize(), 0);
+
+            cache.setMaxMemory(ResultCache.DEFAULT_MAX_MEMORY);
+            cache.setTimeToLive(1);
+            query(dataSource, SQL, "FR");
+            Thread.sleep(10);
+            query(dataSource, SQL, "FR");
+            assertEquals(cache.getExpirations(), 1L);
+
+            cache.setTimeToLive(0);
+            query(dataSource, SQL, "DE");
+            assertEquals(cache.getSize(), 2);
+            assertEquals(cache.invalidateSql("select name from country where code = ?"), 2);
+            query(dataSource, SQL, "DE");
+            cache.invalidate();
+            assertEquals(cache.getSize(), 0);
+            assertEquals(cache.getMemory(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert cached result sets can be scrolled and read with the usual getters.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testCachedResultSet() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(SQL);
+        try {
+            final Connection connection = dataSource.getConnection();
+            try {
+                final PreparedStatement statement = connection.prepareStatement(SQL);
+                statement.setString(1, "42");
+                final ResultSet resultSet = statement.executeQuery();
+                assertEquals(resultSet.getMetaData().getColumnCount(), 1);
+                assertEquals(resultSet.getMetaData().getColumnLabel(1), "VALUE");
+                assertTrue(resultSet.isBeforeFirst());
+                assertTrue(resultSet.next());
+                assertEquals(resultSet.getInt("value"), 42);
+                assertEquals(resultSet.getLong(1), 42L);
+                assertEquals(resultSet.getObject(1), "42");
+                assertFalse(resultSet.wasNull());
+                assertFalse(resultSet.next());
+                assertTrue(resultSet.isAfterLast());
+                assertTrue(resultSet.first());
+                assertEquals(resultSet.getRow(), 1);
+                assertEquals(resultSet.getStatement(), statement);
+                try {
+                    resultSet.getString("missing");
+                    fail("column should not exist");
+                } catch (SQLException e) {
+                    // expected
+                }
+                resultSet.close();
+                try {
+                    resultSet.next();
+                    fail("result set should be closed");
+                } catch (SQLException e) {
+                    // expected
+                }
+
+                statement.setNull(1, java.sql.Types.VARCHAR);
+                final ResultSet nullResultSet = statement.executeQuery();
+                assertTrue(nullResultSet.next());
+                assertNull(nullResultSet.getString(1));
+                assertEquals(nullResultSet.getInt(1), 0);
+                assertTrue(nullResultSet.wasNull());
+                statement.close();
+            } finally {
+                connection.close();
+            }
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert results larger than the memory cap are not read into memory, but still served in full from the actual
+     * result set.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testLargeResult() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(SQL);
+        final ResultCache cache = dataSource.getResultCache();
+        cache.setMaxMemory(1024);
+        StubDriver.setRowCount(1000);
+        try {
+            final Connection connection = dataSource.getConnection();
+            try {
+                final PreparedStatement statement = connection.prepareStatement(SQL);
+                statement.setString(1, "FR");
+                final long fetched = StubDriver.getFetchCount();
+                final ResultSet resultSet = statement.executeQuery();
+                assertTrue(StubDriver.getFetchCount() - fetched < 100L);
+                assertEquals(resultSet.getType(), ResultSet.TYPE_FORWARD_ONLY);
+                int rows = 0;
+                while (resultSet.next()) {
+                    rows++;
+                    assertEquals(resultSet.getString(1), "FR");
+                    assertEquals(resultSet.getRow(), rows);
+                }
+                assertEquals(rows, 1000);
+                assertEquals(resultSet.getStatement(), statement);
+                try {
+                    resultSet.first();
+                    fail("the result set should be forward-only");
+                } catch (SQLException e) {
+                    // expected
+                }
+                resultSet.close();
+                try {
+                    resultSet.next();
+                    fail("result set should be closed");
+                } catch (SQLException e) {
+                    // expected
+                }
+                assertEquals(cache.getSize(), 0);
+
+                StubDriver.setRowCount(1);
+                assertEquals(query(dataSource, SQL, "FR"), "FR");
+                assertEquals(cache.getSize(), 1);
+                statement.close();
+            } finally {
+                connection.close();
+            }
+        } finally {
+            StubDriver.setRowCount(1);
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the cache is exposed through JMX.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testMBean() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(SQL);
+        try {
+            query(dataSource, SQL, "FR");
+            query(dataSource, SQL, "FR");
+            final ObjectName objectName = new ObjectName(dataSource.getMBeanName());
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "ResultCache.Hits"), 1L);
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "ResultCache.Size"), 1);
+            ManagementFactory.getPlatformMBeanServer().invoke(objectName, "ResultCache.invalidate", new Object[0], new String[0]);
+            assertEquals(dataSource.getResultCache().getSize(), 0);
+        } finally {
+            dataSource.close();
+        }
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * In-process JDBC driver used by tests that need real connections but no database.
+ * <p/>
+ * Accepts any URL starting with {@link #URL_PREFIX}. Connections, statements and result sets are dynamic proxies that
+ * return neutral values, so they work with any version of the JDBC API. Result sets hold a single row whose single
+ * column is the first parameter set on the statement, if any.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class StubDriver implements Driver {
+
+    /**
+     * The prefix of the URLs accepted by this driver.
+     */
+    public static final String URL_PREFIX = "jdbc:stub:";
+
+    /**
+     * The connection property holding the number of milliseconds opening a connection takes, to simulate a remote
+     * database.
+     */
+    public static final String CONNECT_DELAY = "connectDelay";
+
+    /**
+     * The connection property that makes {@link Connection#isValid(int)} return false when set to <code>true</code>,
+     * to simulate a broken connection the driver still considers open.
+     */
+    public static final String INVALID = "invalid";
+
+    /**
+     * A query that fails while {@link #setFailing(boolean) failing} is enabled, to simulate a database that accepts
+     * connections but fails queries.
+     */
+    public static final String FAILING_QUERY = "SELECT 'failing'";
+
+    /**
+     * The number of queries executed by all the stub statements.
+     */
+    private static final AtomicLong queryCount = new AtomicLong();
+
+    /**
+     * The number of updates and batches executed by all the stub statements.
+     */
+    private static final AtomicLong updateCount = new AtomicLong();
+
+    /**
+     * Whether {@link #FAILING_QUERY} fails.
+     */
+    private static volatile boolean failing;
+
+    /**
+     * The number of rows of the stub result sets.
+     */
+    private static volatile int rowCount = 1;
+
+    /**
+     * The number of rows fetched from all the stub result sets.
+     */
+    private static final AtomicLong fetchCount = new AtomicLong();
+
+    static {
+        try {
+            DriverManager.registerDriver(new StubDriver());
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Build {@link ManagedBasicDataSourceFactory} properties for a datasource backed by this driver.
+     *
+     * @param keyValues additional property names and values, alternately.
+     * @return a new set of properties.
+     */
+    public static Properties properties(String... keyValues) {
+        final Properties properties = new Properties();
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_DRIVERCLASSNAME, StubDriver.class.getName());
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_URL, URL_PREFIX + "test");
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_USERNAME, "sa");
+        properties.setProperty(ManagedBasicDataSourceFactory.PROP_PASSWORD, "");
+        for (int i = 0; i < keyValues.length; i += 2) {
+            properties.setProperty(keyValues[i], keyValues[i + 1]);
+        }
+        return properties;
+    }
+
+    /**
+     * Create a datasource backed by this driver with {@link ManagedBasicDataSourceFactory}.
+     *
+     * @param keyValues additional property names and values, alternately.
+     * @return the datasource.
+     * @throws Exception if the datasource could not be created.
+     * @see #properties(String...)
+     */
+    public static ManagedBasicDataSource createDataSource(String... keyValues) throws Exception {
+        return (ManagedBasicDataSource) ManagedBasicDataSourceFactory.createDataSource(properties(keyValues));
+    }
+
+    /**
+     * Get the number of queries executed by all the stub statements.
+     *
+     * @return the number of result sets returned so far.
+     */
+    public static long getQueryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * Set whether {@link #FAILING_QUERY} fails. It succeeds by default, so it can be used as the validation query of a
+     * datasource, which is checked when the datasource is created.
+     *
+     * @param failing true to make the query fail.
+     */
+    public static void setFailing(boolean failing) {
+        StubDriver.failing = failing;
+    }
+
+    /**
+     * Set the number of rows of the stub result sets, which all hold the value of the first parameter.
+     *
+     * @param rowCount the number of rows, 1 by default.
+     */
+    public static void setRowCount(int rowCount) {
+        StubDriver.rowCount = rowCount;
+    }
+
+    /**
+     * Get the number of rows fetched from all the stub result sets.
+     *
+     * @return the number of <code>next()</code> calls that moved to a row so far.
+     */
+    public static long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    /**
+     * Get the number of updates and batches executed by all the stub statements, i.e. the round trips that would have
+     * been made to the database to modify data.
+     * <p/>
+     * <p>Updates report a count of 1 row, unless an integer parameter is set, in which case it is the count.</p>
+     *
+     * @return the number of <code>executeUpdate()</code> and <code>executeBatch()</code> calls so far.
+     */
+    public static long getUpdateCount() {
+        return updateCount.get();
+    }
+
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        final String delay = info == null ? null : info.getProperty(CONNECT_DELAY);
+        if (delay != null) {
+            try {
+                Thread.sleep(Long.parseLong(delay));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while connecting");
+            }
+        }
+        final boolean invalid = info != null && Boolean.valueOf(info.getProperty(INVALID)).booleanValue();
+        return (Connection) newProxy(Connection.class, new ConnectionHandler(invalid));
+    }
+
+    public boolean acceptsURL(String url) throws SQLException {
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+        return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    public Logger getParentLogger() {
+        return Logger.getLogger(StubDriver.class.getName());
+    }
+
+    /**
+     * Create a proxy for a JDBC interface.
+     *
+     * @param type    the interface.
+     * @param handler the proxy handler.
+     * @return the proxy.
+     */
+    static Object newProxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    /**
+     * Get the neutral value for a return type.
+     *
+     * @param type the return type.
+     * @return <code>null</code>, <code>false</code> or zero.
+     */
+    static Object defaultValue(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        } else if (type == Integer.TYPE) {
+            return 0;
+        } else if (type == Long.TYPE) {
+            return 0L;
+        } else if (type == Short.TYPE) {
+            return (short) 0;
+        } else if (type == Byte.TYPE) {
+            return (byte) 0;
+        } else if (type == Double.TYPE) {
+            return 0d;
+        } else if (type == Float.TYPE) {
+            return 0f;
+        }
+        return null;
+    }
+
+    /**
+     * Handle {@link Object} methods on a proxy.
+     *
+     * @param proxy  the proxy.
+     * @param method the invoked method.
+     * @param args   the arguments.
+     * @return the result, or <code>this</code> handler if the method is not an {@link Object} method.
+     */
+    static Object objectMethod(Object proxy, Method method, Object[] args) {
+        final String name = method.getName();
+        if ("equals".equals(name) && args != null && args.length == 1) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(name) && args == null) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(name) && args == null) {
+            return method.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+        return null;
+    }
+
+    /**
+     * Handler for stub {@link Connection}s.
+     */
+    static class ConnectionHandler implements InvocationHandler {
+
+        private final boolean invalid;
+
+        private boolean closed;
+
+        private boolean autoCommit = true;
+
+        private boolean readOnly;
+
+        private int transactionIsolation = Connection.TRANSACTION_READ_COMMITTED;
+
+        ConnectionHandler(boolean invalid) {
+            this.invalid = invalid;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final Object objectResult = objectMethod(proxy, method, args);
+            if (objectResult != null) {
+                return objectResult;
+            }
+            final String name = method.getName();
+            if ("close".equals(name)) {
+                closed = true;
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return closed;
+            } else if ("isValid".equals(name)) {
+                return !closed && !invalid;
+            }
+            if (closed) {
+                throw new SQLException("Connection is closed.");
+            }
+            if ("getAutoCommit".equals(name)) {
+                return autoCommit;
+            } else if ("setAutoCommit".equals(name)) {
+                autoCommit = (Boolean) args[0];
+                return null;
+            } else if ("isReadOnly".equals(name)) {
+                return readOnly;
+            } else if ("setReadOnly".equals(name)) {
+                readOnly = (Boolean) args[0];
+                return null;
+            } else if ("getTransactionIsolation".equals(name)) {
+                return transactionIsolation;
+            } else if ("setTransactionIsolation".equals(name)) {
+                transactionIsolation = (Integer) args[0];
+                return null;
+            } else if (Statement.class.isAssignableFrom(method.getReturnType())) {
+                return newProxy(method.getReturnType(), new StatementHandler((Connection) proxy));
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * Handler for stub {@link Statement}s, {@link PreparedStatement}s and {@link CallableStatement}s.
+     */
+    static class StatementHandler implements InvocationHandler {
+
+        private final Connection connection;
+
+        private boolean closed;
+
+        private Object parameter;
+
+        private int maxRows;
+
+        private final List<Object> batch = new ArrayList<Object>();
+
+        StatementHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final Object objectResult = objectMethod(proxy, method, args);
+            if (objectResult != null) {
+                return objectResult;
+            }
+            final String name = method.getName();
+            if ("close".equals(name)) {
+                closed = true;
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return closed;
+            } else if ("getConnection".equals(name)) {
+                return connection;
+            } else if ("setMaxRows".equals(name)) {
+                maxRows = (Integer) args[0];
+                return null;
+            } else if ("getMaxRows".equals(name)) {
+                return maxRows;
+            } else if ("addBatch".equals(name) && args == null) {
+                batch.add(parameter);
+                return null;
+            } else if ("clearBatch".equals(name)) {
+                batch.clear();
+                return null;
+            } else if ("executeBatch".equals(name)) {
+                updateCount.incrementAndGet();
+                final int[] counts = new int[batch.size()];
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = count(batch.get(i));
+                }
+                batch.clear();
+                return counts;
+            } else if ("executeUpdate".equals(name)) {
+                updateCount.incrementAndGet();
+                return count(parameter);
+            } else if (name.startsWith("set") && args != null && args.length >= 2 && Integer.valueOf(1).equals(args[0])) {
+                parameter = "setNull".equals(name) ? null : args[1];
+                return null;
+            } else if (method.getReturnType() == ResultSet.class) {
+                if (failing && args != null && args.length > 0 && FAILING_QUERY.equals(args[0])) {
+                    throw new SQLException("Stub query failure");
+                }
+                queryCount.incrementAndGet();
+                return newProxy(ResultSet.class, new ResultSetHandler((Statement) proxy, parameter, maxRows));
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private static int count(Object parameter) {
+            return parameter instanceof Integer ? (Integer) parameter : 1;
+        }
+    }
+
+    /**
+     * Handler for stub {@link ResultSet}s, which contain {@link #setRowCount(int) rowCount} rows, at most the
+     * <code>maxRows</code> of their statement.
+     */
+    static class ResultSetHandler implements InvocationHandler {
+
+        private final Statement statement;
+
+        private final Object value;
+
+        private final int rows;
+
+        private int row;
+
+        ResultSetHandler(Statement statement, Object value, int maxRows) {
+            this.statement = statement;
+            this.value = value;
+            this.rows = maxRows > 0 ? Math.min(rowCount, maxRows) : rowCount;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final Object objectResult = objectMethod(proxy, method, args);
+            if (objectResult != null) {
+                return objectResult;
+            }
+            final String name = method.getName();
+            if ("next".equals(name)) {
+                if (++row > rows) {
+                    return false;
+                }
+                fetchCount.incrementAndGet();
+                return true;
+            } else if ("getRow".equals(name)) {
+                return row <= rows ? row : 0;
+            } else if ("getStatement".equals(name)) {
+                return statement;
+            } else if ("getMetaData".equals(name)) {
+                return newProxy(ResultSetMetaData.class, new ResultSetMetaDataHandler());
+            } else if ("getObject".equals(name) && args.length == 1) {
+                return value;
+            } else if ("getString".equals(name)) {
+                return value == null ? null : value.toString();
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * Handler for stub {@link ResultSetMetaData}, which describe a single <code>VALUE</code> column.
+     */
+    static class ResultSetMetaDataHandler implements InvocationHandler {
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final Object objectResult = objectMethod(proxy, method, args);
+            if (objectResult != null) {
+                return objectResult;
+            }
+            final String name = method.getName();
+            if ("getColumnCount".equals(name)) {
+                return 1;
+            } else if ("getColumnLabel".equals(name) || "getColumnName".equals(name)) {
+                return "VALUE";
+            } else if ("getColumnType".equals(name)) {
+                return Types.VARCHAR;
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests for {@link TrackedConnection}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class TrackedConnectionTest {
+
+    /**
+     * Assert the hold time of connections is recorded once they are closed, and long holds are counted.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testHoldTimeRecorded() throws Exception {
+        final ManagedBasicDataSource testDataSource = StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_LONGHOLDTHRESHOLD, "50");
+        try {
+            testDataSource.getConnection().close();
+
+            final Connection connection = testDataSource.getConnection();
+            Thread.sleep(100);
+            assertEquals(testDataSource.getReturnedCount(), 1L);
+            connection.close();
+
+            assertEquals(testDataSource.getReturnedCount(), 2L);
+            assertEquals(testDataSource.getHoldTime().getCount(), 2L);
+            assertTrue(testDataSource.getHoldTime().getMax() >= 100d);
+            assertEquals(testDataSource.getLongHoldCount(), 1L);
+        } finally {
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert closing a connection twice only records it once, and the connection is returned to the pool.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testDoubleClose() throws Exception {
+        final ManagedBasicDataSource testDataSource = StubDriver.createDataSource();
+        try {
+            final Connection connection = testDataSource.getConnection();
+            assertEquals(testDataSource.getNumActive(), 1);
+            connection.close();
+            connection.close();
+            assertTrue(connection.isClosed());
+            assertEquals(testDataSource.getReturnedCount(), 1L);
+            assertEquals(testDataSource.getNumActive(), 0);
+            assertEquals(testDataSource.getNumIdle(), 1);
+        } finally {
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert proxies follow the {@link Object} contract.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testObjectMethods() throws Exception {
+        final ManagedBasicDataSource testDataSource = StubDriver.createDataSource();
+        try {
+            final Connection connection1 = testDataSource.getConnection();
+            final Connection connection2 = testDataSource.getConnection();
+            assertEquals(connection1, connection1);
+            assertFalse(connection1.equals(connection2));
+            assertEquals(connection1.hashCode(), connection1.hashCode());
+            assertNotNull(connection1.toString());
+            connection1.close();
+            connection2.close();
+        } finally {
+            testDataSource.close();
+        }
+    }
+
+    /**
+     * Assert the connections can be cast to {@link DelegatingConnection} to reach the underlying connection when
+     * <code>accessToUnderlyingConnectionAllowed</code> is set, and only then.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testAccessToUnderlyingConnection() throws Exception {
+        final ManagedBasicDataSource testDataSource = StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_ACCESSTOUNDERLYINGCONNECTIONALLOWED, "true");
+        try {
+            final Connection connection = testDataSource.getConnection();
+            final Connection innermost = ((DelegatingConnection) connection).getInnermostDelegate();
+            assertNotNull(innermost);
+            assertFalse(innermost instanceof DelegatingConnection);
+            assertTrue(((DelegatingConnection) connection).getDelegate() instanceof PoolableConnection);
+            assertSame(connection.createStatement().getConnection(), connection);
+            connection.close();
+            assertTrue(connection.isClosed());
+            assertEquals(testDataSource.getReturnedCount(), 1L);
+        } finally {
+            testDataSource.close();
+        }
+
+        final ManagedBasicDataSource defaultDataSource = StubDriver.createDataSource();
+        try {
+            final Connection connection = defaultDataSource.getConnection();
+            assertNull(((DelegatingConnection) connection).getInnermostDelegate());
+            assertNull(((DelegatingConnection) connection).getDelegate());
+            connection.close();
+        } finally {
+            defaultDataSource.close();
+        }
+    }
+}
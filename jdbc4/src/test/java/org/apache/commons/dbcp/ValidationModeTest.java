@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for {@link ManagedBasicDataSource#setValidationMode(String)}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class ValidationModeTest {
+
+    /**
+     * Create a datasource backed by the stub driver with a single connection validated on borrow, without validation
+     * query.
+     *
+     * @param mode    the validation mode.
+     * @param invalid whether the stub connections report themselves as invalid.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(String mode, boolean invalid) throws Exception {
+        return StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "1",
+                ManagedBasicDataSourceFactory.PROP_TESTONBORROW, "true",
+                ManagedBasicDataSourceFactory.PROP_VALIDATIONMODE, mode,
+                ManagedBasicDataSourceFactory.PROP_CONNECTIONPROPERTIES, StubDriver.INVALID + "=" + invalid);
+    }
+
+    /**
+     * Assert validations in <code>isValid</code> mode are counted and timed.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testIsValid() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(ManagedBasicDataSource.VALIDATION_MODE_ISVALID, false);
+        try {
+            dataSource.getConnection().close();
+            dataSource.getConnection().close();
+
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(dataSource.getMBeanName());
+            assertEquals(server.getAttribute(name, "ValidationMode"), ManagedBasicDataSource.VALIDATION_MODE_ISVALID);
+            assertEquals(server.getAttribute(name, "Validation.ExecutedCount"), 2L);
+            assertEquals(server.getAttribute(name, "Validation.FailedCount"), 0L);
+            assertEquals(server.getAttribute(name, "Validation.Time.Count"), 2L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert connections the driver considers invalid are only rejected in <code>isValid</code> mode, which can be
+     * switched on a running pool.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testSwitchMode() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(ManagedBasicDataSource.VALIDATION_MODE_QUERY, true);
+        try {
+            dataSource.getConnection().close();
+            assertEquals(dataSource.getValidation().getFailedCount(), 0L);
+
+            ManagementFactory.getPlatformMBeanServer().setAttribute(new ObjectName(dataSource.getMBeanName()),
+                                                                    new Attribute("ValidationMode", ManagedBasicDataSource.VALIDATION_MODE_ISVALID));
+            try {
+                dataSource.getConnection();
+                fail("the connections are invalid");
+            } catch (SQLException e) {
+                // expected
+            }
+            assertTrue(dataSource.getValidation().getFailedCount() > 0);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert unknown validation modes are rejected.
+     */
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownMode() {
+        final ManagedBasicDataSource dataSource = new ManagedBasicDataSource();
+        try {
+            dataSource.setValidationMode("ping");
+        } finally {
+            try {
+                dataSource.close();
+            } catch (SQLException e) {
+                // ignored
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010-2012 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.dbcp;
+
+import org.testng.annotations.Test;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests for {@link ValidationThrottle}.
+ *
+ * @author <a href="mailto:julien.nicoulaud@gmail.com">Julien Nicoulaud</a>
+ * @since 0.2.5
+ */
+public class ValidationThrottleTest {
+
+    /**
+     * Create a datasource backed by the stub driver with a single connection validated on borrow.
+     *
+     * @param interval the validation interval in milliseconds.
+     * @return the datasource.
+     * @throws Exception should not happen.
+     */
+    private static ManagedBasicDataSource createDataSource(long interval) throws Exception {
+        return StubDriver.createDataSource(
+                ManagedBasicDataSourceFactory.PROP_MAXACTIVE, "1",
+                ManagedBasicDataSourceFactory.PROP_TESTONBORROW, "true",
+                ManagedBasicDataSourceFactory.PROP_VALIDATIONQUERY, "SELECT 1",
+                ManagedBasicDataSourceFactory.PROP_VALIDATIONINTERVAL, String.valueOf(interval));
+    }
+
+    /**
+     * Borrow a connection and give it back.
+     *
+     * @param dataSource the datasource.
+     * @throws Exception should not happen.
+     */
+    private static void borrow(ManagedBasicDataSource dataSource) throws Exception {
+        dataSource.getConnection().close();
+    }
+
+    /**
+     * Assert connections are validated on every borrow when no interval is set.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testAlwaysValidate() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(0);
+        try {
+            for (int i = 0; i < 3; i++) {
+                borrow(dataSource);
+            }
+            assertEquals(dataSource.getValidation().getExecutedCount(), 3L);
+            assertEquals(dataSource.getValidation().getSkippedCount(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert a connection validated within the interval is not validated again, and is once the interval elapsed.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testSkipRecentlyValidated() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(200);
+        try {
+            for (int i = 0; i < 3; i++) {
+                borrow(dataSource);
+            }
+            assertEquals(dataSource.getValidation().getExecutedCount(), 1L);
+            assertEquals(dataSource.getValidation().getSkippedCount(), 2L);
+
+            Thread.sleep(300);
+            borrow(dataSource);
+            assertEquals(dataSource.getValidation().getExecutedCount(), 2L);
+            assertEquals(dataSource.getValidation().getFailedCount(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert a connection given back by the application counts as recently validated.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testSkipRecentlyUsed() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(1000);
+        try {
+            final Connection connection = dataSource.getConnection();
+            Thread.sleep(700);
+            connection.close();
+            Thread.sleep(500);
+            borrow(dataSource);
+            assertEquals(dataSource.getValidation().getExecutedCount(), 1L);
+            assertEquals(dataSource.getValidation().getSkippedCount(), 1L);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Assert the interval and counters are exposed as nested attributes of the MBean.
+     *
+     * @throws Exception should not happen.
+     */
+    @Test
+    public void testMBean() throws Exception {
+        final ManagedBasicDataSource dataSource = createDataSource(0);
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(dataSource.getMBeanName());
+            server.setAttribute(name, new Attribute("Validation.Interval", 60000L));
+            assertEquals(dataSource.getValidation().getInterval(), 60000L);
+
+            borrow(dataSource);
+            borrow(dataSource);
+            assertEquals(server.getAttribute(name, "Validation.ExecutedCount"), 1L);
+            assertEquals(server.getAttribute(name, "Validation.SkippedCount"), 1L);
+
+            server.invoke(name, "Validation.reset", new Object[0], new String[0]);
+            assertEquals(dataSource.getValidation().getSkippedCount(), 0L);
+        } finally {
+            dataSource.close();
+        }
+    }
+}